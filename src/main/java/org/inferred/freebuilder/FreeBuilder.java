@@ -54,5 +54,105 @@ import java.lang.annotation.Target;
  */
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.SOURCE)
-public @interface FreeBuilder {}
+public @interface FreeBuilder {
 
+  /**
+   * Whether the generated value type should compute its hash code at most once, caching the
+   * result in a transient field. Only enable this if every property value is immutable, as
+   * later changes to a property's state will not be reflected in the cached hash code.
+   */
+  boolean cacheHashCode() default false;
+
+  /**
+   * Whether the generated value type should render its string representation at most once,
+   * caching the result in a transient field. Only enable this if every property value is
+   * immutable, as later changes to a property's state will not be reflected in the cached
+   * string.
+   */
+  boolean cacheToString() default false;
+
+  /**
+   * Whether {@code List} properties of boxed primitives, such as {@code List<Integer>}, should be
+   * stored in primitive arrays by both the builder and the value type. This greatly reduces the
+   * memory used by large lists, at the cost of boxing each element as it is read.
+   */
+  boolean compactPrimitiveLists() default false;
+
+  /**
+   * Whether {@code Map} properties between boxed primitives, such as {@code Map<Integer, Double>},
+   * should be stored in primitive arrays by the value type. This greatly reduces the memory used
+   * by large maps, at the cost of boxing each key and value as it is read. Keys must be integral
+   * types or {@code char}.
+   */
+  boolean compactPrimitiveMaps() default false;
+
+  /**
+   * Whether {@code List} and {@code Map} properties should be accumulated directly in an
+   * {@code ImmutableList.Builder} or {@code ImmutableMap.Builder}, so that building the value
+   * does not copy them again. This suits builders that are built once and discarded.
+   *
+   * <p>In this mode, the builder's {@code getX()} methods return a snapshot of the current
+   * contents rather than a live view, copying them on every call, so callers reading a property
+   * repeatedly should keep the result; duplicate map keys are only reported by {@code build()};
+   * and removing a map entry copies the remaining entries. Guava's builders are not
+   * serializable, so neither is a generated builder that holds one.
+   */
+  boolean immutableCollectionBuilders() default false;
+
+  /**
+   * Whether array properties, such as {@code byte[]}, should be handed over without defensive
+   * copies: the builder's setter takes ownership of the array passed to it, and the getters
+   * return the stored array itself. Only enable this if callers never modify an array once it
+   * has been passed to a builder or returned from a getter, as the change would be visible to
+   * every builder and value sharing it.
+   */
+  boolean trustedArrays() default false;
+
+  /** How the builder should store {@code Multimap} properties. */
+  MultimapStorage multimapStorage() default MultimapStorage.LINKED;
+
+  /** How the value type should store {@code Optional} properties. */
+  OptionalStorage optionalStorage() default OptionalStorage.NULLABLE;
+
+  /** Storage strategies for the {@code Multimap} properties of a builder. */
+  enum MultimapStorage {
+
+    /**
+     * A {@code LinkedListMultimap} or {@code LinkedHashMultimap}, preserving the order in which
+     * entries were added.
+     */
+    LINKED,
+
+    /**
+     * An {@code ArrayListMultimap} or {@code HashMultimap}, which use far less memory per entry.
+     * Keys, and the values of set multimaps, are iterated in no particular order.
+     */
+    HASHED,
+
+    /**
+     * An {@code ImmutableListMultimap.Builder} or {@code ImmutableSetMultimap.Builder}, so that
+     * building the value does not copy the entries again. The builder's {@code getX()} methods
+     * return a snapshot of the current contents rather than a live view, copying them on every
+     * call. Guava's builders are not serializable, so neither is a generated builder that holds
+     * one.
+     */
+    IMMUTABLE_BUILDER
+  }
+
+  /** Storage strategies for the {@code Optional} properties of a value type. */
+  enum OptionalStorage {
+
+    /**
+     * A nullable field, wrapped in a new {@code Optional} each time the getter is called. This
+     * uses the least memory, and the JVM can often optimize the {@code Optional} away.
+     */
+    NULLABLE,
+
+    /**
+     * The {@code Optional} itself, created once when the value is built, so the getter does not
+     * allocate. The builder stores optional boxed primitives, such as {@code Optional<Integer>},
+     * as an unboxed value and a presence flag, so setting them does not box either.
+     */
+    OPTIONAL_INSTANCE
+  }
+}
@@ -23,6 +23,7 @@ import static com.google.common.collect.Iterables.transform;
 import static com.google.common.collect.Iterables.tryFind;
 import static javax.lang.model.element.ElementKind.INTERFACE;
 import static javax.lang.model.util.ElementFilter.constructorsIn;
+import static javax.lang.model.util.ElementFilter.methodsIn;
 import static javax.lang.model.util.ElementFilter.typesIn;
 import static javax.tools.Diagnostic.Kind.ERROR;
 import static javax.tools.Diagnostic.Kind.NOTE;
@@ -41,6 +42,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.processing.Messager;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
@@ -60,6 +62,9 @@ import javax.lang.model.util.Elements;
 import javax.lang.model.util.SimpleTypeVisitor6;
 import javax.lang.model.util.Types;
 
+import org.inferred.freebuilder.FreeBuilder;
+import org.inferred.freebuilder.FreeBuilder.MultimapStorage;
+import org.inferred.freebuilder.FreeBuilder.OptionalStorage;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.Metadata.StandardMethod;
 import org.inferred.freebuilder.processor.Metadata.UnderrideLevel;
@@ -100,14 +105,23 @@ class Analyser {
   private static final List<PropertyCodeGenerator.Factory> PROPERTY_FACTORIES = ImmutableList.of(
       new ListPropertyFactory(),
       new SetPropertyFactory(),
+      new SortedSetPropertyFactory(),
       new MapPropertyFactory(),
+      new SortedMapPropertyFactory(),
       new MultisetPropertyFactory(),
       new ListMultimapPropertyFactory(),
       new SetMultimapPropertyFactory(),
+      new TablePropertyFactory(),
+      new ArrayPropertyFactory(),
       new OptionalPropertyFactory(),
       new BuildablePropertyFactory(),
       new DefaultPropertyFactory());
 
+  /** Prefixes of the builder mutators that {@code mergeFrom(value)} may call for a property. */
+  private static final ImmutableList<String> MERGE_FROM_VALUE_PREFIXES =
+      ImmutableList.of("set", "setNullable", "add", "addAll", "put", "putAll", "clear");
+  private static final String MERGE_FROM_METHOD = "mergeFrom";
+
   private static final String BUILDER_SIMPLE_NAME_TEMPLATE = "%s_Builder";
   private static final String USER_BUILDER_NAME = "Builder";
 
@@ -119,13 +133,22 @@ class Analyser {
   private final Messager messager;
   private final MethodIntrospector methodIntrospector;
   private final Types types;
+  private final CapacityProfile capacityProfile;
+  private final SourceVersion sourceVersion;
 
   Analyser(
-      Elements elements, Messager messager, MethodIntrospector methodIntrospector, Types types) {
+      Elements elements,
+      Messager messager,
+      MethodIntrospector methodIntrospector,
+      Types types,
+      CapacityProfile capacityProfile,
+      SourceVersion sourceVersion) {
     this.elements = elements;
     this.messager = messager;
     this.methodIntrospector = methodIntrospector;
     this.types = types;
+    this.capacityProfile = capacityProfile;
+    this.sourceVersion = sourceVersion;
   }
 
   /**
@@ -140,6 +163,7 @@ class Analyser {
     ImpliedClass generatedBuilder =
         new ImpliedClass(pkg, generatedBuilderSimpleName(type), type, elements);
     Optional<TypeElement> builder = tryFindBuilder(generatedBuilder, type);
+    Map<String, Property> properties = findProperties(type, methods, builder);
     return new Metadata.Builder(elements)
         .setType(type)
         .setBuilder(builder.or(generatedBuilder))
@@ -152,7 +176,10 @@ class Analyser {
         .setBuilderSerializable(shouldBuilderBeSerializable(builder))
         .setGwtCompatible(isGwtCompatible(type))
         .setGwtSerializable(isGwtSerializable(type))
-        .addAllProperties(findProperties(type, methods, builder).values())
+        .setHashCodeCached(isHashCodeCached(type))
+        .setToStringCached(isToStringCached(type))
+        .setValueAdoptable(isValueAdoptable(builder, properties.values()))
+        .addAllProperties(properties.values())
         .build();
   }
 
@@ -339,9 +366,11 @@ class Analyser {
   private Map<String, Property> findProperties(
       TypeElement type, Iterable<ExecutableElement> methods, Optional<TypeElement> builder) {
     Set<String> methodsInvokedInBuilderConstructor = getMethodsInvokedInBuilderConstructor(builder);
+    Set<String> methodsDeclaredOnBuilder = getMethodsDeclaredOnBuilder(builder);
     Map<String, Property> propertiesByName = new LinkedHashMap<String, Property>();
     for (ExecutableElement method : methods) {
-      Property property = asPropertyOrNull(type, method, methodsInvokedInBuilderConstructor);
+      Property property = asPropertyOrNull(
+          type, method, methodsInvokedInBuilderConstructor, methodsDeclaredOnBuilder);
       if (property != null) {
         propertiesByName.put(property.getName(), property);
       }
@@ -368,6 +397,41 @@ class Analyser {
     return ImmutableSet.copyOf(transform(result, toStringFunction()));
   }
 
+  private static Set<String> getMethodsDeclaredOnBuilder(Optional<TypeElement> builder) {
+    if (!builder.isPresent()) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<String> result = ImmutableSet.builder();
+    for (ExecutableElement method : methodsIn(builder.get().getEnclosedElements())) {
+      result.add(method.getSimpleName().toString());
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns whether {@code mergeFrom(value)} may adopt the value for {@code build()} to return,
+   * i.e. whether the user's builder overrides neither it nor any mutator it may call.
+   */
+  private static boolean isValueAdoptable(
+      Optional<TypeElement> builder, Iterable<Property> properties) {
+    Set<String> methodsDeclaredOnBuilder = getMethodsDeclaredOnBuilder(builder);
+    if (methodsDeclaredOnBuilder.contains(MERGE_FROM_METHOD)) {
+      return false;
+    }
+    for (Property property : properties) {
+      for (String prefix : MERGE_FROM_VALUE_PREFIXES) {
+        if (methodsDeclaredOnBuilder.contains(prefix + property.getCapitalizedName())) {
+          return false;
+        }
+      }
+      if (methodsDeclaredOnBuilder.contains(
+          "get" + property.getCapitalizedName() + "Builder")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Introspects {@code method}, as found on {@code valueType}.
    *
@@ -376,7 +440,8 @@ class Analyser {
   private Property asPropertyOrNull(
       TypeElement valueType,
       ExecutableElement method,
-      Set<String> methodsInvokedInBuilderConstructor) {
+      Set<String> methodsInvokedInBuilderConstructor,
+      Set<String> methodsDeclaredOnBuilder) {
     MatchResult getterNameMatchResult = getterNameMatchResult(valueType, method);
     if (getterNameMatchResult == null) {
       return null;
@@ -400,7 +465,10 @@ class Analyser {
     }
     Property propertyWithoutCodeGenerator = resultBuilder.build();
     resultBuilder.setCodeGenerator(createCodeGenerator(
-        propertyWithoutCodeGenerator, methodsInvokedInBuilderConstructor));
+        valueType,
+        propertyWithoutCodeGenerator,
+        methodsInvokedInBuilderConstructor,
+        methodsDeclaredOnBuilder));
     return resultBuilder.build();
   }
 
@@ -450,10 +518,15 @@ class Analyser {
   }
 
   private PropertyCodeGenerator createCodeGenerator(
+      TypeElement valueType,
       Property propertyWithoutCodeGenerator,
-      Set<String> methodsInvokedInBuilderConstructor) {
+      Set<String> methodsInvokedInBuilderConstructor,
+      Set<String> methodsDeclaredOnBuilder) {
     Config config = new ConfigImpl(
-        propertyWithoutCodeGenerator, methodsInvokedInBuilderConstructor);
+        valueType,
+        propertyWithoutCodeGenerator,
+        methodsInvokedInBuilderConstructor,
+        methodsDeclaredOnBuilder);
     for (PropertyCodeGenerator.Factory factory : PROPERTY_FACTORIES) {
       Optional<? extends PropertyCodeGenerator> codeGenerator = factory.create(config);
       if (codeGenerator.isPresent()) {
@@ -465,14 +538,20 @@ class Analyser {
 
   private class ConfigImpl implements Config {
 
+    final TypeElement valueType;
     final Property property;
     final Set<String> methodsInvokedInBuilderConstructor;
+    final Set<String> methodsDeclaredOnBuilder;
 
     ConfigImpl(
+        TypeElement valueType,
         Property property,
-        Set<String> methodsInvokedInBuilderConstructor) {
+        Set<String> methodsInvokedInBuilderConstructor,
+        Set<String> methodsDeclaredOnBuilder) {
+      this.valueType = valueType;
       this.property = property;
       this.methodsInvokedInBuilderConstructor = methodsInvokedInBuilderConstructor;
+      this.methodsDeclaredOnBuilder = methodsDeclaredOnBuilder;
     }
 
     @Override
@@ -485,6 +564,56 @@ class Analyser {
       return methodsInvokedInBuilderConstructor;
     }
 
+    @Override
+    public Set<String> getMethodsDeclaredOnBuilder() {
+      return methodsDeclaredOnBuilder;
+    }
+
+    @Override
+    public boolean isCompactPrimitiveLists() {
+      return Analyser.isCompactPrimitiveLists(valueType);
+    }
+
+    @Override
+    public boolean isCompactPrimitiveMaps() {
+      return Analyser.isCompactPrimitiveMaps(valueType);
+    }
+
+    @Override
+    public boolean isImmutableCollectionBuilders() {
+      return Analyser.isImmutableCollectionBuilders(valueType);
+    }
+
+    @Override
+    public boolean isTrustedArrays() {
+      return Analyser.isTrustedArrays(valueType);
+    }
+
+    @Override
+    public MultimapStorage getMultimapStorage() {
+      FreeBuilder freeBuilder = valueType.getAnnotation(FreeBuilder.class);
+      return (freeBuilder != null) ? freeBuilder.multimapStorage() : MultimapStorage.LINKED;
+    }
+
+    @Override
+    public OptionalStorage getOptionalStorage() {
+      FreeBuilder freeBuilder = valueType.getAnnotation(FreeBuilder.class);
+      return (freeBuilder != null) ? freeBuilder.optionalStorage() : OptionalStorage.NULLABLE;
+    }
+
+    @Override
+    public Optional<Integer> getExpectedSize() {
+      return capacityProfile.getExpectedSize(
+          valueType.getQualifiedName().toString(), property.getName());
+    }
+
+    @Override
+    public boolean isConsumerAvailable() {
+      return !isGwtCompatible(valueType)
+          && isPostJava6(sourceVersion)
+          && elements.getTypeElement(PropertyCodeGenerator.CONSUMER.getQualifiedName()) != null;
+    }
+
     @Override
     public Elements getElements() {
       return elements;
@@ -667,6 +796,15 @@ class Analyser {
     return Character.toUpperCase(codepoint) != codepoint;
   }
 
+  /**
+   * Returns true if code compiled at {@code version} may target a Java 8 runtime. Java 7 is
+   * accepted, as Java 7 compilers are commonly run against Java 8 class libraries; whether the
+   * Java 8 types are actually present is checked separately.
+   */
+  private static boolean isPostJava6(SourceVersion version) {
+    return version.compareTo(SourceVersion.RELEASE_6) > 0;
+  }
+
   private static boolean isGwtCompatible(TypeElement type) {
     GwtCompatible gwtCompatible = type.getAnnotation(GwtCompatible.class);
     return (gwtCompatible != null);
@@ -677,6 +815,36 @@ class Analyser {
     return ((gwtCompatible != null) && (gwtCompatible.serializable()));
   }
 
+  private static boolean isHashCodeCached(TypeElement type) {
+    FreeBuilder freeBuilder = type.getAnnotation(FreeBuilder.class);
+    return ((freeBuilder != null) && (freeBuilder.cacheHashCode()));
+  }
+
+  private static boolean isCompactPrimitiveLists(TypeElement type) {
+    FreeBuilder freeBuilder = type.getAnnotation(FreeBuilder.class);
+    return ((freeBuilder != null) && (freeBuilder.compactPrimitiveLists()));
+  }
+
+  private static boolean isCompactPrimitiveMaps(TypeElement type) {
+    FreeBuilder freeBuilder = type.getAnnotation(FreeBuilder.class);
+    return ((freeBuilder != null) && (freeBuilder.compactPrimitiveMaps()));
+  }
+
+  private static boolean isImmutableCollectionBuilders(TypeElement type) {
+    FreeBuilder freeBuilder = type.getAnnotation(FreeBuilder.class);
+    return ((freeBuilder != null) && (freeBuilder.immutableCollectionBuilders()));
+  }
+
+  private static boolean isTrustedArrays(TypeElement type) {
+    FreeBuilder freeBuilder = type.getAnnotation(FreeBuilder.class);
+    return ((freeBuilder != null) && (freeBuilder.trustedArrays()));
+  }
+
+  private static boolean isToStringCached(TypeElement type) {
+    FreeBuilder freeBuilder = type.getAnnotation(FreeBuilder.class);
+    return ((freeBuilder != null) && (freeBuilder.cacheToString()));
+  }
+
   /** Returns whether a method is one of the {@link StandardMethod}s, and if so, which. */
   private static Optional<StandardMethod> maybeStandardMethod(ExecutableElement method) {
     String methodName = method.getSimpleName().toString();
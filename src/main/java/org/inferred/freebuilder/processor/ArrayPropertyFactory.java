@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import org.inferred.freebuilder.processor.Metadata.Property;
+import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
+import org.inferred.freebuilder.processor.util.SourceBuilder;
+
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * {@link PropertyCodeGenerator.Factory} providing value semantics for array properties, copying
+ * arrays on their way into the builder and out of the getters unless arrays are trusted.
+ *
+ * <p>Arrays of arrays are copied deeply, as a copy of the outer array alone would still share
+ * its inner arrays.
+ */
+public class ArrayPropertyFactory implements PropertyCodeGenerator.Factory {
+
+  private static final String SET_PREFIX = "set";
+  private static final String COPY_PREFIX = "copy";
+
+  @Override
+  public Optional<CodeGenerator> create(Config config) {
+    TypeMirror type = config.getProperty().getType();
+    if (type.getKind() == TypeKind.ARRAY) {
+      String setterName = SET_PREFIX + config.getProperty().getCapitalizedName();
+      boolean hasDefault = config.getMethodsInvokedInBuilderConstructor().contains(setterName);
+      int nestedDepth = 0;
+      TypeMirror componentType = ((ArrayType) type).getComponentType();
+      while (componentType.getKind() == TypeKind.ARRAY) {
+        nestedDepth++;
+        componentType = ((ArrayType) componentType).getComponentType();
+      }
+      return Optional.of(new CodeGenerator(config.getProperty(),
+          setterName, hasDefault, config.isTrustedArrays(), nestedDepth));
+    }
+    return Optional.absent();
+  }
+
+  private static class CodeGenerator extends PropertyCodeGenerator {
+
+    private final String setterName;
+    private final boolean hasDefault;
+    /** True if arrays are stored and returned as-is, without defensive copies. */
+    private final boolean trusted;
+    /** The number of levels of arrays nested inside the property's array, e.g. 1 for int[][]. */
+    private final int nestedDepth;
+
+    CodeGenerator(
+        Property property,
+        String setterName,
+        boolean hasDefault,
+        boolean trusted,
+        int nestedDepth) {
+      super(property);
+      this.setterName = setterName;
+      this.hasDefault = hasDefault;
+      this.trusted = trusted;
+      this.nestedDepth = nestedDepth;
+    }
+
+    private String copyName() {
+      return COPY_PREFIX + property.getCapitalizedName();
+    }
+
+    @Override
+    public Type getType() {
+      return hasDefault ? Type.HAS_DEFAULT : Type.REQUIRED;
+    }
+
+    @Override
+    public void addBuilderFieldDeclaration(SourceBuilder code) {
+      code.addLine("  private %s %s;", property.getType(), property.getName());
+    }
+
+    @Override
+    public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // Setter
+      code.addLine("")
+          .addLine("  /**");
+      if (trusted) {
+        code.addLine("   * Sets the value to be returned by {@link %s#%s()}.",
+                metadata.getType(), property.getGetterName())
+            .addLine("   *")
+            .addLine("   * <p>The builder takes ownership of {@code %s}, which must not be",
+                property.getName())
+            .addLine("   * modified afterwards.");
+      } else {
+        code.addLine("   * Sets the value to be returned by {@link %s#%s()} to a %scopy of",
+                metadata.getType(), property.getGetterName(), (nestedDepth > 0) ? "deep " : "")
+            .addLine("   * {@code %s}.", property.getName());
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code %s} is null", property.getName())
+          .addLine("   */")
+          .addLine("  public %s %s(%s %s) {",
+              metadata.getBuilder(),
+              setterName,
+              property.getType(),
+              property.getName());
+      if (trusted) {
+        code.addLine("    this.%1$s = %2$s.checkNotNull(%1$s);",
+            property.getName(), Preconditions.class);
+      } else if (nestedDepth > 0) {
+        code.addLine("    this.%1$s = %2$s(%3$s.checkNotNull(%1$s));",
+            property.getName(), copyName(), Preconditions.class);
+      } else {
+        code.addLine("    this.%1$s = %2$s.checkNotNull(%1$s).clone();",
+            property.getName(), Preconditions.class);
+      }
+      addModified(code);
+      if (!hasDefault) {
+        UnsetPropertiesTracker.forType(metadata).addSetProperty(code, property);
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // Getter
+      code.addLine("")
+          .addLine("  /**");
+      if (trusted) {
+        code.addLine("   * Returns the value that will be returned by {@link %s#%s()}.",
+            metadata.getType(), property.getGetterName());
+      } else {
+        code.addLine("   * Returns a %scopy of the value that will be returned by {@link %s#%s()}.",
+            (nestedDepth > 0) ? "deep " : "", metadata.getType(), property.getGetterName());
+      }
+      if (!hasDefault) {
+        code.addLine("   *")
+            .addLine("   * @throws IllegalStateException if the field has not been set");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s() {", property.getType(), property.getGetterName());
+      if (!hasDefault) {
+        code.addLine("    %s.checkState(", Preconditions.class)
+            .add("        ");
+        UnsetPropertiesTracker.forType(metadata).addIsSet(code, "_unsetProperties", property);
+        code.add(",\n")
+            .addLine("        \"%s not set\");", property.getName());
+      }
+      code.add("    return ");
+      addReadValueFragment(code, property.getName());
+      code.add(";\n")
+          .addLine("  }");
+
+      if (!trusted && nestedDepth > 0) {
+        addDeepCopy(code);
+      }
+    }
+
+    /**
+     * Adds a static method copying an array of arrays, and every array nested inside it, so no
+     * caller can modify the arrays the builder or value holds.
+     */
+    private void addDeepCopy(SourceBuilder code) {
+      code.addLine("")
+          .addLine("  private static %1$s %2$s(%1$s array) {", property.getType(), copyName())
+          .addLine("    %s copy = array.clone();", property.getType());
+      String element = "copy";
+      String indent = "    ";
+      for (int level = 0; level < nestedDepth; level++) {
+        String index = "i" + level;
+        code.addLine("%1$sfor (int %2$s = 0; %2$s < %3$s.length; %2$s++) {",
+            indent, index, element);
+        element = element + "[" + index + "]";
+        code.addLine("%s  if (%s != null) {", indent, element)
+            .addLine("%1$s    %2$s = %2$s.clone();", indent, element);
+        indent = indent + "    ";
+      }
+      for (int level = 0; level < nestedDepth; level++) {
+        indent = indent.substring(4);
+        code.addLine("%s  }", indent)
+            .addLine("%s}", indent);
+      }
+      code.addLine("    return copy;")
+          .addLine("  }");
+    }
+
+    @Override
+    public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      // The builder never modifies its array in place, so the value can share it.
+      code.addLine("      %s = %s.%s;", finalField, builder, property.getName());
+    }
+
+    @Override
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
+      if (trusted) {
+        code.addLine("    %s(%s.%s());", setterName, value, property.getGetterName());
+      } else {
+        // Read the field of our own value type directly, so the setter's copy is the only one.
+        code.addLine("    if (%s instanceof %s) {", value, metadata.getValueType())
+            .addLine("      %s(((%s) %s).%s);",
+                setterName, metadata.getValueType(), value, property.getName())
+            .addLine("    } else {")
+            .addLine("      %s(%s.%s());", setterName, value, property.getGetterName())
+            .addLine("    }");
+      }
+    }
+
+    @Override
+    public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
+      code.addLine("    %s(((%s) %s).%s);",
+          setterName, metadata.getGeneratedBuilder(), builder, property.getName());
+    }
+
+    @Override
+    public void addReadValueFragment(SourceBuilder code, String finalField) {
+      if (trusted) {
+        code.add("%s", finalField);
+      } else if (nestedDepth > 0) {
+        code.add("%s(%s)", copyName(), finalField);
+      } else {
+        code.add("%s.clone()", finalField);
+      }
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public void addSetFromResult(SourceBuilder code, String builder, String variable) {
+      code.addLine("        %s.%s(%s);", builder, setterName, variable);
+    }
+
+    @Override
+    public boolean isTemplateRequiredInClear() {
+      return true;
+    }
+
+    @Override
+    public void addClear(SourceBuilder code, String template) {
+      code.addLine("    %1$s = %2$s.%1$s;", property.getName(), template);
+    }
+
+    @Override
+    public void addPartialClear(SourceBuilder code) { }
+  }
+}
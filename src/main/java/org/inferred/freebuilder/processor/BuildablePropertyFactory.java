@@ -40,6 +40,7 @@ import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 
 /**
@@ -57,14 +58,65 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
   private static final String GET_BUILDER_SUFFIX = "Builder";
 
   /** How to merge the values from one Builder into another. */
-  private enum MergeBuilderMethod {
+  enum MergeBuilderMethod {
     MERGE_DIRECTLY, BUILD_PARTIAL_AND_MERGE
   }
 
+  /** The Builder of a buildable type, and how to create and merge instances of it. */
+  static class BuildableType {
+    final TypeElement builderType;
+    final BuilderFactory builderFactory;
+    final MergeBuilderMethod mergeFromBuilderMethod;
+
+    BuildableType(
+        TypeElement builderType,
+        BuilderFactory builderFactory,
+        MergeBuilderMethod mergeFromBuilderMethod) {
+      this.builderType = builderType;
+      this.builderFactory = builderFactory;
+      this.mergeFromBuilderMethod = mergeFromBuilderMethod;
+    }
+
+    /** Adds an expression creating a new, empty Builder. */
+    void addNewBuilder(SourceBuilder code) {
+      builderFactory.addNewBuilder(code, builderType);
+    }
+
+    /** Adds an expression merging the builder {@code source} into the builder {@code target}. */
+    void addMergeBuilder(SourceBuilder code, String target, String source) {
+      code.add("%s.mergeFrom(%s", target, source);
+      if (mergeFromBuilderMethod == MergeBuilderMethod.BUILD_PARTIAL_AND_MERGE) {
+        code.add(".buildPartial()");
+      }
+      code.add(")");
+    }
+  }
+
   @Override
   public Optional<? extends PropertyCodeGenerator> create(Config config) {
+    Optional<BuildableType> buildableType =
+        buildableType(config.getProperty().getType(), config.getElements(), config.getTypes());
+    if (!buildableType.isPresent()) {
+      return Optional.absent();
+    }
+    String setterName = SET_PREFIX + config.getProperty().getCapitalizedName();
+    String getBuilderName =
+        GET_BUILDER_PREFIX + config.getProperty().getCapitalizedName() + GET_BUILDER_SUFFIX;
+    return Optional.of(new CodeGenerator(
+        config.getProperty(),
+        buildableType.get().builderType,
+        buildableType.get().builderFactory,
+        setterName,
+        getBuilderName,
+        buildableType.get().mergeFromBuilderMethod));
+  }
+
+  /**
+   * Returns the Builder of {@code type}, or {@link Optional#absent()} if {@code type} is not
+   * buildable.
+   */
+  static Optional<BuildableType> buildableType(TypeMirror type, Elements elements, Types types) {
     // Check this is a declared type
-    TypeMirror type = config.getProperty().getType();
     if (type.getKind() != TypeKind.DECLARED) {
       return Optional.absent();
     }
@@ -99,18 +151,18 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
       mergeFromBuilderMethod = MergeBuilderMethod.MERGE_DIRECTLY;
     } else {
       List<ExecutableElement> methods = FluentIterable
-          .from(config.getElements().getAllMembers(builder.get()))
+          .from(elements.getAllMembers(builder.get()))
           .filter(ExecutableElement.class)
           .filter(new IsCallableMethod())
           .toList();
 
       // Check there is a build() method
-      if (!any(methods, new IsBuildMethod("build", type, config.getTypes()))) {
+      if (!any(methods, new IsBuildMethod("build", type, types))) {
         return Optional.absent();
       }
 
       // Check there is a buildPartial() method
-      if (!any(methods, new IsBuildMethod("buildPartial", type, config.getTypes()))) {
+      if (!any(methods, new IsBuildMethod("buildPartial", type, types))) {
         return Optional.absent();
       }
 
@@ -120,28 +172,20 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
       }
 
       // Check there is a mergeFrom(Value) method
-      if (!any(methods, new IsMergeFromMethod(type, config.getTypes()))) {
+      if (!any(methods, new IsMergeFromMethod(type, types))) {
         return Optional.absent();
       }
 
       // Check whether there is a mergeFrom(Builder) method
-      if (any(methods, new IsMergeFromMethod(builder.get().asType(), config.getTypes()))) {
+      if (any(methods, new IsMergeFromMethod(builder.get().asType(), types))) {
         mergeFromBuilderMethod = MergeBuilderMethod.MERGE_DIRECTLY;
       } else {
         mergeFromBuilderMethod = MergeBuilderMethod.BUILD_PARTIAL_AND_MERGE;
       }
     }
 
-    String setterName = SET_PREFIX + config.getProperty().getCapitalizedName();
-    String getBuilderName =
-        GET_BUILDER_PREFIX + config.getProperty().getCapitalizedName() + GET_BUILDER_SUFFIX;
-    return Optional.of(new CodeGenerator(
-        config.getProperty(),
-        builder.get(),
-        builderFactory.get(),
-        setterName,
-        getBuilderName,
-        mergeFromBuilderMethod));
+    return Optional.of(
+        new BuildableType(builder.get(), builderFactory.get(), mergeFromBuilderMethod));
   }
 
   @VisibleForTesting static class CodeGenerator extends PropertyCodeGenerator {
@@ -167,11 +211,17 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
       this.mergeFromBuilderMethod = mergeFromBuilderMethod;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The builder holds the value passed to the setter, if any, and only creates a nested
+     * builder when one is requested or a merge requires it. At most one of the two fields is
+     * non-null; if both are null, the property is in the state of a newly-created builder.
+     */
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.add("  private final %s %s = ", builderType, property.getName());
-      builderFactory.addNewBuilder(code, builderType);
-      code.add(";\n");
+      code.addLine("  private %s %s = null;", property.getType(), property.getName())
+          .addLine("  private %s %s = null;", builderType, builderFieldName());
     }
 
     @Override
@@ -190,10 +240,15 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
               setterName,
               property.getType(),
               property.getName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    this.%1$s.mergeFrom(%2$s.checkNotNull(%1$s));",
-              property.getName(), Preconditions.class)
-          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("    %s.checkNotNull(%s);", Preconditions.class, property.getName())
+          .addLine("    if (%s == null) {", builderFieldName())
+          .addLine("      this.%1$s = %1$s;", property.getName())
+          .addLine("    } else {")
+          .addLine("      %s.clear();", builderFieldName())
+          .addLine("      %s.mergeFrom(%s);", builderFieldName(), property.getName())
+          .addLine("    }");
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // set(T.Builder)
@@ -219,35 +274,133 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
               metadata.getType(), property.getGetterName())
           .addLine("   */")
           .addLine("  public %s %s() {", builderType, getBuilderName)
-          .addLine("    return %s;", property.getName())
+          .addLine("    if (%s == null) {", builderFieldName())
+          .add("      %s = ", builderFieldName());
+      builderFactory.addNewBuilder(code, builderType);
+      code.add(";\n")
+          .addLine("      if (%s != null) {", property.getName())
+          .addLine("        %s.clear();", builderFieldName())
+          .addLine("        %s.mergeFrom(%s);", builderFieldName(), property.getName())
+          .addLine("        %s = null;", property.getName())
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("    return %s;", builderFieldName())
           .addLine("  }");
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.%s.build();", finalField, builder, property.getName());
+      code.addLine("      if (%s.%s != null) {", builder, property.getName())
+          .addLine("        %s = %s.%s;", finalField, builder, property.getName());
+      addBuilderFieldAssignment(code, finalField, builder, "build");
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>A held value is passed through a fresh builder's {@code buildPartial()}, so the partial
+     * matches one built after merging the same value into the nested builder.
+     */
     @Override
     public void addPartialFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.%s.buildPartial();", finalField, builder, property.getName());
+      code.addLine("      if (%s.%s != null) {", builder, property.getName())
+          .add("        %s %s = ", builderType, builderFieldName());
+      builderFactory.addNewBuilder(code, builderType);
+      code.add(";\n")
+          .addLine("        %s.clear();", builderFieldName())
+          .addLine("        %s.mergeFrom(%s.%s);", builderFieldName(), builder, property.getName())
+          .addLine("        %s = %s.buildPartial();", finalField, builderFieldName());
+      addBuilderFieldAssignment(code, finalField, builder, "buildPartial");
+    }
+
+    /**
+     * Adds the branches of a field assignment that call {@code buildMethod} on the nested builder
+     * if there is one. The builder's nested builder is never created here, as a nested builder
+     * that may be modified externally prevents the built value being reused.
+     */
+    private void addBuilderFieldAssignment(
+        SourceBuilder code, String finalField, String builder, String buildMethod) {
+      code.addLine("      } else if (%s.%s != null) {", builder, builderFieldName())
+          .addLine("        %s = %s.%s.%s();", finalField, builder, builderFieldName(), buildMethod)
+          .addLine("      } else {")
+          .add("        %s = ", finalField);
+      builderFactory.addNewBuilder(code, builderType);
+      code.add(".%s();\n", buildMethod)
+          .addLine("      }");
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
-      code.addLine("    %s.mergeFrom(%s.%s());",
-          property.getName(), value, property.getGetterName());
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
+      addMergeValue(code, value + "." + property.getGetterName() + "()");
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The template's fields are read directly, as calling its nested builder getter would
+     * create a nested builder in the template. A template holding neither field is in its initial
+     * state, so is merged as a newly-created builder, which changes nothing if this builder is in
+     * its initial state too.
+     */
     @Override
     public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
-      code.add("    %s.mergeFrom(%s.%s()", property.getName(), builder, getBuilderName);
+      code.addLine("    if (((%s) %s).%s != null) {",
+              metadata.getGeneratedBuilder(), builder, property.getName())
+          .addLine("      if (%s == null && %s == null) {", property.getName(), builderFieldName())
+          .addLine("        %s = ((%s) %s).%s;",
+              property.getName(), metadata.getGeneratedBuilder(), builder, property.getName())
+          .addLine("      } else {")
+          .addLine("        %s().mergeFrom(((%s) %s).%s);",
+              getBuilderName, metadata.getGeneratedBuilder(), builder, property.getName())
+          .addLine("      }")
+          .addLine("    } else if (((%s) %s).%s != null) {",
+              metadata.getGeneratedBuilder(), builder, builderFieldName())
+          .add("      %s().mergeFrom(((%s) %s).%s",
+              getBuilderName, metadata.getGeneratedBuilder(), builder, builderFieldName());
+      addMergeFromBuilderSuffix(code);
+      code.addLine("    } else if (%s != null || %s != null) {",
+              property.getName(), builderFieldName())
+          .add("      %s().mergeFrom(", getBuilderName);
+      builderFactory.addNewBuilder(code, builderType);
+      addMergeFromBuilderSuffix(code);
+      code.addLine("    }");
+    }
+
+    /** Adds the end of a {@code mergeFrom} call whose argument is a nested builder. */
+    private void addMergeFromBuilderSuffix(SourceBuilder code) {
       if (mergeFromBuilderMethod == MergeBuilderMethod.BUILD_PARTIAL_AND_MERGE) {
         code.add(".buildPartial()");
       }
       code.add(");\n");
     }
 
+    /**
+     * Adds code merging {@code value} into the property. A builder in its initial state simply
+     * holds onto the value, rather than copying it into a new nested builder.
+     */
+    private void addMergeValue(SourceBuilder code, String value) {
+      code.addLine("    if (%s == null && %s == null) {", property.getName(), builderFieldName())
+          .addLine("      %s = %s;", property.getName(), value)
+          .addLine("    } else {")
+          .addLine("      %s().mergeFrom(%s);", getBuilderName, value)
+          .addLine("    }");
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public boolean isModifiableExternally() {
+      return true;
+    }
+
+    @Override
+    public void addIsModifiableExternally(SourceBuilder code) {
+      code.add("%s != null", builderFieldName());
+    }
+
     @Override
     public void addSetFromResult(SourceBuilder code, String builder, String variable) {
       code.addLine("        %s.%s(%s);", builder, setterName, variable);
@@ -260,12 +413,23 @@ public class BuildablePropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearFields(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearFields(code);
+    }
+
+    private void addClearFields(SourceBuilder code) {
+      code.addLine("    %s = null;", property.getName())
+          .addLine("    if (%s != null) {", builderFieldName())
+          .addLine("      %s.clear();", builderFieldName())
+          .addLine("    }");
+    }
+
+    private String builderFieldName() {
+      return property.getName() + GET_BUILDER_SUFFIX;
     }
   }
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+
+/**
+ * Expected collection sizes for properties, typically measured from production values, which
+ * generated builders use to allocate their collections at the right size up front.
+ *
+ * <p>Profiles are read from a properties file passed to the processor with
+ * {@code -Afreebuilder.capacityProfile=<file>}. Each key is the qualified name of a
+ * {@code @FreeBuilder} type followed by a property name, e.g. {@code com.example.Person.names};
+ * each value is the number of elements the property is expected to hold.
+ *
+ * <p>Generated code does not record sizes itself; profiles are written by hand, or by tooling
+ * that samples the sizes of built values, e.g. a high percentile of {@code getNames().size()}.
+ */
+class CapacityProfile {
+
+  /** The processor option naming the profile to read. */
+  static final String OPTION = "freebuilder.capacityProfile";
+
+  static final CapacityProfile EMPTY = new CapacityProfile(ImmutableMap.<String, Integer>of());
+
+  /**
+   * Reads a profile in {@link Properties} format.
+   *
+   * @throws IOException if the profile cannot be read
+   * @throws IllegalArgumentException if an expected size is not a non-negative integer
+   */
+  static CapacityProfile read(Reader reader) throws IOException {
+    Properties properties = new Properties();
+    properties.load(reader);
+    ImmutableMap.Builder<String, Integer> expectedSizes = ImmutableMap.builder();
+    for (String key : properties.stringPropertyNames()) {
+      String value = properties.getProperty(key).trim();
+      Integer expectedSize = Ints.tryParse(value);
+      Preconditions.checkArgument(expectedSize != null && expectedSize >= 0,
+          "Invalid expected size for %s: '%s'", key, value);
+      expectedSizes.put(key, expectedSize);
+    }
+    return new CapacityProfile(expectedSizes.build());
+  }
+
+  private final ImmutableMap<String, Integer> expectedSizes;
+
+  private CapacityProfile(ImmutableMap<String, Integer> expectedSizes) {
+    this.expectedSizes = expectedSizes;
+  }
+
+  /**
+   * Returns the expected size of {@code propertyName} on the type {@code qualifiedTypeName}, or
+   * {@link Optional#absent()} if the profile has no entry for it.
+   */
+  Optional<Integer> getExpectedSize(String qualifiedTypeName, String propertyName) {
+    return Optional.fromNullable(expectedSizes.get(qualifiedTypeName + "." + propertyName));
+  }
+}
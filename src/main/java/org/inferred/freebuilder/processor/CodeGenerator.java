@@ -26,11 +26,15 @@ import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.EnumSet;
 import java.util.List;
 
 import javax.annotation.Generated;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 
 import org.inferred.freebuilder.FreeBuilder;
 import org.inferred.freebuilder.processor.Metadata.Property;
@@ -41,12 +45,17 @@ import org.inferred.freebuilder.processor.util.TypeReference;
 
 import com.google.common.annotations.GwtCompatible;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Joiner;
-import com.google.common.base.Preconditions;
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Chars;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.Shorts;
 
 /**
  * Code generation for the &#64;{@link FreeBuilder} annotation.
@@ -62,6 +71,9 @@ public class CodeGenerator {
   private static final TypeReference SERIALIZATION_STREAM_WRITER =
       TypeReference.to("com.google.gwt.user.client.rpc", "SerializationStreamWriter");
 
+  /** Characters to allow per property value when presizing toString buffers. */
+  private static final int TO_STRING_VALUE_LENGTH_ESTIMATE = 16;
+
   /** Write the source code for a generated builder. */
   void writeBuilderSource(SourceBuilder code, Metadata metadata) {
     if (metadata.getBuilder() == metadata.getGeneratedBuilder()) {
@@ -82,12 +94,6 @@ public class CodeGenerator {
       code.add(" implements %s", Serializable.class);
     }
     code.addLine(" {");
-    // Static fields
-    if (metadata.getProperties().size() > 1) {
-      code.addLine("")
-          .addLine("  private static final %1$s COMMA_JOINER = %1$s.on(\", \").skipNulls();",
-              Joiner.class);
-    }
     // Property enum
     if (hasRequiredProperties) {
       addPropertyEnum(metadata, code);
@@ -100,10 +106,14 @@ public class CodeGenerator {
     }
     // Unset properties
     if (hasRequiredProperties) {
-      code.addLine("  private final %s<%s> _unsetProperties =",
-              EnumSet.class, metadata.getPropertyEnum())
-          .addLine("      %s.allOf(%s.class);", EnumSet.class, metadata.getPropertyEnum());
+      UnsetPropertiesTracker.forType(metadata).addBuilderFieldDeclaration(code);
     }
+    // Modification stamp
+    code.addLine("  // Incremented on every modification, so build() can reuse an unchanged value.")
+        .addLine("  private int _modCount = 0;")
+        .addLine("  // The last value built or adopted, valid while _modCount is unchanged.")
+        .addLine("  private transient %s _built = null;", metadata.getType())
+        .addLine("  private int _builtModCount = 0;");
     // Setters and getters
     for (Property property : metadata.getProperties()) {
       property.getCodeGenerator().addBuilderFieldAccessors(code, metadata);
@@ -129,6 +139,17 @@ public class CodeGenerator {
     for (Property property : metadata.getProperties()) {
       property.getCodeGenerator().addValueFieldDeclaration(code, property.getName());
     }
+    boolean cacheValueHashCode = metadata.isHashCodeCached()
+        && metadata.standardMethodUnderride(StandardMethod.HASH_CODE) == ABSENT;
+    if (cacheValueHashCode) {
+      addHashCodeCacheField(code);
+    }
+    boolean cacheValueToString = metadata.isToStringCached()
+        && metadata.standardMethodUnderride(StandardMethod.TO_STRING) == ABSENT
+        && !metadata.getProperties().isEmpty();
+    if (cacheValueToString) {
+      addToStringCacheField(code);
+    }
     // Constructor
     code.addLine("")
         .addLine("    private %s(%s builder) {",
@@ -156,11 +177,17 @@ public class CodeGenerator {
         code.addLine("")
             .addLine("    @%s", Override.class)
             .addLine("    public boolean equals(Object obj) {")
+            .addLine("      if (obj == this) {")
+            .addLine("        return true;")
+            .addLine("      }")
             .addLine("      if (!(obj instanceof %s)) {", metadata.getValueType())
             .addLine("        return false;")
             .addLine("      }")
             .addLine("      %1$s other = (%1$s) obj;", metadata.getValueType());
-        for (Property property : metadata.getProperties()) {
+        if (cacheValueHashCode) {
+          addHashCodeCacheComparison(code);
+        }
+        for (Property property : inEqualsOrder(metadata.getProperties())) {
           switch (property.getType().getKind()) {
             case FLOAT:
             case DOUBLE:
@@ -169,8 +196,14 @@ public class CodeGenerator {
                       Double.class, property.getName());
               break;
 
+            case ARRAY:
+              code.addLine("      if (!%s.%s(%s, other.%s)) {",
+                  Arrays.class, arraysMethod(property, "equals"), property.getName(),
+                  property.getName());
+              break;
+
             default:
-              if (property.getType().getKind().isPrimitive()) {
+              if (property.getType().getKind().isPrimitive() || isEnum(property)) {
                 code.addLine("      if (%1$s != other.%1$s) {", property.getName());
               } else if (property.getCodeGenerator().getType() == Type.OPTIONAL) {
                 code.addLine("      if (%1$s != other.%1$s", property.getName())
@@ -205,70 +238,62 @@ public class CodeGenerator {
     if (metadata.standardMethodUnderride(StandardMethod.HASH_CODE) == ABSENT) {
       code.addLine("")
           .addLine("    @%s", Override.class)
-          .addLine("    public int hashCode() {")
-          .addLine("      return %s.hashCode(new Object[] { %s });",
-              Arrays.class, Joiner.on(", ").join(getNames(metadata.getProperties())))
+          .addLine("    public int hashCode() {");
+      if (cacheValueHashCode) {
+        addHashCodeCacheRead(code);
+        code.addLine("      result = 1;");
+      } else {
+        code.addLine("      int result = 1;");
+      }
+      for (Property property : metadata.getProperties()) {
+        code.addLine("      result *= 31;");
+        addPropertyHashCode(
+            code, property, property.getCodeGenerator().getType() == Type.OPTIONAL);
+      }
+      if (cacheValueHashCode) {
+        code.addLine("      _hashCode = result;");
+      }
+      code.addLine("      return result;")
           .addLine("    }");
     }
     // toString
     if (metadata.standardMethodUnderride(StandardMethod.TO_STRING) == ABSENT) {
       code.addLine("")
           .addLine("    @%s", Override.class)
-          .addLine("    public %s toString() {", String.class)
-          .add("      return \"%s{", metadata.getType().getSimpleName());
-      switch (metadata.getProperties().size()) {
-        case 0: {
-          code.add("}\";\n");
-          break;
+          .addLine("    public %s toString() {", String.class);
+      if (metadata.getProperties().isEmpty()) {
+        code.addLine("      return \"%s{}\";", metadata.getType().getSimpleName());
+      } else {
+        String resultFormat = "return %s;";
+        if (cacheValueToString) {
+          addToStringCacheRead(code);
+          resultFormat = "toString = %s;";
         }
-
-        case 1: {
+        if (metadata.getProperties().size() == 1) {
           Property property = getOnlyElement(metadata.getProperties());
+          int valueIndex = resultFormat.indexOf("%s");
           if (property.getCodeGenerator().getType() == Type.OPTIONAL) {
-            code.add("\" + (%1$s != null ? \"%1$s=\" + %1$s : \"\") + \"}\";\n",
-                property.getName());
+            code.add("      %s\"%s{\" + (",
+                resultFormat.substring(0, valueIndex), metadata.getType().getSimpleName());
+            property.getCodeGenerator().addValuePresentFragment(code, property.getName());
+            code.add(" ? \"%s=\" + ", property.getName());
+            property.getCodeGenerator().addPresentValueFragment(code, property.getName());
+            code.add(" : \"\") + \"}\"%s\n", resultFormat.substring(valueIndex + 2));
           } else {
-            code.add("%1$s=\" + %1$s + \"}\";\n", property.getName());
+            code.add("      %s\"%s{%s=\" + ",
+                resultFormat.substring(0, valueIndex),
+                metadata.getType().getSimpleName(),
+                property.getName());
+            addToStringValueFragment(code, property);
+            code.add(" + \"}\"%s\n", resultFormat.substring(valueIndex + 2));
           }
-          break;
+        } else {
+          addToStringBuilder(code, metadata, metadata.getType().getSimpleName() + "{",
+              false, resultFormat);
         }
-
-        default: {
-          // If one or more of the properties are optional, use COMMA_JOINER for readability.
-          // Otherwise, use string concatenation for performance.
-          if (any(metadata.getProperties(), IS_OPTIONAL)) {
-            code.add("\"\n")
-                .add("          + COMMA_JOINER.join(\n");
-            Property lastProperty = getLast(metadata.getProperties());
-            for (Property property : metadata.getProperties()) {
-              code.add("              ");
-              if (property.getCodeGenerator().getType() == Type.OPTIONAL) {
-                code.add("(%s != null ? ", property.getName());
-              }
-              code.add("\"%1$s=\" + %1$s", property.getName());
-              if (property.getCodeGenerator().getType() == Type.OPTIONAL) {
-                code.add(" : null)");
-              }
-              if (property != lastProperty) {
-                code.add(",\n");
-              } else {
-                code.add(")\n");
-              }
-            }
-            code.addLine("          + \"}\";");
-          } else {
-            code.add("\"\n");
-            Property lastProperty = getLast(metadata.getProperties());
-            for (Property property : metadata.getProperties()) {
-              code.add("          + \"%1$s=\" + %1$s", property.getName());
-              if (property != lastProperty) {
-                code.add(" + \", \"\n");
-              } else {
-                code.add(" + \"}\";\n");
-              }
-            }
-          }
-          break;
+        if (cacheValueToString) {
+          code.addLine("      _toString = toString;")
+              .addLine("      return toString;");
         }
       }
       code.addLine("    }");
@@ -287,13 +312,24 @@ public class CodeGenerator {
           .addLine("   * @throws IllegalStateException if any field has not been set");
     }
     code.addLine("   */")
-        .addLine("  public %s build() {", metadata.getType());
+        .addLine("  public %s build() {", metadata.getType())
+        .add("    if (_built != null && _builtModCount == _modCount");
+    for (Property property : metadata.getProperties()) {
+      if (property.getCodeGenerator().isModifiableExternally()) {
+        code.add("\n        && !(");
+        property.getCodeGenerator().addIsModifiableExternally(code);
+        code.add(")");
+      }
+    }
+    code.add(") {\n")
+        .addLine("      return _built;")
+        .addLine("    }");
     if (hasRequiredProperties) {
-      code.addLine(
-          "    %s.checkState(_unsetProperties.isEmpty(), \"Not set: %%s\", _unsetProperties);",
-          Preconditions.class);
+      UnsetPropertiesTracker.forType(metadata).addCheckAllSet(code);
     }
-    code.addLine("    return new %s(this);", metadata.getValueType())
+    code.addLine("    _built = new %s(this);", metadata.getValueType())
+        .addLine("    _builtModCount = _modCount;")
+        .addLine("    return _built;")
         .addLine("  }");
     // mergeFrom(Value)
     code.addLine("")
@@ -303,8 +339,20 @@ public class CodeGenerator {
         .addLine("   */")
         .addLine("  public %s mergeFrom(%s value) {",
             metadata.getBuilder(), metadata.getType());
+    if (metadata.isValueAdoptable()) {
+      code.addLine("    // A builder populated solely from a value can return it from build().")
+          .addLine("    boolean _adoptValue = (_modCount == 0 && value instanceof %s);",
+              metadata.getValueType());
+    }
+    code.addLine("    _modCount++;");
     for (Property property : metadata.getProperties()) {
-      property.getCodeGenerator().addMergeFromValue(code, "value");
+      property.getCodeGenerator().addMergeFromValue(code, metadata, "value");
+    }
+    if (metadata.isValueAdoptable()) {
+      code.addLine("    if (_adoptValue) {")
+          .addLine("      _built = value;")
+          .addLine("      _builtModCount = _modCount;")
+          .addLine("    }");
     }
     code.addLine("    return (%s) this;", metadata.getBuilder());
     code.addLine("  }");
@@ -317,19 +365,16 @@ public class CodeGenerator {
       code.addLine("   * Does not affect any properties not set on the input.");
     }
     code.addLine("   */")
-        .addLine("  public %1$s mergeFrom(%1$s template) {", metadata.getBuilder());
+        .addLine("  public %1$s mergeFrom(%1$s template) {", metadata.getBuilder())
+        .addLine("    _modCount++;");
     if (hasRequiredProperties) {
-      code.addLine("    // Upcast to access the private _unsetProperties field.")
-          .addLine("    // Otherwise, oddly, we get an access violation.")
-          .addLine("    %s<%s> _templateUnset = ((%s) template)._unsetProperties;",
-              EnumSet.class,
-              metadata.getPropertyEnum(),
-              metadata.getGeneratedBuilder());
+      UnsetPropertiesTracker.forType(metadata).addTemplateUnsetDeclaration(code, "template");
     }
     for (Property property : metadata.getProperties()) {
       if (property.getCodeGenerator().getType() == Type.REQUIRED) {
-        code.addLine("    if (!_templateUnset.contains(%s.%s)) {",
-            metadata.getPropertyEnum(), property.getAllCapsName());
+        code.add("    if (");
+        UnsetPropertiesTracker.forType(metadata).addIsSet(code, "_templateUnset", property);
+        code.add(") {\n");
         property.getCodeGenerator().addMergeFromBuilder(withIndent(code, 2), metadata, "template");
         code.addLine("    }");
       } else {
@@ -344,13 +389,12 @@ public class CodeGenerator {
           .addLine("  /**")
           .addLine("   * Resets the state of this builder.")
           .addLine("   */")
-          .addLine("  public %s clear() {", metadata.getBuilder());
+          .addLine("  public %s clear() {", metadata.getBuilder())
+          .addLine("    _modCount++;");
       List<PropertyCodeGenerator> codeGenerators =
           Lists.transform(metadata.getProperties(), GET_CODE_GENERATOR);
       if (Iterables.any(codeGenerators, IS_TEMPLATE_REQUIRED_IN_CLEAR)) {
-        code.add("    %s template = ", metadata.getGeneratedBuilder());
-        metadata.getBuilderFactory().get().addNewBuilder(code, metadata.getBuilder());
-        code.add(";\n");
+        code.addLine("    %s template = DefaultsHolder.DEFAULTS;", metadata.getGeneratedBuilder());
       }
       for (PropertyCodeGenerator codeGenerator : codeGenerators) {
         if (codeGenerator.isTemplateRequiredInClear()) {
@@ -360,12 +404,22 @@ public class CodeGenerator {
         }
       }
       if (hasRequiredProperties) {
-        code.addLine("    _unsetProperties.clear();")
-            .addLine("    _unsetProperties.addAll(template._unsetProperties);",
-                metadata.getGeneratedBuilder());
+        UnsetPropertiesTracker.forType(metadata).addClear(code, "template");
       }
       code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
+      if (Iterables.any(codeGenerators, IS_TEMPLATE_REQUIRED_IN_CLEAR)) {
+        code.addLine("")
+            .addLine("  /**")
+            .addLine("   * Holds the builder {@link #clear()} copies default values from, created")
+            .addLine("   * the first time it is needed. It must never be modified.")
+            .addLine("   */")
+            .addLine("  private static final class DefaultsHolder {")
+            .add("    private static final %s DEFAULTS = ", metadata.getGeneratedBuilder());
+        metadata.getBuilderFactory().get().addNewBuilder(code, metadata.getBuilder());
+        code.add(";\n")
+            .addLine("  }");
+      }
     } else {
       code.addLine("")
           .addLine("  /**")
@@ -374,7 +428,8 @@ public class CodeGenerator {
           .addLine("   * <p>The exact implementation of this method is not guaranteed to remain")
           .addLine("   * stable; it should always be followed directly by a mergeFrom call.")
           .addLine("   */")
-          .addLine("  public %s clear() {", metadata.getBuilder());
+          .addLine("  public %s clear() {", metadata.getBuilder())
+          .addLine("    _modCount++;");
       for (Property property : metadata.getProperties()) {
         property.getCodeGenerator().addPartialClear(code);
       }
@@ -416,8 +471,12 @@ public class CodeGenerator {
       property.getCodeGenerator().addValueFieldDeclaration(code, property.getName());
     }
     if (hasRequiredProperties) {
-      code.addLine("    private final %s<%s> _unsetProperties;",
-          EnumSet.class, metadata.getPropertyEnum());
+      UnsetPropertiesTracker.forType(metadata).addPartialFieldDeclaration(code);
+    }
+    boolean cachePartialHashCode = metadata.isHashCodeCached()
+        && metadata.standardMethodUnderride(StandardMethod.HASH_CODE) != FINAL;
+    if (cachePartialHashCode) {
+      addHashCodeCacheField(code);
     }
     // Constructor
     code.addLine("")
@@ -429,7 +488,7 @@ public class CodeGenerator {
           .addPartialFieldAssignment(code, "this." + property.getName(), "builder");
     }
     if (hasRequiredProperties) {
-      code.addLine("      this._unsetProperties = builder._unsetProperties.clone();");
+      UnsetPropertiesTracker.forType(metadata).addPartialFieldAssignment(code, "builder");
     }
     code.addLine("    }");
     // Getters
@@ -438,8 +497,9 @@ public class CodeGenerator {
           .addLine("    @%s", Override.class)
           .addLine("    public %s %s() {", property.getType(), property.getGetterName());
       if (property.getCodeGenerator().getType() == Type.REQUIRED) {
-        code.addLine("      if (_unsetProperties.contains(%s.%s)) {",
-                metadata.getPropertyEnum(), property.getAllCapsName())
+        code.add("      if (");
+        UnsetPropertiesTracker.forType(metadata).addIsUnset(code, "_unsetProperties", property);
+        code.add(") {\n")
             .addLine("        throw new %s(\"%s not set\");",
                 UnsupportedOperationException.class, property.getName())
             .addLine("      }");
@@ -454,11 +514,20 @@ public class CodeGenerator {
       code.addLine("")
           .addLine("    @%s", Override.class)
           .addLine("    public boolean equals(Object obj) {")
+          .addLine("      if (obj == this) {")
+          .addLine("        return true;")
+          .addLine("      }")
           .addLine("      if (!(obj instanceof %s)) {", metadata.getPartialType())
           .addLine("        return false;")
           .addLine("      }")
           .addLine("      %1$s other = (%1$s) obj;", metadata.getPartialType());
-      for (Property property : metadata.getProperties()) {
+      if (cachePartialHashCode) {
+        addHashCodeCacheComparison(code);
+      }
+      if (hasRequiredProperties) {
+        UnsetPropertiesTracker.forType(metadata).addPartialEqualsCheck(code);
+      }
+      for (Property property : inEqualsOrder(metadata.getProperties())) {
         switch (property.getType().getKind()) {
           case FLOAT:
           case DOUBLE:
@@ -467,8 +536,14 @@ public class CodeGenerator {
                     Double.class, property.getName());
             break;
 
+          case ARRAY:
+            code.addLine("      if (!%s.%s(%s, other.%s)) {",
+                Arrays.class, arraysMethod(property, "equals"), property.getName(),
+                property.getName());
+            break;
+
           default:
-            if (property.getType().getKind().isPrimitive()) {
+            if (property.getType().getKind().isPrimitive() || isEnum(property)) {
               code.addLine("      if (%1$s != other.%1$s) {", property.getName());
             } else if (property.getCodeGenerator().getType() == Type.HAS_DEFAULT) {
               code.addLine("      if (!%1$s.equals(other.%1$s)) {", property.getName());
@@ -481,33 +556,30 @@ public class CodeGenerator {
         code.addLine("        return false;")
             .addLine("      }");
       }
-      if (hasRequiredProperties) {
-        code.addLine("      return _unsetProperties.equals(other._unsetProperties);");
-      } else {
-        code.addLine("      return true;");
-      }
-      code.addLine("    }");
+      code.addLine("      return true;")
+          .addLine("    }");
     }
     // Hash code
     if (metadata.standardMethodUnderride(StandardMethod.HASH_CODE) != FINAL) {
       code.addLine("")
           .addLine("    @%s", Override.class)
-          .addLine("    public int hashCode() {")
-          .addLine("      int result = 1;");
+          .addLine("    public int hashCode() {");
+      if (cachePartialHashCode) {
+        addHashCodeCacheRead(code);
+        code.addLine("      result = 1;");
+      } else {
+        code.addLine("      int result = 1;");
+      }
       for (Property property : metadata.getProperties()) {
         code.addLine("      result *= 31;");
-        if (property.getType().getKind().isPrimitive()) {
-          code.addLine("      result += ((%s) %s).hashCode();",
-              property.getBoxedType(), property.getName());
-
-        } else {
-          code.addLine("      result += ((%1$s == null) ? 0 : %1$s.hashCode());",
-              property.getName());
-        }
+        addPropertyHashCode(code, property, true);
       }
       if (hasRequiredProperties) {
-        code.addLine("      result *= 31;")
-            .addLine("      result += _unsetProperties.hashCode();");
+        code.addLine("      result *= 31;");
+        UnsetPropertiesTracker.forType(metadata).addPartialHashCode(code);
+      }
+      if (cachePartialHashCode) {
+        code.addLine("      _hashCode = result;");
       }
       code.addLine("      return result;")
           .addLine("    }");
@@ -517,7 +589,12 @@ public class CodeGenerator {
       code.addLine("")
           .addLine("    @%s", Override.class)
           .addLine("    public %s toString() {", String.class);
-      code.add("      return \"partial %s{", metadata.getType().getSimpleName());
+      if (metadata.getProperties().size() > 1) {
+        addToStringBuilder(code, metadata, "partial " + metadata.getType().getSimpleName() + "{",
+            true, "return %s;");
+      } else {
+        code.add("      return \"partial %s{", metadata.getType().getSimpleName());
+      }
       switch (metadata.getProperties().size()) {
         case 0: {
           code.add("}\";\n");
@@ -528,57 +605,38 @@ public class CodeGenerator {
           Property property = getOnlyElement(metadata.getProperties());
           switch (property.getCodeGenerator().getType()) {
             case HAS_DEFAULT:
-              code.add("%1$s=\" + %1$s + \"}\";\n", property.getName());
+              code.add("%s=\" + ", property.getName());
+              addToStringValueFragment(code, property);
+              code.add(" + \"}\";\n");
               break;
 
             case OPTIONAL:
               code.add("\"\n")
-                  .addLine("          + (%1$s != null ? \"%1$s=\" + %1$s : \"\")",
-                      property.getName())
+                  .add("          + (");
+              property.getCodeGenerator().addValuePresentFragment(code, property.getName());
+              code.add(" ? \"%s=\" + ", property.getName());
+              property.getCodeGenerator().addPresentValueFragment(code, property.getName());
+              code.add(" : \"\")\n")
                   .addLine("          + \"}\";");
               break;
 
             case REQUIRED:
               code.add("\"\n")
-                  .addLine("          + (!_unsetProperties.contains(%s.%s)",
-                      metadata.getPropertyEnum(), property.getAllCapsName())
-                  .addLine("              ? \"%1$s=\" + %1$s : \"\")", property.getName())
+                  .add("          + (");
+              UnsetPropertiesTracker.forType(metadata)
+                  .addIsSet(code, "_unsetProperties", property);
+              code.add("\n")
+                  .add("              ? \"%s=\" + ", property.getName());
+              addToStringValueFragment(code, property);
+              code.add(" : \"\")\n")
                   .addLine("          + \"}\";");
               break;
           }
           break;
         }
 
-        default: {
-          code.add("\"\n")
-              .add("          + COMMA_JOINER.join(\n");
-          Property lastProperty = getLast(metadata.getProperties());
-          for (Property property : metadata.getProperties()) {
-            code.add("              ");
-            switch (property.getCodeGenerator().getType()) {
-              case HAS_DEFAULT:
-                code.add("\"%1$s=\" + %1$s", property.getName());
-                break;
-
-              case OPTIONAL:
-                code.add("(%1$s != null ? \"%1$s=\" + %1$s : null)", property.getName());
-                break;
-
-              case REQUIRED:
-                code.add("(!_unsetProperties.contains(%s.%s)\n",
-                        metadata.getPropertyEnum(), property.getAllCapsName())
-                    .add("                  ? \"%1$s=\" + %1$s : null)", property.getName());
-                break;
-            }
-            if (property != lastProperty) {
-              code.add(",\n");
-            } else {
-              code.add(")\n");
-            }
-          }
-          code.addLine("          + \"}\";");
+        default:
           break;
-        }
       }
       code.addLine("    }");
     }
@@ -624,8 +682,248 @@ public class CodeGenerator {
         .addLine("")
         .addLine("    @%s public %s toString() {", Override.class, String.class)
         .addLine("      return name;")
-        .addLine("    }")
-        .addLine("  }");
+        .addLine("    }");
+    UnsetPropertiesTracker.forType(metadata).addPropertyEnumMembers(code);
+    code.addLine("  }");
+  }
+
+  /**
+   * Adds a field caching the hash code of a value type. The field is transient, as the hash codes
+   * of some property types (e.g. enums) may differ between JVMs.
+   */
+  private static void addHashCodeCacheField(SourceBuilder code) {
+    code.addLine("    // Lazily computed; zero until cached. Racy, but the hash is deterministic.")
+        .addLine("    private transient int _hashCode;");
+  }
+
+  /** Adds an early return of the cached hash code, if any, leaving it in {@code result}. */
+  private static void addHashCodeCacheRead(SourceBuilder code) {
+    code.addLine("      int result = _hashCode;")
+        .addLine("      if (result != 0) {")
+        .addLine("        return result;")
+        .addLine("      }");
+  }
+
+  /** Adds a transient field caching the string representation of a value type. */
+  private static void addToStringCacheField(SourceBuilder code) {
+    code.addLine("    // Lazily computed; null until cached. Racy, but strings are immutable.")
+        .addLine("    private transient %s _toString;", String.class);
+  }
+
+  /** Adds an early return of the cached string, if any, leaving it in {@code toString}. */
+  private static void addToStringCacheRead(SourceBuilder code) {
+    code.addLine("      %s toString = _toString;", String.class)
+        .addLine("      if (toString != null) {")
+        .addLine("        return toString;")
+        .addLine("      }");
+  }
+
+  /**
+   * Adds statements rendering all properties to a presized {@link StringBuilder}, skipping any
+   * that are unset. Separators are emitted as literals wherever a preceding property is known
+   * to be set; a local variable is only needed if the first property may be unset.
+   *
+   * @param prefix the string to start with, e.g. "Person{"
+   * @param partial whether unset required properties should be skipped
+   * @param resultFormat a format string consuming the final string expression, e.g.
+   *     "return %s;"
+   */
+  private static void addToStringBuilder(
+      SourceBuilder code,
+      Metadata metadata,
+      String prefix,
+      boolean partial,
+      String resultFormat) {
+    int capacity = prefix.length() + 1;
+    for (Property property : metadata.getProperties()) {
+      capacity += ", =".length() + property.getName().length() + TO_STRING_VALUE_LENGTH_ESTIMATE;
+    }
+    code.addLine("      %1$s result = new %1$s(%2$s).append(\"%3$s\");",
+        StringBuilder.class, capacity, prefix);
+    Property firstProperty = metadata.getProperties().get(0);
+    Property lastProperty = getLast(metadata.getProperties());
+    boolean needsSeparator = false;
+    boolean usesSeparatorVariable = isConditionalInToString(firstProperty, partial);
+    if (usesSeparatorVariable) {
+      code.addLine("      %s separator = \"\";", String.class);
+    }
+    for (Property property : metadata.getProperties()) {
+      boolean conditional = isConditionalInToString(property, partial);
+      String indent = "      ";
+      if (!conditional) {
+        // Always included
+      } else if (property.getCodeGenerator().getType() == Type.OPTIONAL) {
+        code.add("      if (");
+        property.getCodeGenerator().addValuePresentFragment(code, property.getName());
+        code.add(") {\n");
+        indent = "        ";
+      } else {
+        code.add("      if (");
+        UnsetPropertiesTracker.forType(metadata).addIsSet(code, "_unsetProperties", property);
+        code.add(") {\n");
+        indent = "        ";
+      }
+      if (needsSeparator) {
+        code.add("%sresult.append(\", %s=\").append(", indent, property.getName());
+      } else if (usesSeparatorVariable && property != firstProperty) {
+        code.add("%sresult.append(separator).append(\"%s=\").append(", indent, property.getName());
+      } else {
+        code.add("%sresult.append(\"%s=\").append(", indent, property.getName());
+      }
+      if (property.getCodeGenerator().getType() == Type.OPTIONAL) {
+        property.getCodeGenerator().addPresentValueFragment(code, property.getName());
+      } else {
+        addToStringValueFragment(code, property);
+      }
+      code.add(");\n");
+      if (conditional) {
+        if (usesSeparatorVariable && !needsSeparator && property != lastProperty) {
+          code.addLine("        separator = \", \";");
+        }
+        code.addLine("      }");
+      } else {
+        needsSeparator = true;
+      }
+    }
+    code.addLine("      " + resultFormat, "result.append('}').toString()");
+  }
+
+  /**
+   * Adds a fragment rendering the value of {@code property} for a string representation. Arrays
+   * are rendered element by element, as their own {@code toString} only identifies the instance.
+   */
+  private static void addToStringValueFragment(SourceBuilder code, Property property) {
+    if (property.getType().getKind() == TypeKind.ARRAY) {
+      code.add("%s.%s(%s)", Arrays.class, arraysMethod(property, "toString"), property.getName());
+    } else {
+      code.add("%s", property.getName());
+    }
+  }
+
+  /**
+   * Returns the name of the {@link Arrays} method to call for the array-typed {@code property}:
+   * {@code method} itself, or its deep variant for arrays of arrays, whose inner arrays the
+   * shallow methods would only compare, hash or render by identity.
+   */
+  private static String arraysMethod(Property property, String method) {
+    TypeMirror componentType = ((ArrayType) property.getType()).getComponentType();
+    if (componentType.getKind() == TypeKind.ARRAY) {
+      return "deep" + Character.toUpperCase(method.charAt(0)) + method.substring(1);
+    }
+    return method;
+  }
+
+  /** Returns whether {@code property} may be omitted from the string representation. */
+  private static boolean isConditionalInToString(Property property, boolean partial) {
+    switch (property.getCodeGenerator().getType()) {
+      case OPTIONAL:
+        return true;
+
+      case REQUIRED:
+        return partial;
+
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Adds an early return if both value types have cached differing hash codes. Hash codes are
+   * not computed here, as that would be more expensive than the comparison being skipped.
+   */
+  private static void addHashCodeCacheComparison(SourceBuilder code) {
+    code.addLine("      if (_hashCode != 0 && other._hashCode != 0")
+        .addLine("          && _hashCode != other._hashCode) {")
+        .addLine("        return false;")
+        .addLine("      }");
+  }
+
+  /**
+   * Returns {@code properties} in the order they should be compared in equals methods: cheapest
+   * first, so mostly-unequal values are rejected before any deep comparisons are made.
+   */
+  private static List<Property> inEqualsOrder(List<Property> properties) {
+    return Ordering.natural().onResultOf(EQUALS_COST).sortedCopy(properties);
+  }
+
+  /**
+   * Estimated relative cost of comparing property values: primitives, then enums, then other
+   * values, and finally properties that may need a deep comparison, like collections.
+   */
+  private static final Function<Property, Integer> EQUALS_COST = new Function<Property, Integer>() {
+    @Override public Integer apply(Property property) {
+      if (property.getType().getKind().isPrimitive()) {
+        return 0;
+      } else if (isEnum(property)) {
+        return 1;
+      } else if (!property.getCodeGenerator().isExpensiveToCompare()) {
+        return 2;
+      } else {
+        return 3;
+      }
+    }
+  };
+
+  private static boolean isEnum(Property property) {
+    return property.getType().getKind() == TypeKind.DECLARED
+        && ((DeclaredType) property.getType()).asElement().getKind() == ElementKind.ENUM;
+  }
+
+  /**
+   * Adds a statement adding the hash code of {@code property} to {@code result}, without boxing
+   * primitives. The hash matches that of the boxed type, so we remain consistent with
+   * {@link Arrays#hashCode(Object[])}.
+   */
+  private static void addPropertyHashCode(
+      SourceBuilder code, Property property, boolean nullable) {
+    switch (property.getType().getKind()) {
+      case BOOLEAN:
+        code.addLine("      result += %s.hashCode(%s);", Booleans.class, property.getName());
+        break;
+
+      case BYTE:
+        code.addLine("      result += %s.hashCode(%s);", Bytes.class, property.getName());
+        break;
+
+      case SHORT:
+        code.addLine("      result += %s.hashCode(%s);", Shorts.class, property.getName());
+        break;
+
+      case CHAR:
+        code.addLine("      result += %s.hashCode(%s);", Chars.class, property.getName());
+        break;
+
+      case INT:
+        code.addLine("      result += %s.hashCode(%s);", Ints.class, property.getName());
+        break;
+
+      case LONG:
+        code.addLine("      result += %s.hashCode(%s);", Longs.class, property.getName());
+        break;
+
+      case FLOAT:
+        code.addLine("      result += %s.floatToIntBits(%s);", Float.class, property.getName());
+        break;
+
+      case DOUBLE:
+        code.addLine("      result += %s.hashCode(%s.doubleToLongBits(%s));",
+            Longs.class, Double.class, property.getName());
+        break;
+
+      case ARRAY:
+        code.addLine("      result += %s.%s(%s);",
+            Arrays.class, arraysMethod(property, "hashCode"), property.getName());
+        break;
+
+      default:
+        if (nullable) {
+          code.addLine("      result += ((%1$s == null) ? 0 : %1$s.hashCode());",
+              property.getName());
+        } else {
+          code.addLine("      result += %s.hashCode();", property.getName());
+        }
+        break;
+    }
   }
 
   private static void addCustomValueSerializer(Metadata metadata, SourceBuilder code) {
@@ -739,23 +1037,9 @@ public class CodeGenerator {
     return s.substring(0, 1).toUpperCase() + s.substring(1);
   }
 
-  private static ImmutableList<String> getNames(Iterable<Property> properties) {
-    ImmutableList.Builder<String> result = ImmutableList.builder();
-    for (Property property : properties) {
-      result.add(property.getName());
-    }
-    return result.build();
-  }
-
   private static final Predicate<Property> IS_REQUIRED = new Predicate<Property>() {
     @Override public boolean apply(Property property) {
       return property.getCodeGenerator().getType() == Type.REQUIRED;
     }
   };
-
-  private static final Predicate<Property> IS_OPTIONAL = new Predicate<Property>() {
-    @Override public boolean apply(Property property) {
-      return property.getCodeGenerator().getType() == Type.OPTIONAL;
-    }
-  };
 }
@@ -80,9 +80,9 @@ public class DefaultPropertyFactory implements PropertyCodeGenerator.Factory {
         code.addLine("    this.%1$s = %2$s.checkNotNull(%1$s);",
             property.getName(), Preconditions.class);
       }
+      addModified(code);
       if (!hasDefault) {
-        code.addLine("    _unsetProperties.remove(%s.%s);",
-            metadata.getPropertyEnum(), property.getAllCapsName());
+        UnsetPropertiesTracker.forType(metadata).addSetProperty(code, property);
       }
       if ((metadata.getBuilder() == metadata.getGeneratedBuilder())) {
         code.addLine("    return this;");
@@ -104,8 +104,9 @@ public class DefaultPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("  public %s %s() {", property.getType(), property.getGetterName());
       if (!hasDefault) {
         code.addLine("    %s.checkState(", Preconditions.class)
-            .addLine("        !_unsetProperties.contains(%s.%s),",
-                metadata.getPropertyEnum(), property.getAllCapsName())
+            .add("        ");
+        UnsetPropertiesTracker.forType(metadata).addIsSet(code, "_unsetProperties", property);
+        code.add(",\n")
             .addLine("        \"%s not set\");", property.getName());
       }
       code.addLine("    return %s;", property.getName())
@@ -118,7 +119,7 @@ public class DefaultPropertyFactory implements PropertyCodeGenerator.Factory {
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s(%s.%s());", setterName, value, property.getGetterName());
     }
 
@@ -17,21 +17,30 @@ package org.inferred.freebuilder.processor;
 
 import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
 import static org.inferred.freebuilder.processor.Util.upperBound;
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ForwardingList;
+import com.google.common.collect.ForwardingListMultimap;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Multiset;
 
+import org.inferred.freebuilder.FreeBuilder.MultimapStorage;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.lang.model.type.DeclaredType;
@@ -49,6 +58,11 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
   private static final String PUT_ALL_PREFIX = "putAll";
   private static final String CLEAR_PREFIX = "clear";
   private static final String GET_PREFIX = "get";
+  private static final String MUTATE_PREFIX = "mutate";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+  private static final String CAPACITY_SUFFIX = "Capacity";
 
   @Override
   public Optional<CodeGenerator> create(Config config) {
@@ -63,8 +77,18 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
         TypeMirror valueType = upperBound(config.getElements(), type.getTypeArguments().get(1));
         Optional<TypeMirror> unboxedKeyType = unboxed(config.getTypes(), keyType);
         Optional<TypeMirror> unboxedValueType = unboxed(config.getTypes(), valueType);
+        String name = config.getProperty().getCapitalizedName();
+        boolean putOverridden = config.getMethodsDeclaredOnBuilder().contains(PUT_PREFIX + name)
+            || config.getMethodsDeclaredOnBuilder().contains(PUT_ALL_PREFIX + name);
         return Optional.of(new CodeGenerator(
-            config.getProperty(), keyType, unboxedKeyType, valueType, unboxedValueType));
+            config.getProperty(),
+            keyType,
+            unboxedKeyType,
+            valueType,
+            unboxedValueType,
+            putOverridden,
+            config.getMultimapStorage(),
+            config.isConsumerAvailable()));
       }
     }
     return Optional.absent();
@@ -76,28 +100,67 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
     private final Optional<TypeMirror> unboxedKeyType;
     private final TypeMirror valueType;
     private final Optional<TypeMirror> unboxedValueType;
+    /** True if the user's builder overrides the methods putAll delegates to. */
+    private final boolean putOverridden;
+    private final MultimapStorage storage;
+    /** True if {@code mutate} can be generated, as {@code Consumer} is available. */
+    private final boolean consumerAvailable;
 
     CodeGenerator(
         Property property,
         TypeMirror keyType,
         Optional<TypeMirror> unboxedKeyType,
         TypeMirror valueType,
-        Optional<TypeMirror> unboxedValueType) {
+        Optional<TypeMirror> unboxedValueType,
+        boolean putOverridden,
+        MultimapStorage storage,
+        boolean consumerAvailable) {
       super(property);
       this.keyType = keyType;
       this.unboxedKeyType = unboxedKeyType;
       this.valueType = valueType;
       this.unboxedValueType = unboxedValueType;
+      this.putOverridden = putOverridden;
+      this.storage = storage;
+      this.consumerAvailable = consumerAvailable;
     }
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.addLine("  private %1$s<%2$s, %3$s> %4$s = %1$s.create();",
-          LinkedListMultimap.class, keyType, valueType, property.getName());
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("  private %s<%s, %s> %s = null;",
+            ImmutableListMultimap.Builder.class, keyType, valueType, property.getName());
+      } else {
+        code.addLine("  private %s<%s, %s> %s = %s.of();",
+                ListMultimap.class,
+                keyType,
+                valueType,
+                property.getName(),
+                ImmutableListMultimap.class)
+            .addLine("  private %s<%s, %s> %s%s = null;",
+                ListMultimap.class, keyType, valueType, property.getName(), VIEW_SUFFIX);
+      }
     }
 
     @Override
     public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    if (%s == null) {", property.getName())
+            .addLine("      %s = %s.builder();", property.getName(), ImmutableListMultimap.class);
+      } else {
+        Class<?> mutableType = (storage == MultimapStorage.HASHED)
+            ? ArrayListMultimap.class
+            : LinkedListMultimap.class;
+        code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableListMultimap.class)
+            .addLine("      %1$s = %2$s.create(%1$s);", property.getName(), mutableType);
+      }
+      code.addLine("    }")
+          .addLine("  }");
+
       // put(K key, V value)
       code.addLine("")
           .addLine("  /**")
@@ -129,8 +192,10 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
       if (!unboxedValueType.isPresent()) {
         code.addLine("    %s.checkNotNull(value);", Preconditions.class);
       }
-      code.addLine("    this.%s.put(key, value);", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+      code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.put(key, value);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // putAll(K key, Iterable<? extends V> values)
@@ -178,16 +243,72 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
               property.getCapitalizedName(),
               Multimap.class,
               keyType,
-              valueType)
-          .addLine("    for (%s<? extends %s, ? extends %s<? extends %s>> entry",
-              Entry.class, keyType, Collection.class, valueType)
-          .addLine("        : multimap.asMap().entrySet()) {")
-          .addLine("      %s%s(entry.getKey(), entry.getValue());",
-              PUT_ALL_PREFIX, property.getCapitalizedName())
-          .addLine("    }")
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              valueType);
+      if (!putOverridden && storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+        addModified(code);
+        code.addLine("    this.%s.putAll(multimap);", property.getName());
+      } else {
+        if (!putOverridden) {
+          addImmutableMultimapFastPath(code, metadata);
+        }
+        code.addLine("    for (%s<? extends %s, ? extends %s<? extends %s>> entry",
+                Entry.class, keyType, Collection.class, valueType)
+            .addLine("        : multimap.asMap().entrySet()) {")
+            .addLine("      %s%s(entry.getKey(), entry.getValue());",
+                PUT_ALL_PREFIX, property.getCapitalizedName())
+            .addLine("    }");
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
+      // ensureCapacity(int expectedKeys, int expectedValuesPerKey)
+      code.addLine("")
+          .addLine("  /**");
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("   * Has no effect: entries of the multimap to be returned from")
+            .addLine("   * {@link %s#%s()} are accumulated in an immutable multimap builder,",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * which cannot be presized.");
+      } else {
+        code.addLine("   * Allocates room for {@code expectedKeys} keys, each with")
+            .addLine("   * {@code expectedValuesPerKey} values, in the multimap to be returned")
+            .addLine("   * from {@link %s#%s()}, so adding them does not repeatedly rehash it.",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * Has no effect once entries have been added to the builder's own")
+            .addLine("   * multimap.");
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedKeys, int expectedValuesPerKey) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX);
+      if (storage != MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    if (this.%s instanceof %s) {",
+                property.getName(), ImmutableListMultimap.class)
+            .addLine("      %s<%s, %s> entries = this.%s;",
+                ListMultimap.class, keyType, valueType, property.getName());
+        if (storage == MultimapStorage.HASHED) {
+          code.addLine("      this.%s = %s.create(%s.max(expectedKeys, entries.keySet().size()),",
+                  property.getName(), ArrayListMultimap.class, Math.class)
+              .addLine("          expectedValuesPerKey);");
+        } else {
+          code.addLine("      this.%s = %s.create(%s.max(expectedKeys, entries.keySet().size()));",
+              property.getName(), LinkedListMultimap.class, Math.class);
+        }
+        code.addLine("      this.%s.putAll(entries);", property.getName())
+            .addLine("    }");
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
       // clear()
       code.addLine("")
           .addLine("  /**")
@@ -199,12 +320,33 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
           .addLine("  public %s %s%s() {",
               metadata.getBuilder(),
               CLEAR_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // get()
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("")
+            .addLine("  /**")
+            .addLine("   * Returns a snapshot of the multimap that will be returned by")
+            .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+            .addLine("   * Later changes to this builder will not be reflected in the snapshot.")
+            .addLine("   */")
+            .addLine("  public %s<%s, %s> %s%s() {",
+                ListMultimap.class,
+                keyType,
+                valueType,
+                GET_PREFIX,
+                property.getCapitalizedName())
+            .addLine("    if (%s == null) {", property.getName())
+            .addLine("      return %s.of();", ImmutableListMultimap.class)
+            .addLine("    }")
+            .addLine("    return %s.build();", property.getName())
+            .addLine("  }");
+        return;
+      }
       code.addLine("")
           .addLine("  /**")
           .addLine("   * Returns an unmodifiable view of the multimap that will be returned by")
@@ -217,31 +359,61 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
               valueType,
               GET_PREFIX,
               property.getCapitalizedName())
-          .addLine("    return %s.unmodifiableListMultimap(%s);",
-              Multimaps.class, property.getName())
+          .addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableListMultimap(%1$s);",
+              property.getName(), VIEW_SUFFIX, Multimaps.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
           .addLine("  }");
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.copyOf(%s.%s);",
-              finalField, ImmutableListMultimap.class, builder, property.getName());
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("      if (%s.%s == null) {", builder, property.getName())
+            .addLine("        %s = %s.of();", finalField, ImmutableListMultimap.class)
+            .addLine("      } else {")
+            .addLine("        %s = %s.%s.build();", finalField, builder, property.getName())
+            .addLine("      }");
+      } else {
+        code.addLine("      %s = %s.copyOf(%s.%s);",
+            finalField, ImmutableListMultimap.class, builder, property.getName());
+      }
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s%s(%s.%s());",
           PUT_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
     }
 
     @Override
     public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
-      code.addLine("    %s%s(((%s) %s).%s);",
-          PUT_ALL_PREFIX,
-          property.getCapitalizedName(),
-          metadata.getGeneratedBuilder(),
-          builder,
-          property.getName());
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    if (((%s) %s).%s != null) {",
+                metadata.getGeneratedBuilder(), builder, property.getName())
+            .addLine("      %s%s(((%s) %s).%s.build());",
+                PUT_ALL_PREFIX,
+                property.getCapitalizedName(),
+                metadata.getGeneratedBuilder(),
+                builder,
+                property.getName())
+            .addLine("    }");
+      } else {
+        code.addLine("    %s%s(((%s) %s).%s);",
+            PUT_ALL_PREFIX,
+            property.getCapitalizedName(),
+            metadata.getGeneratedBuilder(),
+            builder,
+            property.getName());
+      }
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
     }
 
     @Override
@@ -257,12 +429,175 @@ public class ListMultimapPropertyFactory implements PropertyCodeGenerator.Factor
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
+    }
+
+    /**
+     * Adds a mutate method, passing a null-checking view of the builder's multimap to a consumer.
+     * Value lists returned by {@code get} are checked too; the other views are read-only. An
+     * immutable multimap builder cannot be modified in place, so its entries are copied out and
+     * back.
+     */
+    private void addMutate(SourceBuilder code, Metadata metadata) {
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Applies {@code mutator} to the multimap to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *");
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("   * <p>The multimap is copied out of this builder's immutable multimap")
+            .addLine("   * builder, and back again once {@code mutator} returns.");
+      } else {
+        code.addLine("   * <p>The multimap is this builder's own storage, so changes made by")
+            .addLine("   * {@code mutator} are applied in place, without copying.");
+      }
+      code.addLine("   * The view passed to {@code mutator} may not be used once this method")
+          .addLine("   * returns.");
+      code.addLine("   * Its {@code asMap}, {@code entries}, {@code keys} and {@code values} views")
+          .addLine("   * are read-only.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code mutator} is null, or puts a null")
+          .addLine("   *     key or value in the multimap")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s<%s, %s>> mutator) {",
+              metadata.getBuilder(),
+              MUTATE_PREFIX,
+              property.getCapitalizedName(),
+              CONSUMER,
+              ListMultimap.class,
+              keyType,
+              valueType);
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    final %s<%s, %s> entries = %s.create(%s%s());",
+            ListMultimap.class, keyType, valueType, LinkedListMultimap.class,
+            GET_PREFIX, property.getCapitalizedName());
+      } else {
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+            .addLine("    final %s<%s, %s> entries = this.%s;",
+                ListMultimap.class, keyType, valueType, property.getName());
+      }
+      String mutateMethod = MUTATE_PREFIX + property.getCapitalizedName();
+      addMutateStart(code);
+      SourceBuilder body = withIndent(code, 2);
+      body.addLine("    mutator.accept(new %s<%s, %s>() {",
+              ForwardingListMultimap.class, keyType, valueType)
+          .addLine("      @%s protected %s<%s, %s> delegate() {",
+              Override.class, ListMultimap.class, keyType, valueType);
+      addMutateViewCheck(withIndent(body, 4), mutateMethod);
+      body.addLine("        return entries;")
+          .addLine("      }")
+          .addLine("      @%s public boolean put(%s key, %s value) {",
+              Override.class, keyType, valueType)
+          .addLine("        return delegate().put(%s.checkNotNull(key), %s.checkNotNull(value));",
+              Preconditions.class, Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public boolean putAll(%s key, %s<? extends %s> values) {",
+              Override.class, keyType, Iterable.class, valueType)
+          .addLine("        boolean changed = false;")
+          .addLine("        for (%s value : values) {", valueType)
+          .addLine("          changed |= put(key, value);")
+          .addLine("        }")
+          .addLine("        return changed;")
+          .addLine("      }")
+          .addLine("      @%s public boolean putAll(%s<? extends %s, ? extends %s> multimap) {",
+              Override.class, Multimap.class, keyType, valueType)
+          .addLine("        boolean changed = false;")
+          .addLine("        for (%s<? extends %s, ? extends %s> entry : multimap.entries()) {",
+              Entry.class, keyType, valueType)
+          .addLine("          changed |= put(entry.getKey(), entry.getValue());")
+          .addLine("        }")
+          .addLine("        return changed;")
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> replaceValues(%s key, %s<? extends %s> values) {",
+              Override.class, List.class, valueType, keyType, Iterable.class, valueType)
+          .addLine("        %s<%s> replacement = new %s<%s>();",
+              List.class, valueType, ArrayList.class, valueType)
+          .addLine("        for (%s value : values) {", valueType)
+          .addLine("          replacement.add(%s.checkNotNull(value));", Preconditions.class)
+          .addLine("        }")
+          .addLine("        return delegate().replaceValues(%s.checkNotNull(key), replacement);",
+              Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> get(%s key) {",
+              Override.class, List.class, valueType, keyType)
+          .addLine("        final %s<%s> values = delegate().get(%s.checkNotNull(key));",
+              List.class, valueType, Preconditions.class)
+          .addLine("        return new %s<%s>() {", ForwardingList.class, valueType);
+      ListPropertyFactory.addCheckedListMethods(
+          withIndent(body, 8), valueType, "values", mutateMethod);
+      body.addLine("        };")
+          .addLine("      }")
+          .addLine("      @%s public %s<%s, %s<%s>> asMap() {",
+              Override.class, Map.class, keyType, Collection.class, valueType)
+          .addLine("        return %s.unmodifiableListMultimap(delegate()).asMap();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s<%s, %s>> entries() {",
+              Override.class, Collection.class, Entry.class, keyType, valueType)
+          .addLine("        return %s.unmodifiableListMultimap(delegate()).entries();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> keys() {", Override.class, Multiset.class, keyType)
+          .addLine("        return %s.unmodifiableListMultimap(delegate()).keys();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> values() {",
+              Override.class, Collection.class, valueType)
+          .addLine("        return %s.unmodifiableListMultimap(delegate()).values();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("    });");
+      addMutateEnd(code);
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    this.%s = %s.<%s, %s>builder().putAll(entries);",
+            property.getName(), ImmutableListMultimap.class, keyType, valueType);
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+    }
+
+    /**
+     * Adds a fast path to putAll for immutable multimaps, which are known to be null-free. An
+     * empty multimap adopts the immutable multimap outright, deferring any copy to the next
+     * modification.
+     */
+    private void addImmutableMultimapFastPath(SourceBuilder code, Metadata metadata) {
+      code.addLine("    if (multimap instanceof %s) {", ImmutableMultimap.class)
+          .addLine("      if (this.%1$s instanceof %2$s && this.%1$s.isEmpty()) {",
+              property.getName(), ImmutableListMultimap.class)
+          .addLine("        this.%s = %s.copyOf(multimap);",
+              property.getName(), ImmutableListMultimap.class)
+          .addLine("      } else {")
+          .addLine("        %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("        this.%s.putAll(multimap);", property.getName())
+          .addLine("      }");
+      addModified(withIndent(code, 2));
+      code.addLine("      return (%s) this;", metadata.getBuilder())
+          .addLine("    }");
+    }
+
+    /**
+     * Adds a statement emptying the multimap. A mutable multimap is cleared in place, so views
+     * returned by the getter stay valid; an immutable multimap is simply replaced. An immutable
+     * multimap builder is discarded.
+     */
+    private void addClearField(SourceBuilder code) {
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    %s = null;", property.getName());
+        return;
+      }
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableListMultimap.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableListMultimap.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
     }
   }
 
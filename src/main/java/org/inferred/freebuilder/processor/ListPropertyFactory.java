@@ -16,22 +16,38 @@
 package org.inferred.freebuilder.processor;
 
 import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
+import static org.inferred.freebuilder.processor.Util.primitivesClass;
 import static org.inferred.freebuilder.processor.Util.upperBound;
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ForwardingList;
 import com.google.common.collect.ImmutableList;
 
+import org.inferred.freebuilder.processor.BuildablePropertyFactory.BuildableType;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
 
+import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.RandomAccess;
 
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
@@ -46,6 +62,15 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
   private static final String ADD_ALL_PREFIX = "addAll";
   private static final String CLEAR_PREFIX = "clear";
   private static final String GET_PREFIX = "get";
+  private static final String MUTATE_PREFIX = "mutate";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+  private static final String CAPACITY_SUFFIX = "Capacity";
+  private static final String BUILDER_SUFFIX = "Builder";
+  private static final String BUILDERS_SUFFIX = "Builders";
+  private static final String ELEMENTS_BUILT_SUFFIX = "ElementsBuilt";
+  private static final String BUILT_BUILDERS_SUFFIX = "BuiltBuilders";
 
   @Override
   public Optional<? extends PropertyCodeGenerator> create(Config config) {
@@ -59,7 +84,27 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
         } catch (IllegalArgumentException e) {
           unboxedType = Optional.absent();
         }
-        return Optional.of(new CodeGenerator(config.getProperty(), elementType, unboxedType));
+        boolean adderOverridden = config.getMethodsDeclaredOnBuilder()
+            .contains(ADD_PREFIX + config.getProperty().getCapitalizedName());
+        boolean compactStorage = config.isCompactPrimitiveLists()
+            && unboxedType.isPresent()
+            && !erasesToAnyOf(type, ImmutableList.class);
+        boolean builderStorage = config.isImmutableCollectionBuilders() && !compactStorage;
+        Optional<BuildableType> elementBuilder = Optional.absent();
+        if (!compactStorage && !builderStorage) {
+          elementBuilder = BuildablePropertyFactory.buildableType(
+              elementType, config.getElements(), config.getTypes());
+        }
+        return Optional.of(new CodeGenerator(
+            config.getProperty(),
+            elementType,
+            unboxedType,
+            adderOverridden,
+            compactStorage,
+            builderStorage,
+            config.getExpectedSize(),
+            config.isConsumerAvailable(),
+            elementBuilder));
       }
     }
     return Optional.absent();
@@ -69,22 +114,92 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
 
     private final TypeMirror elementType;
     private final Optional<TypeMirror> unboxedType;
+    /** True if the user's builder overrides add(E), so every element must be passed to it. */
+    private final boolean adderOverridden;
+    /** True if elements are stored in a primitive array rather than boxed. */
+    private final boolean compactStorage;
+    /** True if elements are accumulated in an {@link ImmutableList.Builder}. */
+    private final boolean builderStorage;
+    /** Number of elements to allocate room for when first modified, if known from a profile. */
+    private final Optional<Integer> expectedSize;
+    /** True if {@code mutate} can be generated, as {@code Consumer} is available. */
+    private final boolean consumerAvailable;
+    /** The Builder of the element type, if elements can be built in place in the builder. */
+    private final Optional<BuildableType> elementBuilder;
 
     @VisibleForTesting
-    CodeGenerator(Property property, TypeMirror elementType, Optional<TypeMirror> unboxedType) {
+    CodeGenerator(
+        Property property,
+        TypeMirror elementType,
+        Optional<TypeMirror> unboxedType,
+        boolean adderOverridden,
+        boolean compactStorage,
+        boolean builderStorage,
+        Optional<Integer> expectedSize,
+        boolean consumerAvailable,
+        Optional<BuildableType> elementBuilder) {
       super(property);
       this.elementType = elementType;
       this.unboxedType = unboxedType;
+      this.adderOverridden = adderOverridden;
+      this.compactStorage = compactStorage;
+      this.builderStorage = builderStorage;
+      this.expectedSize = expectedSize;
+      this.consumerAvailable = consumerAvailable;
+      this.elementBuilder = elementBuilder;
     }
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.addLine("  private %1$s<%2$s> %3$s = new %1$s<%2$s>();",
-          ArrayList.class, elementType, property.getName());
+      if (builderStorage) {
+        code.addLine("  private %s<%s> %s = null;",
+            ImmutableList.Builder.class, elementType, property.getName());
+      } else {
+        code.addLine("  private %s<%s> %s = %s.of();",
+                List.class, elementType, property.getName(), ImmutableList.class)
+            .addLine("  private %s<%s> %s%s = null;",
+                List.class, elementType, property.getName(), VIEW_SUFFIX);
+      }
+      if (elementBuilder.isPresent()) {
+        code.addLine("  /** Element builders not yet built, keyed by their index in the list. */")
+            .addLine("  private %s<Integer, %s> %s = null;",
+                Map.class, elementBuilder.get().builderType, buildersFieldName())
+            .addLine("  /** Element builders built early, with the elements they built. */")
+            .addLine("  private %s<%s, %s> %s = null;",
+                Map.class, elementBuilder.get().builderType, elementType, builtBuildersFieldName());
+      }
     }
 
     @Override
     public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      if (builderStorage) {
+        addImmutableBuilderAccessors(code, metadata);
+        return;
+      }
+
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableList.class);
+      if (compactStorage) {
+        code.addLine("      %1$s = new %2$s(%1$s);", property.getName(), compactListName());
+      } else {
+        code.addLine("      %1$s = new %2$s<%3$s>(%1$s);",
+            property.getName(), ArrayList.class, elementType);
+      }
+      if (expectedSize.isPresent()) {
+        code.add("      ");
+        addMutableField(code);
+        code.add(".ensureCapacity(%s);\n", expectedSize.get());
+      }
+      code.addLine("    }")
+          .addLine("  }");
+
+      if (elementBuilder.isPresent()) {
+        addElementBuilderAccessors(code, metadata);
+      }
+
       // add(T element)
       code.addLine("")
           .addLine("  /**")
@@ -100,13 +215,19 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
               metadata.getBuilder(),
               ADD_PREFIX,
               property.getCapitalizedName(),
-              unboxedType.or(elementType));
-      if (unboxedType.isPresent()) {
+              unboxedType.or(elementType))
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+      if (compactStorage) {
+        code.add("    ");
+        addMutableField(code);
+        code.add(".append(element);\n");
+      } else if (unboxedType.isPresent()) {
         code.addLine("    this.%s.add(element);", property.getName());
       } else {
         code.addLine("    this.%s.add(%s.checkNotNull(element));",
             property.getName(), Preconditions.class);
       }
+      addModified(code);
       code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
@@ -127,7 +248,10 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
               ADD_PREFIX,
               property.getCapitalizedName(),
               unboxedType.or(elementType))
-          .addLine("    %1$s.ensureCapacity(%1$s.size() + elements.length);", property.getName())
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .add("    ");
+      addMutableField(code);
+      code.add(".ensureCapacity(this.%s.size() + elements.length);\n", property.getName())
           .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
           .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
           .addLine("    }")
@@ -149,9 +273,16 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
               ADD_ALL_PREFIX,
               property.getCapitalizedName(),
               Iterable.class,
-              elementType)
-          .addLine("    if (elements instanceof %s) {", Collection.class)
-          .addLine("      %1$s.ensureCapacity(%1$s.size() + ((%2$s<?>) elements).size());",
+              elementType);
+      if (!adderOverridden) {
+        addImmutableCollectionFastPath(code, metadata);
+      }
+      code.addLine("    if (elements instanceof %s) {", Collection.class)
+          .addLine("      %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .add("      ");
+      addMutableField(code);
+      code.add(".ensureCapacity(\n")
+          .addLine("          this.%s.size() + ((%s<?>) elements).size());",
               property.getName(), Collection.class)
           .addLine("    }")
           .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
@@ -160,6 +291,32 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Allocates room for {@code expectedSize} elements in the list to be")
+          .addLine("   * returned from {@link %s#%s()}, so adding them does not repeatedly grow",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * its storage.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX)
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .add("    ");
+      addMutableField(code);
+      code.add(".ensureCapacity(expectedSize);\n")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
       // clear()
       code.addLine("")
           .addLine("  /**")
@@ -171,9 +328,10 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("  public %s %s%s() {",
               metadata.getBuilder(),
               CLEAR_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // get()
@@ -187,31 +345,152 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
               List.class,
               elementType,
               GET_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    return %s.unmodifiableList(%s);", Collections.class, property.getName())
+              property.getCapitalizedName());
+      addEnsureElementsBuilt(code);
+      code.addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableList(%1$s);",
+              property.getName(), VIEW_SUFFIX, Collections.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
           .addLine("  }");
+
+      if (compactStorage) {
+        addCompactListType(code);
+      }
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.copyOf(%s.%s);",
-          finalField, ImmutableList.class, builder, property.getName());
+      if (builderStorage) {
+        code.addLine("      if (%s.%s == null) {", builder, property.getName())
+            .addLine("        %s = %s.of();", finalField, ImmutableList.class)
+            .addLine("      } else {")
+            .addLine("        %s = %s.%s.build();", finalField, builder, property.getName())
+            .addLine("      }");
+      } else if (compactStorage) {
+        Class<?> primitives = primitivesClass(unboxedType.get().getKind());
+        code.addLine("      if (%s.%s.isEmpty()) {", builder, property.getName())
+            .addLine("        %s = %s.of();", finalField, ImmutableList.class)
+            .addLine("      } else if (%s.%s instanceof %s) {",
+                builder, property.getName(), compactListName())
+            .addLine("        %s = %s.unmodifiableList(%s.asList(",
+                finalField, Collections.class, primitives)
+            .addLine("            ((%s) %s.%s).toPrimitiveArray()));",
+                compactListName(), builder, property.getName())
+            .addLine("      } else {")
+            .addLine("        %s = %s.unmodifiableList(%s.asList(%s.toArray(%s.%s)));",
+                finalField, Collections.class, primitives, primitives, builder, property.getName())
+            .addLine("      }");
+      } else if (elementBuilder.isPresent()) {
+        code.addLine("      %s.%s();", builder, checkBuildersName());
+        addBuildElements(code, finalField, builder, false);
+      } else {
+        code.addLine("      %s = %s.copyOf(%s.%s);",
+            finalField, ImmutableList.class, builder, property.getName());
+      }
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addPartialFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      if (elementBuilder.isPresent()) {
+        addBuildElements(code, finalField, builder, true);
+      } else {
+        addFinalFieldAssignment(code, finalField, builder);
+      }
+    }
+
+    /**
+     * Adds an assignment of the builder's elements to {@code finalField}, building any element
+     * builders in their place in the list.
+     */
+    private void addBuildElements(
+        SourceBuilder code, String finalField, String builder, boolean partial) {
+      code.addLine("      if (%s.%s == null) {", builder, buildersFieldName())
+          .addLine("        %s = %s.copyOf(%s.%s);",
+              finalField, ImmutableList.class, builder, property.getName())
+          .addLine("      } else {")
+          .addLine("        %s = %s.%s(%s);", finalField, builder, buildElementsName(), partial)
+          .addLine("      }");
+    }
+
+    @Override
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s%s(%s.%s());",
           ADD_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
     }
 
     @Override
     public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
-      code.addLine("    %s%s(((%s) %s).%s);",
-          ADD_ALL_PREFIX,
-          property.getCapitalizedName(),
-          metadata.getGeneratedBuilder(),
-          builder,
-          property.getName());
+      if (builderStorage) {
+        code.addLine("    if (((%s) %s).%s != null) {",
+                metadata.getGeneratedBuilder(), builder, property.getName())
+            .addLine("      %s%s(((%s) %s).%s.build());",
+                ADD_ALL_PREFIX,
+                property.getCapitalizedName(),
+                metadata.getGeneratedBuilder(),
+                builder,
+                property.getName())
+            .addLine("    }");
+      } else if (elementBuilder.isPresent()) {
+        code.addLine("    if (((%s) %s).%s == null) {",
+                metadata.getGeneratedBuilder(), builder, buildersFieldName())
+            .addLine("      %s%s(((%s) %s).%s);",
+                ADD_ALL_PREFIX,
+                property.getCapitalizedName(),
+                metadata.getGeneratedBuilder(),
+                builder,
+                property.getName())
+            .addLine("    } else {")
+            .addLine("      %s<%s> values = ((%s) %s).%s.iterator();",
+                Iterator.class,
+                elementType,
+                metadata.getGeneratedBuilder(),
+                builder,
+                property.getName())
+            .addLine("      int index = 0;")
+            .addLine("      for (%s<Integer, %s> entry",
+                Entry.class, elementBuilder.get().builderType)
+            .addLine("          : ((%s) %s).%s.entrySet()) {",
+                metadata.getGeneratedBuilder(), builder, buildersFieldName())
+            .addLine("        for (; index < entry.getKey(); index++) {")
+            .addLine("          %s%s(values.next());", ADD_PREFIX, property.getCapitalizedName())
+            .addLine("        }")
+            .add("        ");
+        elementBuilder.get().addMergeBuilder(code,
+            ADD_PREFIX + property.getCapitalizedName() + BUILDER_SUFFIX + "()",
+            "entry.getValue()");
+        code.add(";\n")
+            .addLine("        index++;")
+            .addLine("      }")
+            .addLine("      while (values.hasNext()) {")
+            .addLine("        %s%s(values.next());", ADD_PREFIX, property.getCapitalizedName())
+            .addLine("      }")
+            .addLine("    }");
+      } else {
+        code.addLine("    %s%s(((%s) %s).%s);",
+            ADD_ALL_PREFIX,
+            property.getCapitalizedName(),
+            metadata.getGeneratedBuilder(),
+            builder,
+            property.getName());
+      }
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public boolean isModifiableExternally() {
+      return elementBuilder.isPresent();
+    }
+
+    @Override
+    public void addIsModifiableExternally(SourceBuilder code) {
+      code.add("%s != null || %s != null", buildersFieldName(), builtBuildersFieldName());
     }
 
     @Override
@@ -227,12 +506,543 @@ public class ListPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
+
+    /**
+     * Adds the builder methods for elements accumulated in an {@link ImmutableList.Builder}. The
+     * field stays null until the first element is added, and is reset to null when cleared.
+     */
+    private void addImmutableBuilderAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s == null) {", property.getName())
+          .addLine("      %s = %s.builder();", property.getName(), ImmutableList.class)
+          .addLine("    }")
+          .addLine("  }");
+
+      // add(T element)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds {@code element} to the list to be returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code element} is null");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s element) {",
+              metadata.getBuilder(),
+              ADD_PREFIX,
+              property.getCapitalizedName(),
+              unboxedType.or(elementType))
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.add(element);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // add(T... elements)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds each element of {@code elements} to the list to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code elements} is null or contains a")
+            .addLine("   *     null element");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s... elements) {",
+              metadata.getBuilder(),
+              ADD_PREFIX,
+              property.getCapitalizedName(),
+              unboxedType.or(elementType))
+          .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+          .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
+          .addLine("    }")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // addAll(Iterable<? extends T> elements)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds each element of {@code elements} to the list to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code elements} is null or contains a")
+          .addLine("   *     null element")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? extends %s> elements) {",
+              metadata.getBuilder(),
+              ADD_ALL_PREFIX,
+              property.getCapitalizedName(),
+              Iterable.class,
+              elementType);
+      if (adderOverridden) {
+        code.addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+            .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
+            .addLine("    }");
+      } else {
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+        addModified(code);
+        code.addLine("    this.%s.addAll(elements);", property.getName());
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Has no effect: elements of the list to be returned from {@link %s#%s()}",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * are accumulated in an immutable list builder, which cannot be presized.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX)
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
+      // clear()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Clears the list to be returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s() {",
+              metadata.getBuilder(),
+              CLEAR_PREFIX,
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // get()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Returns a snapshot of the list that will be returned by")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Later changes to this builder will not be reflected in the snapshot.")
+          .addLine("   */")
+          .addLine("  public %s<%s> %s%s() {",
+              List.class,
+              elementType,
+              GET_PREFIX,
+              property.getCapitalizedName())
+          .addLine("    if (%s == null) {", property.getName())
+          .addLine("      return %s.of();", ImmutableList.class)
+          .addLine("    }")
+          .addLine("    return %s.build();", property.getName())
+          .addLine("  }");
+    }
+
+    /**
+     * Adds a mutate method, passing a null-checking view of the builder's list to a consumer. An
+     * immutable list builder cannot be modified in place, so its elements are copied out and back.
+     */
+    private void addMutate(SourceBuilder code, Metadata metadata) {
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Applies {@code mutator} to the list to be returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *");
+      if (builderStorage) {
+        code.addLine("   * <p>The list is copied out of this builder's immutable list builder, and")
+            .addLine("   * back again once {@code mutator} returns.");
+      } else {
+        code.addLine("   * <p>The list is this builder's own storage, so changes made by")
+            .addLine("   * {@code mutator} are applied in place, without copying.");
+      }
+      code.addLine("   * The view passed to {@code mutator} may not be used once this method")
+          .addLine("   * returns.");
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code mutator} is null, or adds a null")
+          .addLine("   *     element to the list")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s<%s>> mutator) {",
+              metadata.getBuilder(),
+              MUTATE_PREFIX,
+              property.getCapitalizedName(),
+              CONSUMER,
+              List.class,
+              elementType);
+      if (builderStorage) {
+        code.addLine("    final %s<%s> elements = new %s<%s>(%s%s());",
+            List.class, elementType, ArrayList.class, elementType,
+            GET_PREFIX, property.getCapitalizedName());
+      } else {
+        addEnsureElementsBuilt(code);
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+            .addLine("    final %s<%s> elements = this.%s;",
+                List.class, elementType, property.getName());
+      }
+      addMutateStart(code);
+      withIndent(code, 2).addLine("    mutator.accept(new %s<%s>() {",
+          ForwardingList.class, elementType);
+      addCheckedListMethods(withIndent(code, 6), elementType, "elements",
+          MUTATE_PREFIX + property.getCapitalizedName());
+      withIndent(code, 2).addLine("    });");
+      addMutateEnd(code);
+      if (builderStorage) {
+        code.addLine("    this.%s = %s.<%s>builder().addAll(elements);",
+            property.getName(), ImmutableList.class, elementType);
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+    }
+
+    /** Adds a fragment casting the builder field to its mutable type. */
+    private void addMutableField(SourceBuilder code) {
+      if (compactStorage) {
+        code.add("((%s) this.%s)", compactListName(), property.getName());
+      } else {
+        code.add("((%s<%s>) this.%s)", ArrayList.class, elementType, property.getName());
+      }
+    }
+
+    private String compactListName() {
+      return property.getCapitalizedName() + "PrimitiveList";
+    }
+
+    /**
+     * Adds a nested type holding the builder's elements in a growable primitive array. Elements
+     * are only boxed when read back through the {@link List} interface.
+     */
+    private void addCompactListType(SourceBuilder code) {
+      TypeMirror primitiveType = unboxedType.get();
+      code.addLine("")
+          .addLine("  /** Growable array of {@code %s} values, stored without boxing. */",
+              primitiveType)
+          .addLine("  private static final class %s extends %s<%s>",
+              compactListName(), AbstractList.class, elementType)
+          .addLine("      implements %s, %s {", RandomAccess.class, Serializable.class)
+          .addLine("")
+          .addLine("    private static final long serialVersionUID = 0L;")
+          .addLine("")
+          .addLine("    private %s[] elements;", primitiveType)
+          .addLine("    private int size = 0;")
+          .addLine("")
+          .addLine("    %s(%s<? extends %s> initial) {",
+              compactListName(), Collection.class, elementType)
+          .addLine("      elements = new %s[initial.size()];", primitiveType)
+          .addLine("      for (%s element : initial) {", primitiveType)
+          .addLine("        elements[size++] = element;")
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    void ensureCapacity(int minCapacity) {")
+          .addLine("      if (minCapacity > elements.length) {")
+          .addLine("        int newCapacity = %s.max(minCapacity, 2 * elements.length);",
+              Math.class)
+          .addLine("        elements = %s.copyOf(elements, newCapacity);", Arrays.class)
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    void append(%s element) {", primitiveType)
+          .addLine("      ensureCapacity(size + 1);")
+          .addLine("      elements[size++] = element;")
+          .addLine("      modCount++;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    %s[] toPrimitiveArray() {", primitiveType)
+          .addLine("      return %s.copyOf(elements, size);", Arrays.class)
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public boolean add(%s element) {", elementType)
+          .addLine("      append(element);")
+          .addLine("      return true;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public %s get(int index) {", elementType)
+          .addLine("      %s.checkElementIndex(index, size);", Preconditions.class)
+          .addLine("      return elements[index];")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public void add(int index, %s element) {", elementType)
+          .addLine("      %s.checkPositionIndex(index, size);", Preconditions.class)
+          .addLine("      ensureCapacity(size + 1);")
+          .addLine("      %s.arraycopy(elements, index, elements, index + 1, size - index);",
+              System.class)
+          .addLine("      elements[index] = element;")
+          .addLine("      size++;")
+          .addLine("      modCount++;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public %s set(int index, %s element) {", elementType, elementType)
+          .addLine("      %s.checkElementIndex(index, size);", Preconditions.class)
+          .addLine("      %s previous = elements[index];", primitiveType)
+          .addLine("      elements[index] = element;")
+          .addLine("      return previous;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public %s remove(int index) {", elementType)
+          .addLine("      %s.checkElementIndex(index, size);", Preconditions.class)
+          .addLine("      %s previous = elements[index];", primitiveType)
+          .addLine("      %s.arraycopy(elements, index + 1, elements, index, size - index - 1);",
+              System.class)
+          .addLine("      size--;")
+          .addLine("      modCount++;")
+          .addLine("      return previous;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public int size() {")
+          .addLine("      return size;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public void clear() {")
+          .addLine("      size = 0;")
+          .addLine("      modCount++;")
+          .addLine("    }")
+          .addLine("  }");
+    }
+
+    /**
+     * Adds a fast path to addAll for immutable collections, which are known to be null-free. An
+     * empty list adopts the collection outright, deferring any copy to the next modification.
+     */
+    private void addImmutableCollectionFastPath(SourceBuilder code, Metadata metadata) {
+      code.addLine("    if (elements instanceof %s) {", ImmutableCollection.class)
+          .addLine("      if (this.%1$s instanceof %2$s && this.%1$s.isEmpty()) {",
+              property.getName(), ImmutableList.class)
+          .addLine("        this.%s = %s.copyOf((%s<? extends %s>) elements);",
+              property.getName(), ImmutableList.class, ImmutableCollection.class, elementType)
+          .addLine("      } else {")
+          .addLine("        %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("        this.%s.addAll((%s<? extends %s>) elements);",
+              property.getName(), ImmutableCollection.class, elementType)
+          .addLine("      }");
+      addModified(withIndent(code, 2));
+      code.addLine("      return (%s) this;", metadata.getBuilder())
+          .addLine("    }");
+    }
+
+    /**
+     * Adds a statement emptying the list. A mutable list is cleared in place, so its capacity is
+     * reused and views returned by the getter stay valid; an immutable list is simply replaced.
+     * An immutable list builder is discarded.
+     */
+    private void addClearField(SourceBuilder code) {
+      if (builderStorage) {
+        code.addLine("    this.%s = null;", property.getName());
+        return;
+      }
+      code.addLine("    if (this.%s instanceof %s) {", property.getName(), ImmutableList.class)
+          .addLine("      this.%s = %s.of();", property.getName(), ImmutableList.class)
+          .addLine("    } else {")
+          .addLine("      this.%s.clear();", property.getName())
+          .addLine("    }");
+      if (elementBuilder.isPresent()) {
+        code.addLine("    %s = null;", buildersFieldName())
+            .addLine("    %s = null;", builtBuildersFieldName());
+      }
+    }
+
+    /**
+     * Adds the addBuilder method, and private methods building outstanding element builders.
+     * Each element builder is kept, along with its index in the list, until the list is read
+     * through the getter or mutate method, when they are built and added to the list in place.
+     * Building the value builds them without discarding them, so they remain live. Builders built
+     * early are remembered with their elements, so building the value can reject later changes
+     * to them rather than silently dropping them.
+     */
+    private void addElementBuilderAccessors(SourceBuilder code, Metadata metadata) {
+      TypeElement builderType = elementBuilder.get().builderType;
+
+      // addBuilder()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds a new element to the list to be returned from {@link %s#%s()},",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * returning a builder for it. The element is built in its place in the list")
+          .addLine("   * when this builder is built, without an intermediate value being created.")
+          .addLine("   * Reading the list through {@link #%s%s()} builds the element early, after",
+              GET_PREFIX, property.getCapitalizedName())
+          .addLine("   * which the returned builder must not be changed while the element remains")
+          .addLine("   * in the list, or {@link #build()} will throw an {@link %s}.",
+              IllegalStateException.class)
+          .addLine("   */")
+          .addLine("  public %s %s%s%s() {",
+              builderType, ADD_PREFIX, property.getCapitalizedName(), BUILDER_SUFFIX)
+          .add("    %s builder = ", builderType);
+      elementBuilder.get().addNewBuilder(code);
+      code.add(";\n")
+          .addLine("    if (%s == null) {", buildersFieldName())
+          .addLine("      %s = new %s<Integer, %s>();",
+              buildersFieldName(), LinkedHashMap.class, builderType)
+          .addLine("    }")
+          .addLine("    %1$s.put(%2$s.size() + %1$s.size(), builder);",
+              buildersFieldName(), property.getName());
+      addModified(code);
+      code.addLine("    return builder;")
+          .addLine("  }");
+
+      // buildElements(boolean partial)
+      code.addLine("")
+          .addLine("  private %s<%s> %s(boolean partial) {",
+              ImmutableList.class, elementType, buildElementsName())
+          .addLine("    %s<%s> elements = %s.builder();",
+              ImmutableList.Builder.class, elementType, ImmutableList.class)
+          .addLine("    %s<%s> values = %s.iterator();",
+              Iterator.class, elementType, property.getName())
+          .addLine("    int index = 0;")
+          .addLine("    for (%s<Integer, %s> entry : %s.entrySet()) {",
+              Entry.class, builderType, buildersFieldName())
+          .addLine("      for (; index < entry.getKey(); index++) {")
+          .addLine("        elements.add(values.next());")
+          .addLine("      }")
+          .addLine("      %s builder = entry.getValue();", builderType)
+          .addLine("      elements.add(partial ? builder.buildPartial() : builder.build());")
+          .addLine("      index++;")
+          .addLine("    }")
+          .addLine("    while (values.hasNext()) {")
+          .addLine("      elements.add(values.next());")
+          .addLine("    }")
+          .addLine("    return elements.build();")
+          .addLine("  }");
+
+      // ensureElementsBuilt()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), ELEMENTS_BUILT_SUFFIX)
+          .addLine("    if (%s != null) {", buildersFieldName())
+          .addLine("      %s<%s> elements = %s(false);",
+              ImmutableList.class, elementType, buildElementsName())
+          .addLine("      if (%s == null) {", builtBuildersFieldName())
+          .addLine("        %s = new %s<%s, %s>();",
+              builtBuildersFieldName(), IdentityHashMap.class, builderType, elementType)
+          .addLine("      }")
+          .addLine("      for (%s<Integer, %s> entry : %s.entrySet()) {",
+              Entry.class, builderType, buildersFieldName())
+          .addLine("        %s.put(entry.getValue(), elements.get(entry.getKey()));",
+              builtBuildersFieldName())
+          .addLine("      }")
+          .addLine("      %s = null;", buildersFieldName())
+          .addLine("      if (this.%s instanceof %s) {", property.getName(), ImmutableList.class)
+          .addLine("        this.%s = %s.of();", property.getName(), ImmutableList.class)
+          .addLine("      } else {")
+          .addLine("        this.%s.clear();", property.getName())
+          .addLine("      }")
+          .addLine("      %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      this.%s.addAll(elements);", property.getName())
+          .addLine("    }")
+          .addLine("  }");
+
+      // checkBuildersUnchanged()
+      code.addLine("")
+          .addLine("  private void %s() {", checkBuildersName())
+          .addLine("    if (%s == null) {", builtBuildersFieldName())
+          .addLine("      return;")
+          .addLine("    }")
+          .addLine("    for (%s<%s, %s> entry : %s.entrySet()) {",
+              Entry.class, builderType, elementType, builtBuildersFieldName())
+          .addLine("      if (!entry.getKey().build().equals(entry.getValue())) {")
+          .addLine("        for (%s element : this.%s) {", elementType, property.getName())
+          .addLine("          %s.checkState(element != entry.getValue(),", Preconditions.class)
+          .addLine("              \"Builder returned by %s%s%s() changed after being built\");",
+              ADD_PREFIX, property.getCapitalizedName(), BUILDER_SUFFIX)
+          .addLine("        }")
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("  }");
+    }
+
+    /** Adds a call building any outstanding element builders into the list. */
+    private void addEnsureElementsBuilt(SourceBuilder code) {
+      if (elementBuilder.isPresent()) {
+        code.addLine("    %s%s%s();",
+            ENSURE_PREFIX, property.getCapitalizedName(), ELEMENTS_BUILT_SUFFIX);
+      }
+    }
+
+    private String buildersFieldName() {
+      return property.getName() + BUILDERS_SUFFIX;
+    }
+
+    private String builtBuildersFieldName() {
+      return property.getName() + BUILT_BUILDERS_SUFFIX;
+    }
+
+    private String checkBuildersName() {
+      return "check" + property.getCapitalizedName() + "BuildersUnchanged";
+    }
+
+    private String buildElementsName() {
+      return "build" + property.getCapitalizedName() + "Elements";
+    }
+  }
+
+  /**
+   * Adds the body of a {@link ForwardingList} over {@code delegate} that rejects null elements,
+   * and any use once {@code mutateMethod} has returned. Bulk insertions, list iterators and
+   * sublists are routed back through the checked methods.
+   */
+  static void addCheckedListMethods(
+      SourceBuilder code, TypeMirror elementType, String delegate, String mutateMethod) {
+    code.addLine("  @%s protected %s<%s> delegate() {", Override.class, List.class, elementType);
+    PropertyCodeGenerator.addMutateViewCheck(code, mutateMethod);
+    code.addLine("    return %s;", delegate)
+        .addLine("  }")
+        .addLine("  @%s public boolean add(%s element) {", Override.class, elementType)
+        .addLine("    return delegate().add(%s.checkNotNull(element));", Preconditions.class)
+        .addLine("  }")
+        .addLine("  @%s public void add(int index, %s element) {", Override.class, elementType)
+        .addLine("    delegate().add(index, %s.checkNotNull(element));", Preconditions.class)
+        .addLine("  }")
+        .addLine("  @%s public %s set(int index, %s element) {",
+            Override.class, elementType, elementType)
+        .addLine("    return delegate().set(index, %s.checkNotNull(element));",
+            Preconditions.class)
+        .addLine("  }")
+        .addLine("  @%s public boolean addAll(%s<? extends %s> collection) {",
+            Override.class, Collection.class, elementType)
+        .addLine("    return standardAddAll(collection);")
+        .addLine("  }")
+        .addLine("  @%s public boolean addAll(int index, %s<? extends %s> collection) {",
+            Override.class, Collection.class, elementType)
+        .addLine("    return standardAddAll(index, collection);")
+        .addLine("  }")
+        .addLine("  @%s public %s<%s> listIterator() {",
+            Override.class, ListIterator.class, elementType)
+        .addLine("    return standardListIterator();")
+        .addLine("  }")
+        .addLine("  @%s public %s<%s> listIterator(int index) {",
+            Override.class, ListIterator.class, elementType)
+        .addLine("    return standardListIterator(index);")
+        .addLine("  }")
+        .addLine("  @%s public %s<%s> subList(int fromIndex, int toIndex) {",
+            Override.class, List.class, elementType)
+        .addLine("    return standardSubList(fromIndex, toIndex);")
+        .addLine("  }");
   }
 }
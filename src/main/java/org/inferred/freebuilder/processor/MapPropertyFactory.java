@@ -16,20 +16,41 @@
 package org.inferred.freebuilder.processor;
 
 import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
+import static org.inferred.freebuilder.processor.Util.primitivesClass;
 import static org.inferred.freebuilder.processor.Util.upperBound;
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingIterator;
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.ForwardingMapEntry;
+import com.google.common.collect.ForwardingSet;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.UnmodifiableIterator;
 
+import org.inferred.freebuilder.processor.BuildablePropertyFactory.BuildableType;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
 
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
@@ -46,6 +67,18 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
   private static final String REMOVE_PREFIX = "remove";
   private static final String CLEAR_PREFIX = "clear";
   private static final String GET_PREFIX = "get";
+  private static final String MUTATE_PREFIX = "mutate";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+  private static final String CAPACITY_SUFFIX = "Capacity";
+  private static final String BUILDER_SUFFIX = "Builder";
+  private static final String BUILDERS_SUFFIX = "Builders";
+  private static final String ENTRIES_BUILT_SUFFIX = "EntriesBuilt";
+  private static final String BUILT_BUILDERS_SUFFIX = "BuiltBuilders";
+  /** Key types that can be compared with {@code ==} in a compact map. */
+  private static final Set<TypeKind> COMPACT_KEY_KINDS =
+      EnumSet.of(TypeKind.BYTE, TypeKind.SHORT, TypeKind.CHAR, TypeKind.INT, TypeKind.LONG);
 
   @Override
   public Optional<? extends PropertyCodeGenerator> create(Config config) {
@@ -56,8 +89,36 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
         TypeMirror valueType = upperBound(config.getElements(), type.getTypeArguments().get(1));
         Optional<TypeMirror> unboxedKeyType = unboxed(config.getTypes(), keyType);
         Optional<TypeMirror> unboxedValueType = unboxed(config.getTypes(), valueType);
+        boolean putOverridden = config.getMethodsDeclaredOnBuilder()
+            .contains(PUT_PREFIX + config.getProperty().getCapitalizedName());
+        boolean compactStorage = config.isCompactPrimitiveMaps()
+            && unboxedKeyType.isPresent()
+            && COMPACT_KEY_KINDS.contains(unboxedKeyType.get().getKind())
+            && unboxedValueType.isPresent()
+            && !erasesToAnyOf(type, ImmutableMap.class);
+        boolean enumKeys = keyType.getKind() == TypeKind.DECLARED
+            && ((DeclaredType) keyType).asElement().getKind() == ElementKind.ENUM;
+        boolean builderStorage = config.isImmutableCollectionBuilders()
+            && !compactStorage
+            && !enumKeys;
+        Optional<BuildableType> valueBuilder = Optional.absent();
+        if (!compactStorage && !builderStorage) {
+          valueBuilder = BuildablePropertyFactory.buildableType(
+              valueType, config.getElements(), config.getTypes());
+        }
         return Optional.of(new CodeGenerator(
-            config.getProperty(), keyType, unboxedKeyType, valueType, unboxedValueType));
+            config.getProperty(),
+            keyType,
+            unboxedKeyType,
+            valueType,
+            unboxedValueType,
+            putOverridden,
+            compactStorage,
+            enumKeys,
+            builderStorage,
+            config.getExpectedSize(),
+            config.isConsumerAvailable(),
+            valueBuilder));
       }
     }
     return Optional.absent();
@@ -69,28 +130,96 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
     private final Optional<TypeMirror> unboxedKeyType;
     private final TypeMirror valueType;
     private final Optional<TypeMirror> unboxedValueType;
+    /** True if the user's builder overrides put(K, V), so every entry must be passed to it. */
+    private final boolean putOverridden;
+    /** True if the value type should store the map in primitive arrays. */
+    private final boolean compactStorage;
+    /** True if the keys are enum constants, which are stored in an {@link EnumMap}. */
+    private final boolean enumKeys;
+    /** True if entries are accumulated in an {@link ImmutableMap.Builder}. */
+    private final boolean builderStorage;
+    /** Number of entries to allocate room for when first modified, if known from a profile. */
+    private final Optional<Integer> expectedSize;
+    /** True if {@code mutate} can be generated, as {@code Consumer} is available. */
+    private final boolean consumerAvailable;
+    /** The Builder of the value type, if values can be built in place in the builder. */
+    private final Optional<BuildableType> valueBuilder;
 
     CodeGenerator(
         Property property,
         TypeMirror keyType,
         Optional<TypeMirror> unboxedKeyType,
         TypeMirror valueType,
-        Optional<TypeMirror> unboxedValueType) {
+        Optional<TypeMirror> unboxedValueType,
+        boolean putOverridden,
+        boolean compactStorage,
+        boolean enumKeys,
+        boolean builderStorage,
+        Optional<Integer> expectedSize,
+        boolean consumerAvailable,
+        Optional<BuildableType> valueBuilder) {
       super(property);
       this.keyType = keyType;
       this.unboxedKeyType = unboxedKeyType;
       this.valueType = valueType;
       this.unboxedValueType = unboxedValueType;
+      this.putOverridden = putOverridden;
+      this.compactStorage = compactStorage;
+      this.enumKeys = enumKeys;
+      this.builderStorage = builderStorage;
+      this.expectedSize = expectedSize;
+      this.consumerAvailable = consumerAvailable;
+      this.valueBuilder = valueBuilder;
     }
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.addLine("  private %1$s<%2$s, %3$s> %4$s = new %1$s<%2$s, %3$s>();",
-          LinkedHashMap.class, keyType, valueType, property.getName());
+      if (builderStorage) {
+        code.addLine("  private %s<%s, %s> %s = null;",
+            ImmutableMap.Builder.class, keyType, valueType, property.getName());
+      } else {
+        code.addLine("  private %s<%s, %s> %s = %s.of();",
+                Map.class, keyType, valueType, property.getName(), ImmutableMap.class)
+            .addLine("  private %s<%s, %s> %s%s = null;",
+                Map.class, keyType, valueType, property.getName(), VIEW_SUFFIX);
+      }
+      if (valueBuilder.isPresent()) {
+        code.addLine("  /** Value builders not yet built, keyed by their key in the map. */")
+            .addLine("  private %s<%s, %s> %s = null;",
+                Map.class, keyType, valueBuilder.get().builderType, buildersFieldName())
+            .addLine("  /** Value builders built early, with the values they built. */")
+            .addLine("  private %s<%s, %s> %s = null;",
+                Map.class, valueBuilder.get().builderType, valueType, builtBuildersFieldName());
+      }
     }
 
     @Override
     public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      if (builderStorage) {
+        addImmutableBuilderAccessors(code, metadata);
+        return;
+      }
+
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableMap.class);
+      if (enumKeys) {
+        code.addLine("      %s<%s, %s> entries = this.%s;",
+                Map.class, keyType, valueType, property.getName())
+            .addLine("      this.%s = new %s<%s, %s>(%s.class);",
+                property.getName(), EnumMap.class, keyType, valueType, keyType)
+            .addLine("      this.%s.putAll(entries);", property.getName());
+      } else if (expectedSize.isPresent()) {
+        addPresizedCopy(code, expectedSize.get().toString());
+      } else {
+        code.addLine("      %1$s = new %2$s<%3$s, %4$s>(%1$s);",
+            property.getName(), LinkedHashMap.class, keyType, valueType);
+      }
+      code.addLine("    }")
+          .addLine("  }");
+
       // put(K key, V value)
       code.addLine("")
           .addLine("  /**")
@@ -124,11 +253,11 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
       if (!unboxedValueType.isPresent()) {
         code.addLine("    %s.checkNotNull(value);", Preconditions.class);
       }
-      code.addLine("    %s.checkArgument(!%s.containsKey(key),",
-              Preconditions.class, property.getName())
-          .addLine("        \"Key already present in %s: %%s\", key);", property.getName())
-          .addLine("    this.%s.put(key, value);", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+      addKeyAbsentCheck(code);
+      code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.put(key, value);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // putAll(Map<? extends K, ? extends V> map)
@@ -149,8 +278,15 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
               property.getCapitalizedName(),
               Map.class,
               keyType,
-              valueType)
-          .addLine("    for (%s key : map.keySet()) {", unboxedKeyType.or(keyType))
+              valueType);
+      if (!putOverridden && !valueBuilder.isPresent()) {
+        addImmutableMapFastPath(code, metadata);
+      }
+      if (!enumKeys) {
+        code.addLine("    %s%s%s(this.%s.size() + map.size());",
+            ENSURE_PREFIX, property.getCapitalizedName(), CAPACITY_SUFFIX, property.getName());
+      }
+      code.addLine("    for (%s key : map.keySet()) {", unboxedKeyType.or(keyType))
           .addLine("      %s%s(key, map.get(key));", PUT_PREFIX, property.getCapitalizedName())
           .addLine("    }")
           .addLine("    return (%s) this;", metadata.getBuilder())
@@ -177,13 +313,65 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
       if (!unboxedKeyType.isPresent()) {
         code.addLine("    %s.checkNotNull(key);", Preconditions.class);
       }
+      if (valueBuilder.isPresent()) {
+        code.addLine("    if (%1$s != null && %1$s.containsKey(key)) {", buildersFieldName())
+            .addLine("      %s.remove(key);", buildersFieldName());
+        addModified(withIndent(code, 2));
+        code.addLine("      return (%s) this;", metadata.getBuilder())
+            .addLine("    }");
+      }
       code.addLine("    %s.checkArgument(%s.containsKey(key),",
               Preconditions.class, property.getName())
           .addLine("        \"Key not present in %s: %%s\", key);", property.getName())
-          .addLine("    %s.remove(key);", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    %s.remove(key);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**");
+      if (enumKeys) {
+        code.addLine("   * Has no effect: the map to be returned from {@link %s#%s()} has enum",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * keys, which are stored in a fixed-size {@link %s}.", EnumMap.class);
+      } else {
+        code.addLine("   * Allocates room for {@code expectedSize} entries in the map to be")
+            .addLine("   * returned from {@link %s#%s()}, so adding them does not repeatedly",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * rehash it. Entries already put are copied into the larger map if")
+            .addLine("   * {@code expectedSize} is more than double their number, unless")
+            .addLine("   * {@link #%s%s()} has returned a view of the current map.",
+                GET_PREFIX, property.getCapitalizedName());
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX);
+      if (!enumKeys) {
+        // Rebuilding only for more than double the size keeps repeated putAll calls linear.
+        code.addLine("    if (this.%s instanceof %s", property.getName(), ImmutableMap.class)
+            .addLine("        || (this.%s%s == null && expectedSize > 2 * this.%s.size())) {",
+                property.getName(), VIEW_SUFFIX, property.getName());
+        addPresizedCopy(code, "expectedSize");
+        code.addLine("    }");
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      if (valueBuilder.isPresent()) {
+        addValueBuilderAccessors(code, metadata);
+      }
+
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
       // clear()
       code.addLine("")
           .addLine("  /**")
@@ -195,9 +383,10 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("  public %s %s%s() {",
               metadata.getBuilder(),
               CLEAR_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // get()
@@ -212,31 +401,133 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
               keyType,
               valueType,
               GET_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    return %s.unmodifiableMap(%s);", Collections.class, property.getName())
+              property.getCapitalizedName());
+      addEnsureEntriesBuilt(code);
+      code.addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableMap(%1$s);",
+              property.getName(), VIEW_SUFFIX, Collections.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
           .addLine("  }");
+
+      if (compactStorage) {
+        addCompactMapType(code);
+      }
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.copyOf(%s.%s);",
-          finalField, ImmutableMap.class, builder, property.getName());
+      if (builderStorage) {
+        code.addLine("      if (%s.%s == null) {", builder, property.getName())
+            .addLine("        %s = %s.of();", finalField, ImmutableMap.class)
+            .addLine("      } else {")
+            .addLine("        %s = %s.%s.build();", finalField, builder, property.getName())
+            .addLine("      }");
+      } else if (compactStorage) {
+        code.addLine("      if (%s.%s.isEmpty()) {", builder, property.getName())
+            .addLine("        %s = %s.of();", finalField, ImmutableMap.class)
+            .addLine("      } else {")
+            .addLine("        %s = new %s(%s.%s);",
+                finalField, compactMapName(), builder, property.getName())
+            .addLine("      }");
+      } else if (valueBuilder.isPresent()) {
+        code.addLine("      %s.%s();", builder, checkBuildersName());
+        addBuildEntries(code, finalField, builder, false);
+      } else {
+        addCopyEntries(code, finalField, builder);
+      }
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addPartialFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      if (valueBuilder.isPresent()) {
+        addBuildEntries(code, finalField, builder, true);
+      } else {
+        addFinalFieldAssignment(code, finalField, builder);
+      }
+    }
+
+    private void addCopyEntries(SourceBuilder code, String finalField, String builder) {
+      if (enumKeys) {
+        code.addLine("      %s = %s.immutableEnumMap(%s.%s);",
+            finalField, Maps.class, builder, property.getName());
+      } else {
+        code.addLine("      %s = %s.copyOf(%s.%s);",
+            finalField, ImmutableMap.class, builder, property.getName());
+      }
+    }
+
+    /**
+     * Adds an assignment of the builder's entries to {@code finalField}, building any value
+     * builders.
+     */
+    private void addBuildEntries(
+        SourceBuilder code, String finalField, String builder, boolean partial) {
+      code.addLine("      if (%s.%s == null) {", builder, buildersFieldName());
+      addCopyEntries(withIndent(code, 2), finalField, builder);
+      code.addLine("      } else {")
+          .addLine("        %s = %s.%s(%s);", finalField, builder, buildEntriesName(), partial)
+          .addLine("      }");
+    }
+
+    @Override
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s%s(%s.%s());",
           PUT_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
     }
 
     @Override
     public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
-      code.addLine("    %s%s(((%s) %s).%s);",
-          PUT_ALL_PREFIX,
-          property.getCapitalizedName(),
-          metadata.getGeneratedBuilder(),
-          builder,
-          property.getName());
+      if (builderStorage) {
+        code.addLine("    if (((%s) %s).%s != null) {",
+                metadata.getGeneratedBuilder(), builder, property.getName())
+            .addLine("      %s%s(((%s) %s).%s.build());",
+                PUT_ALL_PREFIX,
+                property.getCapitalizedName(),
+                metadata.getGeneratedBuilder(),
+                builder,
+                property.getName())
+            .addLine("    }");
+      } else {
+        code.addLine("    %s%s(((%s) %s).%s);",
+            PUT_ALL_PREFIX,
+            property.getCapitalizedName(),
+            metadata.getGeneratedBuilder(),
+            builder,
+            property.getName());
+        if (valueBuilder.isPresent()) {
+          code.addLine("    if (((%s) %s).%s != null) {",
+                  metadata.getGeneratedBuilder(), builder, buildersFieldName())
+              .addLine("      for (%s<%s, %s> entry",
+                  Entry.class, keyType, valueBuilder.get().builderType)
+              .addLine("          : ((%s) %s).%s.entrySet()) {",
+                  metadata.getGeneratedBuilder(), builder, buildersFieldName())
+              .add("        ");
+          valueBuilder.get().addMergeBuilder(code,
+              PUT_PREFIX + property.getCapitalizedName() + BUILDER_SUFFIX + "(entry.getKey())",
+              "entry.getValue()");
+          code.add(";\n")
+              .addLine("      }")
+              .addLine("    }");
+        }
+      }
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public boolean isModifiableExternally() {
+      return valueBuilder.isPresent();
+    }
+
+    @Override
+    public void addIsModifiableExternally(SourceBuilder code) {
+      code.add("%s != null || %s != null", buildersFieldName(), builtBuildersFieldName());
     }
 
     @Override
@@ -252,12 +543,640 @@ public class MapPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
+    }
+
+    /**
+     * Adds statements replacing the map with a mutable copy holding room for at least
+     * {@code expectedSize} entries.
+     */
+    private void addPresizedCopy(SourceBuilder code, String expectedSize) {
+      code.addLine("      %s<%s, %s> entries = this.%s;",
+              Map.class, keyType, valueType, property.getName())
+          .addLine("      int size = %s.max(%s, entries.size());", Math.class, expectedSize)
+          .addLine("      this.%s = new %s<%s, %s>(size + size / 3 + 1);",
+              property.getName(), LinkedHashMap.class, keyType, valueType)
+          .addLine("      this.%s.putAll(entries);", property.getName());
+    }
+
+    /**
+     * Adds a fast path to putAll for immutable maps, which are known to be null-free. An empty map
+     * adopts the immutable map outright, deferring any copy to the next modification.
+     */
+    private void addImmutableMapFastPath(SourceBuilder code, Metadata metadata) {
+      code.addLine("    if (map instanceof %s) {", ImmutableMap.class);
+      // Recorded first, as a duplicate key can abort the loop after some entries are put.
+      addModified(withIndent(code, 2));
+      code.addLine("      if (this.%1$s instanceof %2$s && this.%1$s.isEmpty()) {",
+              property.getName(), ImmutableMap.class)
+          .addLine("        this.%s = %s.copyOf(map);", property.getName(), ImmutableMap.class)
+          .addLine("      } else {")
+          .addLine("        %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("        for (%s<? extends %s, ? extends %s> entry : map.entrySet()) {",
+              Entry.class, keyType, valueType)
+          .addLine("          %s.checkArgument(!this.%s.containsKey(entry.getKey()),",
+              Preconditions.class, property.getName())
+          .addLine("              \"Key already present in %s: %%s\", entry.getKey());",
+              property.getName())
+          .addLine("          this.%s.put(entry.getKey(), entry.getValue());", property.getName())
+          .addLine("        }")
+          .addLine("      }")
+          .addLine("      return (%s) this;", metadata.getBuilder())
+          .addLine("    }");
+    }
+
+    /**
+     * Adds the builder methods for entries accumulated in an {@link ImmutableMap.Builder}. The
+     * field stays null until the first entry is put, and is reset to null when cleared. Duplicate
+     * keys are only detected when the map is built.
+     */
+    private void addImmutableBuilderAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s == null) {", property.getName())
+          .addLine("      %s = %s.builder();", property.getName(), ImmutableMap.class)
+          .addLine("    }")
+          .addLine("  }");
+
+      // put(K key, V value)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Associates {@code key} with {@code value} in the map to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Duplicate keys are not allowed, and will cause {@link #build()} to throw")
+          .addLine("   * an {@link IllegalArgumentException}.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedKeyType.isPresent() || !unboxedValueType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code key} or {@code value} is null");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s key, %s value) {",
+              metadata.getBuilder(),
+              PUT_PREFIX,
+              property.getCapitalizedName(),
+              unboxedKeyType.or(keyType),
+              unboxedValueType.or(valueType))
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.put(key, value);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // putAll(Map<? extends K, ? extends V> map)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Associates all of {@code map}'s keys and values in the map to be returned")
+          .addLine("   * from {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Duplicate keys are not allowed, and will cause {@link #build()} to throw")
+          .addLine("   * an {@link IllegalArgumentException}.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code map} is null or contains a")
+          .addLine("   *     null key or value")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? extends %s, ? extends %s> map) {",
+              metadata.getBuilder(),
+              PUT_ALL_PREFIX,
+              property.getCapitalizedName(),
+              Map.class,
+              keyType,
+              valueType);
+      if (putOverridden) {
+        code.addLine("    for (%s key : map.keySet()) {", unboxedKeyType.or(keyType))
+            .addLine("      %s%s(key, map.get(key));", PUT_PREFIX, property.getCapitalizedName())
+            .addLine("    }");
+      } else {
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+        addModified(code);
+        code.addLine("    this.%s.putAll(map);", property.getName());
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // remove(K key)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Removes the mapping for {@code key} from the map to be returned from")
+          .addLine("   * {@link %s#%s()}. This copies all remaining entries.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedKeyType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code key} is null");
+      }
+      code.addLine("   * @throws IllegalArgumentException if {@code key} is not present")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s key) {",
+              metadata.getBuilder(),
+              REMOVE_PREFIX,
+              property.getCapitalizedName(),
+              unboxedKeyType.or(keyType));
+      if (!unboxedKeyType.isPresent()) {
+        code.addLine("    %s.checkNotNull(key);", Preconditions.class);
+      }
+      code.addLine("    %s<%s, %s> entries = %s%s();",
+              Map.class, keyType, valueType, GET_PREFIX, property.getCapitalizedName())
+          .addLine("    %s.checkArgument(entries.containsKey(key),", Preconditions.class)
+          .addLine("        \"Key not present in %s: %%s\", key);", property.getName())
+          .addLine("    this.%s = %s.builder();", property.getName(), ImmutableMap.class)
+          .addLine("    for (%s<%s, %s> entry : entries.entrySet()) {",
+              Entry.class, keyType, valueType)
+          .addLine("      if (!entry.getKey().equals(key)) {")
+          .addLine("        this.%s.put(entry);", property.getName())
+          .addLine("      }")
+          .addLine("    }");
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Has no effect: entries of the map to be returned from {@link %s#%s()}",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * are accumulated in an immutable map builder, which cannot be presized.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX)
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
+      // clear()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Removes all of the mappings from the map to be returned from ")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s() {",
+              metadata.getBuilder(),
+              CLEAR_PREFIX,
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // get()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Returns a snapshot of the map that will be returned by")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Later changes to this builder will not be reflected in the snapshot.")
+          .addLine("   *")
+          .addLine("   * @throws IllegalArgumentException if duplicate keys have been put")
+          .addLine("   */")
+          .addLine("  public %s<%s, %s> %s%s() {",
+              Map.class,
+              keyType,
+              valueType,
+              GET_PREFIX,
+              property.getCapitalizedName())
+          .addLine("    if (%s == null) {", property.getName())
+          .addLine("      return %s.of();", ImmutableMap.class)
+          .addLine("    }")
+          .addLine("    return %s.build();", property.getName())
+          .addLine("  }");
+    }
+
+    /**
+     * Adds a mutate method, passing a null-checking view of the builder's map to a consumer. An
+     * immutable map builder cannot be modified in place, so its entries are copied out and back.
+     */
+    private void addMutate(SourceBuilder code, Metadata metadata) {
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Applies {@code mutator} to the map to be returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *");
+      if (builderStorage) {
+        code.addLine("   * <p>The map is copied out of this builder's immutable map builder, and")
+            .addLine("   * back again once {@code mutator} returns.");
+      } else {
+        code.addLine("   * <p>The map is this builder's own storage, so changes made by")
+            .addLine("   * {@code mutator} are applied in place, without copying.");
+      }
+      code.addLine("   * The view passed to {@code mutator} may not be used once this method")
+          .addLine("   * returns.");
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code mutator} is null, or puts a null")
+          .addLine("   *     key or value in the map");
+      if (builderStorage) {
+        code.addLine("   * @throws IllegalArgumentException if duplicate keys have been put");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s<%s, %s>> mutator) {",
+              metadata.getBuilder(),
+              MUTATE_PREFIX,
+              property.getCapitalizedName(),
+              CONSUMER,
+              Map.class,
+              keyType,
+              valueType);
+      if (builderStorage) {
+        code.addLine("    final %s<%s, %s> entries = new %s<%s, %s>(%s%s());",
+            Map.class, keyType, valueType, LinkedHashMap.class, keyType, valueType,
+            GET_PREFIX, property.getCapitalizedName());
+      } else {
+        addEnsureEntriesBuilt(code);
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+            .addLine("    final %s<%s, %s> entries = this.%s;",
+                Map.class, keyType, valueType, property.getName());
+      }
+      addMutateStart(code);
+      withIndent(code, 2).addLine("    mutator.accept(new %s<%s, %s>() {",
+          ForwardingMap.class, keyType, valueType);
+      addCheckedMapMethods(withIndent(code, 6), "entries");
+      withIndent(code, 2).addLine("    });");
+      addMutateEnd(code);
+      if (builderStorage) {
+        code.addLine("    this.%s = %s.<%s, %s>builder().putAll(entries);",
+            property.getName(), ImmutableMap.class, keyType, valueType);
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+    }
+
+    /**
+     * Adds the body of a {@link ForwardingMap} over {@code delegate} that rejects null keys and
+     * values, and any use once the mutate method has returned. Bulk insertions are routed back
+     * through {@code put}, and entries handed out by the entry set check values passed to
+     * {@code setValue}.
+     */
+    private void addCheckedMapMethods(SourceBuilder code, String delegate) {
+      String mutateMethod = MUTATE_PREFIX + property.getCapitalizedName();
+      code.addLine("  @%s protected %s<%s, %s> delegate() {",
+          Override.class, Map.class, keyType, valueType);
+      addMutateViewCheck(code, mutateMethod);
+      code.addLine("    return %s;", delegate)
+          .addLine("  }")
+          .addLine("  @%s public %s put(%s key, %s value) {",
+              Override.class, valueType, keyType, valueType)
+          .addLine("    return delegate().put(%s.checkNotNull(key), %s.checkNotNull(value));",
+              Preconditions.class, Preconditions.class)
+          .addLine("  }")
+          .addLine("  @%s public void putAll(%s<? extends %s, ? extends %s> map) {",
+              Override.class, Map.class, keyType, valueType)
+          .addLine("    standardPutAll(map);")
+          .addLine("  }")
+          .addLine("  @%s public %s<%s<%s, %s>> entrySet() {",
+              Override.class, Set.class, Entry.class, keyType, valueType)
+          .addLine("    return new %s<%s<%s, %s>>() {",
+              ForwardingSet.class, Entry.class, keyType, valueType)
+          .addLine("      @%s protected %s<%s<%s, %s>> delegate() {",
+              Override.class, Set.class, Entry.class, keyType, valueType);
+      addMutateViewCheck(withIndent(code, 4), mutateMethod);
+      code.addLine("        return %s.entrySet();", delegate)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s<%s, %s>> iterator() {",
+              Override.class, Iterator.class, Entry.class, keyType, valueType)
+          .addLine("        final %s<%s<%s, %s>> iterator = delegate().iterator();",
+              Iterator.class, Entry.class, keyType, valueType)
+          .addLine("        return new %s<%s<%s, %s>>() {",
+              ForwardingIterator.class, Entry.class, keyType, valueType)
+          .addLine("          @%s protected %s<%s<%s, %s>> delegate() {",
+              Override.class, Iterator.class, Entry.class, keyType, valueType);
+      addMutateViewCheck(withIndent(code, 8), mutateMethod);
+      code.addLine("            return iterator;")
+          .addLine("          }")
+          .addLine("          @%s public %s<%s, %s> next() {",
+              Override.class, Entry.class, keyType, valueType)
+          .addLine("            final %s<%s, %s> entry = delegate().next();",
+              Entry.class, keyType, valueType)
+          .addLine("            return new %s<%s, %s>() {",
+              ForwardingMapEntry.class, keyType, valueType)
+          .addLine("              @%s protected %s<%s, %s> delegate() {",
+              Override.class, Entry.class, keyType, valueType);
+      addMutateViewCheck(withIndent(code, 12), mutateMethod);
+      code.addLine("                return entry;")
+          .addLine("              }")
+          .addLine("              @%s public %s setValue(%s value) {",
+              Override.class, valueType, valueType)
+          .addLine("                return delegate().setValue(%s.checkNotNull(value));",
+              Preconditions.class)
+          .addLine("              }")
+          .addLine("            };")
+          .addLine("          }")
+          .addLine("        };")
+          .addLine("      }")
+          .addLine("    };")
+          .addLine("  }");
+    }
+
+    private String compactMapName() {
+      return property.getCapitalizedName() + "PrimitiveMap";
+    }
+
+    /**
+     * Adds an immutable map storing its keys and values in primitive arrays, in insertion order.
+     * Lookups use an open-addressing table of array positions, offset by one so that zero marks
+     * an empty slot; the table is kept at most half full.
+     */
+    private void addCompactMapType(SourceBuilder code) {
+      TypeMirror primitiveKey = unboxedKeyType.get();
+      TypeMirror primitiveValue = unboxedValueType.get();
+      code.addLine("")
+          .addLine("  /** Immutable map of {@code %s} to {@code %s}, stored without boxing. */",
+              primitiveKey, primitiveValue)
+          .addLine("  private static final class %s extends %s<%s, %s>",
+              compactMapName(), AbstractMap.class, keyType, valueType)
+          .addLine("      implements %s {", Serializable.class)
+          .addLine("")
+          .addLine("    private static final long serialVersionUID = 0L;")
+          .addLine("")
+          .addLine("    private final %s[] keys;", primitiveKey)
+          .addLine("    private final %s[] values;", primitiveValue)
+          .addLine("    private final int[] table;")
+          .addLine("")
+          .addLine("    %s(%s<? extends %s, ? extends %s> map) {",
+              compactMapName(), Map.class, keyType, valueType)
+          .addLine("      keys = new %s[map.size()];", primitiveKey)
+          .addLine("      values = new %s[map.size()];", primitiveValue)
+          .addLine("      table = new int[%s.highestOneBit(%s.max(2 * map.size() - 1, 1)) << 1];",
+              Integer.class, Math.class)
+          .addLine("      int position = 0;")
+          .addLine("      for (%s<? extends %s, ? extends %s> entry : map.entrySet()) {",
+              Entry.class, keyType, valueType)
+          .addLine("        keys[position] = entry.getKey();")
+          .addLine("        values[position] = entry.getValue();")
+          .addLine("        int slot = slotFor(keys[position]);")
+          .addLine("        while (table[slot] != 0) {")
+          .addLine("          slot = (slot + 1) & (table.length - 1);")
+          .addLine("        }")
+          .addLine("        table[slot] = ++position;")
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    private int slotFor(%s key) {", primitiveKey)
+          .addLine("      int hash = %s.hashCode(key) * 0x9E3779B9;",
+              primitivesClass(primitiveKey.getKind()))
+          .addLine("      return (hash ^ (hash >>> 16)) & (table.length - 1);")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    private int positionOf(Object key) {")
+          .addLine("      if (key instanceof %s) {", keyType)
+          .addLine("        %s primitiveKey = (%s) key;", primitiveKey, keyType)
+          .addLine("        int slot = slotFor(primitiveKey);")
+          .addLine("        while (table[slot] != 0) {")
+          .addLine("          if (keys[table[slot] - 1] == primitiveKey) {")
+          .addLine("            return table[slot] - 1;")
+          .addLine("          }")
+          .addLine("          slot = (slot + 1) & (table.length - 1);")
+          .addLine("        }")
+          .addLine("      }")
+          .addLine("      return -1;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public boolean containsKey(Object key) {")
+          .addLine("      return positionOf(key) >= 0;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public %s get(Object key) {", valueType)
+          .addLine("      int position = positionOf(key);")
+          .addLine("      if (position < 0) {")
+          .addLine("        return null;")
+          .addLine("      }")
+          .addLine("      return values[position];")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public int size() {")
+          .addLine("      return keys.length;")
+          .addLine("    }")
+          .addLine("")
+          .addLine("    @%s", Override.class)
+          .addLine("    public %s<%s<%s, %s>> entrySet() {",
+              Set.class, Entry.class, keyType, valueType)
+          .addLine("      return new %s<%s<%s, %s>>() {",
+              AbstractSet.class, Entry.class, keyType, valueType)
+          .addLine("        @%s", Override.class)
+          .addLine("        public int size() {")
+          .addLine("          return keys.length;")
+          .addLine("        }")
+          .addLine("")
+          .addLine("        @%s", Override.class)
+          .addLine("        public %s<%s<%s, %s>> iterator() {",
+              Iterator.class, Entry.class, keyType, valueType)
+          .addLine("          return new %s<%s<%s, %s>>() {",
+              UnmodifiableIterator.class, Entry.class, keyType, valueType)
+          .addLine("            private int position = 0;")
+          .addLine("")
+          .addLine("            @%s", Override.class)
+          .addLine("            public boolean hasNext() {")
+          .addLine("              return position < keys.length;")
+          .addLine("            }")
+          .addLine("")
+          .addLine("            @%s", Override.class)
+          .addLine("            public %s<%s, %s> next() {", Entry.class, keyType, valueType)
+          .addLine("              if (!hasNext()) {")
+          .addLine("                throw new %s();", NoSuchElementException.class)
+          .addLine("              }")
+          .addLine("              %1$s<%2$s, %3$s> entry = %4$s.<%2$s, %3$s>immutableEntry(",
+              Entry.class, keyType, valueType, Maps.class)
+          .addLine("                  keys[position], values[position]);")
+          .addLine("              position++;")
+          .addLine("              return entry;")
+          .addLine("            }")
+          .addLine("          };")
+          .addLine("        }")
+          .addLine("      };")
+          .addLine("    }")
+          .addLine("  }");
+    }
+
+    /**
+     * Adds a statement emptying the map. A mutable map is cleared in place, so views returned by
+     * the getter stay valid; an immutable map is simply replaced. An immutable map builder is
+     * discarded.
+     */
+    private void addClearField(SourceBuilder code) {
+      if (builderStorage) {
+        code.addLine("    %s = null;", property.getName());
+        return;
+      }
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableMap.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableMap.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
+      if (valueBuilder.isPresent()) {
+        code.addLine("    %s = null;", buildersFieldName())
+            .addLine("    %s = null;", builtBuildersFieldName());
+      }
+    }
+
+    /** Adds a check that {@code key} is not already present, in the map or as a value builder. */
+    private void addKeyAbsentCheck(SourceBuilder code) {
+      code.add("    %s.checkArgument(!%s.containsKey(key)",
+          Preconditions.class, property.getName());
+      if (valueBuilder.isPresent()) {
+        code.add("\n        && (%1$s == null || !%1$s.containsKey(key))", buildersFieldName());
+      }
+      code.add(",\n")
+          .addLine("        \"Key already present in %s: %%s\", key);", property.getName());
+    }
+
+    /**
+     * Adds the putBuilder method, and private methods building outstanding value builders. Each
+     * value builder is kept until the map is read through the getter or mutate method, when they
+     * are built and put in the map. Building the value builds them without discarding them, so
+     * they remain live. Built entries follow the entries put directly, in the order their
+     * builders were put. Builders built early are remembered with their values, so building the
+     * value can reject later changes to them rather than silently dropping them.
+     */
+    private void addValueBuilderAccessors(SourceBuilder code, Metadata metadata) {
+      TypeElement builderType = valueBuilder.get().builderType;
+
+      // putBuilder(K key)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Associates {@code key} with a new value in the map to be returned from")
+          .addLine("   * {@link %s#%s()}, returning a builder for the value. The value is built",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * when this builder is built, without an intermediate value being created.")
+          .addLine("   * Reading the map through {@link #%s%s()} builds the value early, after",
+              GET_PREFIX, property.getCapitalizedName())
+          .addLine("   * which the returned builder must not be changed while the value remains")
+          .addLine("   * in the map, or {@link #build()} will throw an {@link %s}.",
+              IllegalStateException.class)
+          .addLine("   *");
+      if (!unboxedKeyType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code key} is null");
+      }
+      code.addLine("   * @throws IllegalArgumentException if {@code key} is already present")
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(%s key) {",
+              builderType,
+              PUT_PREFIX,
+              property.getCapitalizedName(),
+              BUILDER_SUFFIX,
+              unboxedKeyType.or(keyType));
+      if (!unboxedKeyType.isPresent()) {
+        code.addLine("    %s.checkNotNull(key);", Preconditions.class);
+      }
+      addKeyAbsentCheck(code);
+      code.add("    %s builder = ", builderType);
+      valueBuilder.get().addNewBuilder(code);
+      code.add(";\n")
+          .addLine("    if (%s == null) {", buildersFieldName())
+          .addLine("      %s = new %s<%s, %s>();",
+              buildersFieldName(), LinkedHashMap.class, keyType, builderType)
+          .addLine("    }")
+          .addLine("    %s.put(key, builder);", buildersFieldName());
+      addModified(code);
+      code.addLine("    return builder;")
+          .addLine("  }");
+
+      // buildEntries(boolean partial)
+      code.addLine("")
+          .addLine("  private %s<%s, %s> %s(boolean partial) {",
+              ImmutableMap.class, keyType, valueType, buildEntriesName());
+      if (enumKeys) {
+        code.addLine("    %s<%s, %s> entries = new %s<%s, %s>(%s.class);",
+                Map.class, keyType, valueType, EnumMap.class, keyType, valueType, keyType);
+      } else {
+        code.addLine("    %s<%s, %s> entries = %s.builder();",
+                ImmutableMap.Builder.class, keyType, valueType, ImmutableMap.class);
+      }
+      code.addLine("    entries.putAll(%s);", property.getName())
+          .addLine("    for (%s<%s, %s> entry : %s.entrySet()) {",
+              Entry.class, keyType, builderType, buildersFieldName())
+          .addLine("      %s builder = entry.getValue();", builderType)
+          .addLine("      entries.put(")
+          .addLine("          entry.getKey(), partial ? builder.buildPartial() : builder.build());")
+          .addLine("    }");
+      if (enumKeys) {
+        code.addLine("    return %s.immutableEnumMap(entries);", Maps.class);
+      } else {
+        code.addLine("    return entries.build();");
+      }
+      code.addLine("  }");
+
+      // ensureEntriesBuilt()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), ENTRIES_BUILT_SUFFIX)
+          .addLine("    if (%s != null) {", buildersFieldName())
+          .addLine("      %s<%s, %s> entries = %s(false);",
+              ImmutableMap.class, keyType, valueType, buildEntriesName())
+          .addLine("      if (%s == null) {", builtBuildersFieldName())
+          .addLine("        %s = new %s<%s, %s>();",
+              builtBuildersFieldName(), IdentityHashMap.class, builderType, valueType)
+          .addLine("      }")
+          .addLine("      for (%s<%s, %s> entry : %s.entrySet()) {",
+              Entry.class, keyType, builderType, buildersFieldName())
+          .addLine("        %s.put(entry.getValue(), entries.get(entry.getKey()));",
+              builtBuildersFieldName())
+          .addLine("      }")
+          .addLine("      %s = null;", buildersFieldName())
+          .addLine("      %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      this.%s.putAll(entries);", property.getName())
+          .addLine("    }")
+          .addLine("  }");
+
+      // checkBuildersUnchanged()
+      code.addLine("")
+          .addLine("  private void %s() {", checkBuildersName())
+          .addLine("    if (%s == null) {", builtBuildersFieldName())
+          .addLine("      return;")
+          .addLine("    }")
+          .addLine("    for (%s<%s, %s> entry : %s.entrySet()) {",
+              Entry.class, builderType, valueType, builtBuildersFieldName())
+          .addLine("      if (!entry.getKey().build().equals(entry.getValue())) {")
+          .addLine("        for (%s value : this.%s.values()) {", valueType, property.getName())
+          .addLine("          %s.checkState(value != entry.getValue(),", Preconditions.class)
+          .addLine("              \"Builder returned by %s%s%s() changed after being built\");",
+              PUT_PREFIX, property.getCapitalizedName(), BUILDER_SUFFIX)
+          .addLine("        }")
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("  }");
+    }
+
+    /** Adds a call building any outstanding value builders into the map. */
+    private void addEnsureEntriesBuilt(SourceBuilder code) {
+      if (valueBuilder.isPresent()) {
+        code.addLine("    %s%s%s();",
+            ENSURE_PREFIX, property.getCapitalizedName(), ENTRIES_BUILT_SUFFIX);
+      }
+    }
+
+    private String buildersFieldName() {
+      return property.getName() + BUILDERS_SUFFIX;
+    }
+
+    private String builtBuildersFieldName() {
+      return property.getName() + BUILT_BUILDERS_SUFFIX;
+    }
+
+    private String checkBuildersName() {
+      return "check" + property.getCapitalizedName() + "BuildersUnchanged";
+    }
+
+    private String buildEntriesName() {
+      return "build" + property.getCapitalizedName() + "Entries";
     }
   }
 
@@ -72,6 +72,9 @@ public class Metadata extends ValueType {
   private final boolean builderSerializable;
   private final boolean gwtCompatible;
   private final boolean gwtSerializable;
+  private final boolean hashCodeCached;
+  private final boolean toStringCached;
+  private final boolean valueAdoptable;
 
   private Metadata(Builder builder) {
     this.elements = builder.elements;
@@ -87,6 +90,9 @@ public class Metadata extends ValueType {
     this.builderSerializable = builder.builderSerializable;
     this.gwtCompatible = builder.gwtCompatible;
     this.gwtSerializable = builder.gwtSerializable;
+    this.hashCodeCached = builder.hashCodeCached;
+    this.toStringCached = builder.toStringCached;
+    this.valueAdoptable = builder.valueAdoptable;
   }
 
   /** Returns the package the type is in. */
@@ -157,6 +163,25 @@ public class Metadata extends ValueType {
     return gwtSerializable;
   }
 
+  /** Returns whether the generated value types should cache their hash codes. */
+  public boolean isHashCodeCached() {
+    return hashCodeCached;
+  }
+
+  /** Returns whether the generated value type should cache its string representation. */
+  public boolean isToStringCached() {
+    return toStringCached;
+  }
+
+  /**
+   * Returns whether a builder populated solely by {@code mergeFrom(value)} may return that value
+   * from {@code build()}. False if the user's builder overrides a method the merge calls, as the
+   * override may change what is built.
+   */
+  public boolean isValueAdoptable() {
+    return valueAdoptable;
+  }
+
   /** Metadata about a property of a {@link Metadata}. */
   public static class Property extends ValueType {
     private final TypeMirror type;
@@ -336,6 +361,9 @@ public class Metadata extends ValueType {
     fields.add("builderSerializable", builderSerializable);
     fields.add("gwtCompatible", gwtCompatible);
     fields.add("gwtSerializable", gwtSerializable);
+    fields.add("hashCodeCached", hashCodeCached);
+    fields.add("toStringCached", toStringCached);
+    fields.add("valueAdoptable", valueAdoptable);
   }
 
   /** Builder for {@link Metadata}. */
@@ -354,6 +382,9 @@ public class Metadata extends ValueType {
     private Boolean builderSerializable;
     private Boolean gwtCompatible;
     private Boolean gwtSerializable;
+    private Boolean hashCodeCached;
+    private Boolean toStringCached;
+    private Boolean valueAdoptable;
 
     public Builder(Elements elements) {
       this.elements = checkNotNull(elements);
@@ -451,6 +482,27 @@ public class Metadata extends ValueType {
       return this;
     }
 
+    /** Sets whether the generated value types should cache their hash codes. */
+    public Builder setHashCodeCached(boolean hashCodeCached) {
+      this.hashCodeCached = hashCodeCached;
+      return this;
+    }
+
+    /** Sets whether the generated value type should cache its string representation. */
+    public Builder setToStringCached(boolean toStringCached) {
+      this.toStringCached = toStringCached;
+      return this;
+    }
+
+    /**
+     * Sets whether a builder populated solely by {@code mergeFrom(value)} may return that value
+     * from {@code build()}.
+     */
+    public Builder setValueAdoptable(boolean valueAdoptable) {
+      this.valueAdoptable = valueAdoptable;
+      return this;
+    }
+
     /**
      * Returns a newly-built {@link Metadata} based on the content of the {@code Builder}.
      */
@@ -470,6 +522,9 @@ public class Metadata extends ValueType {
       checkState(builderSerializable != null, "builderSerializable not set");
       checkState(gwtCompatible != null, "gwtCompatible not set");
       checkState(gwtSerializable != null, "gwtSerializable not set");
+      checkState(hashCodeCached != null, "hashCodeCached not set");
+      checkState(toStringCached != null, "toStringCached not set");
+      checkState(valueAdoptable != null, "valueAdoptable not set");
       return new Metadata(this);
     }
 
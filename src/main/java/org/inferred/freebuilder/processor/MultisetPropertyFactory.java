@@ -17,9 +17,12 @@ package org.inferred.freebuilder.processor;
 
 import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
 import static org.inferred.freebuilder.processor.Util.upperBound;
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingMultiset;
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.LinkedHashMultiset;
 import com.google.common.collect.Multiset;
@@ -29,6 +32,8 @@ import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
 
+import java.util.Collection;
+
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
@@ -44,6 +49,11 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
   private static final String ADD_COPIES_PREFIX = "addCopiesTo";
   private static final String CLEAR_PREFIX = "clear";
   private static final String GET_PREFIX = "get";
+  private static final String MUTATE_PREFIX = "mutate";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+  private static final String CAPACITY_SUFFIX = "Capacity";
   private static final String SET_COUNT_PREFIX = "setCountOf";
 
   @Override
@@ -58,7 +68,17 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
         } catch (IllegalArgumentException e) {
           unboxedType = Optional.absent();
         }
-        return Optional.of(new CodeGenerator(config.getProperty(), elementType, unboxedType));
+        String name = config.getProperty().getCapitalizedName();
+        boolean adderOverridden =
+            config.getMethodsDeclaredOnBuilder().contains(ADD_COPIES_PREFIX + name)
+                || config.getMethodsDeclaredOnBuilder().contains(SET_COUNT_PREFIX + name);
+        return Optional.of(new CodeGenerator(
+            config.getProperty(),
+            elementType,
+            unboxedType,
+            adderOverridden,
+            config.getExpectedSize(),
+            config.isConsumerAvailable()));
       }
     }
     return Optional.absent();
@@ -68,21 +88,55 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
 
     private final TypeMirror elementType;
     private final Optional<TypeMirror> unboxedType;
+    /** True if the user's builder overrides the methods addAll delegates to. */
+    private final boolean adderOverridden;
+    /**
+     * Number of distinct elements to allocate room for when first modified, if known from a
+     * profile.
+     */
+    private final Optional<Integer> expectedSize;
+    /** True if {@code mutate} can be generated, as {@code Consumer} is available. */
+    private final boolean consumerAvailable;
 
-    CodeGenerator(Property property, TypeMirror elementType, Optional<TypeMirror> unboxedType) {
+    CodeGenerator(
+        Property property,
+        TypeMirror elementType,
+        Optional<TypeMirror> unboxedType,
+        boolean adderOverridden,
+        Optional<Integer> expectedSize,
+        boolean consumerAvailable) {
       super(property);
       this.elementType = elementType;
       this.unboxedType = unboxedType;
+      this.adderOverridden = adderOverridden;
+      this.expectedSize = expectedSize;
+      this.consumerAvailable = consumerAvailable;
     }
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.addLine("  private %1$s<%2$s> %3$s = %1$s.create();",
-          LinkedHashMultiset.class, elementType, property.getName());
+      code.addLine("  private %s<%s> %s = %s.of();",
+              Multiset.class, elementType, property.getName(), ImmutableMultiset.class)
+          .addLine("  private %s<%s> %s%s = null;",
+              Multiset.class, elementType, property.getName(), VIEW_SUFFIX);
     }
 
     @Override
     public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableMultiset.class);
+      if (expectedSize.isPresent()) {
+        addPresizedCopy(code, expectedSize.get().toString());
+      } else {
+        code.addLine("      %1$s = %2$s.create(%1$s);",
+            property.getName(), LinkedHashMultiset.class, elementType);
+      }
+      code.addLine("    }")
+          .addLine("  }");
+
       // add(T element)
       code.addLine("")
           .addLine("  /**")
@@ -120,6 +174,8 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
               ADD_PREFIX,
               property.getCapitalizedName(),
               unboxedType.or(elementType))
+          .addLine("    %s%s%s(this.%s.elementSet().size() + elements.length);",
+              ENSURE_PREFIX, property.getCapitalizedName(), CAPACITY_SUFFIX, property.getName())
           .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
           .addLine("      %s%s(element, 1);", ADD_COPIES_PREFIX, property.getCapitalizedName())
           .addLine("    }")
@@ -141,8 +197,23 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
               ADD_ALL_PREFIX,
               property.getCapitalizedName(),
               Iterable.class,
-              elementType)
-          .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+              elementType);
+      if (!adderOverridden) {
+        addImmutableCollectionFastPath(code, metadata);
+      }
+      code.addLine("    if (elements instanceof %s) {", Multiset.class)
+          .addLine("      %s%s%s(this.%s.elementSet().size()",
+              ENSURE_PREFIX, property.getCapitalizedName(), CAPACITY_SUFFIX, property.getName())
+          .addLine("          + ((%s<?>) elements).elementSet().size());", Multiset.class)
+          .addLine("    } else if (elements instanceof %s) {", Collection.class)
+          .addLine("      %s%s%s(this.%s.elementSet().size() + ((%s<?>) elements).size());",
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX,
+              property.getName(),
+              Collection.class)
+          .addLine("    }");
+      code.addLine("    for (%s element : elements) {", unboxedType.or(elementType))
           .addLine("      %s%s(element, 1);", ADD_COPIES_PREFIX, property.getCapitalizedName())
           .addLine("    }")
           .addLine("    return (%s) this;", metadata.getBuilder())
@@ -173,6 +244,39 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Allocates room for {@code expectedSize} distinct elements in the multiset")
+          .addLine("   * to be returned from {@link %s#%s()}, so adding them does not repeatedly",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * rehash it. Elements already added are copied into the larger multiset if")
+          .addLine("   * {@code expectedSize} is more than double their number, unless")
+          .addLine("   * {@link #%s%s()} has returned a view of the current multiset.",
+              GET_PREFIX, property.getCapitalizedName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX)
+          // Rebuilding only for more than double the size keeps repeated addAll calls linear.
+          .addLine("    if (this.%s instanceof %s", property.getName(), ImmutableMultiset.class)
+          .addLine("        || (this.%s%s == null", property.getName(), VIEW_SUFFIX)
+          .addLine("            && expectedSize > 2 * this.%s.elementSet().size())) {",
+              property.getName());
+      addPresizedCopy(code, "expectedSize");
+      code.addLine("    }")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // mutate(Consumer<Multiset<E>> mutator)
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
       // clear()
       code.addLine("")
           .addLine("  /**")
@@ -184,9 +288,10 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("  public %s %s%s() {",
               metadata.getBuilder(),
               CLEAR_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // setCountOf(T element, int occurrences)
@@ -211,8 +316,10 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
       if (!unboxedType.isPresent()) {
         code.addLine("    %s.checkNotNull(element);", Preconditions.class, property.getName());
       }
-      code.addLine("    this.%s.setCount(element, occurrences);", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+      code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.setCount(element, occurrences);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // get()
@@ -227,7 +334,13 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
               elementType,
               GET_PREFIX,
               property.getCapitalizedName())
-          .addLine("    return %s.unmodifiableMultiset(%s);", Multisets.class, property.getName())
+          .addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableMultiset(%1$s);",
+              property.getName(), VIEW_SUFFIX, Multisets.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
           .addLine("  }");
     }
 
@@ -238,7 +351,7 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s%s(%s.%s());",
           ADD_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
     }
@@ -253,6 +366,11 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
           property.getName());
     }
 
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
     @Override
     public void addSetFromResult(SourceBuilder code, String builder, String variable) {
       code.addLine("        %s.%s%s(%s);",
@@ -266,12 +384,121 @@ public class MultisetPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
+    }
+
+    /** Adds a mutate method, passing a null-checking view of the builder's multiset. */
+    private void addMutate(SourceBuilder code, Metadata metadata) {
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Applies {@code mutator} to the multiset to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * <p>The multiset is this builder's own storage, so changes made by")
+          .addLine("   * {@code mutator} are applied in place, without copying.")
+          .addLine("   * The view passed to {@code mutator} may not be used once this method")
+          .addLine("   * returns.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code mutator} is null, or adds a null")
+          .addLine("   *     element to the multiset")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s<%s>> mutator) {",
+              metadata.getBuilder(),
+              MUTATE_PREFIX,
+              property.getCapitalizedName(),
+              CONSUMER,
+              Multiset.class,
+              elementType)
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    final %s<%s> elements = this.%s;",
+              Multiset.class, elementType, property.getName());
+      addMutateStart(code);
+      SourceBuilder body = withIndent(code, 2);
+      body.addLine("    mutator.accept(new %s<%s>() {", ForwardingMultiset.class, elementType)
+          .addLine("      @%s protected %s<%s> delegate() {",
+              Override.class, Multiset.class, elementType);
+      addMutateViewCheck(withIndent(body, 4), MUTATE_PREFIX + property.getCapitalizedName());
+      body.addLine("        return elements;")
+          .addLine("      }")
+          .addLine("      @%s public boolean add(%s element) {", Override.class, elementType)
+          .addLine("        return delegate().add(%s.checkNotNull(element));", Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public int add(%s element, int occurrences) {",
+              Override.class, elementType)
+          .addLine("        return delegate().add(%s.checkNotNull(element), occurrences);",
+              Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public int setCount(%s element, int count) {",
+              Override.class, elementType)
+          .addLine("        return delegate().setCount(%s.checkNotNull(element), count);",
+              Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public boolean setCount(%s element, int oldCount, int newCount) {",
+              Override.class, elementType)
+          .addLine("        return delegate().setCount(")
+          .addLine("            %s.checkNotNull(element), oldCount, newCount);",
+              Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public boolean addAll(%s<? extends %s> collection) {",
+              Override.class, Collection.class, elementType)
+          .addLine("        return standardAddAll(collection);")
+          .addLine("      }")
+          .addLine("    });");
+      addMutateEnd(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+    }
+
+    /**
+     * Adds statements replacing the multiset with a mutable copy holding room for at least
+     * {@code expectedSize} distinct elements.
+     */
+    private void addPresizedCopy(SourceBuilder code, String expectedSize) {
+      code.addLine("      %s<%s> elements = this.%s;",
+              Multiset.class, elementType, property.getName())
+          .addLine("      this.%s = %s.create(%s.max(%s, elements.elementSet().size()));",
+              property.getName(), LinkedHashMultiset.class, Math.class, expectedSize)
+          .addLine("      this.%s.addAll(elements);", property.getName());
+    }
+
+    /**
+     * Adds a fast path to addAll for immutable collections, which are known to be null-free. An
+     * empty multiset adopts an immutable multiset outright, deferring any copy to the next
+     * modification.
+     */
+    private void addImmutableCollectionFastPath(SourceBuilder code, Metadata metadata) {
+      code.addLine("    if (elements instanceof %s) {", ImmutableCollection.class)
+          .addLine("      if (this.%1$s instanceof %2$s && this.%1$s.isEmpty()) {",
+              property.getName(), ImmutableMultiset.class)
+          .addLine("        this.%s = %s.copyOf(elements);",
+              property.getName(), ImmutableMultiset.class)
+          .addLine("      } else {")
+          .addLine("        %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("        this.%s.addAll((%s<? extends %s>) elements);",
+              property.getName(), ImmutableCollection.class, elementType)
+          .addLine("      }");
+      addModified(withIndent(code, 2));
+      code.addLine("      return (%s) this;", metadata.getBuilder())
+          .addLine("    }");
+    }
+
+    /**
+     * Adds a statement emptying the multiset. A mutable multiset is cleared in place, so views
+     * returned by the getter stay valid; an immutable multiset is simply replaced.
+     */
+    private void addClearField(SourceBuilder code) {
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableMultiset.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableMultiset.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
     }
   }
 }
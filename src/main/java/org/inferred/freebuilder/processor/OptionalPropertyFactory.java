@@ -22,6 +22,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
+import org.inferred.freebuilder.FreeBuilder.OptionalStorage;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
@@ -39,6 +40,7 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
   private static final String SET_PREFIX = "set";
   private static final String NULLABLE_SET_PREFIX = "setNullable";
   private static final String CLEAR_PREFIX = "clear";
+  private static final String PRESENT_SUFFIX = "Present";
 
   @Override
   public Optional<? extends PropertyCodeGenerator> create(Config config) {
@@ -62,7 +64,8 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
             nullableSetterName,
             clearName,
             elementType,
-            unboxedType));
+            unboxedType,
+            config.getOptionalStorage()));
       }
     }
     return Optional.absent();
@@ -75,6 +78,7 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
     private final String clearName;
     private final TypeMirror elementType;
     private final Optional<TypeMirror> unboxedType;
+    private final OptionalStorage storage;
 
     @VisibleForTesting CodeGenerator(
         Property property,
@@ -82,13 +86,15 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
         String nullableSetterName,
         String clearName,
         TypeMirror elementType,
-        Optional<TypeMirror> unboxedType) {
+        Optional<TypeMirror> unboxedType,
+        OptionalStorage storage) {
       super(property);
       this.setterName = setterName;
       this.nullableSetterName = nullableSetterName;
       this.clearName = clearName;
       this.elementType = elementType;
       this.unboxedType = unboxedType;
+      this.storage = storage;
     }
 
     @Override
@@ -98,6 +104,11 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addValueFieldDeclaration(SourceBuilder code, String finalField) {
+      if (storage == OptionalStorage.OPTIONAL_INSTANCE) {
+        code.addLine("    // Store the Optional itself, so our getter method does not allocate.")
+            .addLine("    private final %s %s;", property.getType(), finalField);
+        return;
+      }
       code.addLine("    // Store a nullable object instead of an Optional. Escape analysis then")
           .addLine("    // allows the JVM to optimize away the Optional objects created by our")
           .addLine("    // getter method.")
@@ -106,6 +117,13 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
+      if (isPrimitiveStorage()) {
+        code.addLine("  // Store the unboxed value and whether it is present, so setting it does")
+            .addLine("  // not box.")
+            .addLine("  private %s %s;", unboxedType.get(), property.getName())
+            .addLine("  private boolean %s = false;", presentFieldName());
+        return;
+      }
       code.addLine("  // Store a nullable object instead of an Optional. Escape analysis then")
           .addLine("  // allows the JVM to optimize away the Optional objects created by and")
           .addLine("  // passed to our API.")
@@ -130,12 +148,16 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
               setterName,
               unboxedType.or(elementType),
               property.getName());
-      if (unboxedType.isPresent()) {
+      if (isPrimitiveStorage()) {
+        code.addLine("    this.%1$s = %1$s;", property.getName())
+            .addLine("    this.%s = true;", presentFieldName());
+      } else if (unboxedType.isPresent()) {
         code.addLine("    this.%1$s = %1$s;", property.getName());
       } else {
         code.addLine("    this.%1$s = %2$s.checkNotNull(%1$s);",
             property.getName(), Preconditions.class);
       }
+      addModified(code);
       code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
@@ -190,9 +212,14 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("   *")
           .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
           .addLine("   */")
-          .addLine("  public %s %s() {", metadata.getBuilder(), clearName)
-          .addLine("    this.%s = null;", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  public %s %s() {", metadata.getBuilder(), clearName);
+      if (isPrimitiveStorage()) {
+        code.addLine("    this.%s = false;", presentFieldName());
+      } else {
+        code.addLine("    this.%s = null;", property.getName());
+      }
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // Getter
@@ -201,18 +228,38 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("   * Returns the value that will be returned by {@link %s#%s()}.",
               metadata.getType(), property.getGetterName())
           .addLine("   */")
-          .addLine("  public %s %s() {", property.getType(), property.getGetterName())
-          .addLine("    return %s.fromNullable(%s);", Optional.class, property.getName())
-          .addLine("  }");
+          .addLine("  public %s %s() {", property.getType(), property.getGetterName());
+      if (isPrimitiveStorage()) {
+        code.addLine("    if (%s) {", presentFieldName())
+            .addLine("      return %s.<%s>of(%s);", Optional.class, elementType, property.getName())
+            .addLine("    } else {")
+            .addLine("      return %s.absent();", Optional.class)
+            .addLine("    }");
+      } else {
+        code.addLine("    return %s.fromNullable(%s);", Optional.class, property.getName());
+      }
+      code.addLine("  }");
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.%s;", finalField, builder, property.getName());
+      if (isPrimitiveStorage()) {
+        code.addLine("      if (%s.%s) {", builder, presentFieldName())
+            .addLine("        %s = %s.<%s>of(%s.%s);",
+                finalField, Optional.class, elementType, builder, property.getName())
+            .addLine("      } else {")
+            .addLine("        %s = %s.absent();", finalField, Optional.class)
+            .addLine("      }");
+      } else if (storage == OptionalStorage.OPTIONAL_INSTANCE) {
+        code.addLine("      %s = %s.fromNullable(%s.%s);",
+            finalField, Optional.class, builder, property.getName());
+      } else {
+        code.addLine("      %s = %s.%s;", finalField, builder, property.getName());
+      }
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s(%s.%s());", setterName, value, property.getGetterName());
     }
 
@@ -223,7 +270,29 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addReadValueFragment(SourceBuilder code, String finalField) {
-      code.add("%s.fromNullable(%s)", Optional.class, finalField);
+      if (storage == OptionalStorage.OPTIONAL_INSTANCE) {
+        code.add("%s", finalField);
+      } else {
+        code.add("%s.fromNullable(%s)", Optional.class, finalField);
+      }
+    }
+
+    @Override
+    public void addValuePresentFragment(SourceBuilder code, String finalField) {
+      if (storage == OptionalStorage.OPTIONAL_INSTANCE) {
+        code.add("%s.isPresent()", finalField);
+      } else {
+        code.add("%s != null", finalField);
+      }
+    }
+
+    @Override
+    public void addPresentValueFragment(SourceBuilder code, String finalField) {
+      if (storage == OptionalStorage.OPTIONAL_INSTANCE) {
+        code.add("%s.get()", finalField);
+      } else {
+        code.add("%s", finalField);
+      }
     }
 
     @Override
@@ -239,11 +308,27 @@ public class OptionalPropertyFactory implements PropertyCodeGenerator.Factory {
     @Override
     public void addClear(SourceBuilder code, String template) {
       code.addLine("    %1$s = %2$s.%1$s;", property.getName(), template);
+      if (isPrimitiveStorage()) {
+        code.addLine("    %1$s = %2$s.%1$s;", presentFieldName(), template);
+      }
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s = null;", property.getName());
+      if (isPrimitiveStorage()) {
+        code.addLine("    %s = false;", presentFieldName());
+      } else {
+        code.addLine("    %s = null;", property.getName());
+      }
+    }
+
+    /** Returns true if the builder stores the value unboxed, with a separate presence flag. */
+    private boolean isPrimitiveStorage() {
+      return storage == OptionalStorage.OPTIONAL_INSTANCE && unboxedType.isPresent();
+    }
+
+    private String presentFieldName() {
+      return property.getName() + PRESENT_SUFFIX;
     }
   }
 }
@@ -20,12 +20,17 @@ import static org.inferred.freebuilder.processor.util.ModelUtils.findAnnotationM
 import static org.inferred.freebuilder.processor.util.RoundEnvironments.annotatedElementsIn;
 
 import com.google.auto.service.AutoService;
+import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
 
 import org.inferred.freebuilder.FreeBuilder;
 import org.inferred.freebuilder.processor.util.CompilationUnitWriter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
@@ -54,6 +59,11 @@ public class Processor extends AbstractProcessor {
     return ImmutableSet.of(FreeBuilder.class.getName());
   }
 
+  @Override
+  public Set<String> getSupportedOptions() {
+    return ImmutableSet.of(CapacityProfile.OPTION);
+  }
+
   @Override
   public SourceVersion getSupportedSourceVersion() {
     return SourceVersion.latestSupported();
@@ -66,7 +76,38 @@ public class Processor extends AbstractProcessor {
         processingEnv.getElementUtils(),
         processingEnv.getMessager(),
         MethodIntrospector.instance(processingEnv),
-        processingEnv.getTypeUtils());
+        processingEnv.getTypeUtils(),
+        readCapacityProfile(),
+        processingEnv.getSourceVersion());
+  }
+
+  /**
+   * Reads the capacity profile named by the {@link CapacityProfile#OPTION} processor option, if
+   * any. A profile that cannot be read only costs performance, so is reported as a warning.
+   */
+  private CapacityProfile readCapacityProfile() {
+    String filename = processingEnv.getOptions().get(CapacityProfile.OPTION);
+    if (filename == null) {
+      return CapacityProfile.EMPTY;
+    }
+    try {
+      Reader reader = Files.newReader(new File(filename), Charsets.UTF_8);
+      try {
+        return CapacityProfile.read(reader);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      warnUnreadableCapacityProfile(filename, e);
+    } catch (IllegalArgumentException e) {
+      warnUnreadableCapacityProfile(filename, e);
+    }
+    return CapacityProfile.EMPTY;
+  }
+
+  private void warnUnreadableCapacityProfile(String filename, Exception e) {
+    processingEnv.getMessager().printMessage(
+        Kind.WARNING, "Cannot read capacity profile " + filename + ": " + e.getMessage());
   }
 
   @Override
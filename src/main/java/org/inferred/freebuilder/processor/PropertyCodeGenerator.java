@@ -15,11 +15,17 @@
  */
 package org.inferred.freebuilder.processor;
 
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
+
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 
+import org.inferred.freebuilder.FreeBuilder.MultimapStorage;
+import org.inferred.freebuilder.FreeBuilder.OptionalStorage;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
+import org.inferred.freebuilder.processor.util.TypeReference;
 
 import java.util.Set;
 
@@ -29,6 +35,10 @@ import javax.lang.model.util.Types;
 /** Property-type-specific code generation interface. */
 public abstract class PropertyCodeGenerator {
 
+  /** {@code java.util.function.Consumer}, which only exists from Java 8 onwards. */
+  protected static final TypeReference CONSUMER =
+      TypeReference.to("java.util.function", "Consumer");
+
   /** Data available to {@link Factory} instances when creating a {@link PropertyCodeGenerator}. */
   interface Config {
     /** Returns metadata about the property requiring code generation. */
@@ -41,6 +51,39 @@ public abstract class PropertyCodeGenerator {
      */
     Set<String> getMethodsInvokedInBuilderConstructor();
 
+    /**
+     * The names of the methods declared on the user's builder subclass, which may override the
+     * generated methods. Empty if the user has not provided a builder subclass.
+     */
+    Set<String> getMethodsDeclaredOnBuilder();
+
+    /** Whether lists of boxed primitives should be stored in primitive arrays. */
+    boolean isCompactPrimitiveLists();
+
+    /** Whether maps between primitive keys and values should be stored in primitive arrays. */
+    boolean isCompactPrimitiveMaps();
+
+    /** Whether lists and maps should be accumulated directly in immutable collection builders. */
+    boolean isImmutableCollectionBuilders();
+
+    /** Whether arrays should be stored as passed in, without defensive copies. */
+    boolean isTrustedArrays();
+
+    /** How multimaps should be stored in the builder. */
+    MultimapStorage getMultimapStorage();
+
+    /** How optional properties should be stored in the value type. */
+    OptionalStorage getOptionalStorage();
+
+    /** The number of elements the property is expected to hold, if known from a profile. */
+    Optional<Integer> getExpectedSize();
+
+    /**
+     * Whether generated code can use {@link #CONSUMER}, i.e. it is available, the source level is
+     * above Java 6, and the type is not GWT-compatible.
+     */
+    boolean isConsumerAvailable();
+
     /** The compiler's {@link Elements} implementation. */
     Elements getElements();
 
@@ -94,7 +137,7 @@ public abstract class PropertyCodeGenerator {
   }
 
   /** Add a merge from value for the property to the builder's source code. */
-  public abstract void addMergeFromValue(SourceBuilder code, String value);
+  public abstract void addMergeFromValue(SourceBuilder code, Metadata metadata, String value);
 
   /** Add a merge from builder for the property to the builder's source code. */
   public abstract void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder);
@@ -104,6 +147,49 @@ public abstract class PropertyCodeGenerator {
     code.add("%s", finalField);
   }
 
+  /**
+   * Adds a fragment evaluating to true if the value object's field holds a value. Only called for
+   * {@link Type#OPTIONAL} properties.
+   */
+  public void addValuePresentFragment(SourceBuilder code, String finalField) {
+    code.add("%s != null", finalField);
+  }
+
+  /**
+   * Adds a fragment reading the value held by the value object's field, once
+   * {@link #addValuePresentFragment} holds. Only called for {@link Type#OPTIONAL} properties.
+   */
+  public void addPresentValueFragment(SourceBuilder code, String finalField) {
+    code.add("%s", finalField);
+  }
+
+  /**
+   * Returns true if comparing two values of the property may be expensive, e.g. because it
+   * requires a deep traversal of a collection. Such properties are compared last in generated
+   * equals methods.
+   */
+  public boolean isExpensiveToCompare() {
+    return false;
+  }
+
+  /**
+   * Returns true if the property's state can change without a builder method being called, e.g.
+   * through a nested builder handed out to the user. A builder will not return a previously-built
+   * value while {@link #addIsModifiableExternally} holds.
+   */
+  public boolean isModifiableExternally() {
+    return false;
+  }
+
+  /**
+   * Adds a fragment evaluating to true if the property may have been modified without the builder
+   * being notified. Only called if {@link #isModifiableExternally()} returns true. The default
+   * evaluates to false, matching the default of that method.
+   */
+  public void addIsModifiableExternally(SourceBuilder code) {
+    code.add("false");
+  }
+
   /** Adds a set call for the property from a function result to the builder's source code. */
   public abstract void addSetFromResult(SourceBuilder code, String builder, String variable);
 
@@ -116,6 +202,43 @@ public abstract class PropertyCodeGenerator {
   /** Adds a partial clear call for the property to the builder's source code. */
   public abstract void addPartialClear(SourceBuilder code);
 
+  /**
+   * Adds a statement recording a modification of the builder, so a subsequent {@code build()}
+   * call will not return a previously-built value. Must be called by every public method that
+   * changes the state of the property.
+   */
+  protected static void addModified(SourceBuilder code) {
+    code.addLine("    _modCount++;");
+  }
+
+  /**
+   * Adds the start of a block passing a view of the builder's storage to a mutate method's
+   * consumer. The view may only be used until the block ends, as the storage behind it may later
+   * be replaced or copied, so each view must check {@link #addMutateViewCheck} before use. The
+   * block must be closed with {@link #addMutateEnd}.
+   */
+  protected static void addMutateStart(SourceBuilder code) {
+    addModified(code);
+    code.addLine("    final int expectedModCount = _modCount;")
+        .addLine("    try {");
+  }
+
+  /**
+   * Adds a statement failing if a view passed to {@code mutateMethod}'s consumer is used after
+   * the method returned, or after the builder was modified by other means.
+   */
+  protected static void addMutateViewCheck(SourceBuilder code, String mutateMethod) {
+    code.addLine("    %s.checkState(_modCount == expectedModCount,", Preconditions.class)
+        .addLine("        \"View passed to %s used after it returned\");", mutateMethod);
+  }
+
+  /** Adds the end of a block started by {@link #addMutateStart}, invalidating its views. */
+  protected static void addMutateEnd(SourceBuilder code) {
+    code.addLine("    } finally {");
+    addModified(withIndent(code, 2));
+    code.addLine("    }");
+  }
+
   public static final Predicate<PropertyCodeGenerator> IS_TEMPLATE_REQUIRED_IN_CLEAR =
       new Predicate<PropertyCodeGenerator>() {
         @Override public boolean apply(PropertyCodeGenerator input) {
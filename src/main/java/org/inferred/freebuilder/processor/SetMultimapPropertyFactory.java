@@ -17,21 +17,31 @@ package org.inferred.freebuilder.processor;
 
 import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
 import static org.inferred.freebuilder.processor.Util.upperBound;
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingSet;
+import com.google.common.collect.ForwardingSetMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.SetMultimap;
 
+import org.inferred.freebuilder.FreeBuilder.MultimapStorage;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
 
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
@@ -48,6 +58,11 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
   private static final String PUT_ALL_PREFIX = "putAll";
   private static final String CLEAR_PREFIX = "clear";
   private static final String GET_PREFIX = "get";
+  private static final String MUTATE_PREFIX = "mutate";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+  private static final String CAPACITY_SUFFIX = "Capacity";
 
   @Override
   public Optional<CodeGenerator> create(Config config) {
@@ -58,8 +73,18 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
         TypeMirror valueType = upperBound(config.getElements(), type.getTypeArguments().get(1));
         Optional<TypeMirror> unboxedKeyType = unboxed(config.getTypes(), keyType);
         Optional<TypeMirror> unboxedValueType = unboxed(config.getTypes(), valueType);
+        String name = config.getProperty().getCapitalizedName();
+        boolean putOverridden = config.getMethodsDeclaredOnBuilder().contains(PUT_PREFIX + name)
+            || config.getMethodsDeclaredOnBuilder().contains(PUT_ALL_PREFIX + name);
         return Optional.of(new CodeGenerator(
-            config.getProperty(), keyType, unboxedKeyType, valueType, unboxedValueType));
+            config.getProperty(),
+            keyType,
+            unboxedKeyType,
+            valueType,
+            unboxedValueType,
+            putOverridden,
+            config.getMultimapStorage(),
+            config.isConsumerAvailable()));
       }
     }
     return Optional.absent();
@@ -71,28 +96,67 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
     private final Optional<TypeMirror> unboxedKeyType;
     private final TypeMirror valueType;
     private final Optional<TypeMirror> unboxedValueType;
+    /** True if the user's builder overrides the methods putAll delegates to. */
+    private final boolean putOverridden;
+    private final MultimapStorage storage;
+    /** True if {@code mutate} can be generated, as {@code Consumer} is available. */
+    private final boolean consumerAvailable;
 
     CodeGenerator(
         Property property,
         TypeMirror keyType,
         Optional<TypeMirror> unboxedKeyType,
         TypeMirror valueType,
-        Optional<TypeMirror> unboxedValueType) {
+        Optional<TypeMirror> unboxedValueType,
+        boolean putOverridden,
+        MultimapStorage storage,
+        boolean consumerAvailable) {
       super(property);
       this.keyType = keyType;
       this.unboxedKeyType = unboxedKeyType;
       this.valueType = valueType;
       this.unboxedValueType = unboxedValueType;
+      this.putOverridden = putOverridden;
+      this.storage = storage;
+      this.consumerAvailable = consumerAvailable;
     }
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.addLine("  private %1$s<%2$s, %3$s> %4$s = %1$s.create();",
-          LinkedHashMultimap.class, keyType, valueType, property.getName());
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("  private %s<%s, %s> %s = null;",
+            ImmutableSetMultimap.Builder.class, keyType, valueType, property.getName());
+      } else {
+        code.addLine("  private %s<%s, %s> %s = %s.of();",
+                SetMultimap.class,
+                keyType,
+                valueType,
+                property.getName(),
+                ImmutableSetMultimap.class)
+            .addLine("  private %s<%s, %s> %s%s = null;",
+                SetMultimap.class, keyType, valueType, property.getName(), VIEW_SUFFIX);
+      }
     }
 
     @Override
     public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    if (%s == null) {", property.getName())
+            .addLine("      %s = %s.builder();", property.getName(), ImmutableSetMultimap.class);
+      } else {
+        Class<?> mutableType = (storage == MultimapStorage.HASHED)
+            ? HashMultimap.class
+            : LinkedHashMultimap.class;
+        code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableSetMultimap.class)
+            .addLine("      %1$s = %2$s.create(%1$s);", property.getName(), mutableType);
+      }
+      code.addLine("    }")
+          .addLine("  }");
+
       // put(K key, V value)
       code.addLine("")
           .addLine("  /**")
@@ -127,8 +191,10 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
       if (!unboxedValueType.isPresent()) {
         code.addLine("    %s.checkNotNull(value);", Preconditions.class);
       }
-      code.addLine("    this.%s.put(key, value);", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+      code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.put(key, value);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // putAll(K key, Iterable<? extends V> values)
@@ -179,16 +245,70 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
               property.getCapitalizedName(),
               Multimap.class,
               keyType,
-              valueType)
-          .addLine("    for (%s<? extends %s, ? extends %s<? extends %s>> entry",
-              Entry.class, keyType, Collection.class, valueType)
-          .addLine("        : multimap.asMap().entrySet()) {")
-          .addLine("      %s%s(entry.getKey(), entry.getValue());",
-              PUT_ALL_PREFIX, property.getCapitalizedName())
-          .addLine("    }")
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              valueType);
+      if (!putOverridden && storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+        addModified(code);
+        code.addLine("    this.%s.putAll(multimap);", property.getName());
+      } else {
+        if (!putOverridden) {
+          addImmutableMultimapFastPath(code, metadata);
+        }
+        code.addLine("    for (%s<? extends %s, ? extends %s<? extends %s>> entry",
+                Entry.class, keyType, Collection.class, valueType)
+            .addLine("        : multimap.asMap().entrySet()) {")
+            .addLine("      %s%s(entry.getKey(), entry.getValue());",
+                PUT_ALL_PREFIX, property.getCapitalizedName())
+            .addLine("    }");
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // ensureCapacity(int expectedKeys, int expectedValuesPerKey)
+      code.addLine("")
+          .addLine("  /**");
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("   * Has no effect: entries of the multimap to be returned from")
+            .addLine("   * {@link %s#%s()} are accumulated in an immutable multimap builder,",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * which cannot be presized.");
+      } else {
+        code.addLine("   * Allocates room for {@code expectedKeys} keys, each with")
+            .addLine("   * {@code expectedValuesPerKey} values, in the multimap to be returned")
+            .addLine("   * from {@link %s#%s()}, so adding them does not repeatedly rehash it.",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * Has no effect once entries have been added to the builder's own")
+            .addLine("   * multimap.");
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedKeys, int expectedValuesPerKey) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX);
+      if (storage != MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    if (this.%s instanceof %s) {",
+                property.getName(), ImmutableSetMultimap.class)
+            .addLine("      %s<%s, %s> entries = this.%s;",
+                SetMultimap.class, keyType, valueType, property.getName());
+        Class<?> mutableType = (storage == MultimapStorage.HASHED)
+            ? HashMultimap.class
+            : LinkedHashMultimap.class;
+        code.addLine("      this.%s = %s.create(%s.max(expectedKeys, entries.keySet().size()),",
+                property.getName(), mutableType, Math.class)
+            .addLine("          expectedValuesPerKey);")
+            .addLine("      this.%s.putAll(entries);", property.getName())
+            .addLine("    }");
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
+      if (consumerAvailable) {
+        addMutate(code, metadata);
+      }
+
       // clear()
       code.addLine("")
           .addLine("  /**")
@@ -200,12 +320,33 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
           .addLine("  public %s %s%s() {",
               metadata.getBuilder(),
               CLEAR_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // get()
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("")
+            .addLine("  /**")
+            .addLine("   * Returns a snapshot of the multimap that will be returned by")
+            .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+            .addLine("   * Later changes to this builder will not be reflected in the snapshot.")
+            .addLine("   */")
+            .addLine("  public %s<%s, %s> %s%s() {",
+                SetMultimap.class,
+                keyType,
+                valueType,
+                GET_PREFIX,
+                property.getCapitalizedName())
+            .addLine("    if (%s == null) {", property.getName())
+            .addLine("      return %s.of();", ImmutableSetMultimap.class)
+            .addLine("    }")
+            .addLine("    return %s.build();", property.getName())
+            .addLine("  }");
+        return;
+      }
       code.addLine("")
           .addLine("  /**")
           .addLine("   * Returns an unmodifiable view of the multimap that will be returned by")
@@ -218,31 +359,61 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
               valueType,
               GET_PREFIX,
               property.getCapitalizedName())
-          .addLine("    return %s.unmodifiableSetMultimap(%s);",
-              Multimaps.class, property.getName())
+          .addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableSetMultimap(%1$s);",
+              property.getName(), VIEW_SUFFIX, Multimaps.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
           .addLine("  }");
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.copyOf(%s.%s);",
-              finalField, ImmutableSetMultimap.class, builder, property.getName());
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("      if (%s.%s == null) {", builder, property.getName())
+            .addLine("        %s = %s.of();", finalField, ImmutableSetMultimap.class)
+            .addLine("      } else {")
+            .addLine("        %s = %s.%s.build();", finalField, builder, property.getName())
+            .addLine("      }");
+      } else {
+        code.addLine("      %s = %s.copyOf(%s.%s);",
+            finalField, ImmutableSetMultimap.class, builder, property.getName());
+      }
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s%s(%s.%s());",
           PUT_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
     }
 
     @Override
     public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
-      code.addLine("    %s%s(((%s) %s).%s);",
-          PUT_ALL_PREFIX,
-          property.getCapitalizedName(),
-          metadata.getGeneratedBuilder(),
-          builder,
-          property.getName());
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    if (((%s) %s).%s != null) {",
+                metadata.getGeneratedBuilder(), builder, property.getName())
+            .addLine("      %s%s(((%s) %s).%s.build());",
+                PUT_ALL_PREFIX,
+                property.getCapitalizedName(),
+                metadata.getGeneratedBuilder(),
+                builder,
+                property.getName())
+            .addLine("    }");
+      } else {
+        code.addLine("    %s%s(((%s) %s).%s);",
+            PUT_ALL_PREFIX,
+            property.getCapitalizedName(),
+            metadata.getGeneratedBuilder(),
+            builder,
+            property.getName());
+      }
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
     }
 
     @Override
@@ -258,12 +429,174 @@ public class SetMultimapPropertyFactory implements PropertyCodeGenerator.Factory
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
+    }
+
+    /**
+     * Adds a mutate method, passing a null-checking view of the builder's multimap to a consumer.
+     * Value sets returned by {@code get} are checked too; the other views are read-only. An
+     * immutable multimap builder cannot be modified in place, so its entries are copied out and
+     * back.
+     */
+    private void addMutate(SourceBuilder code, Metadata metadata) {
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Applies {@code mutator} to the multimap to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *");
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("   * <p>The multimap is copied out of this builder's immutable multimap")
+            .addLine("   * builder, and back again once {@code mutator} returns.");
+      } else {
+        code.addLine("   * <p>The multimap is this builder's own storage, so changes made by")
+            .addLine("   * {@code mutator} are applied in place, without copying.");
+      }
+      code.addLine("   * The view passed to {@code mutator} may not be used once this method")
+          .addLine("   * returns.");
+      code.addLine("   * Its {@code asMap}, {@code entries}, {@code keys} and {@code values} views")
+          .addLine("   * are read-only.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code mutator} is null, or puts a null")
+          .addLine("   *     key or value in the multimap")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s<%s, %s>> mutator) {",
+              metadata.getBuilder(),
+              MUTATE_PREFIX,
+              property.getCapitalizedName(),
+              CONSUMER,
+              SetMultimap.class,
+              keyType,
+              valueType);
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    final %s<%s, %s> entries = %s.create(%s%s());",
+            SetMultimap.class, keyType, valueType, LinkedHashMultimap.class,
+            GET_PREFIX, property.getCapitalizedName());
+      } else {
+        code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+            .addLine("    final %s<%s, %s> entries = this.%s;",
+                SetMultimap.class, keyType, valueType, property.getName());
+      }
+      String mutateMethod = MUTATE_PREFIX + property.getCapitalizedName();
+      addMutateStart(code);
+      SourceBuilder body = withIndent(code, 2);
+      body.addLine("    mutator.accept(new %s<%s, %s>() {",
+              ForwardingSetMultimap.class, keyType, valueType)
+          .addLine("      @%s protected %s<%s, %s> delegate() {",
+              Override.class, SetMultimap.class, keyType, valueType);
+      addMutateViewCheck(withIndent(body, 4), mutateMethod);
+      body.addLine("        return entries;")
+          .addLine("      }")
+          .addLine("      @%s public boolean put(%s key, %s value) {",
+              Override.class, keyType, valueType)
+          .addLine("        return delegate().put(%s.checkNotNull(key), %s.checkNotNull(value));",
+              Preconditions.class, Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public boolean putAll(%s key, %s<? extends %s> values) {",
+              Override.class, keyType, Iterable.class, valueType)
+          .addLine("        boolean changed = false;")
+          .addLine("        for (%s value : values) {", valueType)
+          .addLine("          changed |= put(key, value);")
+          .addLine("        }")
+          .addLine("        return changed;")
+          .addLine("      }")
+          .addLine("      @%s public boolean putAll(%s<? extends %s, ? extends %s> multimap) {",
+              Override.class, Multimap.class, keyType, valueType)
+          .addLine("        boolean changed = false;")
+          .addLine("        for (%s<? extends %s, ? extends %s> entry : multimap.entries()) {",
+              Entry.class, keyType, valueType)
+          .addLine("          changed |= put(entry.getKey(), entry.getValue());")
+          .addLine("        }")
+          .addLine("        return changed;")
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> replaceValues(%s key, %s<? extends %s> values) {",
+              Override.class, Set.class, valueType, keyType, Iterable.class, valueType)
+          .addLine("        %s<%s> replacement = new %s<%s>();",
+              Set.class, valueType, LinkedHashSet.class, valueType)
+          .addLine("        for (%s value : values) {", valueType)
+          .addLine("          replacement.add(%s.checkNotNull(value));", Preconditions.class)
+          .addLine("        }")
+          .addLine("        return delegate().replaceValues(%s.checkNotNull(key), replacement);",
+              Preconditions.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> get(%s key) {",
+              Override.class, Set.class, valueType, keyType)
+          .addLine("        final %s<%s> values = delegate().get(%s.checkNotNull(key));",
+              Set.class, valueType, Preconditions.class)
+          .addLine("        return new %s<%s>() {", ForwardingSet.class, valueType);
+      SetPropertyFactory.addCheckedSetMethods(
+          withIndent(body, 8), valueType, "values", mutateMethod);
+      body.addLine("        };")
+          .addLine("      }")
+          .addLine("      @%s public %s<%s, %s<%s>> asMap() {",
+              Override.class, Map.class, keyType, Collection.class, valueType)
+          .addLine("        return %s.unmodifiableSetMultimap(delegate()).asMap();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s<%s, %s>> entries() {",
+              Override.class, Set.class, Entry.class, keyType, valueType)
+          .addLine("        return %s.unmodifiableSetMultimap(delegate()).entries();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> keys() {", Override.class, Multiset.class, keyType)
+          .addLine("        return %s.unmodifiableSetMultimap(delegate()).keys();", Multimaps.class)
+          .addLine("      }")
+          .addLine("      @%s public %s<%s> values() {",
+              Override.class, Collection.class, valueType)
+          .addLine("        return %s.unmodifiableSetMultimap(delegate()).values();",
+              Multimaps.class)
+          .addLine("      }")
+          .addLine("    });");
+      addMutateEnd(code);
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    this.%s = %s.<%s, %s>builder().putAll(entries);",
+            property.getName(), ImmutableSetMultimap.class, keyType, valueType);
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+    }
+
+    /**
+     * Adds a fast path to putAll for immutable multimaps, which are known to be null-free. An
+     * empty multimap adopts the immutable multimap outright, deferring any copy to the next
+     * modification.
+     */
+    private void addImmutableMultimapFastPath(SourceBuilder code, Metadata metadata) {
+      code.addLine("    if (multimap instanceof %s) {", ImmutableMultimap.class)
+          .addLine("      if (this.%1$s instanceof %2$s && this.%1$s.isEmpty()) {",
+              property.getName(), ImmutableSetMultimap.class)
+          .addLine("        this.%s = %s.copyOf(multimap);",
+              property.getName(), ImmutableSetMultimap.class)
+          .addLine("      } else {")
+          .addLine("        %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("        this.%s.putAll(multimap);", property.getName())
+          .addLine("      }");
+      addModified(withIndent(code, 2));
+      code.addLine("      return (%s) this;", metadata.getBuilder())
+          .addLine("    }");
+    }
+
+    /**
+     * Adds a statement emptying the multimap. A mutable multimap is cleared in place, so views
+     * returned by the getter stay valid; an immutable multimap is simply replaced. An immutable
+     * multimap builder is discarded.
+     */
+    private void addClearField(SourceBuilder code) {
+      if (storage == MultimapStorage.IMMUTABLE_BUILDER) {
+        code.addLine("    %s = null;", property.getName());
+        return;
+      }
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableSetMultimap.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableSetMultimap.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
     }
   }
 
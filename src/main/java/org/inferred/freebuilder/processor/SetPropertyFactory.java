@@ -17,19 +17,26 @@ package org.inferred.freebuilder.processor;
 
 import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
 import static org.inferred.freebuilder.processor.Util.upperBound;
+import static org.inferred.freebuilder.processor.util.SourceBuilders.withIndent;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingSet;
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
 import org.inferred.freebuilder.processor.util.SourceBuilder;
 
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
@@ -44,6 +51,11 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
   private static final String ADD_ALL_PREFIX = "addAll";
   private static final String CLEAR_PREFIX = "clear";
   private static final String GET_PREFIX = "get";
+  private static final String MUTATE_PREFIX = "mutate";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+  private static final String CAPACITY_SUFFIX = "Capacity";
 
   @Override
   public Optional<CodeGenerator> create(Config config) {
@@ -57,7 +69,18 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
         } catch (IllegalArgumentException e) {
           unboxedType = Optional.absent();
         }
-        return Optional.of(new CodeGenerator(config.getProperty(), elementType, unboxedType));
+        boolean adderOverridden = config.getMethodsDeclaredOnBuilder()
+            .contains(ADD_PREFIX + config.getProperty().getCapitalizedName());
+        boolean enumElements = elementType.getKind() == TypeKind.DECLARED
+            && ((DeclaredType) elementType).asElement().getKind() == ElementKind.ENUM;
+        return Optional.of(new CodeGenerator(
+            config.getProperty(),
+            elementType,
+            unboxedType,
+            adderOverridden,
+            enumElements,
+            config.getExpectedSize(),
+            config.isConsumerAvailable()));
       }
     }
     return Optional.absent();
@@ -67,21 +90,61 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
 
     private final TypeMirror elementType;
     private final Optional<TypeMirror> unboxedType;
+    /** True if the user's builder overrides add(E), so every element must be passed to it. */
+    private final boolean adderOverridden;
+    /** True if the elements are enum constants, which are stored in an {@link EnumSet}. */
+    private final boolean enumElements;
+    /** Number of elements to allocate room for when first modified, if known from a profile. */
+    private final Optional<Integer> expectedSize;
+    /** True if {@code mutate} can be generated, as {@code Consumer} is available. */
+    private final boolean consumerAvailable;
 
-    CodeGenerator(Property property, TypeMirror elementType, Optional<TypeMirror> unboxedType) {
+    CodeGenerator(
+        Property property,
+        TypeMirror elementType,
+        Optional<TypeMirror> unboxedType,
+        boolean adderOverridden,
+        boolean enumElements,
+        Optional<Integer> expectedSize,
+        boolean consumerAvailable) {
       super(property);
       this.elementType = elementType;
       this.unboxedType = unboxedType;
+      this.adderOverridden = adderOverridden;
+      this.enumElements = enumElements;
+      this.expectedSize = expectedSize;
+      this.consumerAvailable = consumerAvailable;
     }
 
     @Override
     public void addBuilderFieldDeclaration(SourceBuilder code) {
-      code.addLine("  private %1$s<%2$s> %3$s = new %1$s<%2$s>();",
-          LinkedHashSet.class, elementType, property.getName());
+      code.addLine("  private %s<%s> %s = %s.of();",
+              Set.class, elementType, property.getName(), ImmutableSet.class)
+          .addLine("  private %s<%s> %s%s = null;",
+              Set.class, elementType, property.getName(), VIEW_SUFFIX);
     }
 
     @Override
     public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableSet.class);
+      if (enumElements) {
+        code.addLine("      %s<%s> elements = this.%s;", Set.class, elementType, property.getName())
+            .addLine("      this.%s = %s.noneOf(%s.class);",
+                property.getName(), EnumSet.class, elementType)
+            .addLine("      this.%s.addAll(elements);", property.getName());
+      } else if (expectedSize.isPresent()) {
+        addPresizedCopy(code, expectedSize.get().toString());
+      } else {
+        code.addLine("      %1$s = new %2$s<%3$s>(%1$s);",
+            property.getName(), LinkedHashSet.class, elementType);
+      }
+      code.addLine("    }")
+          .addLine("  }");
+
       // add(T element)
       code.addLine("")
           .addLine("  /**")
@@ -100,13 +163,15 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
               metadata.getBuilder(),
               ADD_PREFIX,
               property.getCapitalizedName(),
-              unboxedType.or(elementType));
+              unboxedType.or(elementType))
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
       if (unboxedType.isPresent()) {
         code.addLine("    this.%s.add(element);", property.getName());
       } else {
         code.addLine("    this.%s.add(%s.checkNotNull(element));",
             property.getName(), Preconditions.class);
       }
+      addModified(code);
       code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
@@ -128,8 +193,12 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
               metadata.getBuilder(),
               ADD_PREFIX,
               property.getCapitalizedName(),
-              unboxedType.or(elementType))
-          .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+              unboxedType.or(elementType));
+      if (!enumElements) {
+        code.addLine("    %s%s%s(this.%s.size() + elements.length);",
+            ENSURE_PREFIX, property.getCapitalizedName(), CAPACITY_SUFFIX, property.getName());
+      }
+      code.addLine("    for (%s element : elements) {", unboxedType.or(elementType))
           .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
           .addLine("    }")
           .addLine("    return (%s) this;", metadata.getBuilder())
@@ -152,13 +221,98 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
               ADD_ALL_PREFIX,
               property.getCapitalizedName(),
               Iterable.class,
-              elementType)
-          .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+              elementType);
+      if (!adderOverridden) {
+        addImmutableCollectionFastPath(code, metadata);
+      }
+      if (!enumElements) {
+        code.addLine("    if (elements instanceof %s) {", Collection.class)
+            .addLine("      %s%s%s(this.%s.size() + ((%s<?>) elements).size());",
+                ENSURE_PREFIX,
+                property.getCapitalizedName(),
+                CAPACITY_SUFFIX,
+                property.getName(),
+                Collection.class)
+            .addLine("    }");
+      }
+      code.addLine("    for (%s element : elements) {", unboxedType.or(elementType))
           .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
           .addLine("    }")
           .addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**");
+      if (enumElements) {
+        code.addLine("   * Has no effect: the set to be returned from {@link %s#%s()} holds enum",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * constants, which are stored in a fixed-size {@link %s}.", EnumSet.class);
+      } else {
+        code.addLine("   * Allocates room for {@code expectedSize} elements in the set to be")
+            .addLine("   * returned from {@link %s#%s()}, so adding them does not repeatedly",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * rehash it. Elements already added are copied into the larger set if")
+            .addLine("   * {@code expectedSize} is more than double their number, unless")
+            .addLine("   * {@link #%s%s()} has returned a view of the current set.",
+                GET_PREFIX, property.getCapitalizedName());
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX);
+      if (!enumElements) {
+        // Rebuilding only for more than double the size keeps repeated addAll calls linear.
+        code.addLine("    if (this.%s instanceof %s", property.getName(), ImmutableSet.class)
+            .addLine("        || (this.%s%s == null && expectedSize > 2 * this.%s.size())) {",
+                property.getName(), VIEW_SUFFIX, property.getName());
+        addPresizedCopy(code, "expectedSize");
+        code.addLine("    }");
+      }
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // mutate(Consumer<Set<E>> mutator)
+      if (consumerAvailable) {
+        code.addLine("")
+            .addLine("  /**")
+            .addLine("   * Applies {@code mutator} to the set to be returned from {@link %s#%s()}.",
+                metadata.getType(), property.getGetterName())
+            .addLine("   *")
+            .addLine("   * <p>The set is this builder's own storage, so changes made by")
+            .addLine("   * {@code mutator} are applied in place, without copying.")
+            .addLine("   * The view passed to {@code mutator} may not be used once this method")
+            .addLine("   * returns.")
+            .addLine("   *")
+            .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+            .addLine("   * @throws NullPointerException if {@code mutator} is null, or adds a null")
+            .addLine("   *     element to the set")
+            .addLine("   */")
+            .addLine("  public %s %s%s(%s<? super %s<%s>> mutator) {",
+                metadata.getBuilder(),
+                MUTATE_PREFIX,
+                property.getCapitalizedName(),
+                CONSUMER,
+                Set.class,
+                elementType)
+            .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+            .addLine("    final %s<%s> elements = this.%s;",
+                Set.class, elementType, property.getName());
+        addMutateStart(code);
+        withIndent(code, 2).addLine("    mutator.accept(new %s<%s>() {",
+            ForwardingSet.class, elementType);
+        addCheckedSetMethods(withIndent(code, 6), elementType, "elements",
+            MUTATE_PREFIX + property.getCapitalizedName());
+        withIndent(code, 2).addLine("    });");
+        addMutateEnd(code);
+        code.addLine("    return (%s) this;", metadata.getBuilder())
+            .addLine("  }");
+      }
+
       // clear()
       code.addLine("")
           .addLine("  /**")
@@ -170,9 +324,10 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
           .addLine("  public %s %s%s() {",
               metadata.getBuilder(),
               CLEAR_PREFIX,
-              property.getCapitalizedName())
-          .addLine("    this.%s.clear();", property.getName())
-          .addLine("    return (%s) this;", metadata.getBuilder())
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
           .addLine("  }");
 
       // get()
@@ -187,18 +342,29 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
               elementType,
               GET_PREFIX,
               property.getCapitalizedName())
-          .addLine("    return %s.unmodifiableSet(%s);", Collections.class, property.getName())
+          .addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableSet(%1$s);",
+              property.getName(), VIEW_SUFFIX, Collections.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
           .addLine("  }");
     }
 
     @Override
     public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
-      code.addLine("      %s = %s.copyOf(%s.%s);",
-              finalField, ImmutableSet.class, builder, property.getName());
+      if (enumElements) {
+        code.addLine("      %s = %s.immutableEnumSet(%s.%s);",
+            finalField, Sets.class, builder, property.getName());
+      } else {
+        code.addLine("      %s = %s.copyOf(%s.%s);",
+            finalField, ImmutableSet.class, builder, property.getName());
+      }
     }
 
     @Override
-    public void addMergeFromValue(SourceBuilder code, String value) {
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
       code.addLine("    %s%s(%s.%s());",
           ADD_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
     }
@@ -213,6 +379,11 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
           property.getName());
     }
 
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
     @Override
     public void addSetFromResult(SourceBuilder code, String builder, String variable) {
       code.addLine("        %s.%s%s(%s);",
@@ -226,12 +397,77 @@ public class SetPropertyFactory implements PropertyCodeGenerator.Factory {
 
     @Override
     public void addClear(SourceBuilder code, String template) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
     }
 
     @Override
     public void addPartialClear(SourceBuilder code) {
-      code.addLine("    %s.clear();", property.getName());
+      addClearField(code);
+    }
+
+    /**
+     * Adds a fast path to addAll for immutable collections, which are known to be null-free. An
+     * empty set adopts an immutable set outright, deferring any copy to the next modification.
+     */
+    private void addImmutableCollectionFastPath(SourceBuilder code, Metadata metadata) {
+      code.addLine("    if (elements instanceof %s) {", ImmutableCollection.class)
+          .addLine("      if (this.%1$s instanceof %2$s && this.%1$s.isEmpty()) {",
+              property.getName(), ImmutableSet.class)
+          .addLine("        this.%s = %s.copyOf((%s<? extends %s>) elements);",
+              property.getName(), ImmutableSet.class, ImmutableCollection.class, elementType)
+          .addLine("      } else {")
+          .addLine("        %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("        this.%s.addAll((%s<? extends %s>) elements);",
+              property.getName(), ImmutableCollection.class, elementType)
+          .addLine("      }");
+      addModified(withIndent(code, 2));
+      code.addLine("      return (%s) this;", metadata.getBuilder())
+          .addLine("    }");
+    }
+
+    /**
+     * Adds statements replacing the set with a mutable copy holding room for at least
+     * {@code expectedSize} elements.
+     */
+    private void addPresizedCopy(SourceBuilder code, String expectedSize) {
+      code.addLine("      %s<%s> elements = this.%s;", Set.class, elementType, property.getName())
+          .addLine("      this.%s = %s.newLinkedHashSetWithExpectedSize(",
+              property.getName(), Sets.class)
+          .addLine("          %s.max(%s, elements.size()));", Math.class, expectedSize)
+          .addLine("      this.%s.addAll(elements);", property.getName());
+    }
+
+    /**
+     * Adds a statement emptying the set. A mutable set is cleared in place, so views returned by
+     * the getter stay valid; an immutable set is simply replaced.
+     */
+    private void addClearField(SourceBuilder code) {
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableSet.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableSet.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
     }
   }
+
+  /**
+   * Adds the body of a {@link ForwardingSet} over {@code delegate} that rejects null elements,
+   * and any use once {@code mutateMethod} has returned. Bulk insertions are routed back through
+   * the checked {@code add} method.
+   */
+  static void addCheckedSetMethods(
+      SourceBuilder code, TypeMirror elementType, String delegate, String mutateMethod) {
+    code.addLine("  @%s protected %s<%s> delegate() {", Override.class, Set.class, elementType);
+    PropertyCodeGenerator.addMutateViewCheck(code, mutateMethod);
+    code.addLine("    return %s;", delegate)
+        .addLine("  }")
+        .addLine("  @%s public boolean add(%s element) {", Override.class, elementType)
+        .addLine("    return delegate().add(%s.checkNotNull(element));", Preconditions.class)
+        .addLine("  }")
+        .addLine("  @%s public boolean addAll(%s<? extends %s> collection) {",
+            Override.class, Collection.class, elementType)
+        .addLine("    return standardAddAll(collection);")
+        .addLine("  }");
+  }
 }
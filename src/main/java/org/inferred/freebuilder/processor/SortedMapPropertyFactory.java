@@ -0,0 +1,431 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
+import static org.inferred.freebuilder.processor.Util.isComparable;
+import static org.inferred.freebuilder.processor.Util.upperBound;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+import org.inferred.freebuilder.processor.Metadata.Property;
+import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
+import org.inferred.freebuilder.processor.util.SourceBuilder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+/**
+ * {@link PropertyCodeGenerator.Factory} providing append-only semantics for {@link SortedMap}
+ * properties.
+ *
+ * <p>Entries are appended unsorted while building, then sorted in a single pass when the value is
+ * built, rather than paying for a tree insertion per entry. Duplicate keys are therefore only
+ * detected when the map is built.
+ */
+public class SortedMapPropertyFactory implements PropertyCodeGenerator.Factory {
+
+  private static final String PUT_PREFIX = "put";
+  private static final String PUT_ALL_PREFIX = "putAll";
+  private static final String CLEAR_PREFIX = "clear";
+  private static final String GET_PREFIX = "get";
+  private static final String SET_COMPARATOR_PREFIX = "setComparatorFor";
+  private static final String SORTED_PREFIX = "sorted";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String CAPACITY_SUFFIX = "Capacity";
+  private static final String COMPARATOR_SUFFIX = "Comparator";
+
+  @Override
+  public Optional<CodeGenerator> create(Config config) {
+    if (config.getProperty().getType().getKind() == TypeKind.DECLARED) {
+      DeclaredType type = (DeclaredType) config.getProperty().getType();
+      if (erasesToAnyOf(type, SortedMap.class, ImmutableSortedMap.class)) {
+        TypeMirror keyType = upperBound(config.getElements(), type.getTypeArguments().get(0));
+        TypeMirror valueType = upperBound(config.getElements(), type.getTypeArguments().get(1));
+        Optional<TypeMirror> unboxedKeyType = unboxed(config.getTypes(), keyType);
+        Optional<TypeMirror> unboxedValueType = unboxed(config.getTypes(), valueType);
+        boolean naturalOrder = isComparable(config.getElements(), config.getTypes(), keyType);
+        return Optional.of(new CodeGenerator(
+            config.getProperty(),
+            keyType,
+            unboxedKeyType,
+            valueType,
+            unboxedValueType,
+            naturalOrder));
+      }
+    }
+    return Optional.absent();
+  }
+
+  private static class CodeGenerator extends PropertyCodeGenerator {
+
+    private final TypeMirror keyType;
+    private final Optional<TypeMirror> unboxedKeyType;
+    private final TypeMirror valueType;
+    private final Optional<TypeMirror> unboxedValueType;
+    /** True if the keys are {@link Comparable}, so the map can default to natural order. */
+    private final boolean naturalOrder;
+
+    CodeGenerator(
+        Property property,
+        TypeMirror keyType,
+        Optional<TypeMirror> unboxedKeyType,
+        TypeMirror valueType,
+        Optional<TypeMirror> unboxedValueType,
+        boolean naturalOrder) {
+      super(property);
+      this.keyType = keyType;
+      this.unboxedKeyType = unboxedKeyType;
+      this.valueType = valueType;
+      this.unboxedValueType = unboxedValueType;
+      this.naturalOrder = naturalOrder;
+    }
+
+    @Override
+    public void addBuilderFieldDeclaration(SourceBuilder code) {
+      code.addLine("  private %s<%s<%s, %s>> %s = %s.of();",
+          List.class, Entry.class, keyType, valueType, property.getName(), ImmutableList.class);
+      if (naturalOrder) {
+        code.addLine("  private %s<? super %s> %s = %s.<%s>natural();",
+            Comparator.class, keyType, comparatorField(), Ordering.class, keyType);
+      } else {
+        code.addLine("  private %s<? super %s> %s = null;",
+            Comparator.class, keyType, comparatorField());
+      }
+    }
+
+    @Override
+    public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableList.class)
+          .addLine("      %1$s = new %2$s<%3$s<%4$s, %5$s>>(%1$s);",
+              property.getName(), ArrayList.class, Entry.class, keyType, valueType)
+          .addLine("    }")
+          .addLine("  }");
+
+      // put(K key, V value)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Associates {@code key} with {@code value} in the sorted map to be")
+          .addLine("   * returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * Duplicate keys are not allowed, and will cause {@link #build()} to throw")
+          .addLine("   * an {@link IllegalArgumentException}.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedKeyType.isPresent() || !unboxedValueType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code key} or {@code value} is null");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s key, %s value) {",
+              metadata.getBuilder(),
+              PUT_PREFIX,
+              property.getCapitalizedName(),
+              unboxedKeyType.or(keyType),
+              unboxedValueType.or(valueType));
+      if (!unboxedKeyType.isPresent()) {
+        code.addLine("    %s.checkNotNull(key);", Preconditions.class);
+      }
+      if (!unboxedValueType.isPresent()) {
+        code.addLine("    %s.checkNotNull(value);", Preconditions.class);
+      }
+      code.addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.add(%s.<%s, %s>immutableEntry(key, value));",
+              property.getName(), Maps.class, keyType, valueType);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // putAll(Map<? extends K, ? extends V> map)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Associates all of {@code map}'s keys and values in the sorted map to be")
+          .addLine("   * returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * Duplicate keys are not allowed, and will cause {@link #build()} to throw")
+          .addLine("   * an {@link IllegalArgumentException}.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code map} is null or contains a")
+          .addLine("   *     null key or value")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? extends %s, ? extends %s> map) {",
+              metadata.getBuilder(),
+              PUT_ALL_PREFIX,
+              property.getCapitalizedName(),
+              Map.class,
+              keyType,
+              valueType)
+          .addLine("    %s%s%s(this.%s.size() + map.size());",
+              ENSURE_PREFIX, property.getCapitalizedName(), CAPACITY_SUFFIX, property.getName())
+          .addLine("    for (%s<? extends %s, ? extends %s> entry : map.entrySet()) {",
+              Entry.class, keyType, valueType)
+          .addLine("      %s%s(entry.getKey(), entry.getValue());",
+              PUT_PREFIX, property.getCapitalizedName())
+          .addLine("    }")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Allocates room for {@code expectedSize} entries in the sorted map to be")
+          .addLine("   * returned from {@link %s#%s()}, so adding them does not repeatedly grow",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * its storage.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX)
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    ((%s<%s<%s, %s>>) this.%s).ensureCapacity(expectedSize);",
+              ArrayList.class, Entry.class, keyType, valueType, property.getName())
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // clear()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Removes all of the mappings from the sorted map to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * The comparator is unchanged.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s() {",
+              metadata.getBuilder(),
+              CLEAR_PREFIX,
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // setComparatorFor(Comparator<? super K> comparator)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Sets the comparator used to order the keys of the sorted map to be")
+          .addLine("   * returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName());
+      if (naturalOrder) {
+        code.addLine("   * Defaults to the natural ordering of the keys.");
+      } else {
+        code.addLine("   * This must be set before the map is built.");
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code comparator} is null")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s> comparator) {",
+              metadata.getBuilder(),
+              SET_COMPARATOR_PREFIX,
+              property.getCapitalizedName(),
+              Comparator.class,
+              keyType)
+          .addLine("    this.%s = %s.checkNotNull(comparator);",
+              comparatorField(), Preconditions.class);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // get()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Returns a sorted snapshot of the map that will be returned by")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Later changes to this builder will not be reflected in the snapshot.")
+          .addLine("   * Each call sorts the entries afresh, so callers reading the map")
+          .addLine("   * repeatedly should keep the result. Duplicate keys are only detected here")
+          .addLine("   * and in {@link #build()}, not when they are put.")
+          .addLine("   *")
+          .addLine("   * @throws IllegalArgumentException if duplicate keys have been put");
+      if (!naturalOrder) {
+        code.addLine("   * @throws IllegalStateException if no comparator has been set");
+      }
+      code.addLine("   */")
+          .addLine("  public %s<%s, %s> %s%s() {",
+              SortedMap.class,
+              keyType,
+              valueType,
+              GET_PREFIX,
+              property.getCapitalizedName())
+          .addLine("    return %s%s();", SORTED_PREFIX, property.getCapitalizedName())
+          .addLine("  }");
+
+      // sorted()
+      code.addLine("")
+          .addLine("  private %s<%s, %s> %s%s() {",
+              ImmutableSortedMap.class,
+              keyType,
+              valueType,
+              SORTED_PREFIX,
+              property.getCapitalizedName());
+      if (!naturalOrder) {
+        code.addLine("    %s.checkState(this.%s != null, \"No comparator set for %s\");",
+            Preconditions.class, comparatorField(), property.getName());
+      }
+      code.addLine("    %s.Builder<%s, %s> sorted =", ImmutableSortedMap.class, keyType, valueType)
+          .addLine("        new %s.Builder<%s, %s>(this.%s);",
+              ImmutableSortedMap.class, keyType, valueType, comparatorField())
+          .addLine("    for (%s<%s, %s> entry : this.%s) {",
+              Entry.class, keyType, valueType, property.getName())
+          .addLine("      sorted.put(entry);")
+          .addLine("    }")
+          .addLine("    return sorted.build();")
+          .addLine("  }");
+    }
+
+    @Override
+    public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      code.addLine("      %s = %s.%s%s();",
+          finalField, builder, SORTED_PREFIX, property.getCapitalizedName());
+    }
+
+    @Override
+    public void addPartialFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      if (naturalOrder) {
+        addFinalFieldAssignment(code, finalField, builder);
+        return;
+      }
+      // A partial value may be built before the comparator is set; order keys arbitrarily then.
+      code.addLine("      if (%s.%s != null) {", builder, comparatorField())
+          .addLine("        %s = %s.%s%s();",
+              finalField, builder, SORTED_PREFIX, property.getCapitalizedName())
+          .addLine("      } else {")
+          .addLine("        %s.Builder<%s, %s> unsorted =",
+              ImmutableSortedMap.class, keyType, valueType)
+          .addLine("            new %s.Builder<%s, %s>(%s.arbitrary());",
+              ImmutableSortedMap.class, keyType, valueType, Ordering.class)
+          .addLine("        for (%s<%s, %s> entry : %s.%s) {",
+              Entry.class, keyType, valueType, builder, property.getName())
+          .addLine("          unsorted.put(entry);")
+          .addLine("        }")
+          .addLine("        %s = unsorted.build();", finalField)
+          .addLine("      }");
+    }
+
+    @Override
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
+      if (!naturalOrder) {
+        code.addLine("    if (%s == null) {", comparatorField())
+            .addLine("      %s = %s.%s().comparator();",
+                comparatorField(), value, property.getGetterName())
+            .addLine("    }");
+      }
+      code.addLine("    %s%s(%s.%s());",
+          PUT_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
+    }
+
+    @Override
+    public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
+      if (naturalOrder) {
+        code.addLine("    if (!%s.natural().equals(((%s) %s).%s)) {",
+            Ordering.class, metadata.getGeneratedBuilder(), builder, comparatorField());
+      } else {
+        code.addLine("    if (((%s) %s).%s != null) {",
+            metadata.getGeneratedBuilder(), builder, comparatorField());
+      }
+      code.addLine("      %s = ((%s) %s).%s;",
+              comparatorField(), metadata.getGeneratedBuilder(), builder, comparatorField())
+          .addLine("    }");
+      code.addLine("    for (%s<%s, %s> entry : ((%s) %s).%s) {",
+              Entry.class,
+              keyType,
+              valueType,
+              metadata.getGeneratedBuilder(),
+              builder,
+              property.getName())
+          .addLine("      %s%s(entry.getKey(), entry.getValue());",
+              PUT_PREFIX, property.getCapitalizedName())
+          .addLine("    }");
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public void addSetFromResult(SourceBuilder code, String builder, String variable) {
+      code.addLine("        %s.%s%s(%s);",
+          builder, PUT_ALL_PREFIX, property.getCapitalizedName(), variable);
+    }
+
+    @Override
+    public boolean isTemplateRequiredInClear() {
+      return true;
+    }
+
+    @Override
+    public void addClear(SourceBuilder code, String template) {
+      addClearField(code);
+      code.addLine("    %1$s = %2$s.%1$s;", comparatorField(), template);
+    }
+
+    @Override
+    public void addPartialClear(SourceBuilder code) {
+      addClearField(code);
+    }
+
+    private String comparatorField() {
+      return property.getName() + COMPARATOR_SUFFIX;
+    }
+
+    /**
+     * Adds a statement emptying the unsorted entries. A mutable list is cleared in place, so its
+     * capacity is reused; an immutable list is simply replaced.
+     */
+    private void addClearField(SourceBuilder code) {
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableList.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableList.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
+    }
+  }
+
+  private static Optional<TypeMirror> unboxed(Types types, TypeMirror elementType) {
+    Optional<TypeMirror> unboxedType;
+    try {
+      unboxedType = Optional.<TypeMirror>of(types.unboxedType(elementType));
+    } catch (IllegalArgumentException e) {
+      unboxedType = Optional.absent();
+    }
+    return unboxedType;
+  }
+}
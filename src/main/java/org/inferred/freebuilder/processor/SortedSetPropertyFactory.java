@@ -0,0 +1,408 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
+import static org.inferred.freebuilder.processor.Util.isComparable;
+import static org.inferred.freebuilder.processor.Util.upperBound;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Ordering;
+
+import org.inferred.freebuilder.processor.Metadata.Property;
+import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
+import org.inferred.freebuilder.processor.util.SourceBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedSet;
+
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * {@link PropertyCodeGenerator.Factory} providing append-only semantics for {@link SortedSet}
+ * properties.
+ *
+ * <p>Elements are appended unsorted while building, then sorted and deduplicated in a single pass
+ * when the value is built, rather than paying for a tree insertion per element.
+ */
+public class SortedSetPropertyFactory implements PropertyCodeGenerator.Factory {
+
+  private static final String ADD_PREFIX = "add";
+  private static final String ADD_ALL_PREFIX = "addAll";
+  private static final String CLEAR_PREFIX = "clear";
+  private static final String GET_PREFIX = "get";
+  private static final String SET_COMPARATOR_PREFIX = "setComparatorFor";
+  private static final String SORTED_PREFIX = "sorted";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String CAPACITY_SUFFIX = "Capacity";
+  private static final String COMPARATOR_SUFFIX = "Comparator";
+
+  @Override
+  public Optional<CodeGenerator> create(Config config) {
+    if (config.getProperty().getType().getKind() == TypeKind.DECLARED) {
+      DeclaredType type = (DeclaredType) config.getProperty().getType();
+      if (erasesToAnyOf(type, SortedSet.class, ImmutableSortedSet.class)) {
+        TypeMirror elementType = upperBound(config.getElements(), type.getTypeArguments().get(0));
+        Optional<TypeMirror> unboxedType;
+        try {
+          unboxedType = Optional.<TypeMirror>of(config.getTypes().unboxedType(elementType));
+        } catch (IllegalArgumentException e) {
+          unboxedType = Optional.absent();
+        }
+        boolean naturalOrder = isComparable(config.getElements(), config.getTypes(), elementType);
+        return Optional.of(new CodeGenerator(
+            config.getProperty(), elementType, unboxedType, naturalOrder));
+      }
+    }
+    return Optional.absent();
+  }
+
+  private static class CodeGenerator extends PropertyCodeGenerator {
+
+    private final TypeMirror elementType;
+    private final Optional<TypeMirror> unboxedType;
+    /** True if the elements are {@link Comparable}, so the set can default to natural order. */
+    private final boolean naturalOrder;
+
+    CodeGenerator(
+        Property property,
+        TypeMirror elementType,
+        Optional<TypeMirror> unboxedType,
+        boolean naturalOrder) {
+      super(property);
+      this.elementType = elementType;
+      this.unboxedType = unboxedType;
+      this.naturalOrder = naturalOrder;
+    }
+
+    @Override
+    public void addBuilderFieldDeclaration(SourceBuilder code) {
+      code.addLine("  private %s<%s> %s = %s.of();",
+          List.class, elementType, property.getName(), ImmutableList.class);
+      if (naturalOrder) {
+        code.addLine("  private %s<? super %s> %s = %s.<%s>natural();",
+            Comparator.class, elementType, comparatorField(), Ordering.class, elementType);
+      } else {
+        code.addLine("  private %s<? super %s> %s = null;",
+            Comparator.class, elementType, comparatorField());
+      }
+    }
+
+    @Override
+    public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableList.class)
+          .addLine("      %1$s = new %2$s<%3$s>(%1$s);",
+              property.getName(), ArrayList.class, elementType)
+          .addLine("    }")
+          .addLine("  }");
+
+      // add(T element)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds {@code element} to the sorted set to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Elements are sorted, and duplicates discarded, when the set is built.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code element} is null");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s element) {",
+              metadata.getBuilder(),
+              ADD_PREFIX,
+              property.getCapitalizedName(),
+              unboxedType.or(elementType))
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+      if (unboxedType.isPresent()) {
+        code.addLine("    this.%s.add(element);", property.getName());
+      } else {
+        code.addLine("    this.%s.add(%s.checkNotNull(element));",
+            property.getName(), Preconditions.class);
+      }
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // add(T... elements)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds each element of {@code elements} to the sorted set to be returned")
+          .addLine("   * from {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName());
+      if (!unboxedType.isPresent()) {
+        code.addLine("   * @throws NullPointerException if {@code elements} is null or contains a")
+            .addLine("   *     null element");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s... elements) {",
+              metadata.getBuilder(),
+              ADD_PREFIX,
+              property.getCapitalizedName(),
+              unboxedType.or(elementType))
+          .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+          .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
+          .addLine("    }")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // addAll(Iterable<? extends T> elements)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Adds each element of {@code elements} to the sorted set to be returned")
+          .addLine("   * from {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code elements} is null or contains a")
+          .addLine("   *     null element")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? extends %s> elements) {",
+              metadata.getBuilder(),
+              ADD_ALL_PREFIX,
+              property.getCapitalizedName(),
+              Iterable.class,
+              elementType)
+          .addLine("    if (elements instanceof %s) {", Collection.class)
+          .addLine("      %s%s%s(this.%s.size() + ((%s<?>) elements).size());",
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX,
+              property.getName(),
+              Collection.class)
+          .addLine("    }")
+          .addLine("    for (%s element : elements) {", unboxedType.or(elementType))
+          .addLine("      %s%s(element);", ADD_PREFIX, property.getCapitalizedName())
+          .addLine("    }")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // ensureCapacity(int expectedSize)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Allocates room for {@code expectedSize} elements in the sorted set to be")
+          .addLine("   * returned from {@link %s#%s()}, so adding them does not repeatedly grow",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * its storage.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s%s(int expectedSize) {",
+              metadata.getBuilder(),
+              ENSURE_PREFIX,
+              property.getCapitalizedName(),
+              CAPACITY_SUFFIX)
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    ((%s<%s>) this.%s).ensureCapacity(expectedSize);",
+              ArrayList.class, elementType, property.getName())
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // clear()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Clears the sorted set to be returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * The comparator is unchanged.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s() {",
+              metadata.getBuilder(),
+              CLEAR_PREFIX,
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // setComparatorFor(Comparator<? super T> comparator)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Sets the comparator used to order the set to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName());
+      if (naturalOrder) {
+        code.addLine("   * Defaults to the natural ordering of the elements.");
+      } else {
+        code.addLine("   * This must be set before the set is built.");
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code comparator} is null")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s<? super %s> comparator) {",
+              metadata.getBuilder(),
+              SET_COMPARATOR_PREFIX,
+              property.getCapitalizedName(),
+              Comparator.class,
+              elementType)
+          .addLine("    this.%s = %s.checkNotNull(comparator);",
+              comparatorField(), Preconditions.class);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // get()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Returns a sorted snapshot of the set that will be returned by")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Later changes to this builder will not be reflected in the snapshot.");
+      if (!naturalOrder) {
+        code.addLine("   *")
+            .addLine("   * @throws IllegalStateException if no comparator has been set");
+      }
+      code.addLine("   */")
+          .addLine("  public %s<%s> %s%s() {",
+              SortedSet.class,
+              elementType,
+              GET_PREFIX,
+              property.getCapitalizedName())
+          .addLine("    return %s%s();", SORTED_PREFIX, property.getCapitalizedName())
+          .addLine("  }");
+
+      // sorted()
+      code.addLine("")
+          .addLine("  private %s<%s> %s%s() {",
+              ImmutableSortedSet.class,
+              elementType,
+              SORTED_PREFIX,
+              property.getCapitalizedName());
+      if (!naturalOrder) {
+        code.addLine("    %s.checkState(%s != null, \"No comparator set for %s\");",
+            Preconditions.class, comparatorField(), property.getName());
+      }
+      code.addLine("    return %s.<%s>copyOf(%s, %s);",
+              ImmutableSortedSet.class, elementType, comparatorField(), property.getName())
+          .addLine("  }");
+    }
+
+    @Override
+    public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      code.addLine("      %s = %s.%s%s();",
+          finalField, builder, SORTED_PREFIX, property.getCapitalizedName());
+    }
+
+    @Override
+    public void addPartialFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      if (naturalOrder) {
+        addFinalFieldAssignment(code, finalField, builder);
+        return;
+      }
+      // A partial value may be built before the comparator is set; order elements arbitrarily then.
+      code.addLine("      if (%s.%s != null) {", builder, comparatorField())
+          .addLine("        %s = %s.%s%s();",
+              finalField, builder, SORTED_PREFIX, property.getCapitalizedName())
+          .addLine("      } else {")
+          .addLine("        %s = %s.<%s>copyOf(%s.arbitrary(), %s.%s);",
+              finalField,
+              ImmutableSortedSet.class,
+              elementType,
+              Ordering.class,
+              builder,
+              property.getName())
+          .addLine("      }");
+    }
+
+    @Override
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
+      if (!naturalOrder) {
+        code.addLine("    if (%s == null) {", comparatorField())
+            .addLine("      %s = %s.%s().comparator();",
+                comparatorField(), value, property.getGetterName())
+            .addLine("    }");
+      }
+      code.addLine("    %s%s(%s.%s());",
+          ADD_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
+    }
+
+    @Override
+    public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
+      if (naturalOrder) {
+        code.addLine("    if (!%s.natural().equals(((%s) %s).%s)) {",
+            Ordering.class, metadata.getGeneratedBuilder(), builder, comparatorField());
+      } else {
+        code.addLine("    if (((%s) %s).%s != null) {",
+            metadata.getGeneratedBuilder(), builder, comparatorField());
+      }
+      code.addLine("      %s = ((%s) %s).%s;",
+              comparatorField(), metadata.getGeneratedBuilder(), builder, comparatorField())
+          .addLine("    }");
+      code.addLine("    %s%s(((%s) %s).%s);",
+          ADD_ALL_PREFIX,
+          property.getCapitalizedName(),
+          metadata.getGeneratedBuilder(),
+          builder,
+          property.getName());
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public void addSetFromResult(SourceBuilder code, String builder, String variable) {
+      code.addLine("        %s.%s%s(%s);",
+          builder, ADD_ALL_PREFIX, property.getCapitalizedName(), variable);
+    }
+
+    @Override
+    public boolean isTemplateRequiredInClear() {
+      return true;
+    }
+
+    @Override
+    public void addClear(SourceBuilder code, String template) {
+      addClearField(code);
+      code.addLine("    %1$s = %2$s.%1$s;", comparatorField(), template);
+    }
+
+    @Override
+    public void addPartialClear(SourceBuilder code) {
+      addClearField(code);
+    }
+
+    private String comparatorField() {
+      return property.getName() + COMPARATOR_SUFFIX;
+    }
+
+    /**
+     * Adds a statement emptying the unsorted elements. A mutable list is cleared in place, so its
+     * capacity is reused; an immutable list is simply replaced.
+     */
+    private void addClearField(SourceBuilder code) {
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableList.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableList.class)
+          .addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
+    }
+  }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import static org.inferred.freebuilder.processor.Util.erasesToAnyOf;
+import static org.inferred.freebuilder.processor.Util.upperBound;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ArrayTable;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+import com.google.common.collect.Tables;
+
+import org.inferred.freebuilder.processor.Metadata.Property;
+import org.inferred.freebuilder.processor.PropertyCodeGenerator.Config;
+import org.inferred.freebuilder.processor.util.SourceBuilder;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * {@link PropertyCodeGenerator.Factory} providing put/remove semantics for {@link Table}
+ * properties.
+ */
+public class TablePropertyFactory implements PropertyCodeGenerator.Factory {
+
+  private static final String PUT_PREFIX = "put";
+  private static final String PUT_ALL_PREFIX = "putAll";
+  private static final String REMOVE_PREFIX = "remove";
+  private static final String CLEAR_PREFIX = "clear";
+  private static final String GET_PREFIX = "get";
+  private static final String SET_DENSE_KEYS_PREFIX = "setDenseKeysFor";
+  private static final String ENSURE_PREFIX = "ensure";
+  private static final String MUTABLE_SUFFIX = "IsMutable";
+  private static final String VIEW_SUFFIX = "View";
+
+  @Override
+  public Optional<CodeGenerator> create(Config config) {
+    if (config.getProperty().getType().getKind() == TypeKind.DECLARED) {
+      DeclaredType type = (DeclaredType) config.getProperty().getType();
+      if (erasesToAnyOf(type, Table.class, ImmutableTable.class)) {
+        TypeMirror rowKeyType = upperBound(config.getElements(), type.getTypeArguments().get(0));
+        TypeMirror columnKeyType =
+            upperBound(config.getElements(), type.getTypeArguments().get(1));
+        TypeMirror valueType = upperBound(config.getElements(), type.getTypeArguments().get(2));
+        // A dense value can only be returned if the property is not declared as an ImmutableTable.
+        boolean denseStorage = erasesToAnyOf(type, Table.class);
+        return Optional.of(new CodeGenerator(
+            config.getProperty(),
+            rowKeyType,
+            columnKeyType,
+            valueType,
+            denseStorage,
+            denseStorage && isEnum(rowKeyType) && isEnum(columnKeyType)));
+      }
+    }
+    return Optional.absent();
+  }
+
+  private static class CodeGenerator extends PropertyCodeGenerator {
+
+    private final TypeMirror rowKeyType;
+    private final TypeMirror columnKeyType;
+    private final TypeMirror valueType;
+    /** True if the builder may store the table in an {@link ArrayTable}. */
+    private final boolean denseStorage;
+    /** True if both key types are enums, so the dense keys can default to all their constants. */
+    private final boolean enumKeys;
+
+    CodeGenerator(
+        Property property,
+        TypeMirror rowKeyType,
+        TypeMirror columnKeyType,
+        TypeMirror valueType,
+        boolean denseStorage,
+        boolean enumKeys) {
+      super(property);
+      this.rowKeyType = rowKeyType;
+      this.columnKeyType = columnKeyType;
+      this.valueType = valueType;
+      this.denseStorage = denseStorage;
+      this.enumKeys = enumKeys;
+    }
+
+    @Override
+    public void addBuilderFieldDeclaration(SourceBuilder code) {
+      code.addLine("  private %s<%s, %s, %s> %s = %s.of();",
+              Table.class,
+              rowKeyType,
+              columnKeyType,
+              valueType,
+              property.getName(),
+              ImmutableTable.class)
+          .addLine("  private %s<%s, %s, %s> %s%s = null;",
+              Table.class, rowKeyType, columnKeyType, valueType, property.getName(), VIEW_SUFFIX);
+    }
+
+    @Override
+    public void addBuilderFieldAccessors(SourceBuilder code, Metadata metadata) {
+      // ensureMutable()
+      // Unlike HashBasedTable, a custom table over LinkedHashMaps preserves insertion order.
+      code.addLine("")
+          .addLine("  private void %s%s%s() {",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    if (%s instanceof %s) {", property.getName(), ImmutableTable.class)
+          .addLine("      %s<%s, %s, %s> cells = %s;",
+              Table.class, rowKeyType, columnKeyType, valueType, property.getName())
+          .addLine("      %s = %s.newCustomTable(", property.getName(), Tables.class)
+          .addLine("          new %s<%s, %s<%s, %s>>(),",
+              LinkedHashMap.class, rowKeyType, Map.class, columnKeyType, valueType)
+          .addLine("          new %s<%s<%s, %s>>() {",
+              Supplier.class, Map.class, columnKeyType, valueType)
+          .addLine("            @%s public %s<%s, %s> get() {",
+              Override.class, Map.class, columnKeyType, valueType)
+          .addLine("              return new %s<%s, %s>();",
+              LinkedHashMap.class, columnKeyType, valueType)
+          .addLine("            }")
+          .addLine("          });")
+          .addLine("      %s.putAll(cells);", property.getName())
+          .addLine("    }")
+          .addLine("  }");
+
+      // put(R rowKey, C columnKey, V value)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Associates {@code value} with {@code rowKey} and {@code columnKey} in the")
+          .addLine("   * table to be returned from {@link %s#%s()}.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * If the table already contains a value for these keys, it is replaced.")
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code rowKey}, {@code columnKey} or")
+          .addLine("   *     {@code value} is null");
+      if (denseStorage) {
+        code.addLine("   * @throws IllegalArgumentException if dense keys have been set, and")
+            .addLine("   *     {@code rowKey} or {@code columnKey} is not among them");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s rowKey, %s columnKey, %s value) {",
+              metadata.getBuilder(),
+              PUT_PREFIX,
+              property.getCapitalizedName(),
+              rowKeyType,
+              columnKeyType,
+              valueType)
+          .addLine("    %s.checkNotNull(rowKey);", Preconditions.class)
+          .addLine("    %s.checkNotNull(columnKey);", Preconditions.class)
+          .addLine("    %s.checkNotNull(value);", Preconditions.class)
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("    this.%s.put(rowKey, columnKey, value);", property.getName());
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // putAll(Table<? extends R, ? extends C, ? extends V> table)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Copies all of the cells of {@code table} to the table to be returned")
+          .addLine("   * from {@link %s#%s()}, replacing the values of any cells already present.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code table} is null or contains a")
+          .addLine("   *     null value");
+      if (denseStorage) {
+        code.addLine("   * @throws IllegalArgumentException if dense keys have been set, and")
+            .addLine("   *     {@code table} has a row or column key not among them");
+      }
+      code.addLine("   */")
+          .addLine("  public %s %s%s(%s<? extends %s, ? extends %s, ? extends %s> table) {",
+              metadata.getBuilder(),
+              PUT_ALL_PREFIX,
+              property.getCapitalizedName(),
+              Table.class,
+              rowKeyType,
+              columnKeyType,
+              valueType)
+          .addLine("    for (%s.Cell<? extends %s, ? extends %s, ? extends %s> cell"
+                  + " : table.cellSet()) {",
+              Table.class, rowKeyType, columnKeyType, valueType)
+          .addLine("      %s%s(cell.getRowKey(), cell.getColumnKey(), cell.getValue());",
+              PUT_PREFIX, property.getCapitalizedName())
+          .addLine("    }")
+          .addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // remove(Object rowKey, Object columnKey)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Removes the value associated with {@code rowKey} and {@code columnKey}")
+          .addLine("   * from the table to be returned from {@link %s#%s()}, if one is present.",
+              metadata.getType(), property.getGetterName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code rowKey} or {@code columnKey}")
+          .addLine("   *     is null")
+          .addLine("   */")
+          .addLine("  public %s %s%s(%s rowKey, %s columnKey) {",
+              metadata.getBuilder(),
+              REMOVE_PREFIX,
+              property.getCapitalizedName(),
+              rowKeyType,
+              columnKeyType)
+          .addLine("    %s.checkNotNull(rowKey);", Preconditions.class)
+          .addLine("    %s.checkNotNull(columnKey);", Preconditions.class)
+          .addLine("    %s%s%s();", ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX);
+      if (denseStorage) {
+        code.addLine("    if (%s instanceof %s) {", property.getName(), ArrayTable.class)
+            .addLine("      ((%s<?, ?, ?>) %s).erase(rowKey, columnKey);",
+                ArrayTable.class, property.getName())
+            .addLine("    } else {")
+            .addLine("      %s.remove(rowKey, columnKey);", property.getName())
+            .addLine("    }");
+      } else {
+        code.addLine("    %s.remove(rowKey, columnKey);", property.getName());
+      }
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      if (denseStorage) {
+        addSetDenseKeys(code, metadata);
+      }
+
+      // clear()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Removes all of the cells from the table to be returned from")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName());
+      if (denseStorage) {
+        code.addLine("   * Any dense keys set on this builder are kept.");
+      }
+      code.addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   */")
+          .addLine("  public %s %s%s() {",
+              metadata.getBuilder(),
+              CLEAR_PREFIX,
+              property.getCapitalizedName());
+      addClearField(code);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // get()
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Returns an unmodifiable view of the table that will be returned by")
+          .addLine("   * {@link %s#%s()}.", metadata.getType(), property.getGetterName())
+          .addLine("   * Changes to this builder will be reflected in the view.");
+      if (denseStorage) {
+        code.addLine("   * Once dense keys have been set, the view holds a cell for every pair of")
+            .addLine("   * keys, with a null value for each cell not yet put.");
+      }
+      code.addLine("   */")
+          .addLine("  public %s<%s, %s, %s> %s%s() {",
+              Table.class,
+              rowKeyType,
+              columnKeyType,
+              valueType,
+              GET_PREFIX,
+              property.getCapitalizedName())
+          .addLine("    if (%s%s == null) {", property.getName(), VIEW_SUFFIX)
+          .addLine("      %s%s%s();",
+              ENSURE_PREFIX, property.getCapitalizedName(), MUTABLE_SUFFIX)
+          .addLine("      %1$s%2$s = %3$s.unmodifiableTable(%1$s);",
+              property.getName(), VIEW_SUFFIX, Tables.class)
+          .addLine("    }")
+          .addLine("    return %s%s;", property.getName(), VIEW_SUFFIX)
+          .addLine("  }");
+    }
+
+    /**
+     * Adds the methods switching the builder to dense {@link ArrayTable} storage: one taking the
+     * row and column keys, and, if both key types are enums, one defaulting to all constants.
+     */
+    private void addSetDenseKeys(SourceBuilder code, Metadata metadata) {
+      // setDenseKeysFor(Iterable<? extends R> rowKeys, Iterable<? extends C> columnKeys)
+      code.addLine("")
+          .addLine("  /**")
+          .addLine("   * Stores the table to be returned from {@link %s#%s()} in a dense",
+              metadata.getType(), property.getGetterName())
+          .addLine("   * {@link %s} with the given row and column keys, in that order.",
+              ArrayTable.class)
+          .addLine("   * This avoids the overhead of hashing each cell when most pairs of keys")
+          .addLine("   * will be put. If every cell has been put when the value is built, it")
+          .addLine("   * keeps the dense representation.")
+          .addLine("   *")
+          .addLine("   * <p>Cells already put are copied into the new storage. Views previously")
+          .addLine("   * returned from {@link #%s%s()} are not updated.",
+              GET_PREFIX, property.getCapitalizedName())
+          .addLine("   *")
+          .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+          .addLine("   * @throws NullPointerException if {@code rowKeys} or {@code columnKeys}")
+          .addLine("   *     is null or contains a null key")
+          .addLine("   * @throws IllegalArgumentException if {@code rowKeys} or {@code columnKeys}")
+          .addLine("   *     is empty or contains a duplicate key, or if a cell has already been")
+          .addLine("   *     put whose keys are not among them")
+          .addLine("   */")
+          .addLine("  public %s %s%s(", metadata.getBuilder(),
+              SET_DENSE_KEYS_PREFIX, property.getCapitalizedName())
+          .addLine("      %s<? extends %s> rowKeys, %s<? extends %s> columnKeys) {",
+              Iterable.class, rowKeyType, Iterable.class, columnKeyType)
+          .addLine("    %1$s<%2$s, %3$s, %4$s> dense = %1$s.create(rowKeys, columnKeys);",
+              ArrayTable.class, rowKeyType, columnKeyType, valueType)
+          .addLine("    for (%s.Cell<%s, %s, %s> cell : %s.cellSet()) {",
+              Table.class, rowKeyType, columnKeyType, valueType, property.getName())
+          .addLine("      if (cell.getValue() != null) {")
+          .addLine("        dense.put(cell.getRowKey(), cell.getColumnKey(), cell.getValue());")
+          .addLine("      }")
+          .addLine("    }")
+          .addLine("    %s = dense;", property.getName())
+          .addLine("    %s%s = null;", property.getName(), VIEW_SUFFIX);
+      addModified(code);
+      code.addLine("    return (%s) this;", metadata.getBuilder())
+          .addLine("  }");
+
+      // setDenseKeysFor()
+      if (enumKeys) {
+        code.addLine("")
+            .addLine("  /**")
+            .addLine("   * Stores the table to be returned from {@link %s#%s()} in a dense",
+                metadata.getType(), property.getGetterName())
+            .addLine("   * {@link %s}, with every {@link %s} constant as a row key and every",
+                ArrayTable.class, rowKeyType)
+            .addLine("   * {@link %s} constant as a column key.", columnKeyType)
+            .addLine("   *")
+            .addLine("   * @return this {@code %s} object", metadata.getBuilder().getSimpleName())
+            .addLine("   * @see #%s%s(%s, %s)",
+                SET_DENSE_KEYS_PREFIX, property.getCapitalizedName(),
+                Iterable.class, Iterable.class)
+            .addLine("   */")
+            .addLine("  public %s %s%s() {", metadata.getBuilder(),
+                SET_DENSE_KEYS_PREFIX, property.getCapitalizedName())
+            .addLine("    return %s%s(%s.asList(%s.values()), %s.asList(%s.values()));",
+                SET_DENSE_KEYS_PREFIX, property.getCapitalizedName(),
+                Arrays.class, rowKeyType, Arrays.class, columnKeyType)
+            .addLine("  }");
+      }
+    }
+
+    @Override
+    public void addFinalFieldAssignment(SourceBuilder code, String finalField, String builder) {
+      if (!denseStorage) {
+        code.addLine("      %s = %s.copyOf(%s.%s);",
+            finalField, ImmutableTable.class, builder, property.getName());
+        return;
+      }
+      // A full ArrayTable keeps its dense layout; a partial one drops the null cells it pads with.
+      code.addLine("      if (%1$s.%2$s instanceof %3$s && !%1$s.%2$s.containsValue(null)) {",
+              builder, property.getName(), ArrayTable.class)
+          .addLine("        %s = %s.unmodifiableTable(%s.create(%s.%s));",
+              finalField, Tables.class, ArrayTable.class, builder, property.getName())
+          .addLine("      } else if (%s.%s instanceof %s) {",
+              builder, property.getName(), ArrayTable.class)
+          .addLine("        %1$s.Builder<%2$s, %3$s, %4$s> %5$sBuilder = %1$s.builder();",
+              ImmutableTable.class, rowKeyType, columnKeyType, valueType, property.getName())
+          .addLine("        for (%s.Cell<%s, %s, %s> cell : %s.%s.cellSet()) {",
+              Table.class, rowKeyType, columnKeyType, valueType, builder, property.getName())
+          .addLine("          if (cell.getValue() != null) {")
+          .addLine("            %sBuilder.put(cell);", property.getName())
+          .addLine("          }")
+          .addLine("        }")
+          .addLine("        %s = %sBuilder.build();", finalField, property.getName())
+          .addLine("      } else {")
+          .addLine("        %s = %s.copyOf(%s.%s);",
+              finalField, ImmutableTable.class, builder, property.getName())
+          .addLine("      }");
+    }
+
+    @Override
+    public void addMergeFromValue(SourceBuilder code, Metadata metadata, String value) {
+      code.addLine("    %s%s(%s.%s());",
+          PUT_ALL_PREFIX, property.getCapitalizedName(), value, property.getGetterName());
+    }
+
+    @Override
+    public void addMergeFromBuilder(SourceBuilder code, Metadata metadata, String builder) {
+      if (!denseStorage) {
+        code.addLine("    %s%s(((%s) %s).%s);",
+            PUT_ALL_PREFIX,
+            property.getCapitalizedName(),
+            metadata.getGeneratedBuilder(),
+            builder,
+            property.getName());
+        return;
+      }
+      // Skip the null cells a dense table pads with.
+      code.addLine("    for (%s.Cell<%s, %s, %s> cell : ((%s) %s).%s.cellSet()) {",
+              Table.class,
+              rowKeyType,
+              columnKeyType,
+              valueType,
+              metadata.getGeneratedBuilder(),
+              builder,
+              property.getName())
+          .addLine("      if (cell.getValue() != null) {")
+          .addLine("        %s%s(cell.getRowKey(), cell.getColumnKey(), cell.getValue());",
+              PUT_PREFIX, property.getCapitalizedName())
+          .addLine("      }")
+          .addLine("    }");
+    }
+
+    @Override
+    public boolean isExpensiveToCompare() {
+      return true;
+    }
+
+    @Override
+    public void addSetFromResult(SourceBuilder code, String builder, String variable) {
+      code.addLine("        %s.%s%s(%s);",
+          builder, PUT_ALL_PREFIX, property.getCapitalizedName(), variable);
+    }
+
+    @Override
+    public boolean isTemplateRequiredInClear() {
+      return false;
+    }
+
+    @Override
+    public void addClear(SourceBuilder code, String template) {
+      addClearField(code);
+    }
+
+    @Override
+    public void addPartialClear(SourceBuilder code) {
+      addClearField(code);
+    }
+
+    /**
+     * Adds a statement emptying the table. A mutable table is cleared in place, so views returned
+     * by the getter stay valid; an immutable table is simply replaced.
+     */
+    private void addClearField(SourceBuilder code) {
+      code.addLine("    if (%s instanceof %s) {", property.getName(), ImmutableTable.class)
+          .addLine("      %s = %s.of();", property.getName(), ImmutableTable.class);
+      if (denseStorage) {
+        code.addLine("    } else if (%s instanceof %s) {", property.getName(), ArrayTable.class)
+            .addLine("      ((%s<?, ?, ?>) %s).eraseAll();", ArrayTable.class, property.getName());
+      }
+      code.addLine("    } else {")
+          .addLine("      %s.clear();", property.getName())
+          .addLine("    }");
+    }
+  }
+
+  private static boolean isEnum(TypeMirror type) {
+    return type.getKind() == TypeKind.DECLARED
+        && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+  }
+}
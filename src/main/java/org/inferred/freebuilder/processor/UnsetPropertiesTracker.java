@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Preconditions;
+
+import org.inferred.freebuilder.processor.Metadata.Property;
+import org.inferred.freebuilder.processor.PropertyCodeGenerator.Type;
+import org.inferred.freebuilder.processor.util.SourceBuilder;
+
+import java.util.EnumSet;
+
+/**
+ * Generates the code tracking which required properties have not yet been set on a builder, in
+ * the {@code _unsetProperties} field.
+ *
+ * <p>Types with at most 64 required properties use a primitive bitmask, bit <i>n</i> being set
+ * while the <i>n</i>th required property is unset. The property enum is then only used to
+ * produce error messages. Larger types fall back to an {@link EnumSet} of the property enum.
+ */
+abstract class UnsetPropertiesTracker {
+
+  /** Returns the tracker to use for {@code metadata}, which must have required properties. */
+  public static UnsetPropertiesTracker forType(Metadata metadata) {
+    int requiredProperties = 0;
+    for (Property property : metadata.getProperties()) {
+      if (property.getCodeGenerator().getType() == Type.REQUIRED) {
+        requiredProperties++;
+      }
+    }
+    checkArgument(requiredProperties > 0, "%s has no required properties", metadata.getType());
+    if (requiredProperties <= Integer.SIZE) {
+      return new Bitmask(metadata, int.class, "");
+    } else if (requiredProperties <= Long.SIZE) {
+      return new Bitmask(metadata, long.class, "L");
+    } else {
+      return new EnumSetTracker(metadata);
+    }
+  }
+
+  protected final Metadata metadata;
+
+  private UnsetPropertiesTracker(Metadata metadata) {
+    this.metadata = metadata;
+  }
+
+  /** Adds the {@code _unsetProperties} field to the builder, with all properties unset. */
+  public abstract void addBuilderFieldDeclaration(SourceBuilder code);
+
+  /** Adds any members the property enum needs to support this tracker. */
+  public abstract void addPropertyEnumMembers(SourceBuilder code);
+
+  /** Adds a statement marking {@code property} as set on the builder. */
+  public abstract void addSetProperty(SourceBuilder code, Property property);
+
+  /** Adds a fragment evaluating to true if {@code property} is unset in {@code unset}. */
+  public abstract void addIsUnset(SourceBuilder code, String unset, Property property);
+
+  /** Adds a fragment evaluating to true if {@code property} is set in {@code unset}. */
+  public abstract void addIsSet(SourceBuilder code, String unset, Property property);
+
+  /** Adds statements throwing an {@link IllegalStateException} if any property is unset. */
+  public abstract void addCheckAllSet(SourceBuilder code);
+
+  /**
+   * Adds a declaration of a {@code _templateUnset} local variable, holding the unset properties
+   * of the builder {@code template}.
+   */
+  public abstract void addTemplateUnsetDeclaration(SourceBuilder code, String template);
+
+  /**
+   * Adds statements marking all properties as unset on the builder, given a freshly-constructed
+   * builder {@code template}.
+   */
+  public abstract void addClear(SourceBuilder code, String template);
+
+  /** Adds the {@code _unsetProperties} field to the partial value type. */
+  public abstract void addPartialFieldDeclaration(SourceBuilder code);
+
+  /** Adds an assignment of the partial's field from {@code builder}'s unset properties. */
+  public abstract void addPartialFieldAssignment(SourceBuilder code, String builder);
+
+  /** Adds an early return of false if the partial's unset properties differ from {@code other}. */
+  public abstract void addPartialEqualsCheck(SourceBuilder code);
+
+  /** Adds a statement adding the hash code of the partial's unset properties to {@code result}. */
+  public abstract void addPartialHashCode(SourceBuilder code);
+
+  /** Tracks unset properties in an {@code int} or {@code long} bitmask. */
+  private static class Bitmask extends UnsetPropertiesTracker {
+
+    private final Class<?> type;
+    private final String literalSuffix;
+
+    Bitmask(Metadata metadata, Class<?> type, String literalSuffix) {
+      super(metadata);
+      this.type = type;
+      this.literalSuffix = literalSuffix;
+    }
+
+    @Override
+    public void addBuilderFieldDeclaration(SourceBuilder code) {
+      long allUnset = 0;
+      for (Property property : metadata.getProperties()) {
+        if (property.getCodeGenerator().getType() == Type.REQUIRED) {
+          allUnset = (allUnset << 1) | 1;
+        }
+      }
+      code.addLine("  private %s _unsetProperties = %s;", type, literal(allUnset));
+    }
+
+    @Override
+    public void addPropertyEnumMembers(SourceBuilder code) {
+      code.addLine("")
+          .addLine("    /** Returns the properties whose bits are set in {@code mask}. */")
+          .addLine("    static %s<%s> fromMask(%s mask) {",
+              EnumSet.class, metadata.getPropertyEnum(), type)
+          .addLine("      %1$s<%2$s> result = %1$s.noneOf(%2$s.class);",
+              EnumSet.class, metadata.getPropertyEnum())
+          .addLine("      for (%s property : values()) {", metadata.getPropertyEnum())
+          .addLine("        if ((mask & (1%s << property.ordinal())) != 0) {", literalSuffix)
+          .addLine("          result.add(property);")
+          .addLine("        }")
+          .addLine("      }")
+          .addLine("      return result;")
+          .addLine("    }");
+    }
+
+    @Override
+    public void addSetProperty(SourceBuilder code, Property property) {
+      code.addLine("    _unsetProperties &= ~%s;", bit(property));
+    }
+
+    @Override
+    public void addIsUnset(SourceBuilder code, String unset, Property property) {
+      code.add("(%s & %s) != 0", unset, bit(property));
+    }
+
+    @Override
+    public void addIsSet(SourceBuilder code, String unset, Property property) {
+      code.add("(%s & %s) == 0", unset, bit(property));
+    }
+
+    @Override
+    public void addCheckAllSet(SourceBuilder code) {
+      code.addLine("    if (_unsetProperties != 0) {")
+          .addLine("      throw new %s(", IllegalStateException.class)
+          .addLine("          \"Not set: \" + %s.fromMask(_unsetProperties));",
+              metadata.getPropertyEnum())
+          .addLine("    }");
+    }
+
+    @Override
+    public void addTemplateUnsetDeclaration(SourceBuilder code, String template) {
+      code.addLine("    // Upcast to access the private _unsetProperties field.")
+          .addLine("    // Otherwise, oddly, we get an access violation.")
+          .addLine("    %s _templateUnset = ((%s) %s)._unsetProperties;",
+              type, metadata.getGeneratedBuilder(), template);
+    }
+
+    @Override
+    public void addClear(SourceBuilder code, String template) {
+      code.addLine("    _unsetProperties = %s._unsetProperties;", template);
+    }
+
+    @Override
+    public void addPartialFieldDeclaration(SourceBuilder code) {
+      code.addLine("    private final %s _unsetProperties;", type);
+    }
+
+    @Override
+    public void addPartialFieldAssignment(SourceBuilder code, String builder) {
+      code.addLine("      this._unsetProperties = %s._unsetProperties;", builder);
+    }
+
+    @Override
+    public void addPartialEqualsCheck(SourceBuilder code) {
+      code.addLine("      if (_unsetProperties != other._unsetProperties) {")
+          .addLine("        return false;")
+          .addLine("      }");
+    }
+
+    @Override
+    public void addPartialHashCode(SourceBuilder code) {
+      if (type == long.class) {
+        code.addLine("      result += (int) (_unsetProperties ^ (_unsetProperties >>> 32));");
+      } else {
+        code.addLine("      result += _unsetProperties;");
+      }
+    }
+
+    private String bit(Property property) {
+      int index = 0;
+      for (Property requiredProperty : metadata.getProperties()) {
+        if (requiredProperty.getName().equals(property.getName())) {
+          return literal(1L << index);
+        }
+        if (requiredProperty.getCodeGenerator().getType() == Type.REQUIRED) {
+          index++;
+        }
+      }
+      throw new IllegalArgumentException(property.getName() + " is not a property");
+    }
+
+    private String literal(long mask) {
+      if (type == int.class) {
+        return "0x" + Integer.toHexString((int) mask).toUpperCase();
+      } else {
+        return "0x" + Long.toHexString(mask).toUpperCase() + literalSuffix;
+      }
+    }
+  }
+
+  /** Tracks unset properties in an {@link EnumSet}, for types with many required properties. */
+  private static class EnumSetTracker extends UnsetPropertiesTracker {
+
+    EnumSetTracker(Metadata metadata) {
+      super(metadata);
+    }
+
+    @Override
+    public void addBuilderFieldDeclaration(SourceBuilder code) {
+      code.addLine("  private final %s<%s> _unsetProperties =",
+              EnumSet.class, metadata.getPropertyEnum())
+          .addLine("      %s.allOf(%s.class);", EnumSet.class, metadata.getPropertyEnum());
+    }
+
+    @Override
+    public void addPropertyEnumMembers(SourceBuilder code) {}
+
+    @Override
+    public void addSetProperty(SourceBuilder code, Property property) {
+      code.addLine("    _unsetProperties.remove(%s.%s);",
+          metadata.getPropertyEnum(), property.getAllCapsName());
+    }
+
+    @Override
+    public void addIsUnset(SourceBuilder code, String unset, Property property) {
+      code.add("%s.contains(%s.%s)", unset, metadata.getPropertyEnum(), property.getAllCapsName());
+    }
+
+    @Override
+    public void addIsSet(SourceBuilder code, String unset, Property property) {
+      code.add("!%s.contains(%s.%s)", unset, metadata.getPropertyEnum(), property.getAllCapsName());
+    }
+
+    @Override
+    public void addCheckAllSet(SourceBuilder code) {
+      code.addLine(
+          "    %s.checkState(_unsetProperties.isEmpty(), \"Not set: %%s\", _unsetProperties);",
+          Preconditions.class);
+    }
+
+    @Override
+    public void addTemplateUnsetDeclaration(SourceBuilder code, String template) {
+      code.addLine("    // Upcast to access the private _unsetProperties field.")
+          .addLine("    // Otherwise, oddly, we get an access violation.")
+          .addLine("    %s<%s> _templateUnset = ((%s) %s)._unsetProperties;",
+              EnumSet.class,
+              metadata.getPropertyEnum(),
+              metadata.getGeneratedBuilder(),
+              template);
+    }
+
+    @Override
+    public void addClear(SourceBuilder code, String template) {
+      code.addLine("    _unsetProperties.clear();")
+          .addLine("    _unsetProperties.addAll(%s._unsetProperties);", template);
+    }
+
+    @Override
+    public void addPartialFieldDeclaration(SourceBuilder code) {
+      code.addLine("    private final %s<%s> _unsetProperties;",
+          EnumSet.class, metadata.getPropertyEnum());
+    }
+
+    @Override
+    public void addPartialFieldAssignment(SourceBuilder code, String builder) {
+      code.addLine("      this._unsetProperties = %s._unsetProperties.clone();", builder);
+    }
+
+    @Override
+    public void addPartialEqualsCheck(SourceBuilder code) {
+      code.addLine("      if (!_unsetProperties.equals(other._unsetProperties)) {")
+          .addLine("        return false;")
+          .addLine("      }");
+    }
+
+    @Override
+    public void addPartialHashCode(SourceBuilder code) {
+      code.addLine("      result += _unsetProperties.hashCode();");
+    }
+  }
+}
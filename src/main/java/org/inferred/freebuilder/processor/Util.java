@@ -15,12 +15,22 @@
  */
 package org.inferred.freebuilder.processor;
 
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Chars;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Floats;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.Shorts;
+
 import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.type.WildcardType;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.SimpleTypeVisitor6;
+import javax.lang.model.util.Types;
 
 /** Utility class for common static methods. */
 public class Util {
@@ -61,4 +71,34 @@ public class Util {
     }
     return false;
   }
+
+  /** Returns true if {@code type} can be ordered by its natural ordering. */
+  static boolean isComparable(Elements elements, Types types, TypeMirror type) {
+    TypeMirror comparable = elements.getTypeElement(Comparable.class.getName()).asType();
+    return types.isAssignable(type, types.erasure(comparable));
+  }
+
+  /** Returns the Guava utility class for arrays of {@code kind}. */
+  static Class<?> primitivesClass(TypeKind kind) {
+    switch (kind) {
+      case BOOLEAN:
+        return Booleans.class;
+      case BYTE:
+        return Bytes.class;
+      case SHORT:
+        return Shorts.class;
+      case CHAR:
+        return Chars.class;
+      case INT:
+        return Ints.class;
+      case LONG:
+        return Longs.class;
+      case FLOAT:
+        return Floats.class;
+      case DOUBLE:
+        return Doubles.class;
+      default:
+        throw new IllegalArgumentException("Not a primitive type: " + kind);
+    }
+  }
 }
@@ -34,6 +34,7 @@ import javax.annotation.Nullable;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 
+import org.inferred.freebuilder.FreeBuilder;
 import org.inferred.freebuilder.processor.Analyser.CannotGenerateCodeException;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.Metadata.StandardMethod;
@@ -68,7 +69,9 @@ public class AnalyserTest {
         model.elementUtils(),
         messager,
         MethodIntrospector.instance(model.environment()),
-        model.typeUtils());
+        model.typeUtils(),
+        CapacityProfile.EMPTY,
+        model.environment().getSourceVersion());
   }
 
   @Test
@@ -90,9 +93,12 @@ public class AnalyserTest {
         .setGeneratedBuilder(expectedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(expectedBuilder.createNestedClass("Partial"))
         .setPropertyEnum(expectedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(dataType)
+        .setValueAdoptable(true)
         .setValueType(expectedBuilder.createNestedClass("Value"))
         .build();
 
@@ -122,9 +128,12 @@ public class AnalyserTest {
         .setGeneratedBuilder(expectedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(expectedBuilder.createNestedClass("Partial"))
         .setPropertyEnum(expectedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(dataType)
+        .setValueAdoptable(true)
         .setValueType(expectedBuilder.createNestedClass("Value"))
         .build();
 
@@ -598,6 +607,33 @@ public class AnalyserTest {
     assertThat(messager.getMessagesByElement().keys()).isEmpty();
   }
 
+  @Test
+  public void hashCodeCached() throws CannotGenerateCodeException {
+    Metadata dataType = analyser.analyse(model.newType(
+        "package com.example;",
+        "@" + FreeBuilder.class.getName() + "(cacheHashCode = true)",
+        "public interface DataType {",
+        "  class Builder extends DataType_Builder {}",
+        "}"));
+    assertTrue(dataType.isHashCodeCached());
+    assertThat(messager.getMessagesByElement().keys()).isEmpty();
+  }
+
+  @Test
+  public void valueNotAdoptable_setterOverridden() throws CannotGenerateCodeException {
+    Metadata dataType = analyser.analyse(model.newType(
+        "package com.example;",
+        "public interface DataType {",
+        "  String getName();",
+        "  class Builder extends DataType_Builder {",
+        "    @Override public Builder setName(String name) {",
+        "      return super.setName(name.trim());",
+        "    }",
+        "  }",
+        "}"));
+    assertFalse(dataType.isValueAdoptable());
+  }
+
   @Test
   public void nullable() throws CannotGenerateCodeException {
     Metadata dataType = analyser.analyse(model.newType(
@@ -1052,9 +1088,12 @@ public class AnalyserTest {
         .setGeneratedBuilder(expectedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(expectedBuilder.createNestedClass("Partial"))
         .setPropertyEnum(expectedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(dataType)
+        .setValueAdoptable(true)
         .setValueType(expectedBuilder.createNestedClass("Value"))
         .build();
 
@@ -1085,9 +1124,12 @@ public class AnalyserTest {
         .setGeneratedBuilder(expectedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(expectedBuilder.createNestedClass("Partial"))
         .setPropertyEnum(expectedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(dataType)
+        .setValueAdoptable(true)
         .setValueType(expectedBuilder.createNestedClass("Value"))
         .build();
 
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import com.google.common.testing.EqualsTester;
+
+import org.inferred.freebuilder.FreeBuilder;
+import org.inferred.freebuilder.processor.util.testing.BehaviorTester;
+import org.inferred.freebuilder.processor.util.testing.SourceBuilder;
+import org.inferred.freebuilder.processor.util.testing.TestBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.tools.JavaFileObject;
+
+/** Behavioral tests for array properties. */
+@RunWith(JUnit4.class)
+public class ArrayPropertyFactoryTest {
+
+  private static final JavaFileObject ARRAY_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract byte[] getPayload();")
+      .addLine("  public abstract String getName();")
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  private static final JavaFileObject TRUSTED_ARRAY_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s(trustedArrays = true)", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract byte[] getPayload();")
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+  private final BehaviorTester behaviorTester = new BehaviorTester();
+
+  @Test
+  public void testSetter_copiesArray() {
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("byte[] payload = { 1, 2, 3 };")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setPayload(payload)")
+            .addLine("    .setName(\"msg\");")
+            .addLine("payload[0] = 9;")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(1, value.getPayload()[0]);")
+            .addLine("assertEquals(1, builder.getPayload()[0]);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testGetter_returnsCopy() {
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setPayload(new byte[] { 1, 2, 3 })")
+            .addLine("    .setName(\"msg\");")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("value.getPayload()[0] = 9;")
+            .addLine("builder.getPayload()[1] = 9;")
+            .addLine("assertArrayEquals(new byte[] { 1, 2, 3 }, value.getPayload());")
+            .addLine("assertArrayEquals(new byte[] { 1, 2, 3 }, builder.getPayload());")
+            .addLine("assertNotSame(value.getPayload(), value.getPayload());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testSetter_null() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder().setPayload(null);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_unset() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("payload");
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder().setName(\"msg\").build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMergeFrom() {
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .setPayload(new byte[] { 1, 2 });")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .setName(\"msg\")")
+            .addLine("    .build();")
+            .addLine("assertArrayEquals(new byte[] { 1, 2 }, value.getPayload());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEquality() {
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setPayload(new byte[] { 1, 2 })")
+            .addLine("            .setName(\"msg\")")
+            .addLine("            .build(),")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setPayload(new byte[] { 1, 2 })")
+            .addLine("            .setName(\"msg\")")
+            .addLine("            .build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setPayload(new byte[] { 2, 1 })")
+            .addLine("            .setName(\"msg\")")
+            .addLine("            .build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setPayload(new byte[] { 1, 2 })")
+            .addLine("            .buildPartial(),")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setPayload(new byte[] { 1, 2 })")
+            .addLine("            .buildPartial())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testToString() {
+    behaviorTester
+        .with(new Processor())
+        .with(ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setPayload(new byte[] { 1, 2, 3 });")
+            .addLine("assertEquals(\"partial DataType{payload=[1, 2, 3]}\",")
+            .addLine("    builder.buildPartial().toString());")
+            .addLine("assertEquals(\"DataType{payload=[1, 2, 3], name=msg}\",")
+            .addLine("    builder.setName(\"msg\").build().toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testNestedArrays_deepEqualityAndToString() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract int[][] getGrid();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .setGrid(new int[][] { { 1, 2 }, { 3 } })")
+            .addLine("    .build();")
+            .addLine("assertEquals(\"DataType{grid=[[1, 2], [3]]}\", value.toString());")
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        value,")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setGrid(new int[][] { { 1, 2 }, { 3 } })")
+            .addLine("            .build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setGrid(new int[][] { { 1 }, { 2, 3 } })")
+            .addLine("            .build())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testNestedArrays_copiedDeeply() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract String[][][] getCube();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("String[][][] cube = { { { \"a\" }, null }, null };")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setCube(cube);")
+            .addLine("cube[0][0][0] = \"x\";")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("value.getCube()[0][0][0] = \"y\";")
+            .addLine("builder.getCube()[0][0][0] = \"z\";")
+            .addLine("assertEquals(\"a\", value.getCube()[0][0][0]);")
+            .addLine("assertEquals(\"a\", builder.getCube()[0][0][0]);")
+            .addLine("assertNull(value.getCube()[0][1]);")
+            .addLine("assertNull(value.getCube()[1]);")
+            .addLine("assertNotSame(value.getCube()[0][0], value.getCube()[0][0]);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testTrustedArrays_notCopied() {
+    behaviorTester
+        .with(new Processor())
+        .with(TRUSTED_ARRAY_TYPE)
+        .with(new TestBuilder()
+            .addLine("byte[] payload = { 1, 2, 3 };")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setPayload(payload);")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertSame(payload, builder.getPayload());")
+            .addLine("assertSame(payload, value.getPayload());")
+            .addLine("assertEquals(\"DataType{payload=[1, 2, 3]}\", value.toString());")
+            .addLine("assertEquals(value, new com.example.DataType.Builder()")
+            .addLine("    .setPayload(new byte[] { 1, 2, 3 })")
+            .addLine("    .build());")
+            .build())
+        .runTest();
+  }
+}
@@ -261,6 +261,53 @@ public class BuildablePropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testBuildPartial_heldValueMatchesNestedBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(NO_DEFAULTS_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Item item = new com.example.DataType.Item.Builder()")
+            .addLine("    .setName(\"Foo\")")
+            .addLine("    .setPrice(1)")
+            .addLine("    .build();")
+            .addLine("com.example.DataType partial1 = new com.example.DataType.Builder()")
+            .addLine("    .setItem1(item)")
+            .addLine("    .buildPartial();")
+            .addLine("com.example.DataType.Builder builder2 = new com.example.DataType.Builder();")
+            .addLine("builder2.getItem1Builder().mergeFrom(item);")
+            .addLine("com.example.DataType partial2 = builder2.buildPartial();")
+            .addLine("assertEquals(partial2.toString(), partial1.toString());")
+            .addLine("assertEquals(partial2, partial1);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_untouchedProperties_reusesValue() {
+    behaviorTester
+        .with(new Processor())
+        .with(DEFAULTS_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("assertSame(builder.build(), builder.build());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_afterBuildPartial_reusesValue() {
+    behaviorTester
+        .with(new Processor())
+        .with(DEFAULTS_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("builder.buildPartial();")
+            .addLine("assertSame(builder.build(), builder.build());")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testSetToValue() {
     behaviorTester
@@ -349,6 +396,51 @@ public class BuildablePropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testSetToValue_reusesInstance() {
+    behaviorTester
+        .with(new Processor())
+        .with(NO_DEFAULTS_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Item item = new com.example.DataType.Item.Builder()")
+            .addLine("    .setName(\"Foo\")")
+            .addLine("    .setPrice(1)")
+            .addLine("    .build();")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .setItem1(item)")
+            .addLine("    .setItem2(item)")
+            .addLine("    .build();")
+            .addLine("assertSame(item, value.getItem1());")
+            .addLine("assertSame(item, value.getItem2());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testSetToValue_thenModifyViaGetBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(NO_DEFAULTS_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setItem1(new com.example.DataType.Item.Builder()")
+            .addLine("        .setName(\"Foo\")")
+            .addLine("        .setPrice(1)")
+            .addLine("        .build())")
+            .addLine("    .setItem2(new com.example.DataType.Item.Builder()")
+            .addLine("        .setName(\"Bar\")")
+            .addLine("        .setPrice(2)")
+            .addLine("        .build());")
+            .addLine("assertEquals(\"Foo\", builder.getItem1Builder().getName());")
+            .addLine("builder.getItem1Builder().setPrice(3);")
+            .addLine("builder.setItem1(builder.build().getItem2());")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(\"Bar\", value.getItem1().getName());")
+            .addLine("assertEquals(2, value.getItem1().getPrice());")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testSetToBuilder_valuesSet() {
     behaviorTester
@@ -515,6 +607,30 @@ public class BuildablePropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testMergeFromBuilder_doesNotModifyTemplate() {
+    behaviorTester
+        .with(new Processor())
+        .with(DEFAULTS_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .setItem1(new com.example.DataType.Item.Builder()")
+            .addLine("        .setName(\"Foo\")")
+            .addLine("        .build());")
+            .addLine("com.example.DataType value = template.build();")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setItem2(new com.example.DataType.Item.Builder()")
+            .addLine("        .setPrice(5)")
+            .addLine("        .build())")
+            .addLine("    .mergeFrom(template);")
+            .addLine("assertSame(value, template.build());")
+            .addLine("assertEquals(\"Foo\", builder.build().getItem1().getName());")
+            .addLine("assertEquals(\"Air\", builder.build().getItem2().getName());")
+            .addLine("assertEquals(0, builder.build().getItem2().getPrice());")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testMergeFromBuilder_nestedList() {
     behaviorTester
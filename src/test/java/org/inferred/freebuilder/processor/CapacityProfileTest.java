@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Optional;
+
+import org.inferred.freebuilder.processor.Analyser.CannotGenerateCodeException;
+import org.inferred.freebuilder.processor.util.SourceStringBuilder;
+import org.inferred.freebuilder.processor.util.testing.FakeMessager;
+import org.inferred.freebuilder.processor.util.testing.ModelRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import javax.lang.model.element.TypeElement;
+
+@RunWith(JUnit4.class)
+public class CapacityProfileTest {
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+  @Rule public final ModelRule model = new ModelRule();
+
+  @Test
+  public void testEmpty() {
+    assertEquals(Optional.absent(),
+        CapacityProfile.EMPTY.getExpectedSize("com.example.DataType", "items"));
+  }
+
+  @Test
+  public void testRead() throws IOException {
+    CapacityProfile profile = CapacityProfile.read(new StringReader(
+        "# Measured in production\n"
+        + "com.example.DataType.items = 500000\n"
+        + "com.example.Outer.Inner.names=12\n"));
+    assertEquals(Optional.of(500000), profile.getExpectedSize("com.example.DataType", "items"));
+    assertEquals(Optional.of(12), profile.getExpectedSize("com.example.Outer.Inner", "names"));
+    assertEquals(Optional.absent(), profile.getExpectedSize("com.example.DataType", "names"));
+    assertEquals(Optional.absent(), profile.getExpectedSize("com.example.Outer", "items"));
+  }
+
+  @Test
+  public void testRead_invalidSize() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid expected size for com.example.DataType.items: 'lots'");
+    CapacityProfile.read(new StringReader("com.example.DataType.items = lots\n"));
+  }
+
+  @Test
+  public void testRead_negativeSize() throws IOException {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Invalid expected size for com.example.DataType.items: '-1'");
+    CapacityProfile.read(new StringReader("com.example.DataType.items = -1\n"));
+  }
+
+  @Test
+  public void testExpectedSize_presizesList() throws Exception {
+    String accessors = generateItemsAccessors("java.util.List<String>", 500);
+    assertThat(accessors).contains("items = new ArrayList<String>(items);\n"
+        + "      ((ArrayList<String>) this.items).ensureCapacity(500);\n");
+  }
+
+  @Test
+  public void testExpectedSize_presizesSet() throws Exception {
+    String accessors = generateItemsAccessors("java.util.Set<String>", 600);
+    assertThat(accessors).contains("this.items = Sets.newLinkedHashSetWithExpectedSize(\n"
+        + "          Math.max(600, elements.size()));\n");
+  }
+
+  @Test
+  public void testExpectedSize_presizesMap() throws Exception {
+    String accessors = generateItemsAccessors("java.util.Map<String, Integer>", 700);
+    assertThat(accessors).contains("int size = Math.max(700, entries.size());\n"
+        + "      this.items = new LinkedHashMap<String, Integer>(size + size / 3 + 1);\n");
+  }
+
+  @Test
+  public void testExpectedSize_presizesMultiset() throws Exception {
+    String accessors =
+        generateItemsAccessors("com.google.common.collect.Multiset<String>", 800);
+    assertThat(accessors).contains(
+        "this.items = LinkedHashMultiset.create(Math.max(800, elements.elementSet().size()));\n");
+  }
+
+  /**
+   * Returns the builder accessors generated for an {@code items} property of type
+   * {@code propertyType}, with a profile expecting it to hold {@code expectedSize} elements.
+   */
+  private String generateItemsAccessors(String propertyType, int expectedSize)
+      throws IOException, CannotGenerateCodeException {
+    CapacityProfile profile = CapacityProfile.read(
+        new StringReader("com.example.DataType.items = " + expectedSize + "\n"));
+    TypeElement dataType = model.newType(
+        "package com.example;",
+        "public abstract class DataType {",
+        "  public abstract " + propertyType + " getItems();",
+        "  public static class Builder extends DataType_Builder {}",
+        "}");
+    Analyser analyser = new Analyser(
+        model.elementUtils(),
+        new FakeMessager(),
+        MethodIntrospector.instance(model.environment()),
+        model.typeUtils(),
+        profile,
+        model.environment().getSourceVersion());
+    Metadata metadata = analyser.analyse(dataType);
+    SourceStringBuilder code = SourceStringBuilder.simple();
+    getOnlyElement(metadata.getProperties()).getCodeGenerator()
+        .addBuilderFieldAccessors(code, metadata);
+    return code.toString();
+  }
+}
@@ -24,6 +24,8 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 
+import org.inferred.freebuilder.FreeBuilder.OptionalStorage;
+import org.inferred.freebuilder.processor.BuildablePropertyFactory.BuildableType;
 import org.inferred.freebuilder.processor.Metadata.Property;
 import org.inferred.freebuilder.processor.util.ImpliedClass;
 import org.inferred.freebuilder.processor.util.SourceStringBuilder;
@@ -99,6 +101,7 @@ public class CodeGeneratorTest {
         .setGeneratedBuilder(generatedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(generatedBuilder.createNestedClass("Partial"))
         .addProperty(name
             .setCodeGenerator(
@@ -109,7 +112,9 @@ public class CodeGeneratorTest {
                 new DefaultPropertyFactory.CodeGenerator(age.build(), "setAge", false))
             .build())
         .setPropertyEnum(generatedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(person)
+        .setValueAdoptable(true)
         .setValueType(generatedBuilder.createNestedClass("Value"))
         .build();
 
@@ -124,8 +129,6 @@ public class CodeGeneratorTest {
         "@Generated(\"org.inferred.freebuilder.processor.CodeGenerator\")",
         "abstract class Person_Builder {",
         "",
-        "  private static final Joiner COMMA_JOINER = Joiner.on(\", \").skipNulls();",
-        "",
         "  private enum Property {",
         "    NAME(\"name\"),",
         "    AGE(\"age\"),",
@@ -140,12 +143,28 @@ public class CodeGeneratorTest {
         "    @Override public String toString() {",
         "      return name;",
         "    }",
+        "",
+        "    /** Returns the properties whose bits are set in {@code mask}. */",
+        "    static EnumSet<Person_Builder.Property> fromMask(int mask) {",
+        "      EnumSet<Person_Builder.Property> result ="
+            + " EnumSet.noneOf(Person_Builder.Property.class);",
+        "      for (Person_Builder.Property property : values()) {",
+        "        if ((mask & (1 << property.ordinal())) != 0) {",
+        "          result.add(property);",
+        "        }",
+        "      }",
+        "      return result;",
+        "    }",
         "  }",
         "",
         "  private String name;",
         "  private int age;",
-        "  private final EnumSet<Person_Builder.Property> _unsetProperties =",
-        "      EnumSet.allOf(Person_Builder.Property.class);",
+        "  private int _unsetProperties = 0x3;",
+        "  // Incremented on every modification, so build() can reuse an unchanged value.",
+        "  private int _modCount = 0;",
+        "  // The last value built or adopted, valid while _modCount is unchanged.",
+        "  private transient Person _built = null;",
+        "  private int _builtModCount = 0;",
         "",
         "  /**",
         "   * Sets the value to be returned by {@link Person#getName()}.",
@@ -155,7 +174,8 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder setName(String name) {",
         "    this.name = Preconditions.checkNotNull(name);",
-        "    _unsetProperties.remove(Person_Builder.Property.NAME);",
+        "    _modCount++;",
+        "    _unsetProperties &= ~0x1;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -166,7 +186,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public String getName() {",
         "    Preconditions.checkState(",
-        "        !_unsetProperties.contains(Person_Builder.Property.NAME),",
+        "        (_unsetProperties & 0x1) == 0,",
         "        \"name not set\");",
         "    return name;",
         "  }",
@@ -178,7 +198,8 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder setAge(int age) {",
         "    this.age = age;",
-        "    _unsetProperties.remove(Person_Builder.Property.AGE);",
+        "    _modCount++;",
+        "    _unsetProperties &= ~0x2;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -189,7 +210,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public int getAge() {",
         "    Preconditions.checkState(",
-        "        !_unsetProperties.contains(Person_Builder.Property.AGE),",
+        "        (_unsetProperties & 0x2) == 0,",
         "        \"age not set\");",
         "    return age;",
         "  }",
@@ -215,14 +236,17 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Value)) {",
         "        return false;",
         "      }",
         "      Person_Builder.Value other = (Person_Builder.Value) obj;",
-        "      if (!name.equals(other.name)) {",
+        "      if (age != other.age) {",
         "        return false;",
         "      }",
-        "      if (age != other.age) {",
+        "      if (!name.equals(other.name)) {",
         "        return false;",
         "      }",
         "      return true;",
@@ -230,14 +254,20 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public int hashCode() {",
-        "      return Arrays.hashCode(new Object[] { name, age });",
+        "      int result = 1;",
+        "      result *= 31;",
+        "      result += name.hashCode();",
+        "      result *= 31;",
+        "      result += Ints.hashCode(age);",
+        "      return result;",
         "    }",
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"Person{\"",
-        "          + \"name=\" + name + \", \"",
-        "          + \"age=\" + age + \"}\";",
+        "      StringBuilder result = new StringBuilder(53).append(\"Person{\");",
+        "      result.append(\"name=\").append(name);",
+        "      result.append(\", age=\").append(age);",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -247,17 +277,31 @@ public class CodeGeneratorTest {
         "   * @throws IllegalStateException if any field has not been set",
         "   */",
         "  public Person build() {",
-        "    Preconditions.checkState(_unsetProperties.isEmpty(),"
-            + " \"Not set: %s\", _unsetProperties);",
-        "    return new Person_Builder.Value(this);",
+        "    if (_built != null && _builtModCount == _modCount) {",
+        "      return _built;",
+        "    }",
+        "    if (_unsetProperties != 0) {",
+        "      throw new IllegalStateException(",
+        "          \"Not set: \" + Person_Builder.Property.fromMask(_unsetProperties));",
+        "    }",
+        "    _built = new Person_Builder.Value(this);",
+        "    _builtModCount = _modCount;",
+        "    return _built;",
         "  }",
         "",
         "  /**",
         "   * Sets all property values using the given {@code Person} as a template.",
         "   */",
         "  public Person.Builder mergeFrom(Person value) {",
+        "    // A builder populated solely from a value can return it from build().",
+        "    boolean _adoptValue = (_modCount == 0 && value instanceof Person_Builder.Value);",
+        "    _modCount++;",
         "    setName(value.getName());",
         "    setAge(value.getAge());",
+        "    if (_adoptValue) {",
+        "      _built = value;",
+        "      _builtModCount = _modCount;",
+        "    }",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -266,14 +310,14 @@ public class CodeGeneratorTest {
         "   * Does not affect any properties not set on the input.",
         "   */",
         "  public Person.Builder mergeFrom(Person.Builder template) {",
+        "    _modCount++;",
         "    // Upcast to access the private _unsetProperties field.",
         "    // Otherwise, oddly, we get an access violation.",
-        "    EnumSet<Person_Builder.Property> _templateUnset = ((Person_Builder) template)"
-            + "._unsetProperties;",
-        "    if (!_templateUnset.contains(Person_Builder.Property.NAME)) {",
+        "    int _templateUnset = ((Person_Builder) template)._unsetProperties;",
+        "    if ((_templateUnset & 0x1) == 0) {",
         "      setName(template.getName());",
         "    }",
-        "    if (!_templateUnset.contains(Person_Builder.Property.AGE)) {",
+        "    if ((_templateUnset & 0x2) == 0) {",
         "      setAge(template.getAge());",
         "    }",
         "    return (Person.Builder) this;",
@@ -283,28 +327,36 @@ public class CodeGeneratorTest {
         "   * Resets the state of this builder.",
         "   */",
         "  public Person.Builder clear() {",
-        "    Person_Builder template = new Person.Builder();",
+        "    _modCount++;",
+        "    Person_Builder template = DefaultsHolder.DEFAULTS;",
         "    name = template.name;",
         "    age = template.age;",
-        "    _unsetProperties.clear();",
-        "    _unsetProperties.addAll(template._unsetProperties);",
+        "    _unsetProperties = template._unsetProperties;",
         "    return (Person.Builder) this;",
         "  }",
         "",
+        "  /**",
+        "   * Holds the builder {@link #clear()} copies default values from, created",
+        "   * the first time it is needed. It must never be modified.",
+        "   */",
+        "  private static final class DefaultsHolder {",
+        "    private static final Person_Builder DEFAULTS = new Person.Builder();",
+        "  }",
+        "",
         "  private static final class Partial extends Person {",
         "    private final String name;",
         "    private final int age;",
-        "    private final EnumSet<Person_Builder.Property> _unsetProperties;",
+        "    private final int _unsetProperties;",
         "",
         "    Partial(Person_Builder builder) {",
         "      this.name = builder.name;",
         "      this.age = builder.age;",
-        "      this._unsetProperties = builder._unsetProperties.clone();",
+        "      this._unsetProperties = builder._unsetProperties;",
         "    }",
         "",
         "    @Override",
         "    public String getName() {",
-        "      if (_unsetProperties.contains(Person_Builder.Property.NAME)) {",
+        "      if ((_unsetProperties & 0x1) != 0) {",
         "        throw new UnsupportedOperationException(\"name not set\");",
         "      }",
         "      return name;",
@@ -312,7 +364,7 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public int getAge() {",
-        "      if (_unsetProperties.contains(Person_Builder.Property.AGE)) {",
+        "      if ((_unsetProperties & 0x2) != 0) {",
         "        throw new UnsupportedOperationException(\"age not set\");",
         "      }",
         "      return age;",
@@ -320,18 +372,24 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Partial)) {",
         "        return false;",
         "      }",
         "      Person_Builder.Partial other = (Person_Builder.Partial) obj;",
-        "      if (name != other.name",
-        "          && (name == null || !name.equals(other.name))) {",
+        "      if (_unsetProperties != other._unsetProperties) {",
         "        return false;",
         "      }",
         "      if (age != other.age) {",
         "        return false;",
         "      }",
-        "      return _unsetProperties.equals(other._unsetProperties);",
+        "      if (name != other.name",
+        "          && (name == null || !name.equals(other.name))) {",
+        "        return false;",
+        "      }",
+        "      return true;",
         "    }",
         "",
         "    @Override",
@@ -340,21 +398,24 @@ public class CodeGeneratorTest {
         "      result *= 31;",
         "      result += ((name == null) ? 0 : name.hashCode());",
         "      result *= 31;",
-        "      result += ((Integer) age).hashCode();",
+        "      result += Ints.hashCode(age);",
         "      result *= 31;",
-        "      result += _unsetProperties.hashCode();",
+        "      result += _unsetProperties;",
         "      return result;",
         "    }",
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"partial Person{\"",
-        "          + COMMA_JOINER.join(",
-        "              (!_unsetProperties.contains(Person_Builder.Property.NAME)",
-        "                  ? \"name=\" + name : null),",
-        "              (!_unsetProperties.contains(Person_Builder.Property.AGE)",
-        "                  ? \"age=\" + age : null))",
-        "          + \"}\";",
+        "      StringBuilder result = new StringBuilder(61).append(\"partial Person{\");",
+        "      String separator = \"\";",
+        "      if ((_unsetProperties & 0x1) == 0) {",
+        "        result.append(\"name=\").append(name);",
+        "        separator = \", \";",
+        "      }",
+        "      if ((_unsetProperties & 0x2) == 0) {",
+        "        result.append(separator).append(\"age=\").append(age);",
+        "      }",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -403,6 +464,7 @@ public class CodeGeneratorTest {
         .setGeneratedBuilder(generatedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(generatedBuilder.createNestedClass("Partial"))
         .addProperty(name
             .setCodeGenerator(
@@ -413,7 +475,9 @@ public class CodeGeneratorTest {
                 new DefaultPropertyFactory.CodeGenerator(age.build(), "setAge", true))
             .build())
         .setPropertyEnum(generatedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(person)
+        .setValueAdoptable(true)
         .setValueType(generatedBuilder.createNestedClass("Value"))
         .build();
 
@@ -428,10 +492,13 @@ public class CodeGeneratorTest {
         "@Generated(\"org.inferred.freebuilder.processor.CodeGenerator\")",
         "abstract class Person_Builder {",
         "",
-        "  private static final Joiner COMMA_JOINER = Joiner.on(\", \").skipNulls();",
-        "",
         "  private String name;",
         "  private int age;",
+        "  // Incremented on every modification, so build() can reuse an unchanged value.",
+        "  private int _modCount = 0;",
+        "  // The last value built or adopted, valid while _modCount is unchanged.",
+        "  private transient Person _built = null;",
+        "  private int _builtModCount = 0;",
         "",
         "  /**",
         "   * Sets the value to be returned by {@link Person#getName()}.",
@@ -441,6 +508,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder setName(String name) {",
         "    this.name = Preconditions.checkNotNull(name);",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -458,6 +526,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder setAge(int age) {",
         "    this.age = age;",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -489,14 +558,17 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Value)) {",
         "        return false;",
         "      }",
         "      Person_Builder.Value other = (Person_Builder.Value) obj;",
-        "      if (!name.equals(other.name)) {",
+        "      if (age != other.age) {",
         "        return false;",
         "      }",
-        "      if (age != other.age) {",
+        "      if (!name.equals(other.name)) {",
         "        return false;",
         "      }",
         "      return true;",
@@ -504,14 +576,20 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public int hashCode() {",
-        "      return Arrays.hashCode(new Object[] { name, age });",
+        "      int result = 1;",
+        "      result *= 31;",
+        "      result += name.hashCode();",
+        "      result *= 31;",
+        "      result += Ints.hashCode(age);",
+        "      return result;",
         "    }",
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"Person{\"",
-        "          + \"name=\" + name + \", \"",
-        "          + \"age=\" + age + \"}\";",
+        "      StringBuilder result = new StringBuilder(53).append(\"Person{\");",
+        "      result.append(\"name=\").append(name);",
+        "      result.append(\", age=\").append(age);",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -519,15 +597,27 @@ public class CodeGeneratorTest {
         "   * Returns a newly-created {@link Person} based on the contents of the {@code Builder}.",
         "   */",
         "  public Person build() {",
-        "    return new Person_Builder.Value(this);",
+        "    if (_built != null && _builtModCount == _modCount) {",
+        "      return _built;",
+        "    }",
+        "    _built = new Person_Builder.Value(this);",
+        "    _builtModCount = _modCount;",
+        "    return _built;",
         "  }",
         "",
         "  /**",
         "   * Sets all property values using the given {@code Person} as a template.",
         "   */",
         "  public Person.Builder mergeFrom(Person value) {",
+        "    // A builder populated solely from a value can return it from build().",
+        "    boolean _adoptValue = (_modCount == 0 && value instanceof Person_Builder.Value);",
+        "    _modCount++;",
         "    setName(value.getName());",
         "    setAge(value.getAge());",
+        "    if (_adoptValue) {",
+        "      _built = value;",
+        "      _builtModCount = _modCount;",
+        "    }",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -535,6 +625,7 @@ public class CodeGeneratorTest {
         "   * Copies values from the given {@code Builder}.",
         "   */",
         "  public Person.Builder mergeFrom(Person.Builder template) {",
+        "    _modCount++;",
         "    setName(template.getName());",
         "    setAge(template.getAge());",
         "    return (Person.Builder) this;",
@@ -544,12 +635,21 @@ public class CodeGeneratorTest {
         "   * Resets the state of this builder.",
         "   */",
         "  public Person.Builder clear() {",
-        "    Person_Builder template = new Person.Builder();",
+        "    _modCount++;",
+        "    Person_Builder template = DefaultsHolder.DEFAULTS;",
         "    name = template.name;",
         "    age = template.age;",
         "    return (Person.Builder) this;",
         "  }",
         "",
+        "  /**",
+        "   * Holds the builder {@link #clear()} copies default values from, created",
+        "   * the first time it is needed. It must never be modified.",
+        "   */",
+        "  private static final class DefaultsHolder {",
+        "    private static final Person_Builder DEFAULTS = new Person.Builder();",
+        "  }",
+        "",
         "  private static final class Partial extends Person {",
         "    private final String name;",
         "    private final int age;",
@@ -571,14 +671,17 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Partial)) {",
         "        return false;",
         "      }",
         "      Person_Builder.Partial other = (Person_Builder.Partial) obj;",
-        "      if (!name.equals(other.name)) {",
+        "      if (age != other.age) {",
         "        return false;",
         "      }",
-        "      if (age != other.age) {",
+        "      if (!name.equals(other.name)) {",
         "        return false;",
         "      }",
         "      return true;",
@@ -590,17 +693,16 @@ public class CodeGeneratorTest {
         "      result *= 31;",
         "      result += ((name == null) ? 0 : name.hashCode());",
         "      result *= 31;",
-        "      result += ((Integer) age).hashCode();",
+        "      result += Ints.hashCode(age);",
         "      return result;",
         "    }",
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"partial Person{\"",
-        "          + COMMA_JOINER.join(",
-        "              \"name=\" + name,",
-        "              \"age=\" + age)",
-        "          + \"}\";",
+        "      StringBuilder result = new StringBuilder(61).append(\"partial Person{\");",
+        "      result.append(\"name=\").append(name);",
+        "      result.append(\", age=\").append(age);",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -651,19 +753,22 @@ public class CodeGeneratorTest {
         .setGeneratedBuilder(generatedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(generatedBuilder.createNestedClass("Partial"))
         .addProperty(name
             .setCodeGenerator(new OptionalPropertyFactory.CodeGenerator(
                 name.build(), "setName", "setNullableName", "clearName", string,
-                Optional.<TypeMirror>absent()))
+                Optional.<TypeMirror>absent(), OptionalStorage.NULLABLE))
             .build())
         .addProperty(age
             .setCodeGenerator(new OptionalPropertyFactory.CodeGenerator(
                 age.build(), "setAge", "setNullableAge", "clearAge", integer,
-                Optional.<TypeMirror>of(INT)))
+                Optional.<TypeMirror>of(INT), OptionalStorage.NULLABLE))
             .build())
         .setPropertyEnum(generatedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(person)
+        .setValueAdoptable(true)
         .setValueType(generatedBuilder.createNestedClass("Value"))
         .build();
 
@@ -678,8 +783,6 @@ public class CodeGeneratorTest {
         "@Generated(\"org.inferred.freebuilder.processor.CodeGenerator\")",
         "abstract class Person_Builder {",
         "",
-        "  private static final Joiner COMMA_JOINER = Joiner.on(\", \").skipNulls();",
-        "",
         "  // Store a nullable object instead of an Optional. Escape analysis then",
         "  // allows the JVM to optimize away the Optional objects created by and",
         "  // passed to our API.",
@@ -688,6 +791,11 @@ public class CodeGeneratorTest {
         "  // allows the JVM to optimize away the Optional objects created by and",
         "  // passed to our API.",
         "  private Integer age = null;",
+        "  // Incremented on every modification, so build() can reuse an unchanged value.",
+        "  private int _modCount = 0;",
+        "  // The last value built or adopted, valid while _modCount is unchanged.",
+        "  private transient Person _built = null;",
+        "  private int _builtModCount = 0;",
         "",
         "  /**",
         "   * Sets the value to be returned by {@link Person#getName()}.",
@@ -697,6 +805,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder setName(String name) {",
         "    this.name = Preconditions.checkNotNull(name);",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -734,6 +843,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder clearName() {",
         "    this.name = null;",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -751,6 +861,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder setAge(int age) {",
         "    this.age = age;",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -788,6 +899,7 @@ public class CodeGeneratorTest {
         "   */",
         "  public Person.Builder clearAge() {",
         "    this.age = null;",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -825,6 +937,9 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Value)) {",
         "        return false;",
         "      }",
@@ -842,16 +957,26 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public int hashCode() {",
-        "      return Arrays.hashCode(new Object[] { name, age });",
+        "      int result = 1;",
+        "      result *= 31;",
+        "      result += ((name == null) ? 0 : name.hashCode());",
+        "      result *= 31;",
+        "      result += ((age == null) ? 0 : age.hashCode());",
+        "      return result;",
         "    }",
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"Person{\"",
-        "          + COMMA_JOINER.join(",
-        "              (name != null ? \"name=\" + name : null),",
-        "              (age != null ? \"age=\" + age : null))",
-        "          + \"}\";",
+        "      StringBuilder result = new StringBuilder(53).append(\"Person{\");",
+        "      String separator = \"\";",
+        "      if (name != null) {",
+        "        result.append(\"name=\").append(name);",
+        "        separator = \", \";",
+        "      }",
+        "      if (age != null) {",
+        "        result.append(separator).append(\"age=\").append(age);",
+        "      }",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -859,15 +984,27 @@ public class CodeGeneratorTest {
         "   * Returns a newly-created {@link Person} based on the contents of the {@code Builder}.",
         "   */",
         "  public Person build() {",
-        "    return new Person_Builder.Value(this);",
+        "    if (_built != null && _builtModCount == _modCount) {",
+        "      return _built;",
+        "    }",
+        "    _built = new Person_Builder.Value(this);",
+        "    _builtModCount = _modCount;",
+        "    return _built;",
         "  }",
         "",
         "  /**",
         "   * Sets all property values using the given {@code Person} as a template.",
         "   */",
         "  public Person.Builder mergeFrom(Person value) {",
+        "    // A builder populated solely from a value can return it from build().",
+        "    boolean _adoptValue = (_modCount == 0 && value instanceof Person_Builder.Value);",
+        "    _modCount++;",
         "    setName(value.getName());",
         "    setAge(value.getAge());",
+        "    if (_adoptValue) {",
+        "      _built = value;",
+        "      _builtModCount = _modCount;",
+        "    }",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -875,6 +1012,7 @@ public class CodeGeneratorTest {
         "   * Copies values from the given {@code Builder}.",
         "   */",
         "  public Person.Builder mergeFrom(Person.Builder template) {",
+        "    _modCount++;",
         "    setName(template.getName());",
         "    setAge(template.getAge());",
         "    return (Person.Builder) this;",
@@ -884,12 +1022,21 @@ public class CodeGeneratorTest {
         "   * Resets the state of this builder.",
         "   */",
         "  public Person.Builder clear() {",
-        "    Person_Builder template = new Person.Builder();",
+        "    _modCount++;",
+        "    Person_Builder template = DefaultsHolder.DEFAULTS;",
         "    name = template.name;",
         "    age = template.age;",
         "    return (Person.Builder) this;",
         "  }",
         "",
+        "  /**",
+        "   * Holds the builder {@link #clear()} copies default values from, created",
+        "   * the first time it is needed. It must never be modified.",
+        "   */",
+        "  private static final class DefaultsHolder {",
+        "    private static final Person_Builder DEFAULTS = new Person.Builder();",
+        "  }",
+        "",
         "  private static final class Partial extends Person {",
         "    // Store a nullable object instead of an Optional. Escape analysis then",
         "    // allows the JVM to optimize away the Optional objects created by our",
@@ -917,6 +1064,9 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Partial)) {",
         "        return false;",
         "      }",
@@ -944,11 +1094,16 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"partial Person{\"",
-        "          + COMMA_JOINER.join(",
-        "              (name != null ? \"name=\" + name : null),",
-        "              (age != null ? \"age=\" + age : null))",
-        "          + \"}\";",
+        "      StringBuilder result = new StringBuilder(61).append(\"partial Person{\");",
+        "      String separator = \"\";",
+        "      if (name != null) {",
+        "        result.append(\"name=\").append(name);",
+        "        separator = \", \";",
+        "      }",
+        "      if (age != null) {",
+        "        result.append(separator).append(\"age=\").append(age);",
+        "      }",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -999,17 +1154,22 @@ public class CodeGeneratorTest {
         .setGeneratedBuilder(generatedBuilder)
         .setGwtCompatible(false)
         .setGwtSerializable(false)
+        .setHashCodeCached(false)
         .setPartialType(generatedBuilder.createNestedClass("Partial"))
         .addProperty(name
             .setCodeGenerator(new ListPropertyFactory.CodeGenerator(
-                name.build(), string, Optional.<TypeMirror>absent()))
+                name.build(), string, Optional.<TypeMirror>absent(), false, false, false,
+                Optional.<Integer>absent(), false, Optional.<BuildableType>absent()))
             .build())
         .addProperty(age
             .setCodeGenerator(new ListPropertyFactory.CodeGenerator(
-                age.build(), integer, Optional.<TypeMirror>of(INT)))
+                age.build(), integer, Optional.<TypeMirror>of(INT), false, false, false,
+                Optional.<Integer>absent(), false, Optional.<BuildableType>absent()))
             .build())
         .setPropertyEnum(generatedBuilder.createNestedClass("Property"))
+        .setToStringCached(false)
         .setType(person)
+        .setValueAdoptable(true)
         .setValueType(generatedBuilder.createNestedClass("Value"))
         .build();
 
@@ -1024,10 +1184,21 @@ public class CodeGeneratorTest {
         "@Generated(\"org.inferred.freebuilder.processor.CodeGenerator\")",
         "abstract class Person_Builder {",
         "",
-        "  private static final Joiner COMMA_JOINER = Joiner.on(\", \").skipNulls();",
-        "",
-        "  private ArrayList<String> name = new ArrayList<String>();",
-        "  private ArrayList<Integer> age = new ArrayList<Integer>();",
+        "  private List<String> name = ImmutableList.of();",
+        "  private List<String> nameView = null;",
+        "  private List<Integer> age = ImmutableList.of();",
+        "  private List<Integer> ageView = null;",
+        "  // Incremented on every modification, so build() can reuse an unchanged value.",
+        "  private int _modCount = 0;",
+        "  // The last value built or adopted, valid while _modCount is unchanged.",
+        "  private transient Person _built = null;",
+        "  private int _builtModCount = 0;",
+        "",
+        "  private void ensureNameIsMutable() {",
+        "    if (name instanceof ImmutableList) {",
+        "      name = new ArrayList<String>(name);",
+        "    }",
+        "  }",
         "",
         "  /**",
         "   * Adds {@code element} to the list to be returned from {@link Person#getName()}.",
@@ -1036,7 +1207,9 @@ public class CodeGeneratorTest {
         "   * @throws NullPointerException if {@code element} is null",
         "   */",
         "  public Person.Builder addName(String element) {",
+        "    ensureNameIsMutable();",
         "    this.name.add(Preconditions.checkNotNull(element));",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -1049,7 +1222,8 @@ public class CodeGeneratorTest {
         "   *     null element",
         "   */",
         "  public Person.Builder addName(String... elements) {",
-        "    name.ensureCapacity(name.size() + elements.length);",
+        "    ensureNameIsMutable();",
+        "    ((ArrayList<String>) this.name).ensureCapacity(this.name.size() + elements.length);",
         "    for (String element : elements) {",
         "      addName(element);",
         "    }",
@@ -1065,8 +1239,21 @@ public class CodeGeneratorTest {
         "   *     null element",
         "   */",
         "  public Person.Builder addAllName(Iterable<? extends String> elements) {",
+        "    if (elements instanceof ImmutableCollection) {",
+        "      if (this.name instanceof ImmutableList && this.name.isEmpty()) {",
+        "        this.name = ImmutableList.copyOf((ImmutableCollection<? extends String>)"
+            + " elements);",
+        "      } else {",
+        "        ensureNameIsMutable();",
+        "        this.name.addAll((ImmutableCollection<? extends String>) elements);",
+        "      }",
+        "      _modCount++;",
+        "      return (Person.Builder) this;",
+        "    }",
         "    if (elements instanceof Collection) {",
-        "      name.ensureCapacity(name.size() + ((Collection<?>) elements).size());",
+        "      ensureNameIsMutable();",
+        "      ((ArrayList<String>) this.name).ensureCapacity(",
+        "          this.name.size() + ((Collection<?>) elements).size());",
         "    }",
         "    for (String element : elements) {",
         "      addName(element);",
@@ -1075,12 +1262,30 @@ public class CodeGeneratorTest {
         "  }",
         "",
         "  /**",
+        "   * Allocates room for {@code expectedSize} elements in the list to be",
+        "   * returned from {@link Person#getName()}, so adding them does not repeatedly grow",
+        "   * its storage.",
+        "   *",
+        "   * @return this {@code Builder} object",
+        "   */",
+        "  public Person.Builder ensureNameCapacity(int expectedSize) {",
+        "    ensureNameIsMutable();",
+        "    ((ArrayList<String>) this.name).ensureCapacity(expectedSize);",
+        "    return (Person.Builder) this;",
+        "  }",
+        "",
+        "  /**",
         "   * Clears the list to be returned from {@link Person#getName()}.",
         "   *",
         "   * @return this {@code Builder} object",
         "   */",
         "  public Person.Builder clearName() {",
-        "    this.name.clear();",
+        "    if (this.name instanceof ImmutableList) {",
+        "      this.name = ImmutableList.of();",
+        "    } else {",
+        "      this.name.clear();",
+        "    }",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -1090,7 +1295,17 @@ public class CodeGeneratorTest {
         "   * Changes to this builder will be reflected in the view.",
         "   */",
         "  public List<String> getName() {",
-        "    return Collections.unmodifiableList(name);",
+        "    if (nameView == null) {",
+        "      ensureNameIsMutable();",
+        "      nameView = Collections.unmodifiableList(name);",
+        "    }",
+        "    return nameView;",
+        "  }",
+        "",
+        "  private void ensureAgeIsMutable() {",
+        "    if (age instanceof ImmutableList) {",
+        "      age = new ArrayList<Integer>(age);",
+        "    }",
         "  }",
         "",
         "  /**",
@@ -1099,7 +1314,9 @@ public class CodeGeneratorTest {
         "   * @return this {@code Builder} object",
         "   */",
         "  public Person.Builder addAge(int element) {",
+        "    ensureAgeIsMutable();",
         "    this.age.add(element);",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -1110,7 +1327,8 @@ public class CodeGeneratorTest {
         "   * @return this {@code Builder} object",
         "   */",
         "  public Person.Builder addAge(int... elements) {",
-        "    age.ensureCapacity(age.size() + elements.length);",
+        "    ensureAgeIsMutable();",
+        "    ((ArrayList<Integer>) this.age).ensureCapacity(this.age.size() + elements.length);",
         "    for (int element : elements) {",
         "      addAge(element);",
         "    }",
@@ -1126,8 +1344,21 @@ public class CodeGeneratorTest {
         "   *     null element",
         "   */",
         "  public Person.Builder addAllAge(Iterable<? extends Integer> elements) {",
+        "    if (elements instanceof ImmutableCollection) {",
+        "      if (this.age instanceof ImmutableList && this.age.isEmpty()) {",
+        "        this.age = ImmutableList.copyOf((ImmutableCollection<? extends Integer>)"
+            + " elements);",
+        "      } else {",
+        "        ensureAgeIsMutable();",
+        "        this.age.addAll((ImmutableCollection<? extends Integer>) elements);",
+        "      }",
+        "      _modCount++;",
+        "      return (Person.Builder) this;",
+        "    }",
         "    if (elements instanceof Collection) {",
-        "      age.ensureCapacity(age.size() + ((Collection<?>) elements).size());",
+        "      ensureAgeIsMutable();",
+        "      ((ArrayList<Integer>) this.age).ensureCapacity(",
+        "          this.age.size() + ((Collection<?>) elements).size());",
         "    }",
         "    for (int element : elements) {",
         "      addAge(element);",
@@ -1136,12 +1367,30 @@ public class CodeGeneratorTest {
         "  }",
         "",
         "  /**",
+        "   * Allocates room for {@code expectedSize} elements in the list to be",
+        "   * returned from {@link Person#getAge()}, so adding them does not repeatedly grow",
+        "   * its storage.",
+        "   *",
+        "   * @return this {@code Builder} object",
+        "   */",
+        "  public Person.Builder ensureAgeCapacity(int expectedSize) {",
+        "    ensureAgeIsMutable();",
+        "    ((ArrayList<Integer>) this.age).ensureCapacity(expectedSize);",
+        "    return (Person.Builder) this;",
+        "  }",
+        "",
+        "  /**",
         "   * Clears the list to be returned from {@link Person#getAge()}.",
         "   *",
         "   * @return this {@code Builder} object",
         "   */",
         "  public Person.Builder clearAge() {",
-        "    this.age.clear();",
+        "    if (this.age instanceof ImmutableList) {",
+        "      this.age = ImmutableList.of();",
+        "    } else {",
+        "      this.age.clear();",
+        "    }",
+        "    _modCount++;",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -1151,7 +1400,11 @@ public class CodeGeneratorTest {
         "   * Changes to this builder will be reflected in the view.",
         "   */",
         "  public List<Integer> getAge() {",
-        "    return Collections.unmodifiableList(age);",
+        "    if (ageView == null) {",
+        "      ensureAgeIsMutable();",
+        "      ageView = Collections.unmodifiableList(age);",
+        "    }",
+        "    return ageView;",
         "  }",
         "",
         "  private static final class Value extends Person {",
@@ -1175,6 +1428,9 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Value)) {",
         "        return false;",
         "      }",
@@ -1190,14 +1446,20 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public int hashCode() {",
-        "      return Arrays.hashCode(new Object[] { name, age });",
+        "      int result = 1;",
+        "      result *= 31;",
+        "      result += name.hashCode();",
+        "      result *= 31;",
+        "      result += age.hashCode();",
+        "      return result;",
         "    }",
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"Person{\"",
-        "          + \"name=\" + name + \", \"",
-        "          + \"age=\" + age + \"}\";",
+        "      StringBuilder result = new StringBuilder(53).append(\"Person{\");",
+        "      result.append(\"name=\").append(name);",
+        "      result.append(\", age=\").append(age);",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -1205,15 +1467,27 @@ public class CodeGeneratorTest {
         "   * Returns a newly-created {@link Person} based on the contents of the {@code Builder}.",
         "   */",
         "  public Person build() {",
-        "    return new Person_Builder.Value(this);",
+        "    if (_built != null && _builtModCount == _modCount) {",
+        "      return _built;",
+        "    }",
+        "    _built = new Person_Builder.Value(this);",
+        "    _builtModCount = _modCount;",
+        "    return _built;",
         "  }",
         "",
         "  /**",
         "   * Sets all property values using the given {@code Person} as a template.",
         "   */",
         "  public Person.Builder mergeFrom(Person value) {",
+        "    // A builder populated solely from a value can return it from build().",
+        "    boolean _adoptValue = (_modCount == 0 && value instanceof Person_Builder.Value);",
+        "    _modCount++;",
         "    addAllName(value.getName());",
         "    addAllAge(value.getAge());",
+        "    if (_adoptValue) {",
+        "      _built = value;",
+        "      _builtModCount = _modCount;",
+        "    }",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -1221,6 +1495,7 @@ public class CodeGeneratorTest {
         "   * Copies values from the given {@code Builder}.",
         "   */",
         "  public Person.Builder mergeFrom(Person.Builder template) {",
+        "    _modCount++;",
         "    addAllName(((Person_Builder) template).name);",
         "    addAllAge(((Person_Builder) template).age);",
         "    return (Person.Builder) this;",
@@ -1230,8 +1505,17 @@ public class CodeGeneratorTest {
         "   * Resets the state of this builder.",
         "   */",
         "  public Person.Builder clear() {",
-        "    name.clear();",
-        "    age.clear();",
+        "    _modCount++;",
+        "    if (this.name instanceof ImmutableList) {",
+        "      this.name = ImmutableList.of();",
+        "    } else {",
+        "      this.name.clear();",
+        "    }",
+        "    if (this.age instanceof ImmutableList) {",
+        "      this.age = ImmutableList.of();",
+        "    } else {",
+        "      this.age.clear();",
+        "    }",
         "    return (Person.Builder) this;",
         "  }",
         "",
@@ -1256,6 +1540,9 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public boolean equals(Object obj) {",
+        "      if (obj == this) {",
+        "        return true;",
+        "      }",
         "      if (!(obj instanceof Person_Builder.Partial)) {",
         "        return false;",
         "      }",
@@ -1281,11 +1568,10 @@ public class CodeGeneratorTest {
         "",
         "    @Override",
         "    public String toString() {",
-        "      return \"partial Person{\"",
-        "          + COMMA_JOINER.join(",
-        "              \"name=\" + name,",
-        "              \"age=\" + age)",
-        "          + \"}\";",
+        "      StringBuilder result = new StringBuilder(61).append(\"partial Person{\");",
+        "      result.append(\"name=\").append(name);",
+        "      result.append(\", age=\").append(age);",
+        "      return result.append('}').toString();",
         "    }",
         "  }",
         "",
@@ -431,6 +431,38 @@ public class ListMultimapPropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testPutAllMultimap_propertyNamedMultimap() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, String> getMultimap();", ListMultimap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(testBuilder()
+            .addLine("%s<String, String> more = %s.create();",
+                ListMultimap.class, LinkedListMultimap.class)
+            .addLine("more.put(\"one\", \"C\");")
+            .addLine("DataType value = new DataType.Builder()")
+            .addLine("    .putAllMultimap(%s.of(\"one\", \"A\"))", ImmutableListMultimap.class)
+            .addLine("    .putAllMultimap(%s.of(\"two\", \"B\"))", ImmutableListMultimap.class)
+            .addLine("    .putAllMultimap(more)")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getMultimap())")
+            .addLine("    .contains(\"one\", \"A\")")
+            .addLine("    .and(\"one\", \"C\")")
+            .addLine("    .and(\"two\", \"B\")")
+            .addLine("    .andNothingElse()")
+            .addLine("    .inOrder();")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testPutAllMultimap_primitiveKey() {
     behaviorTester
@@ -870,4 +902,161 @@ public class ListMultimapPropertyFactoryTest {
         .addStaticImport(MultimapSubject.class, "assertThat")
         .addImport("com.example.DataType");
   }
+
+  @Test
+  public void testMultimapStorage_hashed() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(multimapStorage = %s.HASHED)",
+                FreeBuilder.class, FreeBuilder.MultimapStorage.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getItems();", ListMultimap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1)")
+            .addLine("    .putAllItems(\"two\", %s.of(2, 3));", ImmutableList.class)
+            .addLine("assertEquals(3, builder.getItems().size());")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(%s.of(\"one\", 1, \"two\", 2, \"two\", 3),",
+                ImmutableListMultimap.class)
+            .addLine("    value.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMultimapStorage_immutableBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(multimapStorage = %s.IMMUTABLE_BUILDER)",
+                FreeBuilder.class, FreeBuilder.MultimapStorage.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getItems();", ListMultimap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1);")
+            .addLine("%s<String, Integer> snapshot = builder.getItems();", ListMultimap.class)
+            .addLine("builder.putAllItems(%s.of(\"two\", 2, \"one\", 3));",
+                ImmutableListMultimap.class)
+            .addLine("assertEquals(%s.of(\"one\", 1), snapshot);", ImmutableListMultimap.class)
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(%s.of(\"one\", 1, \"one\", 3, \"two\", 2),",
+                ImmutableListMultimap.class)
+            .addLine("    value.getItems());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(builder)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertTrue(builder.clearItems().build().getItems().isEmpty());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMultimapStorage_immutableBuilder_buildAfterPutAllThrows() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(multimapStorage = %s.IMMUTABLE_BUILDER)",
+                FreeBuilder.class, FreeBuilder.MultimapStorage.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getItems();", ListMultimap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1);")
+            .addLine("assertEquals(1, builder.build().getItems().size());")
+            .addLine("%1$s<String, Integer> items = %1$s.create();", LinkedListMultimap.class)
+            .addLine("items.put(\"two\", 2);")
+            .addLine("items.put(\"three\", null);")
+            .addLine("try {")
+            .addLine("  builder.putAllItems(items);")
+            .addLine("  fail(\"Expected NullPointerException\");")
+            .addLine("} catch (NullPointerException expected) { }")
+            .addLine("assertEquals(builder.getItems(), builder.build().getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity() {
+    behaviorTester
+        .with(new Processor())
+        .with(MULTIMAP_PROPERTY)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putAllItems(%s.of(\"one\", \"A\", \"two\", \"B\"))",
+                ImmutableListMultimap.class)
+            .addLine("    .ensureItemsCapacity(100, 4)")
+            .addLine("    .putItems(\"one\", \"C\")")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(\"one\", \"A\", \"one\", \"C\", \"two\", \"B\"),",
+                ImmutableListMultimap.class)
+            .addLine("    value.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate() {
+    behaviorTester
+        .with(new Processor())
+        .with(MULTIMAP_PROPERTY)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", \"A\")")
+            .addLine("    .putItems(\"two\", \"B\")")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<String, String>>() {",
+                ListMultimap.class)
+            .addLine("          @Override public void accept(%s<String, String> items) {",
+                ListMultimap.class)
+            .addLine("            items.removeAll(\"one\");")
+            .addLine("            items.get(\"two\").add(\"C\");")
+            .addLine("            items.put(\"three\", \"D\");")
+            .addLine("          }")
+            .addLine("        })")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems())")
+            .addLine("    .isEqualTo(%s.of(\"two\", \"B\", \"two\", \"C\", \"three\", \"D\"));",
+                ImmutableListMultimap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_nullValueAddedThroughGet() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(MULTIMAP_PROPERTY)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<String, String>>() {",
+                ListMultimap.class)
+            .addLine("          @Override public void accept(%s<String, String> items) {",
+                ListMultimap.class)
+            .addLine("            items.get(\"one\").add(null);")
+            .addLine("          }")
+            .addLine("        });")
+            .build())
+        .runTest();
+  }
 }
@@ -15,6 +15,7 @@
  */
 package org.inferred.freebuilder.processor;
 
+import com.google.common.annotations.GwtCompatible;
 import com.google.common.collect.ImmutableList;
 import com.google.common.testing.EqualsTester;
 
@@ -29,8 +30,13 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 
 import javax.tools.JavaFileObject;
 
@@ -51,6 +57,23 @@ public class ListPropertyFactoryTest {
       .addLine("}")
       .build();
 
+  private static final JavaFileObject BUILDABLE_ELEMENT_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public interface DataType {")
+      .addLine("  @%s", FreeBuilder.class)
+      .addLine("  interface Item {")
+      .addLine("    String getName();")
+      .addLine("")
+      .addLine("    class Builder extends DataType_Item_Builder {}")
+      .addLine("  }")
+      .addLine("")
+      .addLine("  %s<Item> getItems();", List.class)
+      .addLine("")
+      .addLine("  class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
   @Rule public final ExpectedException thrown = ExpectedException.none();
   private final BehaviorTester behaviorTester = new BehaviorTester();
 
@@ -202,6 +225,111 @@ public class ListPropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testGetter_returnsLiveView_acrossBuilderClear() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("%s<String> itemsView = builder.getItems();", List.class)
+            .addLine("builder.addItems(\"one\", \"two\").clear();")
+            .addLine("assertThat(itemsView).isEmpty();")
+            .addLine("builder.addItems(\"three\");")
+            .addLine("assertThat(itemsView).containsExactly(\"three\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testGetter_returnsSameView() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(%s.of(\"one\"));", ImmutableList.class)
+            .addLine("%s<String> itemsView = builder.getItems();", List.class)
+            .addLine("builder.addItems(\"two\").clearItems().addItems(\"three\");")
+            .addLine("assertSame(itemsView, builder.getItems());")
+            .addLine("assertThat(itemsView).containsExactly(\"three\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_emptyListIsSharedInstance() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder().build();")
+            .addLine("assertSame(%s.of(), value.getItems());", ImmutableList.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddAllImmutableList_isNotCopied() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("%1$s<String> items = %1$s.of(\"one\", \"two\");", ImmutableList.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(items)")
+            .addLine("    .build();")
+            .addLine("assertSame(items, value.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddAllImmutableList_copiedOnModification() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("%1$s<String> items = %1$s.of(\"one\", \"two\");", ImmutableList.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(items)")
+            .addLine("    .addItems(\"three\")")
+            .addLine("    .addAllItems(items)")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems())")
+            .addLine("    .containsExactly(\"one\", \"two\", \"three\", \"one\", \"two\")")
+            .addLine("    .inOrder();")
+            .addLine("assertThat(items).containsExactly(\"one\", \"two\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddAllImmutableList_propertyNamedElements() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public interface DataType {")
+            .addLine("  %s<String> getElements();", List.class)
+            .addLine("")
+            .addLine("  class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addAllElements(%s.of(\"one\", \"two\"))", ImmutableList.class)
+            .addLine("    .addAllElements(%s.of(\"three\"))", ImmutableList.class)
+            .addLine("    .addAllElements(%s.asList(\"four\"))", Arrays.class)
+            .addLine("    .build();")
+            .addLine("assertThat(value.getElements())")
+            .addLine("    .containsExactly(\"one\", \"two\", \"three\", \"four\")")
+            .addLine("    .inOrder();")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testGetter_returnsUnmodifiableList() {
     thrown.expect(UnsupportedOperationException.class);
@@ -407,4 +535,494 @@ public class ListPropertyFactoryTest {
             .build())
         .runTest();
   }
+
+  @Test
+  public void testCompactPrimitiveLists() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveLists = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer> getItems();", List.class)
+            .addLine("  public abstract %s<Long> getIds();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(1, 2)")
+            .addLine("    .addIds(5L);")
+            .addLine("%s<Integer> itemsView = builder.getItems();", List.class)
+            .addLine("for (int i = 3; i <= 100; i++) {")
+            .addLine("  builder.addItems(i);")
+            .addLine("}")
+            .addLine("assertEquals(100, itemsView.size());")
+            .addLine("assertEquals(100, (int) itemsView.get(99));")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(100, value.getItems().size());")
+            .addLine("assertEquals(%s.of(5L), value.getIds());", ImmutableList.class)
+            .addLine("builder.clearItems().addAllItems(%s.of(7, 8));", ImmutableList.class)
+            .addLine("assertThat(itemsView).containsExactly(7, 8).inOrder();")
+            .addLine("assertEquals(100, value.getItems().size());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertEquals(value.hashCode(), copy.hashCode());")
+            .addLine("assertEquals(value.toString(), copy.toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCompactPrimitiveLists_valueIsUnmodifiable() {
+    thrown.expect(UnsupportedOperationException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveLists = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(1, 2)")
+            .addLine("    .build();")
+            .addLine("value.getItems().set(0, 3);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCompactPrimitiveLists_addAllImmutableListIsStoredCompactly() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveLists = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("%1$s<Integer> items = %1$s.of(1, 2, 3);", ImmutableList.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(items)")
+            .addLine("    .build();")
+            .addLine("assertEquals(items, value.getItems());")
+            .addLine("assertFalse(value.getItems() instanceof %s);", ImmutableList.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCompactPrimitiveLists_serializable() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveLists = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(1, 2)")
+            .addLine("    .build();")
+            .addLine("assertTrue(value.getItems() instanceof %s);", Serializable.class)
+            .addLine("assertEquals(0L, %s.lookup(", ObjectStreamClass.class)
+            .addLine("    Class.forName(\"com.example.DataType_Builder$ItemsPrimitiveList\"))")
+            .addLine("    .getSerialVersionUID());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testImmutableCollectionBuilders() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(immutableCollectionBuilders = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String> getNames();", List.class)
+            .addLine("  public abstract %s<Integer> getCounts();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addNames(\"one\", \"two\")")
+            .addLine("    .addCounts(1);")
+            .addLine("%s<String> snapshot = builder.getNames();", List.class)
+            .addLine("builder.addAllNames(%s.of(\"three\"));", ImmutableList.class)
+            .addLine("assertThat(snapshot).containsExactly(\"one\", \"two\").inOrder();")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertThat(value.getNames()).containsExactly(\"one\", \"two\", \"three\")")
+            .addLine("    .inOrder();")
+            .addLine("assertThat(value.getCounts()).containsExactly(1);")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(builder)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("builder.clearNames().clearCounts();")
+            .addLine("assertThat(builder.build().getNames()).isEmpty();")
+            .addLine("assertThat(value.getNames()).hasSize(3);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testImmutableCollectionBuilders_buildAfterAddAllThrows() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(immutableCollectionBuilders = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String> getNames();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addNames(\"one\");")
+            .addLine("assertThat(builder.build().getNames()).containsExactly(\"one\");")
+            .addLine("try {")
+            .addLine("  builder.addAllNames(%s.asList(\"two\", null));", Arrays.class)
+            .addLine("  fail(\"Expected NullPointerException\");")
+            .addLine("} catch (NullPointerException expected) { }")
+            .addLine("assertEquals(builder.getNames(), builder.build().getNames());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(%s.of(\"one\", \"two\"))", ImmutableList.class)
+            .addLine("    .ensureItemsCapacity(100)")
+            .addLine("    .addItems(\"three\")")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"one\", \"two\", \"three\")")
+            .addLine("    .inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\", \"two\", \"three\")")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {", List.class)
+            .addLine("      @Override public void accept(%s<String> items) {", List.class)
+            .addLine("        items.remove(\"one\");")
+            .addLine("        items.set(0, \"TWO\");")
+            .addLine("        items.add(0, \"zero\");")
+            .addLine("        items.subList(1, 2).add(\"two and a half\");")
+            .addLine("      }")
+            .addLine("    })")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems())")
+            .addLine("    .containsExactly(\"zero\", \"TWO\", \"two and a half\", \"three\")")
+            .addLine("    .inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_nullElement() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\")")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {", List.class)
+            .addLine("      @Override public void accept(%s<String> items) {", List.class)
+            .addLine("        %s<String> iterator = items.listIterator();", ListIterator.class)
+            .addLine("        iterator.next();")
+            .addLine("        iterator.set(null);")
+            .addLine("      }")
+            .addLine("    });")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_afterMutatorThrows() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\");")
+            .addLine("assertThat(builder.build().getItems()).containsExactly(\"one\");")
+            .addLine("try {")
+            .addLine("  builder.mutateItems(new java.util.function.Consumer<%s<String>>() {",
+                List.class)
+            .addLine("    @Override public void accept(%s<String> items) {", List.class)
+            .addLine("      items.add(\"two\");")
+            .addLine("      throw new IllegalStateException();")
+            .addLine("    }")
+            .addLine("  });")
+            .addLine("  fail(\"Expected IllegalStateException\");")
+            .addLine("} catch (IllegalStateException expected) { }")
+            .addLine("assertThat(builder.build().getItems())")
+            .addLine("    .containsExactly(\"one\", \"two\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_viewUsedAfterReturn() {
+    behaviorTester
+        .with(new Processor())
+        .with(LIST_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("final %1$s<%2$s<String>> views = new %1$s<%2$s<String>>();",
+                ArrayList.class, List.class)
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {",
+                List.class)
+            .addLine("      @Override public void accept(%s<String> items) {", List.class)
+            .addLine("        items.add(\"a\");")
+            .addLine("        views.add(items);")
+            .addLine("      }")
+            .addLine("    });")
+            .addLine("assertThat(builder.build().getItems()).containsExactly(\"a\");")
+            .addLine("try {")
+            .addLine("  views.get(0).add(\"b\");")
+            .addLine("  fail(\"Expected IllegalStateException\");")
+            .addLine("} catch (IllegalStateException expected) {")
+            .addLine("  assertEquals(\"View passed to mutateItems used after it returned\",")
+            .addLine("      expected.getMessage());")
+            .addLine("}")
+            .addLine("assertThat(builder.build().getItems()).containsExactly(\"a\");")
+            .addLine("assertThat(builder.getItems()).containsExactly(\"a\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_notGeneratedForGwtCompatibleType() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("@%s", GwtCompatible.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("for (%s method : com.example.DataType.Builder.class.getMethods()) {",
+                java.lang.reflect.Method.class)
+            .addLine("  assertFalse(method.toString(), method.getName().startsWith(\"mutate\"));")
+            .addLine("}")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_compactPrimitiveLists() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveLists = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(1, 2, 3)")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<Integer>>() {",
+                List.class)
+            .addLine("      @Override public void accept(%s<Integer> items) {", List.class)
+            .addLine("        items.remove(0);")
+            .addLine("        items.set(1, 30);")
+            .addLine("        items.add(1, 25);")
+            .addLine("      }")
+            .addLine("    })")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(2, 25, 30).inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_immutableCollectionBuilders() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(immutableCollectionBuilders = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\", \"two\")")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {", List.class)
+            .addLine("      @Override public void accept(%s<String> items) {", List.class)
+            .addLine("        items.remove(\"one\");")
+            .addLine("        items.add(\"three\");")
+            .addLine("      }")
+            .addLine("    })")
+            .addLine("    .addItems(\"four\")")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"two\", \"three\", \"four\")")
+            .addLine("    .inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_ELEMENT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(")
+            .addLine("        new com.example.DataType.Item.Builder().setName(\"a\").build());")
+            .addLine("com.example.DataType.Item.Builder b = builder.addItemsBuilder();")
+            .addLine("builder.addItems(")
+            .addLine("    new com.example.DataType.Item.Builder().setName(\"c\").build());")
+            .addLine("b.setName(\"b\");")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(\"b\", value.getItems().get(1).getName());")
+            .addLine("assertEquals(3, value.getItems().size());")
+            .addLine("assertEquals(\"c\", value.getItems().get(2).getName());")
+            .addLine("b.setName(\"B\");")
+            .addLine("assertEquals(\"B\", builder.build().getItems().get(1).getName());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddBuilder_unsetPropertyFailsOnBuild() {
+    thrown.expect(IllegalStateException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_ELEMENT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("builder.addItemsBuilder();")
+            .addLine("builder.build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddBuilder_getterBuildsElements() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_ELEMENT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("%s<com.example.DataType.Item> view = builder.getItems();", List.class)
+            .addLine("builder.addItemsBuilder().setName(\"a\");")
+            .addLine("builder.addItems(")
+            .addLine("    new com.example.DataType.Item.Builder().setName(\"b\").build());")
+            .addLine("assertEquals(\"a\", builder.getItems().get(0).getName());")
+            .addLine("assertEquals(\"b\", view.get(1).getName());")
+            .addLine("builder.clearItems();")
+            .addLine("builder.addItemsBuilder().setName(\"c\");")
+            .addLine("assertThat(builder.build().getItems()).hasSize(1);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddBuilder_changedAfterGetterFailsOnBuild() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Builder returned by addItemsBuilder() changed after being built");
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_ELEMENT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("com.example.DataType.Item.Builder b = builder.addItemsBuilder();")
+            .addLine("b.setName(\"a\");")
+            .addLine("assertEquals(\"a\", builder.getItems().get(0).getName());")
+            .addLine("b.setName(\"b\");")
+            .addLine("builder.build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddBuilder_changedAfterGetterAndClear() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_ELEMENT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("com.example.DataType.Item.Builder b = builder.addItemsBuilder();")
+            .addLine("b.setName(\"a\");")
+            .addLine("assertEquals(\"a\", builder.getItems().get(0).getName());")
+            .addLine("builder.clearItems();")
+            .addLine("b.setName(\"b\");")
+            .addLine("builder.addItemsBuilder().setName(\"c\");")
+            .addLine("assertEquals(\"c\", builder.build().getItems().get(0).getName());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAddBuilder_mergeFromBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_ELEMENT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder();")
+            .addLine("template.addItemsBuilder().setName(\"a\");")
+            .addLine("template.addItems(")
+            .addLine("    new com.example.DataType.Item.Builder().setName(\"b\").build());")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(")
+            .addLine("        new com.example.DataType.Item.Builder().setName(\"z\").build())")
+            .addLine("    .mergeFrom(template);")
+            .addLine("template.clearItems();")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(3, value.getItems().size());")
+            .addLine("assertEquals(\"z\", value.getItems().get(0).getName());")
+            .addLine("assertEquals(\"a\", value.getItems().get(1).getName());")
+            .addLine("assertEquals(\"b\", value.getItems().get(2).getName());")
+            .build())
+        .runTest();
+  }
 }
@@ -29,6 +29,9 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.Field;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -78,6 +81,23 @@ public class MapPropertyFactoryTest {
       .addLine("}")
       .build();
 
+  private static final JavaFileObject BUILDABLE_VALUE_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public interface DataType {")
+      .addLine("  @%s", FreeBuilder.class)
+      .addLine("  interface Item {")
+      .addLine("    String getName();")
+      .addLine("")
+      .addLine("    class Builder extends DataType_Item_Builder {}")
+      .addLine("  }")
+      .addLine("")
+      .addLine("  %s<String, Item> getItems();", Map.class)
+      .addLine("")
+      .addLine("  class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
   @Rule public final ExpectedException thrown = ExpectedException.none();
   private final BehaviorTester behaviorTester = new BehaviorTester();
 
@@ -93,6 +113,18 @@ public class MapPropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testDefaultEmpty_sharedInstance() {
+    behaviorTester
+        .with(new Processor())
+        .with(MAP_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder().build();")
+            .addLine("assertSame(%s.of(), value.getItems());", ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testPut_nonNullKey_nonNullValue() {
     behaviorTester
@@ -242,6 +274,35 @@ public class MapPropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testPutAll_propertyNamedMap() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public interface DataType {")
+            .addLine("  %s<String, Integer> getMap();", Map.class)
+            .addLine("")
+            .addLine("  class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("%s<String, Integer> more = new %s<String, Integer>();",
+                Map.class, LinkedHashMap.class)
+            .addLine("more.put(\"three\", 3);")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putAllMap(%s.of(\"one\", 1))", ImmutableMap.class)
+            .addLine("    .putAllMap(%s.of(\"two\", 2))", ImmutableMap.class)
+            .addLine("    .putAllMap(more)")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getMap())")
+            .addLine("    .isEqualTo(%s.of(\"one\", 1, \"two\", 2, \"three\", 3));",
+                ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testPutAll_nullKey() {
     thrown.expect(NullPointerException.class);
@@ -292,6 +353,49 @@ public class MapPropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testBuild_afterPutAllDuplicate() {
+    behaviorTester
+        .with(new Processor())
+        .with(MAP_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"bar\", \"baz\");")
+            .addLine("assertEquals(1, builder.build().getItems().size());")
+            .addLine("try {")
+            .addLine("  builder.putAllItems(%s.of(\"three\", 3, \"bar\", \"baz\"));",
+                ImmutableMap.class)
+            .addLine("  fail(\"Expected IllegalArgumentException\");")
+            .addLine("} catch (IllegalArgumentException expected) { }")
+            .addLine("assertEquals(builder.getItems(), builder.build().getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutAll_immutableMapIsNotCopied() {
+    behaviorTester
+        .with(new Processor())
+        .with(MAP_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("%1$s<String, String> items = %1$s.of(\"one\", \"A\", \"two\", \"B\");",
+                ImmutableMap.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putAllItems(items)")
+            .addLine("    .build();")
+            .addLine("assertSame(items, value.getItems());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .putItems(\"three\", \"C\")")
+            .addLine("    .build();")
+            .addLine("assertThat(copy.getItems()).isEqualTo(%s.of(",
+                ImmutableMap.class)
+            .addLine("    \"one\", \"A\", \"two\", \"B\", \"three\", \"C\"));")
+            .addLine("assertEquals(2, items.size());")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testRemove() {
     behaviorTester
@@ -422,6 +526,22 @@ public class MapPropertyFactoryTest {
         .runTest();
   }
 
+  @Test
+  public void testGet_returnsSameView() {
+    behaviorTester
+        .with(new Processor())
+        .with(MAP_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putAllItems(%s.of(\"one\", 1));", ImmutableMap.class)
+            .addLine("%s<String, Object> itemsView = builder.getItems();", Map.class)
+            .addLine("builder.putItems(\"two\", 2).clearItems().putItems(\"three\", 3);")
+            .addLine("assertSame(itemsView, builder.getItems());")
+            .addLine("assertThat(itemsView).isEqualTo(%s.of(\"three\", 3));", ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testGet_returnsUnmodifiableMap() {
     thrown.expect(UnsupportedOperationException.class);
@@ -698,4 +818,466 @@ public class MapPropertyFactoryTest {
             .build())
         .runTest();
   }
+
+  @Test
+  public void testCompactPrimitiveMaps() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveMaps = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer, Double> getWeights();", Map.class)
+            .addLine("  public abstract %s<Long, Boolean> getFlags();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putFlags(5L, true);")
+            .addLine("for (int i = 0; i < 1000; i++) {")
+            .addLine("  builder.putWeights(i * 31, i / 2.0);")
+            .addLine("}")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(1000, value.getWeights().size());")
+            .addLine("for (int i = 0; i < 1000; i++) {")
+            .addLine("  assertEquals(i / 2.0, value.getWeights().get(i * 31), 0.0);")
+            .addLine("}")
+            .addLine("assertFalse(value.getWeights().containsKey(1));")
+            .addLine("assertNull(value.getWeights().get(1L));")
+            .addLine("assertEquals(0, (int) value.getWeights().keySet().iterator().next());")
+            .addLine("assertEquals(%s.of(5L, true), value.getFlags());", ImmutableMap.class)
+            .addLine("%s<Integer, Double> expected = new %s<Integer, Double>();",
+                Map.class, LinkedHashMap.class)
+            .addLine("for (int i = 0; i < 1000; i++) {")
+            .addLine("  expected.put(i * 31, i / 2.0);")
+            .addLine("}")
+            .addLine("assertEquals(expected, value.getWeights());")
+            .addLine("assertEquals(expected.hashCode(), value.getWeights().hashCode());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .putWeights(-1, 0.5)")
+            .addLine("    .removeWeights(-1)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertEquals(value.hashCode(), copy.hashCode());")
+            .addLine("assertEquals(value.toString(), copy.toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCompactPrimitiveMaps_valueIsUnmodifiable() {
+    thrown.expect(UnsupportedOperationException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveMaps = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer, Double> getWeights();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putWeights(1, 2.0)")
+            .addLine("    .build();")
+            .addLine("value.getWeights().entrySet().iterator().remove();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCompactPrimitiveMaps_putAllImmutableMapIsStoredCompactly() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveMaps = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer, Double> getWeights();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("%1$s<Integer, Double> weights = %1$s.of(1, 2.0, 3, 4.0);",
+                ImmutableMap.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putAllWeights(weights)")
+            .addLine("    .build();")
+            .addLine("assertEquals(weights, value.getWeights());")
+            .addLine("assertFalse(value.getWeights() instanceof %s);", ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCompactPrimitiveMaps_serializable() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(compactPrimitiveMaps = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer, Double> getWeights();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putWeights(1, 2.0)")
+            .addLine("    .putWeights(3, 4.0)")
+            .addLine("    .build();")
+            .addLine("assertTrue(value.getWeights() instanceof %s);", Serializable.class)
+            .addLine("assertEquals(0L, %s.lookup(", ObjectStreamClass.class)
+            .addLine("    Class.forName(\"com.example.DataType_Builder$WeightsPrimitiveMap\"))")
+            .addLine("    .getSerialVersionUID());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnumKeys() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public enum Region { NORTH, SOUTH, EAST, WEST }")
+            .addLine("")
+            .addLine("  public abstract %s<Region, Integer> getCounts();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addImport("com.example.DataType.Region")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putCounts(Region.WEST, 4)")
+            .addLine("    .putCounts(Region.NORTH, 1);")
+            .addLine("assertThat(builder.getCounts().keySet())")
+            .addLine("    .containsExactly(Region.NORTH, Region.WEST).inOrder();")
+            .addLine("com.example.DataType value = builder.putCounts(Region.EAST, 3).build();")
+            .addLine("assertThat(value.getCounts().keySet())")
+            .addLine("    .containsExactly(Region.NORTH, Region.EAST, Region.WEST).inOrder();")
+            .addLine("assertEquals(3, (int) value.getCounts().get(Region.EAST));")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .putAllCounts(%s.of(Region.EAST, 3, Region.WEST, 4, Region.NORTH, 1))",
+                ImmutableMap.class)
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertEquals(value.toString(), copy.toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testImmutableCollectionBuilders() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(immutableCollectionBuilders = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getCounts();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putCounts(\"one\", 1)")
+            .addLine("    .putCounts(\"two\", 2);")
+            .addLine("%s<String, Integer> snapshot = builder.getCounts();", Map.class)
+            .addLine("builder.putAllCounts(%s.of(\"three\", 3)).removeCounts(\"one\");",
+                ImmutableMap.class)
+            .addLine("assertEquals(%s.of(\"one\", 1, \"two\", 2), snapshot);",
+                ImmutableMap.class)
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(%s.of(\"two\", 2, \"three\", 3), value.getCounts());",
+                ImmutableMap.class)
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(builder)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertEquals(%s.of(), builder.clearCounts().build().getCounts());",
+                ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testImmutableCollectionBuilders_duplicateKeyFailsOnBuild() {
+    thrown.expect(IllegalArgumentException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(immutableCollectionBuilders = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getCounts();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .putCounts(\"one\", 1)")
+            .addLine("    .putCounts(\"one\", 2)")
+            .addLine("    .build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity_inBuilderConstructor() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getItems();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {")
+            .addLine("    public Builder() {")
+            .addLine("      ensureItemsCapacity(1000);")
+            .addLine("    }")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("%s<String, Integer> entries = new %s<String, Integer>();",
+                Map.class, LinkedHashMap.class)
+            .addLine("for (int i = 0; i < 1000; i++) {")
+            .addLine("  entries.put(\"key\" + i, i);")
+            .addLine("}")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putAllItems(entries);")
+            .addLine("assertEquals(entries, builder.build().getItems());")
+            .addLine("builder.clear().putItems(\"one\", 1);")
+            .addLine("assertEquals(%s.of(\"one\", 1), builder.build().getItems());",
+                ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity_afterPut_rebuildsUnlessViewed() {
+    behaviorTester
+        .with(new Processor())
+        .with(MAP_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1)")
+            .addLine("    .putItems(\"two\", 2);")
+            .addLine("%s field = builder.getClass().getSuperclass().getDeclaredField(\"items\");",
+                Field.class)
+            .addLine("field.setAccessible(true);")
+            .addLine("Object storage = field.get(builder);")
+            .addLine("builder.ensureItemsCapacity(4);")
+            .addLine("assertSame(storage, field.get(builder));")
+            .addLine("builder.ensureItemsCapacity(1000);")
+            .addLine("assertNotSame(storage, field.get(builder));")
+            .addLine("%s<String, Object> view = builder.getItems();", Map.class)
+            .addLine("storage = field.get(builder);")
+            .addLine("builder.ensureItemsCapacity(100000).putItems(\"three\", 3);")
+            .addLine("assertSame(storage, field.get(builder));")
+            .addLine("assertThat(view.keySet())")
+            .addLine("    .containsExactly(\"one\", \"two\", \"three\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate() {
+    behaviorTester
+        .with(new Processor())
+        .with(PRIMITIVE_KEY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(1, \"one\")")
+            .addLine("    .putItems(2, \"two\")")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<Integer, String>>() {", Map.class)
+            .addLine("          @Override public void accept(%s<Integer, String> items) {",
+                Map.class)
+            .addLine("            items.remove(1);")
+            .addLine("            items.put(3, \"three\");")
+            .addLine("            items.entrySet().iterator().next().setValue(\"TWO\");")
+            .addLine("          }")
+            .addLine("        })")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(2, \"TWO\", 3, \"three\"), value.getItems());",
+                ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_nullValueSetThroughEntry() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(PRIMITIVE_KEY_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .putItems(1, \"one\")")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<Integer, String>>() {", Map.class)
+            .addLine("          @Override public void accept(%s<Integer, String> items) {",
+                Map.class)
+            .addLine("            items.entrySet().iterator().next().setValue(null);")
+            .addLine("          }")
+            .addLine("        });")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_immutableCollectionBuilders() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(immutableCollectionBuilders = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<Integer, String> getItems();", Map.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(1, \"one\")")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<Integer, String>>() {", Map.class)
+            .addLine("          @Override public void accept(%s<Integer, String> items) {",
+                Map.class)
+            .addLine("            items.put(2, \"two\");")
+            .addLine("          }")
+            .addLine("        })")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(1, \"one\", 2, \"two\"), value.getItems());",
+                ImmutableMap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_VALUE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("com.example.DataType.Item.Builder b = builder.putItemsBuilder(\"b\");")
+            .addLine("builder.putItems(")
+            .addLine("    \"a\", new com.example.DataType.Item.Builder().setName(\"A\").build());")
+            .addLine("b.setName(\"B\");")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertThat(value.getItems().keySet())")
+            .addLine("    .containsExactly(\"a\", \"b\").inOrder();")
+            .addLine("assertEquals(\"B\", value.getItems().get(\"b\").getName());")
+            .addLine("b.setName(\"BB\");")
+            .addLine("assertEquals(\"BB\", builder.build().getItems().get(\"b\").getName());")
+            .addLine("assertEquals(\"BB\", builder.getItems().get(\"b\").getName());")
+            .addLine("assertEquals(\"BB\", builder.build().getItems().get(\"b\").getName());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutBuilder_changedAfterGetterFailsOnBuild() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("Builder returned by putItemsBuilder() changed after being built");
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_VALUE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("com.example.DataType.Item.Builder b = builder.putItemsBuilder(\"b\");")
+            .addLine("b.setName(\"B\");")
+            .addLine("assertEquals(\"B\", builder.getItems().get(\"b\").getName());")
+            .addLine("b.setName(\"BB\");")
+            .addLine("builder.build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutBuilder_changedAfterGetterAndRemove() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_VALUE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("com.example.DataType.Item.Builder b = builder.putItemsBuilder(\"b\");")
+            .addLine("b.setName(\"B\");")
+            .addLine("builder.putItemsBuilder(\"c\").setName(\"C\");")
+            .addLine("assertEquals(\"B\", builder.getItems().get(\"b\").getName());")
+            .addLine("builder.removeItems(\"b\");")
+            .addLine("b.setName(\"BB\");")
+            .addLine("assertThat(builder.build().getItems().keySet()).containsExactly(\"c\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutBuilder_duplicateKey() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Key already present in items: b");
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_VALUE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("builder.putItemsBuilder(\"b\");")
+            .addLine("builder.putItems(")
+            .addLine("    \"b\", new com.example.DataType.Item.Builder().setName(\"B\").build());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutBuilder_remove() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_VALUE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("builder.putItemsBuilder(\"a\").setName(\"A\");")
+            .addLine("builder.putItemsBuilder(\"b\").setName(\"B\");")
+            .addLine("builder.removeItems(\"a\");")
+            .addLine("builder.putItemsBuilder(\"a\").setName(\"AA\");")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertThat(value.getItems().keySet())")
+            .addLine("    .containsExactly(\"b\", \"a\").inOrder();")
+            .addLine("assertEquals(\"AA\", value.getItems().get(\"a\").getName());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutBuilder_mergeFromBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(BUILDABLE_VALUE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder();")
+            .addLine("template.putItemsBuilder(\"a\").setName(\"A\");")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .build();")
+            .addLine("template.clearItems();")
+            .addLine("assertEquals(\"A\", value.getItems().get(\"a\").getName());")
+            .build())
+        .runTest();
+  }
 }
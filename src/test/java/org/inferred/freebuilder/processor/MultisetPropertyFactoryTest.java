@@ -831,4 +831,62 @@ public class MultisetPropertyFactoryTest {
             .build())
         .runTest();
   }
+
+  @Test
+  public void testEnsureCapacity() {
+    behaviorTester
+        .with(new Processor())
+        .with(MULTISET_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(%s.of(\"one\", \"two\", \"one\"))",
+                ImmutableMultiset.class)
+            .addLine("    .ensureItemsCapacity(100)")
+            .addLine("    .addItems(\"three\", \"one\")")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(\"one\", \"one\", \"one\", \"two\", \"three\"),",
+                ImmutableMultiset.class)
+            .addLine("    value.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate() {
+    behaviorTester
+        .with(new Processor())
+        .with(MULTISET_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\", \"two\")")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {",
+                Multiset.class)
+            .addLine("      @Override public void accept(%s<String> items) {", Multiset.class)
+            .addLine("        items.remove(\"one\");")
+            .addLine("        items.setCount(\"two\", 3);")
+            .addLine("      }")
+            .addLine("    })")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"two\", \"two\", \"two\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_nullElement() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(MULTISET_PROPERTY_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {",
+                Multiset.class)
+            .addLine("      @Override public void accept(%s<String> items) {", Multiset.class)
+            .addLine("        items.add(null, 2);")
+            .addLine("      }")
+            .addLine("    });")
+            .build())
+        .runTest();
+  }
 }
@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.testing.EqualsTester;
 
 import org.inferred.freebuilder.FreeBuilder;
+import org.inferred.freebuilder.FreeBuilder.OptionalStorage;
 import org.inferred.freebuilder.processor.Processor;
 import org.inferred.freebuilder.processor.util.testing.BehaviorTester;
 import org.inferred.freebuilder.processor.util.testing.SourceBuilder;
@@ -76,6 +77,21 @@ public class OptionalPropertyFactoryTest {
       .addLine("}")
       .build();
 
+  private static final JavaFileObject OPTIONAL_INSTANCE_STORAGE_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s(optionalStorage = %s.OPTIONAL_INSTANCE)",
+          FreeBuilder.class, OptionalStorage.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract %s<%s> getItem();", Optional.class, String.class)
+      .addLine("  public abstract %s<Integer> getCount();", Optional.class)
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("  public static Builder builder() {")
+      .addLine("    return new Builder();")
+      .addLine("  }")
+      .addLine("}")
+      .build();
+
   @Rule public final ExpectedException thrown = ExpectedException.none();
   private final BehaviorTester behaviorTester = new BehaviorTester();
 
@@ -800,4 +816,82 @@ public class OptionalPropertyFactoryTest {
             .build())
         .runTest();
   }
+
+  @Test
+  public void testOptionalInstanceStorage_getterDoesNotAllocate() {
+    behaviorTester
+        .with(new Processor())
+        .with(OPTIONAL_INSTANCE_STORAGE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = com.example.DataType.builder()")
+            .addLine("    .setItem(\"item\")")
+            .addLine("    .setCount(3)")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(\"item\"), value.getItem());", Optional.class)
+            .addLine("assertSame(value.getItem(), value.getItem());")
+            .addLine("assertEquals(%s.of(3), value.getCount());", Optional.class)
+            .addLine("assertSame(value.getCount(), value.getCount());")
+            .addLine("com.example.DataType empty = com.example.DataType.builder().build();")
+            .addLine("assertSame(%s.absent(), empty.getItem());", Optional.class)
+            .addLine("assertSame(%s.absent(), empty.getCount());", Optional.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testOptionalInstanceStorage_builder() {
+    behaviorTester
+        .with(new Processor())
+        .with(OPTIONAL_INSTANCE_STORAGE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = com.example.DataType.builder();")
+            .addLine("assertEquals(%s.absent(), builder.getCount());", Optional.class)
+            .addLine("builder.setCount(0);")
+            .addLine("assertEquals(%s.of(0), builder.getCount());", Optional.class)
+            .addLine("builder.setNullableCount(null);")
+            .addLine("assertEquals(%s.absent(), builder.getCount());", Optional.class)
+            .addLine("builder.setCount(%s.of(5));", Optional.class)
+            .addLine("com.example.DataType copy = com.example.DataType.builder()")
+            .addLine("    .mergeFrom(builder)")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(5), copy.getCount());", Optional.class)
+            .addLine("builder.clearCount();")
+            .addLine("assertEquals(%s.absent(), builder.build().getCount());", Optional.class)
+            .addLine("builder.setCount(7).clear();")
+            .addLine("assertEquals(%s.absent(), builder.getCount());", Optional.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testOptionalInstanceStorage_equalityAndToString() {
+    behaviorTester
+        .with(new Processor())
+        .with(OPTIONAL_INSTANCE_STORAGE_TYPE)
+        .with(new TestBuilder()
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        com.example.DataType.builder().build(),")
+            .addLine("        com.example.DataType.builder().setNullableCount(null).build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        com.example.DataType.builder().setCount(1).build(),")
+            .addLine("        com.example.DataType.builder().setCount(%s.of(1)).build())",
+                Optional.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        com.example.DataType.builder().setItem(\"x\").build())")
+            .addLine("    .testEquals();")
+            .addLine("assertEquals(\"DataType{}\",")
+            .addLine("    com.example.DataType.builder().build().toString());")
+            .addLine("assertEquals(\"DataType{item=x, count=1}\", com.example.DataType.builder()")
+            .addLine("    .setItem(\"x\")")
+            .addLine("    .setCount(1)")
+            .addLine("    .build()")
+            .addLine("    .toString());")
+            .addLine("assertEquals(\"partial DataType{count=1}\", com.example.DataType.builder()")
+            .addLine("    .setCount(1)")
+            .addLine("    .buildPartial()")
+            .addLine("    .toString());")
+            .build())
+        .runTest();
+  }
 }
@@ -16,9 +16,12 @@
 package org.inferred.freebuilder.processor;
 
 import com.google.common.annotations.GwtCompatible;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ClassToInstanceMap;
 import com.google.common.collect.MutableClassToInstanceMap;
+import com.google.common.io.Files;
 import com.google.common.testing.EqualsTester;
 import com.google.gwt.user.client.rpc.SerializationException;
 import com.google.gwt.user.server.rpc.RPC;
@@ -33,19 +36,23 @@ import org.inferred.freebuilder.processor.util.testing.TestBuilder;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
@@ -138,6 +145,7 @@ public class ProcessorTest {
       .build();
 
   @Rule public final ExpectedException thrown = ExpectedException.none();
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
   private final BehaviorTester behaviorTester = new BehaviorTester();
 
   @Test
@@ -432,6 +440,40 @@ public class ProcessorTest {
         .runTest();
   }
 
+  @Test
+  public void testClear_restoresConstructorDefaultsEachTime() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract int getPropertyA();")
+            .addLine("  public abstract %s<String> getPropertyB();", Optional.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {")
+            .addLine("    public Builder() {")
+            .addLine("      setPropertyA(5);")
+            .addLine("      setPropertyB(\"default\");")
+            .addLine("    }")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder first = new com.example.DataType.Builder();")
+            .addLine("com.example.DataType.Builder second = new com.example.DataType.Builder();")
+            .addLine("first.setPropertyA(11).setPropertyB(\"foo\").clear();")
+            .addLine("first.setPropertyA(12).clearPropertyB();")
+            .addLine("second.setPropertyA(13).clear();")
+            .addLine("assertEquals(5, second.getPropertyA());")
+            .addLine("assertEquals(%s.of(\"default\"), second.getPropertyB());", Optional.class)
+            .addLine("first.clear();")
+            .addLine("assertEquals(5, first.getPropertyA());")
+            .addLine("assertEquals(%s.of(\"default\"), first.getPropertyB());", Optional.class)
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testClear_implicitConstructor() {
     thrown.expect(IllegalStateException.class);
@@ -770,6 +812,194 @@ public class ProcessorTest {
         .runTest();
   }
 
+  @Test
+  public void testHashCode_matchesArraysHashCode() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract boolean isA();")
+            .addLine("  public abstract byte getB();")
+            .addLine("  public abstract short getC();")
+            .addLine("  public abstract char getD();")
+            .addLine("  public abstract int getE();")
+            .addLine("  public abstract long getF();")
+            .addLine("  public abstract float getG();")
+            .addLine("  public abstract double getH();")
+            .addLine("  public abstract String getI();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("  public static Builder builder() {")
+            .addLine("    return new Builder();")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = com.example.DataType.builder()")
+            .addLine("    .setA(true)")
+            .addLine("    .setB((byte) -3)")
+            .addLine("    .setC((short) 400)")
+            .addLine("    .setD('x')")
+            .addLine("    .setE(-70000)")
+            .addLine("    .setF(1L << 40)")
+            .addLine("    .setG(-1.5f)")
+            .addLine("    .setH(Double.NaN)")
+            .addLine("    .setI(\"foo\")")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.hashCode(new Object[] {", Arrays.class)
+            .addLine("        true, (byte) -3, (short) 400, 'x', -70000, 1L << 40, -1.5f,")
+            .addLine("        Double.NaN, \"foo\" }),")
+            .addLine("    value.hashCode());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCachedHashCode() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(cacheHashCode = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract int getPropertyA();")
+            .addLine("  public abstract String getPropertyB();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("  public static Builder builder() {")
+            .addLine("    return new Builder();")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = com.example.DataType.builder()")
+            .addLine("    .setPropertyA(11)")
+            .addLine("    .setPropertyB(\"foo\")")
+            .addLine("    .build();")
+            .addLine("int expected = %s.hashCode(new Object[] { 11, \"foo\" });",
+                Arrays.class)
+            .addLine("assertEquals(expected, value.hashCode());")
+            .addLine("assertEquals(expected, value.hashCode());")
+            .addLine("com.example.DataType partial = com.example.DataType.builder()")
+            .addLine("    .setPropertyA(11)")
+            .addLine("    .buildPartial();")
+            .addLine("assertEquals(partial.hashCode(), partial.hashCode());")
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(value, com.example.DataType.builder()")
+            .addLine("        .setPropertyA(11)")
+            .addLine("        .setPropertyB(\"foo\")")
+            .addLine("        .build())")
+            .addLine("    .addEqualityGroup(partial, com.example.DataType.builder()")
+            .addLine("        .setPropertyA(11)")
+            .addLine("        .buildPartial())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEquals_mixedPropertyKinds() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(cacheHashCode = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public enum Color { RED, GREEN }")
+            .addLine("  public abstract %s<String> getNames();", List.class)
+            .addLine("  public abstract String getDescription();")
+            .addLine("  public abstract Color getColor();")
+            .addLine("  public abstract int getCount();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("  public static Builder builder() {")
+            .addLine("    return new Builder();")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = com.example.DataType.builder()")
+            .addLine("    .addNames(\"a\", \"b\")")
+            .addLine("    .setDescription(\"foo\")")
+            .addLine("    .setColor(com.example.DataType.Color.RED)")
+            .addLine("    .setCount(3);")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("com.example.DataType hashed = builder.build();")
+            .addLine("hashed.hashCode();")
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(value, hashed, builder.build())")
+            .addLine("    .addEqualityGroup(builder.addNames(\"c\").build())")
+            .addLine("    .addEqualityGroup(builder.setDescription(\"bar\").build())")
+            .addLine("    .addEqualityGroup(builder")
+            .addLine("        .setColor(com.example.DataType.Color.GREEN)")
+            .addLine("        .build())")
+            .addLine("    .addEqualityGroup(builder.setCount(4).build())")
+            .addLine("    .addEqualityGroup(builder.buildPartial(), builder.buildPartial())")
+            .addLine("    .addEqualityGroup(builder.clearNames().buildPartial())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testManyRequiredProperties_longBitmask() {
+    testManyRequiredProperties(40);
+  }
+
+  @Test
+  public void testManyRequiredProperties_enumSetFallback() {
+    testManyRequiredProperties(70);
+  }
+
+  private void testManyRequiredProperties(int numProperties) {
+    SourceBuilder dataType = new SourceBuilder()
+        .addLine("package com.example;")
+        .addLine("@%s", FreeBuilder.class)
+        .addLine("public abstract class DataType {");
+    for (int i = 0; i < numProperties; i++) {
+      dataType.addLine("  public abstract int getProperty%s();", i);
+    }
+    dataType.addLine("")
+        .addLine("  public static class Builder extends DataType_Builder {}")
+        .addLine("  public static Builder builder() {")
+        .addLine("    return new Builder();")
+        .addLine("  }")
+        .addLine("}");
+    TestBuilder test = new TestBuilder()
+        .addLine("com.example.DataType.Builder builder = com.example.DataType.builder();");
+    for (int i = 0; i < numProperties - 1; i++) {
+      test.addLine("builder.setProperty%1$s(%1$s);", i);
+    }
+    int last = numProperties - 1;
+    test.addLine("try {")
+        .addLine("  builder.build();")
+        .addLine("  fail(\"Expected IllegalStateException\");")
+        .addLine("} catch (IllegalStateException e) {")
+        .addLine("  assertEquals(\"Not set: [property%s]\", e.getMessage());", last)
+        .addLine("}")
+        .addLine("com.example.DataType partial = builder.buildPartial();")
+        .addLine("assertEquals(%1$s, partial.getProperty%1$s());", last - 1)
+        .addLine("try {")
+        .addLine("  partial.getProperty%s();", last)
+        .addLine("  fail(\"Expected UnsupportedOperationException\");")
+        .addLine("} catch (UnsupportedOperationException e) {}")
+        .addLine("com.example.DataType value = builder.setProperty%1$s(%1$s).build();", last)
+        .addLine("assertEquals(%1$s, value.getProperty%1$s());", last)
+        .addLine("assertEquals(value, com.example.DataType.builder().mergeFrom(builder).build());")
+        .addLine("builder.clear().setProperty0(0);")
+        .addLine("new %s()", EqualsTester.class)
+        .addLine("    .addEqualityGroup(builder.buildPartial(), builder.buildPartial())")
+        .addLine("    .addEqualityGroup(partial)")
+        .addLine("    .testEquals();");
+    behaviorTester
+        .with(new Processor())
+        .with(dataType.build())
+        .with(test.build())
+        .runTest();
+  }
+
   @Test
   public void testToString_noProperties() {
     behaviorTester
@@ -820,6 +1050,196 @@ public class ProcessorTest {
         .runTest();
   }
 
+  @Test
+  public void testToString_optionalAndRequiredProperties() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String> getPrefix();", Optional.class)
+            .addLine("  public abstract int getCount();")
+            .addLine("  public abstract %s<String> getSuffix();", Optional.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("  public static Builder builder() {")
+            .addLine("    return new Builder();")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = com.example.DataType.builder();")
+            .addLine("assertEquals(\"partial DataType{}\", builder.buildPartial().toString());")
+            .addLine("builder.setSuffix(\"s\");")
+            .addLine("assertEquals(\"partial DataType{suffix=s}\",")
+            .addLine("    builder.buildPartial().toString());")
+            .addLine("builder.setCount(3);")
+            .addLine("assertEquals(\"DataType{count=3, suffix=s}\", builder.build().toString());")
+            .addLine("builder.setPrefix(\"p\");")
+            .addLine("assertEquals(\"DataType{prefix=p, count=3, suffix=s}\",")
+            .addLine("    builder.build().toString());")
+            .addLine("assertEquals(\"partial DataType{prefix=p, count=3, suffix=s}\",")
+            .addLine("    builder.buildPartial().toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testCachedToString() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(cacheToString = true)", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract int getPropertyA();")
+            .addLine("  public abstract String getPropertyB();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("  public static Builder builder() {")
+            .addLine("    return new Builder();")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = com.example.DataType.builder()")
+            .addLine("    .setPropertyA(11)")
+            .addLine("    .setPropertyB(\"foo\")")
+            .addLine("    .build();")
+            .addLine("String first = value.toString();")
+            .addLine("assertEquals(\"DataType{propertyA=11, propertyB=foo}\", first);")
+            .addLine("assertSame(first, value.toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_unchangedBuilderReturnsSameInstance() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract int getPropertyA();")
+            .addLine("  public abstract %s<String> getPropertyB();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setPropertyA(11)")
+            .addLine("    .addPropertyB(\"foo\");")
+            .addLine("com.example.DataType first = builder.build();")
+            .addLine("assertSame(first, builder.build());")
+            .addLine("builder.addPropertyB(\"bar\");")
+            .addLine("com.example.DataType second = builder.build();")
+            .addLine("assertThat(second.getPropertyB())")
+            .addLine("    .containsExactly(\"foo\", \"bar\").inOrder();")
+            .addLine("assertThat(first.getPropertyB()).containsExactly(\"foo\");")
+            .addLine("assertSame(second, builder.build());")
+            .addLine("builder.clear().setPropertyA(11).addPropertyB(\"foo\");")
+            .addLine("assertNotSame(first, builder.build());")
+            .addLine("assertEquals(first, builder.build());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_afterMergeFromValue_returnsOriginalValue() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract int getPropertyA();")
+            .addLine("  public abstract %s<String> getPropertyB();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .setPropertyA(11)")
+            .addLine("    .addPropertyB(\"foo\")")
+            .addLine("    .build();")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value);")
+            .addLine("assertSame(value, builder.build());")
+            .addLine("builder.setPropertyA(12);")
+            .addLine("assertEquals(12, builder.build().getPropertyA());")
+            .addLine("assertEquals(11, value.getPropertyA());")
+            .addLine("builder.mergeFrom(value);")
+            .addLine("assertNotSame(value, builder.build());")
+            .addLine("assertThat(builder.build().getPropertyB())")
+            .addLine("    .containsExactly(\"foo\", \"foo\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_afterMergeFromValue_overriddenSetterApplied() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract String getName();")
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {")
+            .addLine("    @Override public Builder setName(String name) {")
+            .addLine("      return super.setName(name + \"!\");")
+            .addLine("    }")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .setName(\"A\")")
+            .addLine("    .build();")
+            .addLine("assertEquals(\"A!\", value.getName());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .build();")
+            .addLine("assertEquals(\"A!!\", copy.getName());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testBuild_nestedBuilderModified_returnsNewInstance() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public interface DataType {")
+            .addLine("  @%s", FreeBuilder.class)
+            .addLine("  interface Item {")
+            .addLine("    String getName();")
+            .addLine("")
+            .addLine("    class Builder extends DataType_Item_Builder {}")
+            .addLine("  }")
+            .addLine("")
+            .addLine("  Item getItem();")
+            .addLine("")
+            .addLine("  class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("builder.getItemBuilder().setName(\"foo\");")
+            .addLine("assertEquals(\"foo\", builder.build().getItem().getName());")
+            .addLine("builder.getItemBuilder().setName(\"bar\");")
+            .addLine("assertEquals(\"bar\", builder.build().getItem().getName());")
+            .build())
+        .runTest();
+  }
+
   @Test
   public void testGwtSerialize_twoStringProperties() {
     behaviorTester
@@ -899,9 +1319,17 @@ public class ProcessorTest {
 
   /**
    * Server-side deserialize does not match server-side serialize, so we can't test a round trip.
+   *
+   * <p>The response is encoded for this (void) method: the order of {@link Class#getMethods()} is
+   * unspecified, and picking a method with a return type would vary the test from run to run.
    */
   public static <T> void gwtSerialize(T object) throws SerializationException {
-    RPC.encodeResponseForSuccess(ProcessorTest.class.getMethods()[0], object);
+    try {
+      RPC.encodeResponseForSuccess(
+          ProcessorTest.class.getMethod("gwtSerialize", Object.class), object);
+    } catch (NoSuchMethodException e) {
+      throw new AssertionError(e);
+    }
   }
 
   public static <T> T reserialize(final T object) {
@@ -1183,6 +1611,37 @@ public class ProcessorTest {
 
   }
 
+  @Test
+  public void testCapacityProfile_presizesBuilderStorage() throws IOException {
+    File profile = temporaryFolder.newFile("capacity.properties");
+    Files.write("com.example.DataType.items = 500\n", profile, Charsets.UTF_8);
+    behaviorTester
+        .with(new Processor())
+        .withOption("-A" + CapacityProfile.OPTION + "=" + profile.getPath())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String> getItems();", List.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\");")
+            .addLine("%s items = builder.getClass().getSuperclass().getDeclaredField(\"items\");",
+                Field.class)
+            .addLine("items.setAccessible(true);")
+            .addLine("%s elementData = %s.class.getDeclaredField(\"elementData\");",
+                Field.class, ArrayList.class)
+            .addLine("elementData.setAccessible(true);")
+            .addLine("assertEquals(500, ((Object[]) elementData.get(items.get(builder))).length);")
+            .addLine("assertThat(builder.build().getItems()).containsExactly(\"one\");")
+            .build())
+        .runTest();
+  }
+
   @SupportedAnnotationTypes("*")
   private static class AnnotationsProcessor extends AbstractProcessor {
     private static final ClassLoader CLASS_LOADER = AnnotationsProcessor.class.getClassLoader();
@@ -851,4 +851,131 @@ public class SetMultimapPropertyFactoryTest {
         .addStaticImport(MultimapSubject.class, "assertThat")
         .addImport("com.example.DataType");
   }
+
+  @Test
+  public void testMultimapStorage_hashed() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(multimapStorage = %s.HASHED)",
+                FreeBuilder.class, FreeBuilder.MultimapStorage.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getItems();", SetMultimap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1)")
+            .addLine("    .putAllItems(\"two\", %s.of(2, 3));", ImmutableList.class)
+            .addLine("assertEquals(3, builder.getItems().size());")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(%s.of(\"one\", 1, \"two\", 2, \"two\", 3),",
+                ImmutableSetMultimap.class)
+            .addLine("    value.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMultimapStorage_immutableBuilder() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s(multimapStorage = %s.IMMUTABLE_BUILDER)",
+                FreeBuilder.class, FreeBuilder.MultimapStorage.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getItems();", SetMultimap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1);")
+            .addLine("%s<String, Integer> snapshot = builder.getItems();", SetMultimap.class)
+            .addLine("builder.putAllItems(%s.of(\"two\", 2, \"one\", 3));",
+                ImmutableSetMultimap.class)
+            .addLine("assertEquals(%s.of(\"one\", 1), snapshot);", ImmutableSetMultimap.class)
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(%s.of(\"one\", 1, \"one\", 3, \"two\", 2),",
+                ImmutableSetMultimap.class)
+            .addLine("    value.getItems());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(builder)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertTrue(builder.clearItems().build().getItems().isEmpty());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity() {
+    behaviorTester
+        .with(new Processor())
+        .with(MULTIMAP_PROPERTY)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putAllItems(%s.of(\"one\", \"A\", \"two\", \"B\"))",
+                ImmutableSetMultimap.class)
+            .addLine("    .ensureItemsCapacity(100, 4)")
+            .addLine("    .putItems(\"one\", \"C\")")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(\"one\", \"A\", \"one\", \"C\", \"two\", \"B\"),",
+                ImmutableSetMultimap.class)
+            .addLine("    value.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate() {
+    behaviorTester
+        .with(new Processor())
+        .with(MULTIMAP_PROPERTY)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", \"A\")")
+            .addLine("    .putItems(\"two\", \"B\")")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<String, String>>() {",
+                SetMultimap.class)
+            .addLine("          @Override public void accept(%s<String, String> items) {",
+                SetMultimap.class)
+            .addLine("            items.removeAll(\"one\");")
+            .addLine("            items.get(\"two\").add(\"C\");")
+            .addLine("            items.put(\"three\", \"D\");")
+            .addLine("          }")
+            .addLine("        })")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems())")
+            .addLine("    .isEqualTo(%s.of(\"two\", \"B\", \"two\", \"C\", \"three\", \"D\"));",
+                ImmutableSetMultimap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_nullValueAddedThroughGet() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(MULTIMAP_PROPERTY)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .mutateItems(")
+            .addLine("        new java.util.function.Consumer<%s<String, String>>() {",
+                SetMultimap.class)
+            .addLine("          @Override public void accept(%s<String, String> items) {",
+                SetMultimap.class)
+            .addLine("            items.get(\"one\").add(null);")
+            .addLine("          }")
+            .addLine("        });")
+            .build())
+        .runTest();
+  }
 }
@@ -33,6 +33,8 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -638,4 +640,118 @@ public class SetPropertyFactoryTest {
             .build())
         .runTest();
   }
+
+  @Test
+  public void testEnumElements() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public enum Flag { ALPHA, BETA, GAMMA }")
+            .addLine("")
+            .addLine("  public abstract %s<Flag> getFlags();", Set.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addImport("com.example.DataType.Flag")
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addFlags(Flag.GAMMA, Flag.ALPHA, Flag.GAMMA);")
+            .addLine("assertThat(builder.getFlags()).containsExactly(Flag.ALPHA, Flag.GAMMA)")
+            .addLine("    .inOrder();")
+            .addLine("com.example.DataType value = builder.addFlags(Flag.BETA).build();")
+            .addLine("assertThat(value.getFlags())")
+            .addLine("    .containsExactly(Flag.ALPHA, Flag.BETA, Flag.GAMMA).inOrder();")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .addAllFlags(%s.of(Flag.BETA, Flag.GAMMA, Flag.ALPHA))",
+                ImmutableSet.class)
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .addLine("assertEquals(value.toString(), copy.toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity() {
+    behaviorTester
+        .with(new Processor())
+        .with(SET_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addAllItems(%s.of(\"one\", \"two\"))", ImmutableSet.class)
+            .addLine("    .ensureItemsCapacity(100);")
+            .addLine("%s<String> view = builder.getItems();", Set.class)
+            .addLine("builder.ensureItemsCapacity(1000).addItems(\"three\", \"one\");")
+            .addLine("assertThat(view).containsExactly(\"one\", \"two\", \"three\").inOrder();")
+            .addLine("assertThat(builder.build().getItems())")
+            .addLine("    .containsExactly(\"one\", \"two\", \"three\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEnsureCapacity_afterAdd_rebuildsUnlessViewed() {
+    behaviorTester
+        .with(new Processor())
+        .with(SET_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\", \"two\");")
+            .addLine("%s field = builder.getClass().getSuperclass().getDeclaredField(\"items\");",
+                Field.class)
+            .addLine("field.setAccessible(true);")
+            .addLine("Object storage = field.get(builder);")
+            .addLine("builder.ensureItemsCapacity(4);")
+            .addLine("assertSame(storage, field.get(builder));")
+            .addLine("builder.ensureItemsCapacity(1000);")
+            .addLine("assertNotSame(storage, field.get(builder));")
+            .addLine("%s<String> view = builder.getItems();", Set.class)
+            .addLine("storage = field.get(builder);")
+            .addLine("builder.ensureItemsCapacity(100000).addItems(\"three\");")
+            .addLine("assertSame(storage, field.get(builder));")
+            .addLine("assertThat(view).containsExactly(\"one\", \"two\", \"three\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate() {
+    behaviorTester
+        .with(new Processor())
+        .with(SET_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\", \"two\")")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {", Set.class)
+            .addLine("      @Override public void accept(%s<String> items) {", Set.class)
+            .addLine("        items.remove(\"one\");")
+            .addLine("        items.addAll(%s.of(\"two\", \"three\"));", ImmutableList.class)
+            .addLine("      }")
+            .addLine("    })")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"two\", \"three\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMutate_nullElement() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(SET_PROPERTY_AUTO_BUILT_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .mutateItems(new java.util.function.Consumer<%s<String>>() {", Set.class)
+            .addLine("      @Override public void accept(%s<String> items) {", Set.class)
+            .addLine("        items.addAll(%s.asList(\"one\", null));", Arrays.class)
+            .addLine("      }")
+            .addLine("    });")
+            .build())
+        .runTest();
+  }
 }
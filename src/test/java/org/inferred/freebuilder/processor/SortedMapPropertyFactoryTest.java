@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Ordering;
+import com.google.common.testing.EqualsTester;
+
+import org.inferred.freebuilder.FreeBuilder;
+import org.inferred.freebuilder.processor.util.testing.BehaviorTester;
+import org.inferred.freebuilder.processor.util.testing.SourceBuilder;
+import org.inferred.freebuilder.processor.util.testing.TestBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.SortedMap;
+
+import javax.tools.JavaFileObject;
+
+/** Behavioral tests for {@code SortedMap<?, ?>} properties. */
+@RunWith(JUnit4.class)
+public class SortedMapPropertyFactoryTest {
+
+  private static final JavaFileObject SORTED_MAP_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract %s<String, Integer> getItems();", SortedMap.class)
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+  private final BehaviorTester behaviorTester = new BehaviorTester();
+
+  @Test
+  public void testDefaultEmpty() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder().build();")
+            .addLine("assertTrue(value.getItems().isEmpty());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPropertyNamedSorted() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, Integer> getSorted();", SortedMap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .putSorted(\"b\", 2)")
+            .addLine("    .putSorted(\"a\", 1);")
+            .addLine("assertThat(builder.getSorted().keySet())")
+            .addLine("    .containsExactly(\"a\", \"b\").inOrder();")
+            .addLine("assertThat(builder.build().getSorted().keySet())")
+            .addLine("    .containsExactly(\"a\", \"b\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPut_sortsOnBuild() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"two\", 2)")
+            .addLine("    .putAllItems(%s.of(\"three\", 3, \"one\", 1))", ImmutableMap.class)
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems().keySet())")
+            .addLine("    .containsExactly(\"one\", \"three\", \"two\").inOrder();")
+            .addLine("assertEquals(3, (int) value.getItems().get(\"three\"));")
+            .addLine("assertTrue(value.getItems() instanceof %s);", ImmutableSortedMap.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPut_nullKey() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder().putItems(null, 1);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPut_duplicateKeyFailsOnBuild() {
+    thrown.expect(IllegalArgumentException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"one\", 1)")
+            .addLine("    .putItems(\"one\", 2)")
+            .addLine("    .build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testSetComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", 1)")
+            .addLine("    .putItems(\"b\", 2)")
+            .addLine("    .setComparatorForItems(%s.natural().reverse())", Ordering.class)
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems().keySet())")
+            .addLine("    .containsExactly(\"b\", \"a\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testUncomparableKeys_noComparator() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("No comparator set for items");
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<StringBuilder, Integer> getItems();", SortedMap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .putItems(new StringBuilder(\"a\"), 1)")
+            .addLine("    .build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testUncomparableKeys_buildPartialWithoutComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<StringBuilder, Integer> getItems();", SortedMap.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(new StringBuilder(\"a\"), 1)")
+            .addLine("    .buildPartial();")
+            .addLine("assertEquals(\"{a=1}\", value.getItems().toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMergeFromBuilder_copiesComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .setComparatorForItems(%s.natural().reverse());", Ordering.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", 1)")
+            .addLine("    .putItems(\"b\", 2)")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems().keySet())")
+            .addLine("    .containsExactly(\"b\", \"a\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMergeFrom() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"b\", 2);")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .putItems(\"a\", 1)")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(\"a\", 1, \"b\", 2), value.getItems());",
+                ImmutableMap.class)
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEquality() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_MAP_TYPE)
+        .with(new TestBuilder()
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder().build(),")
+            .addLine("        new com.example.DataType.Builder().build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .putItems(\"one\", 1)")
+            .addLine("            .putItems(\"two\", 2)")
+            .addLine("            .build(),")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .putItems(\"two\", 2)")
+            .addLine("            .putItems(\"one\", 1)")
+            .addLine("            .build())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Ordering;
+import com.google.common.testing.EqualsTester;
+
+import org.inferred.freebuilder.FreeBuilder;
+import org.inferred.freebuilder.processor.util.testing.BehaviorTester;
+import org.inferred.freebuilder.processor.util.testing.SourceBuilder;
+import org.inferred.freebuilder.processor.util.testing.TestBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.SortedSet;
+
+import javax.tools.JavaFileObject;
+
+/** Behavioral tests for {@code SortedSet<?>} properties. */
+@RunWith(JUnit4.class)
+public class SortedSetPropertyFactoryTest {
+
+  private static final JavaFileObject SORTED_SET_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract %s<String> getItems();", SortedSet.class)
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  private static final JavaFileObject UNCOMPARABLE_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract %s<StringBuilder> getItems();", SortedSet.class)
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+  private final BehaviorTester behaviorTester = new BehaviorTester();
+
+  @Test
+  public void testDefaultEmpty() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder().build();")
+            .addLine("assertThat(value.getItems()).isEmpty();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAdd_sortsAndRemovesDuplicatesOnBuild() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"two\", \"three\")")
+            .addLine("    .addAllItems(%s.of(\"one\", \"two\"))", ImmutableList.class)
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"one\", \"three\", \"two\")")
+            .addLine("    .inOrder();")
+            .addLine("assertTrue(value.getItems() instanceof %s);", ImmutableSortedSet.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testAdd_null() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder().addItems((String) null);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testGet_returnsSortedSnapshot() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"b\", \"a\");")
+            .addLine("%s<String> snapshot = builder.getItems();", SortedSet.class)
+            .addLine("builder.addItems(\"c\");")
+            .addLine("assertThat(snapshot).containsExactly(\"a\", \"b\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testSetComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"a\", \"c\", \"b\")")
+            .addLine("    .setComparatorForItems(%s.natural().reverse())", Ordering.class)
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"c\", \"b\", \"a\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testUncomparableElements_comparatorSetInBuilderConstructor() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<StringBuilder> getItems();", SortedSet.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {")
+            .addLine("    public Builder() {")
+            .addLine("      setComparatorForItems(%s.usingToString());", Ordering.class)
+            .addLine("    }")
+            .addLine("  }")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .addItems(new StringBuilder(\"b\"), new StringBuilder(\"a\"));")
+            .addLine("com.example.DataType value = builder.build();")
+            .addLine("assertEquals(\"[a, b]\", value.getItems().toString());")
+            .addLine("builder.clear().addItems(new StringBuilder(\"c\"));")
+            .addLine("assertEquals(\"[c]\", builder.build().getItems().toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testUncomparableElements_noComparator() {
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("No comparator set for items");
+    behaviorTester
+        .with(new Processor())
+        .with(UNCOMPARABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .addItems(new StringBuilder(\"a\"))")
+            .addLine("    .build();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testUncomparableElements_mergeFromValueAdoptsComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(UNCOMPARABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .setComparatorForItems(%s.usingToString())", Ordering.class)
+            .addLine("    .addItems(new StringBuilder(\"b\"), new StringBuilder(\"a\"))")
+            .addLine("    .build();")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .addItems(new StringBuilder(\"c\"))")
+            .addLine("    .build();")
+            .addLine("assertEquals(\"[a, b, c]\", copy.getItems().toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testUncomparableElements_buildPartialWithoutComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(UNCOMPARABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(new StringBuilder(\"a\"))")
+            .addLine("    .buildPartial();")
+            .addLine("assertEquals(\"[a]\", value.getItems().toString());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMergeFromBuilder_copiesComparator() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .setComparatorForItems(%s.natural().reverse());", Ordering.class)
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"a\", \"b\")")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"b\", \"a\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testClear() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"one\")")
+            .addLine("    .clearItems()")
+            .addLine("    .addItems(\"two\")")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"two\");")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMergeFrom() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .addItems(\"b\");")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .mergeFrom(template.build())")
+            .addLine("    .addItems(\"a\")")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems()).containsExactly(\"a\", \"b\").inOrder();")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEquality() {
+    behaviorTester
+        .with(new Processor())
+        .with(SORTED_SET_TYPE)
+        .with(new TestBuilder()
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder().build(),")
+            .addLine("        new com.example.DataType.Builder().build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .addItems(\"one\", \"two\")")
+            .addLine("            .build(),")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .addItems(\"two\", \"one\", \"two\")")
+            .addLine("            .build())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+}
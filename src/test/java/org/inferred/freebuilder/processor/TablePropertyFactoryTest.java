@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.inferred.freebuilder.processor;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+import com.google.common.testing.EqualsTester;
+
+import org.inferred.freebuilder.FreeBuilder;
+import org.inferred.freebuilder.processor.util.testing.BehaviorTester;
+import org.inferred.freebuilder.processor.util.testing.SourceBuilder;
+import org.inferred.freebuilder.processor.util.testing.TestBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.tools.JavaFileObject;
+
+/** Behavioral tests for {@code Table<?, ?, ?>} properties. */
+@RunWith(JUnit4.class)
+public class TablePropertyFactoryTest {
+
+  private static final JavaFileObject TABLE_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public abstract %s<String, String, Integer> getItems();", Table.class)
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  private static final JavaFileObject ENUM_TABLE_TYPE = new SourceBuilder()
+      .addLine("package com.example;")
+      .addLine("@%s", FreeBuilder.class)
+      .addLine("public abstract class DataType {")
+      .addLine("  public enum Tier { LOW, HIGH }")
+      .addLine("  public enum Region { EU, US }")
+      .addLine("  public abstract %s<Tier, Region, Double> getPrices();", Table.class)
+      .addLine("")
+      .addLine("  public static class Builder extends DataType_Builder {}")
+      .addLine("}")
+      .build();
+
+  @Rule public final ExpectedException thrown = ExpectedException.none();
+  private final BehaviorTester behaviorTester = new BehaviorTester();
+
+  @Test
+  public void testDefaultEmpty() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder().build();")
+            .addLine("assertTrue(value.getItems().isEmpty());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPut() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", \"x\", 1)")
+            .addLine("    .putItems(\"b\", \"y\", 2)")
+            .addLine("    .putItems(\"a\", \"x\", 3)")
+            .addLine("    .build();")
+            .addLine("assertEquals(2, value.getItems().size());")
+            .addLine("assertEquals(3, (int) value.getItems().get(\"a\", \"x\"));")
+            .addLine("assertEquals(2, (int) value.getItems().get(\"b\", \"y\"));")
+            .addLine("assertTrue(value.getItems() instanceof %s);", ImmutableTable.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPut_nullValue() {
+    thrown.expect(NullPointerException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder().putItems(\"a\", \"x\", null);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testPutAll() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("%1$s<String, String, Integer> table = %1$s.create();", HashBasedTable.class)
+            .addLine("table.put(\"a\", \"x\", 1);")
+            .addLine("table.put(\"b\", \"y\", 2);")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"c\", \"z\", 3)")
+            .addLine("    .putAllItems(table)")
+            .addLine("    .build();")
+            .addLine("assertThat(value.getItems().rowKeySet())")
+            .addLine("    .containsExactly(\"c\", \"a\", \"b\").inOrder();")
+            .addLine("assertEquals(1, (int) value.getItems().get(\"a\", \"x\"));")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testRemove() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", \"x\", 1)")
+            .addLine("    .putItems(\"b\", \"y\", 2)")
+            .addLine("    .removeItems(\"a\", \"x\")")
+            .addLine("    .removeItems(\"c\", \"z\")")
+            .addLine("    .build();")
+            .addLine("assertEquals(1, value.getItems().size());")
+            .addLine("assertFalse(value.getItems().contains(\"a\", \"x\"));")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testClear() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", \"x\", 1)")
+            .addLine("    .clearItems()")
+            .addLine("    .putItems(\"b\", \"y\", 2)")
+            .addLine("    .build();")
+            .addLine("assertEquals(1, value.getItems().size());")
+            .addLine("assertEquals(2, (int) value.getItems().get(\"b\", \"y\"));")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testGet_returnsLiveView() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder();")
+            .addLine("%s<String, String, Integer> items = builder.getItems();", Table.class)
+            .addLine("builder.putItems(\"a\", \"x\", 1);")
+            .addLine("assertEquals(1, (int) items.get(\"a\", \"x\"));")
+            .addLine("builder.clearItems();")
+            .addLine("assertTrue(items.isEmpty());")
+            .addLine("assertSame(items, builder.getItems());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testGet_returnsUnmodifiableView() {
+    thrown.expect(UnsupportedOperationException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder().getItems().put(\"a\", \"x\", 1);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testMergeFrom() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder template = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", \"x\", 1);")
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(template)")
+            .addLine("    .putItems(\"b\", \"y\", 2)")
+            .addLine("    .build();")
+            .addLine("assertEquals(2, value.getItems().size());")
+            .addLine("com.example.DataType copy = new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(value)")
+            .addLine("    .build();")
+            .addLine("assertEquals(value, copy);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testImmutableTableProperty() {
+    behaviorTester
+        .with(new Processor())
+        .with(new SourceBuilder()
+            .addLine("package com.example;")
+            .addLine("@%s", FreeBuilder.class)
+            .addLine("public abstract class DataType {")
+            .addLine("  public abstract %s<String, String, Integer> getItems();",
+                ImmutableTable.class)
+            .addLine("")
+            .addLine("  public static class Builder extends DataType_Builder {}")
+            .addLine("}")
+            .build())
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putItems(\"a\", \"x\", 1)")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(\"a\", \"x\", 1), value.getItems());",
+                ImmutableTable.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testDenseKeys_fullTableStaysDense() {
+    behaviorTester
+        .with(new Processor())
+        .with(ENUM_TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .putPrices(com.example.DataType.Tier.HIGH,"
+                + " com.example.DataType.Region.US, 4.0)")
+            .addLine("    .setDenseKeysForPrices()")
+            .addLine("    .putPrices(com.example.DataType.Tier.LOW,"
+                + " com.example.DataType.Region.EU, 1.0)")
+            .addLine("    .putPrices(com.example.DataType.Tier.LOW,"
+                + " com.example.DataType.Region.US, 2.0)")
+            .addLine("    .putPrices(com.example.DataType.Tier.HIGH,"
+                + " com.example.DataType.Region.EU, 3.0)")
+            .addLine("    .build();")
+            .addLine("assertFalse(value.getPrices() instanceof %s);", ImmutableTable.class)
+            .addLine("assertEquals(%s.<com.example.DataType.Tier, com.example.DataType.Region,"
+                + " Double>builder()", ImmutableTable.class)
+            .addLine("        .put(com.example.DataType.Tier.LOW,"
+                + " com.example.DataType.Region.EU, 1.0)")
+            .addLine("        .put(com.example.DataType.Tier.LOW,"
+                + " com.example.DataType.Region.US, 2.0)")
+            .addLine("        .put(com.example.DataType.Tier.HIGH,"
+                + " com.example.DataType.Region.EU, 3.0)")
+            .addLine("        .put(com.example.DataType.Tier.HIGH,"
+                + " com.example.DataType.Region.US, 4.0)")
+            .addLine("        .build(),")
+            .addLine("    value.getPrices());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testDenseKeys_partialTableDropsEmptyCells() {
+    behaviorTester
+        .with(new Processor())
+        .with(ENUM_TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType value = new com.example.DataType.Builder()")
+            .addLine("    .setDenseKeysForPrices()")
+            .addLine("    .putPrices(com.example.DataType.Tier.LOW,"
+                + " com.example.DataType.Region.EU, 1.0)")
+            .addLine("    .putPrices(com.example.DataType.Tier.HIGH,"
+                + " com.example.DataType.Region.US, 4.0)")
+            .addLine("    .removePrices(com.example.DataType.Tier.HIGH,"
+                + " com.example.DataType.Region.US)")
+            .addLine("    .build();")
+            .addLine("assertEquals(%s.of(com.example.DataType.Tier.LOW,"
+                + " com.example.DataType.Region.EU, 1.0),", ImmutableTable.class)
+            .addLine("    value.getPrices());")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testDenseKeys_explicitKeys() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("com.example.DataType.Builder builder = new com.example.DataType.Builder()")
+            .addLine("    .setDenseKeysForItems(%1$s.of(\"a\", \"b\"), %1$s.of(\"x\"))",
+                ImmutableList.class)
+            .addLine("    .putItems(\"b\", \"x\", 2)")
+            .addLine("    .putItems(\"a\", \"x\", 1);")
+            .addLine("assertEquals(builder.build(), new com.example.DataType.Builder()")
+            .addLine("    .mergeFrom(builder)")
+            .addLine("    .build());")
+            .addLine("assertThat(builder.build().getItems().rowKeySet())")
+            .addLine("    .containsExactly(\"a\", \"b\").inOrder();")
+            .addLine("builder.clearItems().putItems(\"a\", \"x\", 3);")
+            .addLine("assertEquals(%s.of(\"a\", \"x\", 3), builder.build().getItems());",
+                ImmutableTable.class)
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testDenseKeys_unknownKey() {
+    thrown.expect(IllegalArgumentException.class);
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("new com.example.DataType.Builder()")
+            .addLine("    .setDenseKeysForItems(%1$s.of(\"a\"), %1$s.of(\"x\"))",
+                ImmutableList.class)
+            .addLine("    .putItems(\"b\", \"x\", 2);")
+            .build())
+        .runTest();
+  }
+
+  @Test
+  public void testEquality() {
+    behaviorTester
+        .with(new Processor())
+        .with(TABLE_TYPE)
+        .with(new TestBuilder()
+            .addLine("new %s()", EqualsTester.class)
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder().build(),")
+            .addLine("        new com.example.DataType.Builder().build())")
+            .addLine("    .addEqualityGroup(")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .putItems(\"a\", \"x\", 1)")
+            .addLine("            .putItems(\"b\", \"y\", 2)")
+            .addLine("            .build(),")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .putItems(\"b\", \"y\", 2)")
+            .addLine("            .putItems(\"a\", \"x\", 1)")
+            .addLine("            .build(),")
+            .addLine("        new com.example.DataType.Builder()")
+            .addLine("            .setDenseKeysForItems(")
+            .addLine("                %1$s.of(\"a\", \"b\"), %1$s.of(\"x\", \"y\"))",
+                ImmutableList.class)
+            .addLine("            .putItems(\"a\", \"x\", 1)")
+            .addLine("            .putItems(\"b\", \"y\", 2)")
+            .addLine("            .build())")
+            .addLine("    .testEquals();")
+            .build())
+        .runTest();
+  }
+}
@@ -103,8 +103,15 @@ import javax.tools.ToolProvider;
  * </pre></code></blockquote>
  */
 public class BehaviorTester {
+  /**
+   * Compiles at the same language level as the tests themselves. Without an explicit level, the
+   * processor may be told an older source version than the class library supports.
+   */
+  private static final ImmutableList<String> COMPILER_OPTIONS = ImmutableList.of("-source", "1.7");
+
   private final List<Processor> processors = new ArrayList<Processor>();
   private final List<JavaFileObject> compilationUnits = new ArrayList<JavaFileObject>();
+  private final List<String> options = new ArrayList<String>(COMPILER_OPTIONS);
   private boolean shouldSetContextClassLoader = false;
 
   /** Adds a {@link Processor} to pass to the compiler when {@link #runTest} is invoked. */
@@ -124,6 +131,15 @@ public class BehaviorTester {
     return this;
   }
 
+  /**
+   * Adds an option, e.g. {@code -Akey=value}, to pass to the compiler when {@link #runTest} is
+   * invoked.
+   */
+  public BehaviorTester withOption(String option) {
+    options.add(option);
+    return this;
+  }
+
   /**
    * Ensures {@link Thread#getContextClassLoader()} will return a class loader containing the
    * compiled sources. This is needed by some frameworks, e.g. GWT, but requires us to run tests
@@ -143,7 +159,7 @@ public class BehaviorTester {
    */
   public void runTest() {
     try (TempJavaFileManager fileManager = new TempJavaFileManager()) {
-      compile(fileManager, compilationUnits, processors);
+      compile(fileManager, compilationUnits, processors, options);
       final ClassLoader classLoader = fileManager.getClassLoader(StandardLocation.CLASS_OUTPUT);
       final List<Throwable> exceptions = new ArrayList<Throwable>();
       if (shouldSetContextClassLoader) {
@@ -223,13 +239,14 @@ public class BehaviorTester {
   private static void compile(
       JavaFileManager fileManager,
       Iterable<? extends JavaFileObject> compilationUnits,
-      Iterable<? extends Processor> processors) {
+      Iterable<? extends Processor> processors,
+      Iterable<String> options) {
     DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
     CompilationTask task = getCompiler().getTask(
         null,
         fileManager,
         diagnostics,
-        null,
+        options,
         null,
         compilationUnits);
     task.setProcessors(processors);